@@ -28,7 +28,6 @@ package org.martus.server.foramplifiers;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -39,7 +38,6 @@ import org.martus.amplifier.ServerCallbackInterface;
 import org.martus.common.AmplifierNetworkInterface;
 import org.martus.common.LoggerInterface;
 import org.martus.common.MartusUtilities;
-import org.martus.common.MartusUtilities.FileTooLargeException;
 import org.martus.common.MartusUtilities.FileVerificationException;
 import org.martus.common.MartusUtilities.InvalidPublicKeyFileException;
 import org.martus.common.MartusUtilities.PublicInformationInvalidException;
@@ -61,7 +59,11 @@ import org.martus.common.packet.Packet.SignatureVerificationException;
 import org.martus.common.packet.Packet.WrongPacketTypeException;
 import org.martus.common.packet.UniversalId;
 import org.martus.common.xmlrpc.XmlRpcThread;
+import org.martus.server.main.AccountSet;
+import org.martus.server.main.InterimFileChunkReader;
 import org.martus.server.main.MartusServer;
+import org.martus.server.main.OutgoingInterimFileCache;
+import org.martus.server.main.ReloadableAccountSet;
 import org.martus.server.main.ServerBulletinStore;
 import org.martus.util.DirectoryUtils;
 import org.martus.util.LoggerUtil;
@@ -175,7 +177,7 @@ public class ServerForAmplifiers implements NetworkInterfaceConstants, LoggerInt
 	public void loadConfigurationFiles() throws IOException, InvalidPublicKeyFileException, PublicInformationInvalidException
 	{
 		File authorizedAmplifiersDir = getAuthorizedAmplifiersDirectory();
-		authorizedAmps = coreServer.loadServerPublicKeys(authorizedAmplifiersDir, "Amp");
+		authorizedAmps = new AccountSet(coreServer.loadServerPublicKeys(authorizedAmplifiersDir, "Amp"));
 		logNotice("Authorized " + authorizedAmps.size() + " amplifiers to call us");
 		loadClientsNotAmplified();
 		logNotice("Not authorized to amplify " + clientsNotAmplified.size() + " clients.");
@@ -213,9 +215,14 @@ public class ServerForAmplifiers implements NetworkInterfaceConstants, LoggerInt
 	
 	public void loadClientsNotAmplified(File clientsNotToBeAmplifiedFile)
 	{
-		clientsNotAmplified = MartusUtilities.loadClientListAndExitOnError(clientsNotToBeAmplifiedFile);
+		clientsNotAmplified = new ReloadableAccountSet(clientsNotToBeAmplifiedFile, MartusUtilities.loadClientListAndExitOnError(clientsNotToBeAmplifiedFile));
 	}	
 	
+	public void reloadAccountListsIfChanged()
+	{
+		coreServer.reloadAccountSetIfChanged(clientsNotAmplified, "client(s) not to amplify");
+	}
+	
 	public void addListeners() throws UnknownHostException
 	{
 		logNotice("Initializing ServerForAmplifiers");
@@ -393,66 +400,47 @@ public class ServerForAmplifiers implements NetworkInterfaceConstants, LoggerInt
 	public DatabaseKey findHeaderKeyInDatabase(String authorAccountId,String bulletinLocalId) 
 	{
 		UniversalId uid = UniversalId.createFromAccountAndLocalId(authorAccountId, bulletinLocalId);
-		DatabaseKey headerKey = DatabaseKey.createSealedKey(uid);
-		if(getDatabase().doesRecordExist(headerKey))
-			return headerKey;
-
-		headerKey.setDraft();
-		if(getDatabase().doesRecordExist(headerKey))
-			return headerKey;
-
-		return null;
+		return getStore().getHeaderKeyIndex().findHeaderKey(uid);
 	}
 	
-	private Vector buildBulletinChunkResponse(DatabaseKey headerKey, int chunkOffset, int maxChunkSize) throws
-			FileTooLargeException,
-			InvalidPacketException, 
-			WrongPacketTypeException, 
-			SignatureVerificationException, 
-			DecryptionException, 
-			NoKeyPairException, 
-			CryptoException, 
-			FileVerificationException, 
-			IOException, 
-			RecordHiddenException 
+	private Vector buildBulletinChunkResponse(DatabaseKey headerKey, int chunkOffset, int maxChunkSize) throws Exception
 	{
-		Vector result = new Vector();
+		OutgoingInterimFileCache cache = getStore().getOutgoingInterimPublicOnlyFileCache();
 		//log("entering createInterimBulletinFile");
-		File tempFile = createInterimBulletinFile(headerKey);
+		File tempFile = cache.acquire(headerKey, new PublicOnlyInterimFileBuilder());
 		//log("createInterimBulletinFile done");
-		int totalLength = MartusUtilities.getCappedFileLength(tempFile);
-		
-		int chunkSize = totalLength - chunkOffset;
-		if(chunkSize > maxChunkSize)
-			chunkSize = maxChunkSize;
-			
-		byte[] rawData = new byte[chunkSize];
-		
-		FileInputStream in = new FileInputStream(tempFile);
-		in.skip(chunkOffset);
-		in.read(rawData);
-		in.close();
-		
-		String zipString = StreamableBase64.encode(rawData);
-		
-		int endPosition = chunkOffset + chunkSize;
-		if(endPosition >= totalLength)
+		try
 		{
-			MartusUtilities.deleteInterimFileAndSignature(tempFile);
-			result.add(NetworkInterfaceConstants.OK);
+			Vector result = InterimFileChunkReader.createChunkResponse(tempFile, chunkOffset, maxChunkSize);
+			logDebug("downloadBulletinChunk : Exit " + result.get(0));
+			return result;
 		}
-		else
+		finally
 		{
-			result.add(NetworkInterfaceConstants.CHUNK_OK);
+			cache.release(headerKey, tempFile);
+		}
+	}
+	
+	class PublicOnlyInterimFileBuilder implements OutgoingInterimFileCache.Builder
+	{
+		public File getInterimFile(UniversalId uid) throws Exception
+		{
+			return getStore().getOutgoingInterimPublicOnlyFile(uid);
+		}
+
+		public File createInterimFile(DatabaseKey headerKey, File interimFile) throws Exception
+		{
+			return createInterimBulletinFile(headerKey, interimFile);
+		}
+		
+		public boolean verifyInterimFile(File interimFile)
+		{
+			File signatureFile = MartusUtilities.getSignatureFileFromFile(interimFile);
+			return verifyBulletinInterimFile(interimFile, signatureFile, getSecurity().getPublicKeyString());
 		}
-		result.add(new Integer(totalLength));
-		result.add(new Integer(chunkSize));
-		result.add(zipString);
-		logDebug("downloadBulletinChunk : Exit " + result.get(0));
-		return result;
 	}
 
-	public File createInterimBulletinFile(DatabaseKey headerKey) throws
+	public File createInterimBulletinFile(DatabaseKey headerKey, File tempFile) throws
 			CryptoException,
 			InvalidPacketException,
 			WrongPacketTypeException,
@@ -461,16 +449,9 @@ public class ServerForAmplifiers implements NetworkInterfaceConstants, LoggerInt
 			NoKeyPairException,
 			MartusUtilities.FileVerificationException, IOException, RecordHiddenException
 	{
-		File tempFile = getStore().getOutgoingInterimPublicOnlyFile(headerKey.getUniversalId());
-		File tempFileSignature = MartusUtilities.getSignatureFileFromFile(tempFile);
-		if(tempFile.exists() && tempFileSignature.exists())
-		{
-			if(verifyBulletinInterimFile(tempFile, tempFileSignature, getSecurity().getPublicKeyString()))
-				return tempFile;
-		}
 		MartusUtilities.deleteInterimFileAndSignature(tempFile);
 		BulletinZipUtilities.exportPublicBulletinPacketsFromDatabaseToZipFile(getDatabase(), headerKey, tempFile, getSecurity());
-		tempFileSignature = MartusUtilities.createSignatureFileFromFile(tempFile, getSecurity());
+		File tempFileSignature = MartusUtilities.createSignatureFileFromFile(tempFile, getSecurity());
 		if(!verifyBulletinInterimFile(tempFile, tempFileSignature, getSecurity().getPublicKeyString()))
 			throw new MartusUtilities.FileVerificationException();
 		logDebug("    Total file size =" + tempFile.length());
@@ -529,7 +510,7 @@ public class ServerForAmplifiers implements NetworkInterfaceConstants, LoggerInt
 	LoggerInterface logger;
 
 	private ServerSideAmplifierHandler amplifierHandler;
-	Vector authorizedAmps;
-	Vector clientsNotAmplified;
+	AccountSet authorizedAmps;
+	ReloadableAccountSet clientsNotAmplified;
 	public boolean amplifyMirroredBulletins;
 }
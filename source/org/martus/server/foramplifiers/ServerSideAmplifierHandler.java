@@ -30,7 +30,6 @@ import java.util.Vector;
 
 import org.martus.common.LoggerInterface;
 import org.martus.common.SupplierSideAmplifierNetworkInterface;
-import org.martus.common.bulletinstore.BulletinStore;
 import org.martus.common.crypto.MartusCrypto;
 import org.martus.common.database.BulletinUploadRecord;
 import org.martus.common.database.Database;
@@ -204,7 +203,7 @@ public class ServerSideAmplifierHandler implements SupplierSideAmplifierNetworkI
 					if(!BulletinUploadRecord.wasBurCreatedByThisCrypto(burInDatabase, security))
 						return;				
 							
-				BulletinHeaderPacket bhp = BulletinStore.loadBulletinHeaderPacket(db, key, security);
+				BulletinHeaderPacket bhp = server.getStore().getHeaderPacketCache().load(db, key, security);
 				if(! bhp.isAllPrivate())
 				{
 					infos.add(key.getLocalId());
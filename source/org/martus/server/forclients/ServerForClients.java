@@ -68,12 +68,15 @@ import org.martus.common.network.NetworkInterface;
 import org.martus.common.network.NetworkInterfaceConstants;
 import org.martus.common.network.NetworkInterfaceXmlRpcConstants;
 import org.martus.common.network.NonSSLNetworkAPI;
-import org.martus.common.packet.BulletinHeaderPacket;
 import org.martus.common.packet.UniversalId;
 import org.martus.common.utilities.MartusServerUtilities;
 import org.martus.common.utilities.MartusServerUtilities.MartusSignatureFileDoesntExistsException;
 import org.martus.common.xmlrpc.WebServerWithClientId;
+import org.martus.server.main.AccessTokenIndex;
+import org.martus.server.main.AccountSet;
+import org.martus.server.main.BulletinSummaryIndex;
 import org.martus.server.main.MartusServer;
+import org.martus.server.main.ReloadableAccountSet;
 import org.martus.server.main.ServerBulletinStore;
 import org.martus.util.DirectoryUtils;
 import org.martus.util.LoggerUtil;
@@ -88,7 +91,7 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 	{
 		coreServer = coreServerToUse;
 		magicWords = new MagicWords(coreServer.getLogger());
-		clientsThatCanUpload = new Vector();
+		clientsThatCanUpload = new AccountSet();
 		activeWebServers = new Vector();
 		loggedNumberOfActiveClients = 0;
 		newsItems = new Vector();
@@ -185,7 +188,7 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 		return Version.isRunningUnderWindows();
 	}
 	
-	public synchronized void logError(String message)
+	public void logError(String message)
 	{
 		coreServer.logError(createLogString(message));
 	}
@@ -201,22 +204,22 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 		logError(e);
 	}
 
-	public synchronized void logInfo(String message)
+	public void logInfo(String message)
 	{
 		coreServer.logInfo(createLogString(message));
 	}
 
-	public synchronized void logNotice(String message)
+	public void logNotice(String message)
 	{
 		coreServer.logNotice(createLogString(message));
 	}
 	
-	public synchronized void logWarning(String message)
+	public void logWarning(String message)
 	{
 		coreServer.logWarning(createLogString(message));
 	}
 
-	public synchronized void logDebug(String message)
+	public void logDebug(String message)
 	{
 		coreServer.logDebug(createLogString(message));
 	}
@@ -529,6 +532,15 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 	
 	private String getStoredAccountIdForToken(MartusAccountAccessToken tokenToFind) throws TokenNotFoundException
 	{
+		AccessTokenIndex index = getStore().getAccessTokenIndex();
+		if(index != null)
+		{
+			String accountId = index.findAccountId(tokenToFind.getToken());
+			if(accountId == null)
+				throw new TokenNotFoundException();
+			return accountId;
+		}
+
 		AccountTokenFinder visitor = new AccountTokenFinder(tokenToFind);
 		getDatabase().visitAllAccounts(visitor);
 		return visitor.getAccountIdForToken();
@@ -753,7 +765,7 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 			throw new FormTemplateParsingException();
 		}
 		File accountsFormTemplateFile = new File(accountFolderForTemplates, calculateFileNameFromString(template.getTitle()));
-		store.moveFormTemplateIntoAccount(myAccountId, tempFormTemplateFile, accountsFormTemplateFile, logger);
+		store.moveFormTemplateIntoAccount(myAccountId, tempFormTemplateFile, accountsFormTemplateFile, template, logger);
 	}
 
 	private Vector getFormTemplateTitleAndDescriptionsForAccount(String accountToGetFormsFrom) throws Exception 
@@ -824,9 +836,7 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 		try 
 		{
 			String formTemplateFileName = calculateFileNameFromString(formTitle);
-			File formTemplateFile = getStore().getFormTemplateFileFromAccount(accountIdToUse, formTemplateFileName);
-			byte [] rawFormTemplateData = MartusServerUtilities.getFileContents(formTemplateFile);
-			String base64FormTemplateData = StreamableBase64.encode(rawFormTemplateData);
+			String base64FormTemplateData = getStore().getFormTemplateCatalog().getBase64(accountIdToUse, formTemplateFileName, getSecurity());
 			result.add(NetworkInterfaceConstants.OK);
 			Vector templateData = new Vector();
 			templateData.add(base64FormTemplateData);
@@ -1043,7 +1053,7 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 	
 	public void loadBannedClients(File bannedClientsFile)
 	{
-		clientsBanned = MartusUtilities.loadClientListAndExitOnError(bannedClientsFile);
+		clientsBanned = new ReloadableAccountSet(bannedClientsFile, MartusUtilities.loadClientListAndExitOnError(bannedClientsFile));
 	}	
 	
 	public synchronized void loadTestAccounts()
@@ -1053,9 +1063,15 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 	
 	public void loadTestAccounts(File testAccountsFile)
 	{
-		testAccounts = MartusUtilities.loadClientListAndExitOnError(testAccountsFile);
+		testAccounts = new ReloadableAccountSet(testAccountsFile, MartusUtilities.loadClientListAndExitOnError(testAccountsFile));
 	}	
 	
+	public void reloadAccountListsIfChanged()
+	{
+		coreServer.reloadAccountSetIfChanged(clientsBanned, "banned client(s)");
+		coreServer.reloadAccountSetIfChanged(testAccounts, "test account(s)");
+	}
+	
 	private void loadNews()
 	{
 		newsItems = new Vector();
@@ -1178,7 +1194,7 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 	void loadCanUploadFile()
 	{
 		logInfo("loadCanUploadList");
-		clientsThatCanUpload = MartusUtilities.loadClientList(getAllowUploadFile());
+		clientsThatCanUpload.replaceWith(MartusUtilities.loadClientList(getAllowUploadFile()));
 	}
 	
 	public synchronized void loadCanUploadList(BufferedReader canUploadInput)
@@ -1187,11 +1203,11 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 
 		try
 		{
-			clientsThatCanUpload = MartusUtilities.loadListFromFile(canUploadInput);
+			clientsThatCanUpload.replaceWith(MartusUtilities.loadListFromFile(canUploadInput));
 		}
 		catch (IOException e)
 		{
-			clientsThatCanUpload = new Vector();
+			clientsThatCanUpload.clear();
 			logError("loadCanUploadList -- Error loading can-upload list: ", e);
 		}
 		
@@ -1205,7 +1221,7 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 			super(serverToUse, authorAccount, retrieveTags);
 		}
 
-		public boolean isAuthorized(BulletinHeaderPacket bhp)
+		public boolean isAuthorized(BulletinSummaryIndex.Entry entry)
 		{
 			return true;
 		}
@@ -1257,9 +1273,9 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 		
 		String hqAccountId;
 
-		public boolean isAuthorized(BulletinHeaderPacket bhp)
+		public boolean isAuthorized(BulletinSummaryIndex.Entry entry)
 		{
-			return(bhp.isHQAuthorizedToRead(hqAccountId));
+			return(entry.isHQAuthorizedToRead(hqAccountId));
 		}
 
 		public String callerAccountId()
@@ -1299,9 +1315,9 @@ public class ServerForClients implements ServerForNonSSLClientsInterface, Server
 	private int loggedNumberOfActiveClients;
 	MagicWords magicWords;
 	
-	public Vector clientsThatCanUpload;
-	public Vector clientsBanned;
-	public Vector testAccounts;
+	public AccountSet clientsThatCanUpload;
+	public ReloadableAccountSet clientsBanned;
+	public ReloadableAccountSet testAccounts;
 	private Vector activeWebServers;
 	private Vector newsItems;
 	
@@ -30,17 +30,15 @@ import java.util.Vector;
 
 import org.martus.common.BulletinSummary;
 import org.martus.common.LoggerInterface;
-import org.martus.common.MartusUtilities;
-import org.martus.common.database.Database;
 import org.martus.common.database.DatabaseKey;
 import org.martus.common.database.ReadableDatabase;
 import org.martus.common.network.NetworkInterfaceConstants;
-import org.martus.common.packet.BulletinHeaderPacket;
-import org.martus.common.packet.BulletinHistory;
+import org.martus.server.main.BulletinSummaryIndex;
 import org.martus.server.main.MartusServer;
+import org.martus.server.main.ServerBulletinStore;
 
 
-public abstract class SummaryCollector implements Database.PacketVisitor
+public abstract class SummaryCollector
 {
 	protected SummaryCollector(MartusServer serverToUse, String authorAccountToUse, Vector retrieveTagsToUse)
 	{
@@ -56,64 +54,62 @@ public abstract class SummaryCollector implements Database.PacketVisitor
 		return server.getDatabase();
 	}
 	
-	public void visit(DatabaseKey key)
+	public void collect(BulletinSummaryIndex.Entry entry)
 	{
-		if(!BulletinHeaderPacket.isValidLocalId(key.getLocalId()))
+		DatabaseKey key = entry.getKey();
+		if(!isWanted(key))
 			return;
 		
-		if(!MartusServer.keyBelongsToClient(key, authorAccountId))
+		ServerBulletinStore store = server.getStore();
+		if(store.isHidden(key) || !store.isLeaf(key.getUniversalId()))
 			return;
 		
-		if(!isWanted(key))
+		if(!isAuthorized(entry))
 			return;
 		
-		try
-		{
-			BulletinHeaderPacket bhp = server.loadBulletinHeaderPacket(getDatabase(), key);
-			if(!isAuthorized(bhp))
-				return;
-			
-			String summary = extractSummary(bhp, getDatabase(), retrieveTags, server.getLogger());
-			summaries.add(summary);
-		}
-		catch (Exception e)
-		{
-			server.logError("in summary collector: " + getClass().getName(), e);
-		}
+		String summary = extractSummary(entry, retrieveTags, server.getLogger());
+		summaries.add(summary);
 	}
 	
 	abstract public String callerAccountId();
 	abstract public boolean isWanted(DatabaseKey key);
-	abstract public boolean isAuthorized(BulletinHeaderPacket bhp);
+	abstract public boolean isAuthorized(BulletinSummaryIndex.Entry entry);
 	
 	public Vector collectSummaries()
 	{
-		server.getStore().visitAllBulletinsForAccount(this, authorAccountId);
+		try
+		{
+			Vector entries = server.getStore().getSummaryIndex().getEntriesForAccount(authorAccountId);
+			for(int i = 0; i < entries.size(); ++i)
+				collect((BulletinSummaryIndex.Entry)entries.get(i));
+		}
+		catch (Exception e)
+		{
+			server.logError("in summary collector: " + getClass().getName(), e);
+		}
 		return summaries;	
 	}
 	
-	public static String extractSummary(BulletinHeaderPacket bhp, ReadableDatabase db, Vector tags, LoggerInterface logger)
+	public static String extractSummary(BulletinSummaryIndex.Entry entry, Vector tags, LoggerInterface logger)
 	{
-		String summary = bhp.getLocalId() + BulletinSummary.fieldDelimeter;
-		summary  += bhp.getFieldDataPacketId();
+		String summary = entry.getLocalId() + BulletinSummary.fieldDelimeter;
+		summary  += entry.getFieldDataPacketId();
 		for(int t=0; t < tags.size(); ++t)
 		{
 			String tag = (String)tags.get(t);
 			if(tag.equals(NetworkInterfaceConstants.TAG_BULLETIN_SIZE))
 			{
-				int size = MartusUtilities.getBulletinSize(db, bhp);
-				summary += BulletinSummary.fieldDelimeter + size;
+				summary += BulletinSummary.fieldDelimeter + entry.getBulletinSize();
 			}
 			else if(tag.equals(NetworkInterfaceConstants.TAG_BULLETIN_DATE_SAVED))
 			{
-				summary += BulletinSummary.fieldDelimeter + bhp.getLastSavedTime();
+				summary += BulletinSummary.fieldDelimeter + entry.getLastSavedTime();
 			}
 			else if(tag.equals(NetworkInterfaceConstants.TAG_BULLETIN_HISTORY))
 			{
-				BulletinHistory history = bhp.getHistory();
-				if(history.size() > 0)
+				if(entry.getHistory().length() > 0)
 				{
-					summary += BulletinSummary.fieldDelimeter + history.toString();
+					summary += BulletinSummary.fieldDelimeter + entry.getHistory();
 				}
 			}
 			else
@@ -496,6 +496,33 @@ public class TestMartusServer extends TestCaseEnhanced implements NetworkInterfa
 		TRACE_END();
 	}
 
+	public void testGetPacketChecksAuthorizationFirst() throws Exception
+	{
+		TRACE_BEGIN("testGetPacketChecksAuthorizationFirst");
+
+		testServer.setSecurity(serverSecurity);
+		testServer.serverForClients.clearCanUploadList();
+		testServer.allowUploads(clientSecurity.getPublicKeyString());
+		testServer.uploadBulletin(clientSecurity.getPublicKeyString(), b1.getLocalId(), b1ZipString);
+		
+		String authorId = b1.getAccount();
+		String otherId = MockMartusSecurity.createOtherClient().getPublicKeyString();
+		String existingPacketId = b1.getFieldDataPacket().getLocalId();
+		String missingPacketId = b2.getFieldDataPacket().getLocalId();
+
+		Vector result = testServer.getPacket(otherId, authorId, b1.getLocalId(), existingPacketId);
+		assertEquals("got someone else's packet?", NetworkInterfaceConstants.NOTYOURBULLETIN, result.get(0));
+		result = testServer.getPacket(otherId, authorId, b1.getLocalId(), missingPacketId);
+		assertEquals("revealed a missing packet?", NetworkInterfaceConstants.NOTYOURBULLETIN, result.get(0));
+
+		result = testServer.getPacket(authorId, authorId, b1.getLocalId(), existingPacketId);
+		assertEquals("author didn't get packet?", NetworkInterfaceConstants.OK, result.get(0));
+		result = testServer.getPacket(authorId, authorId, b1.getLocalId(), missingPacketId);
+		assertEquals("missing packet found?", NetworkInterfaceConstants.ITEM_NOT_FOUND, result.get(0));
+
+		TRACE_END();
+	}
+
 	public void testLoadHiddenPacketsList() throws Exception
 	{
 		String newline = "\n";
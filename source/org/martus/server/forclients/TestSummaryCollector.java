@@ -35,10 +35,10 @@ import org.martus.common.bulletinstore.BulletinStore;
 import org.martus.common.crypto.MockMartusSecurity;
 import org.martus.common.database.DatabaseKey;
 import org.martus.common.database.MockServerDatabase;
-import org.martus.common.database.ReadableDatabase;
 import org.martus.common.network.NetworkInterfaceConstants;
 import org.martus.common.packet.BulletinHeaderPacket;
 import org.martus.common.packet.UniversalId;
+import org.martus.server.main.BulletinSummaryIndex;
 import org.martus.server.main.MartusServer;
 import org.martus.server.main.ServerBulletinStore;
 import org.martus.util.TestCaseEnhanced;
@@ -96,9 +96,9 @@ public class TestSummaryCollector extends TestCaseEnhanced
 			return true;
 		}
 
-		public boolean isAuthorized(BulletinHeaderPacket bhp)
+		public boolean isAuthorized(BulletinSummaryIndex.Entry entry)
 		{
-			return bhp.getAccountId().equals(callerAccountId());
+			return entry.getAccountId().equals(callerAccountId());
 		}
 		
 	}
@@ -133,16 +133,30 @@ public class TestSummaryCollector extends TestCaseEnhanced
 		assertTrue(store.hasNewerRevision(original.getUniversalId()));
 	}
 	
+	public void testCollectsFromIndex() throws Exception
+	{
+		String authorId = authorSecurity.getPublicKeyString();
+		new MockSummaryCollector(server, authorId, new Vector()).collectSummaries();
+		BulletinSummaryIndex index = server.getStore().getSummaryIndex();
+		int misses = index.getMissCount();
+		int hits = index.getHitCount();
+
+		Vector localIds = new MockSummaryCollector(server, authorId, new Vector()).collectSummaries();
+		assertEquals(1, localIds.size());
+		assertEquals("loaded a header again?", misses, index.getMissCount());
+		assertEquals("checked a header again?", hits, index.getHitCount());
+	}
+	
 	public void testTags() throws Exception
 	{
-		ReadableDatabase db = server.getDatabase();
 		BulletinHeaderPacket bhp = clone.getBulletinHeaderPacket();
+		BulletinSummaryIndex.Entry entry = server.getStore().getSummaryIndex().getEntry(clone.getDatabaseKey());
 		String fdpLocalId = bhp.getFieldDataPacketId();
 		Vector tags = new Vector();
 		
 		String minimalSummary = bhp.getLocalId() + "=" + fdpLocalId;
 		
-		String noTags = SummaryCollector.extractSummary(bhp, db, tags, server.getLogger());
+		String noTags = SummaryCollector.extractSummary(entry, tags, server.getLogger());
 		assertEquals(minimalSummary, noTags);
 		
 		String history = original.getLocalId() + " " + firstClone.getLocalId() + " ";
@@ -153,7 +167,7 @@ public class TestSummaryCollector extends TestCaseEnhanced
 		tags.add(NetworkInterfaceConstants.TAG_BULLETIN_SIZE);
 		tags.add(NetworkInterfaceConstants.TAG_BULLETIN_DATE_SAVED);
 		tags.add(NetworkInterfaceConstants.TAG_BULLETIN_HISTORY);
-		String gotSizeDateHistory = SummaryCollector.extractSummary(bhp, db, tags, server.getLogger());
+		String gotSizeDateHistory = SummaryCollector.extractSummary(entry, tags, server.getLogger());
 		assertEquals(expectedSizeDateHistory, gotSizeDateHistory);
 		
 		
@@ -163,7 +177,7 @@ public class TestSummaryCollector extends TestCaseEnhanced
 		tags.add(NetworkInterfaceConstants.TAG_BULLETIN_HISTORY);
 		tags.add(NetworkInterfaceConstants.TAG_BULLETIN_DATE_SAVED);
 		tags.add(NetworkInterfaceConstants.TAG_BULLETIN_SIZE);
-		String gotHistoryDateSize = SummaryCollector.extractSummary(bhp, db, tags, server.getLogger());
+		String gotHistoryDateSize = SummaryCollector.extractSummary(entry, tags, server.getLogger());
 		assertEquals(expectedHistoryDateSize, gotHistoryDateSize);
 	}
 
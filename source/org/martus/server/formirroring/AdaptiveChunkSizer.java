@@ -0,0 +1,153 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.formirroring;
+
+/*
+ * Picks the chunk size for downloads from one supplier, much as TCP picks
+ * its window. It starts small and doubles after every good chunk, then
+ * grows by a fixed step once it has seen a failure, and halves whenever
+ * a chunk fails. Each chunk's round trip and throughput are averaged, and
+ * the size is held to what the link can move in TARGET_ROUND_TRIP_MILLIS,
+ * so a fast mirror on the same LAN ends up with big chunks while a slow
+ * or flaky link keeps them small enough to retry cheaply. A supplier that
+ * sends back less than was asked for is capping chunks itself, and the
+ * size drops to what it sent.
+ */
+public class AdaptiveChunkSizer
+{
+	public AdaptiveChunkSizer()
+	{
+		this(INITIAL_CHUNK_SIZE, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+	}
+
+	public AdaptiveChunkSizer(int initialChunkSize, int minChunkSizeToUse, int maxChunkSizeToUse)
+	{
+		minChunkSize = minChunkSizeToUse;
+		maxChunkSize = maxChunkSizeToUse;
+		chunkSize = clamp(initialChunkSize);
+		inSlowStart = true;
+	}
+
+	public synchronized int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	public synchronized void chunkSucceeded(int requestedSize, int bytesReceived, long elapsedMillis, boolean wasLastChunk)
+	{
+		++successCount;
+		if(bytesReceived < requestedSize)
+		{
+			if(!wasLastChunk)
+				chunkSize = clamp(bytesReceived);
+			return;
+		}
+
+		updateAverages(bytesReceived, Math.max(elapsedMillis, 1));
+		if(requestedSize < chunkSize)
+			return;
+
+		long next;
+		if(inSlowStart)
+			next = (long)chunkSize * 2;
+		else
+			next = (long)chunkSize + GROWTH_STEP;
+
+		long linkLimit = smoothedBytesPerSecond * TARGET_ROUND_TRIP_MILLIS / 1000;
+		if(next > linkLimit)
+		{
+			inSlowStart = false;
+			next = Math.max(linkLimit, chunkSize / 2);
+		}
+		chunkSize = clamp(next);
+	}
+
+	public synchronized void chunkFailed()
+	{
+		++failureCount;
+		inSlowStart = false;
+		chunkSize = clamp(chunkSize / 2);
+	}
+
+	public synchronized long getSmoothedRoundTripMillis()
+	{
+		return smoothedRoundTripMillis;
+	}
+
+	public synchronized long getSmoothedBytesPerSecond()
+	{
+		return smoothedBytesPerSecond;
+	}
+
+	public synchronized String getStatistics()
+	{
+		return "chunkSize=" + chunkSize + " roundTripMillis=" + smoothedRoundTripMillis +
+				" bytesPerSecond=" + smoothedBytesPerSecond +
+				" chunks=" + successCount + " failures=" + failureCount;
+	}
+
+	private void updateAverages(int bytesReceived, long millis)
+	{
+		long bytesPerSecond = (long)bytesReceived * 1000 / millis;
+		++measuredCount;
+		if(measuredCount == 1)
+		{
+			smoothedRoundTripMillis = millis;
+			smoothedBytesPerSecond = bytesPerSecond;
+			return;
+		}
+		smoothedRoundTripMillis += (millis - smoothedRoundTripMillis) / SMOOTHING_DIVISOR;
+		smoothedBytesPerSecond += (bytesPerSecond - smoothedBytesPerSecond) / SMOOTHING_DIVISOR;
+	}
+
+	private int clamp(long size)
+	{
+		if(size < minChunkSize)
+			return minChunkSize;
+		if(size > maxChunkSize)
+			return maxChunkSize;
+		return (int)size;
+	}
+
+	public static final int MIN_CHUNK_SIZE = 16 * 1024;
+	public static final int INITIAL_CHUNK_SIZE = 64 * 1024;
+	public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+	public static final int GROWTH_STEP = 64 * 1024;
+	public static final long TARGET_ROUND_TRIP_MILLIS = 10 * 1000;
+	private static final int SMOOTHING_DIVISOR = 8;
+
+	private int minChunkSize;
+	private int maxChunkSize;
+	private int chunkSize;
+	private boolean inSlowStart;
+	private long smoothedRoundTripMillis;
+	private long smoothedBytesPerSecond;
+	private int successCount;
+	private int measuredCount;
+	private int failureCount;
+}
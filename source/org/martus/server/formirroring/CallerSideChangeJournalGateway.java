@@ -0,0 +1,88 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.formirroring;
+
+import java.util.Vector;
+
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.crypto.MartusCrypto.MartusSignatureException;
+import org.martus.common.network.NetworkResponse;
+import org.martus.common.network.mirroring.CallerSideMirroringGateway;
+import org.martus.common.network.mirroring.CallerSideMirroringInterface;
+import org.martus.common.packet.UniversalId;
+
+/*
+ * A mirroring gateway that can also ask the supplier for the bulletins that
+ * changed since a cursor, for nodes of its mirroring hash tree, and for
+ * several small bulletins in a single round trip. Suppliers that predate
+ * these commands answer UNKNOWN_COMMAND, and the retriever falls back to
+ * listing every account.
+ */
+public class CallerSideChangeJournalGateway extends CallerSideMirroringGateway
+{
+	public CallerSideChangeJournalGateway(CallerSideMirroringInterface handlerToUse)
+	{
+		super(handlerToUse);
+		handler = handlerToUse;
+	}
+
+	public NetworkResponse listChangesSinceForMirroring(MartusCrypto signer, String cursor) throws MartusSignatureException
+	{
+		Vector parameters = new Vector();
+		parameters.add(SupplierSideMirroringHandler.CMD_MIRRORING_LIST_CHANGES_SINCE);
+		parameters.add(cursor);
+		String signature = signer.createSignatureOfVectorOfStrings(parameters);
+		return new NetworkResponse(handler.request(signer.getPublicKeyString(), parameters, signature));
+	}
+
+	public NetworkResponse getMirroringTreeNode(MartusCrypto signer, Vector path) throws MartusSignatureException
+	{
+		Vector parameters = new Vector();
+		parameters.add(SupplierSideMirroringHandler.CMD_MIRRORING_GET_TREE_NODE);
+		parameters.addAll(path);
+		String signature = signer.createSignatureOfVectorOfStrings(parameters);
+		return new NetworkResponse(handler.request(signer.getPublicKeyString(), parameters, signature));
+	}
+
+	public NetworkResponse getBulletinBatchForMirroring(MartusCrypto signer, Vector uids, int maxBytes) throws MartusSignatureException
+	{
+		Vector parameters = new Vector();
+		parameters.add(SupplierSideMirroringHandler.CMD_MIRRORING_GET_BULLETIN_BATCH);
+		parameters.add(new Integer(maxBytes));
+		for(int i = 0; i < uids.size(); ++i)
+		{
+			UniversalId uid = (UniversalId)uids.get(i);
+			parameters.add(uid.getAccountId());
+			parameters.add(uid.getLocalId());
+		}
+		String signature = signer.createSignatureOfVectorOfStrings(parameters);
+		return new NetworkResponse(handler.request(signer.getPublicKeyString(), parameters, signature));
+	}
+
+	private CallerSideMirroringInterface handler;
+}
@@ -187,6 +187,22 @@ class FakeServerSupplier implements ServerSupplierInterface
 		return bulletins;
 	}
 	
+	public Vector listChangesSinceForMirroring(String cursor)
+	{
+		gotCursor = cursor;
+		Vector changes = new Vector();
+		changes.add(FAKE_CURSOR);
+		changes.add(SupplierSideMirroringHandler.CHANGES_FULL_LISTING_REQUIRED);
+		return changes;
+	}
+	
+	public Vector getMirroringTreeNodeForMirroring(Vector path)
+	{
+		Vector node = new Vector();
+		node.add(SupplierSideMirroringHandler.TREE_NOT_READY);
+		return node;
+	}
+	
 	public String getBulletinUploadRecord(String authorAccountId, String bulletinLocalId)
 	{
 		UniversalId uid = UniversalId.createFromAccountAndLocalId(authorAccountId, bulletinLocalId);
@@ -217,6 +233,41 @@ class FakeServerSupplier implements ServerSupplierInterface
 		return result;
 	}
 	
+	public Vector getBulletinBatchForMirroring(Vector uids, int maxBytes)
+	{
+		gotBatchUids = uids;
+		Vector batch = new Vector();
+		if(returnMalformedBatch)
+		{
+			batch.add("not an entry");
+			return batch;
+		}
+		for(int i = 0; i < uids.size(); ++i)
+		{
+			UniversalId uid = (UniversalId)uids.get(i);
+			Vector entry = new Vector();
+			entry.add(uid.getAccountId());
+			entry.add(uid.getLocalId());
+			String bur = getBulletinUploadRecord(uid.getAccountId(), uid.getLocalId());
+			if(bur == null || zipData.get(uid) == null)
+			{
+				entry.add(NetworkInterfaceConstants.ITEM_NOT_FOUND);
+			}
+			else if(getChunkSize(uid) > maxBatchItemBytes)
+			{
+				entry.add(SupplierSideMirroringHandler.BATCH_ITEM_TOO_LARGE);
+			}
+			else
+			{
+				entry.add(NetworkInterfaceConstants.OK);
+				entry.add(bur);
+				entry.add(zipData.get(uid));
+			}
+			batch.add(entry.toArray());
+		}
+		return batch;
+	}
+	
 	@Override
 	public Vector listAvailableFormTemplateInfos(String authorAccountId) 
 	{
@@ -289,4 +340,10 @@ class FakeServerSupplier implements ServerSupplierInterface
 	String gotLocalId;
 	int gotChunkOffset;
 	int gotMaxChunkSize;
+	String gotCursor;
+	Vector gotBatchUids;
+	int maxBatchItemBytes = Integer.MAX_VALUE;
+	boolean returnMalformedBatch;
+	
+	static final String FAKE_CURSOR = "fake:0";
 }
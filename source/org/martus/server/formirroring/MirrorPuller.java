@@ -35,7 +35,6 @@ import org.martus.common.MartusUtilities;
 import org.martus.common.MartusUtilities.InvalidPublicKeyFileException;
 import org.martus.common.MartusUtilities.PublicInformationInvalidException;
 import org.martus.common.crypto.MartusCrypto;
-import org.martus.common.network.mirroring.CallerSideMirroringGateway;
 import org.martus.common.network.mirroring.CallerSideMirroringGatewayForXmlRpc;
 import org.martus.common.network.mirroring.MirroringInterface;
 import org.martus.common.network.mirroring.CallerSideMirroringGatewayForXmlRpc.SSLSocketSetupException;
@@ -50,11 +49,14 @@ public class MirrorPuller
 	{
 		coreServer = coreServerToUse;
 		logger = loggerToUse;
+		scheduler = new MirroringScheduler(MirroringScheduler.DEFAULT_WORKER_COUNT, 
+				MirroringScheduler.DEFAULT_MAX_WORKERS_PER_SUPPLIER, logger);
 	}
 	
 	public void createMirroringRetrievers() throws Exception
 	{
 		retrieversWeWillCall = new Vector();
+		PartialMirrorDownload.deleteStaleDownloads(getPartialDownloadsDirectory(), PartialMirrorDownload.DEFAULT_MAX_AGE_MILLIS);
 
 		File toCallDir = getMirrorsWeWillCallDirectory();
 		File[] toCallFiles = toCallDir.listFiles();
@@ -88,11 +90,24 @@ public class MirrorPuller
 			SSLSocketSetupException
 	{
 		String ip = MartusUtilities.extractIpFromFileName(publicKeyFile.getName());
-		CallerSideMirroringGateway gateway = createGatewayToCall(ip, publicKeyFile);
-		return new MirroringRetriever(getStore(), gateway, ip, logger);
+		CallerSideChangeJournalGateway gateway = createGatewayToCall(ip, publicKeyFile);
+		MirroringRetriever retriever = new MirroringRetriever(getStore(), gateway, ip, logger);
+		retriever.setCursorFile(new File(getMirrorCursorsDirectory(), ip + CURSOR_FILE_SUFFIX));
+		retriever.setPartialDownloadDirectory(new File(getPartialDownloadsDirectory(), ip));
+		return retriever;
 	}
 	
-	CallerSideMirroringGateway createGatewayToCall(String ip, File publicKeyFile) throws 
+	File getMirrorCursorsDirectory()
+	{
+		return new File(coreServer.getDataDirectory(), "mirrorCursors");
+	}
+	
+	File getPartialDownloadsDirectory()
+	{
+		return new File(coreServer.getDataDirectory(), "mirrorDownloads");
+	}
+	
+	CallerSideChangeJournalGateway createGatewayToCall(String ip, File publicKeyFile) throws 
 			IOException, 
 			InvalidPublicKeyFileException, 
 			PublicInformationInvalidException, 
@@ -105,7 +120,7 @@ public class MirrorPuller
 
 		CallerSideMirroringGatewayForXmlRpc xmlRpcGateway = new CallerSideMirroringGatewayForXmlRpc(ip, port); 
 		xmlRpcGateway.setExpectedPublicKey(publicKey);
-		return new CallerSideMirroringGateway(xmlRpcGateway);
+		return new CallerSideChangeJournalGateway(xmlRpcGateway);
 	}
 
 	private int getPort() 
@@ -117,12 +132,29 @@ public class MirrorPuller
 
 	public void doBackgroundTick()
 	{
-		for(int i = 0; i < retrieversWeWillCall.size(); ++i)
-		{	
-			((MirroringRetriever)retrieversWeWillCall.get(i)).pullEverything();
+		scheduler.schedule(retrieversWeWillCall);
+	}
+	
+	public void stop()
+	{
+		try
+		{
+			if(scheduler.stop())
+				logNotice("Mirror pulls stopped");
+			else
+				logWarning("Mirror pulls still running at shutdown");
+		}
+		catch(InterruptedException e)
+		{
+			logError("Interrupted while stopping mirror pulls", e);
 		}
 	}
 	
+	public MirroringScheduler getScheduler()
+	{
+		return scheduler;
+	}
+	
 	public Vector getDeleteOnStartupFiles()
 	{
 		Vector startupFiles = new Vector();
@@ -199,7 +231,10 @@ public class MirrorPuller
 	}
 
 
+	private static final String CURSOR_FILE_SUFFIX = ".cursor";
+
 	private MartusServer coreServer;
 	Vector retrieversWeWillCall;		// NOTE: Accessed directly by tests
 	private LoggerInterface logger;
+	private MirroringScheduler scheduler;
 }
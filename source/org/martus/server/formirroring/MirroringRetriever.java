@@ -29,7 +29,11 @@ package org.martus.server.formirroring;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
 import org.martus.common.LoggerInterface;
@@ -47,8 +51,12 @@ import org.martus.common.network.mirroring.CallerSideMirroringGatewayInterface;
 import org.martus.common.packet.BulletinHeaderPacket;
 import org.martus.common.packet.UniversalId;
 import org.martus.server.forclients.ServerForClients;
+import org.martus.server.main.MirroringHashTree;
 import org.martus.server.main.ServerBulletinStore;
 import org.martus.util.LoggerUtil;
+import org.martus.util.StreamableBase64;
+import org.martus.util.UnicodeReader;
+import org.martus.util.UnicodeWriter;
 
 public class MirroringRetriever implements LoggerInterface
 {
@@ -146,7 +154,7 @@ public class MirroringRetriever implements LoggerInterface
 		ServerForClients.saveBase64FormTemplate(store, accountId, base64Template, getSecurity(), logger);
 		File file = store.getFormTemplateFileFromAccount(accountId, templateInfo.getFilename());
 		long time = templateInfo.getLastModifiedMillis();
-		file.setLastModified(time);
+		store.setFormTemplateLastModified(accountId, file, time);
 		logDebug("Set mtime of " + file.getAbsolutePath());
 		logDebug(time + "->" + file.lastModified());
 	}
@@ -201,17 +209,58 @@ public class MirroringRetriever implements LoggerInterface
 	}
 
 	public void pullNextBulletin()
+	{
+		BulletinMirroringInformation item = takeNextItemToRetrieve();
+		if(item != null)
+			retrieveAndStoreBulletin(item);
+	}
+
+	public synchronized BulletinMirroringInformation takeNextItemToRetrieve()
 	{
 		if(isSleeping())
-			return;
+			return null;
 
 		BulletinMirroringInformation item = getNextItemToRetrieve();
 		if(item == null)
-		{
 			scheduleSleep();
+		else
+			++outstandingItems;
+		return item;
+	}
+
+	public void retrieveAndStoreBulletin(BulletinMirroringInformation item)
+	{
+		if(!canRetrieveBatches())
+		{
+			try
+			{
+				retrieveAndStoreBulletinInChunks(item);
+			}
+			finally
+			{
+				itemsFinished(1);
+			}
 			return;
 		}
-			
+
+		Vector batch = takeMoreItemsForBatch(item);
+		try
+		{
+			retrieveAndStoreBatch(batch);
+		}
+		finally
+		{
+			itemsFinished(batch.size());
+		}
+	}
+
+	private synchronized void itemsFinished(int count)
+	{
+		outstandingItems = Math.max(0, outstandingItems - count);
+	}
+
+	protected void retrieveAndStoreBulletinInChunks(BulletinMirroringInformation item)
+	{
 		//TODO handle delete requests when we are propagating deletes.
 		
 		try
@@ -220,17 +269,18 @@ public class MirroringRetriever implements LoggerInterface
 			String publicCode = MartusCrypto.getFormattedPublicCode(uid.getAccountId());
 			logNotice("Getting bulletin: " + publicCode + "->" + uid.getLocalId());
 			String bur = retrieveBurFromMirror(uid);
+			if(partialDownloadDirectory != null)
+			{
+				retrieveAndStoreResumableBulletin(item, bur);
+				return;
+			}
+
 			File zip = File.createTempFile("$$$MirroringRetriever", null);
 			try
 			{
 				zip.deleteOnExit();
 				retrieveOneBulletin(zip, uid);
-				long zipSize = zip.length();
-				long mTime = item.getmTime();
-				BulletinHeaderPacket bhp = store.saveZipFileToDatabase(zip, uid.getAccountId(), mTime);
-				store.writeBur(bhp, bur);
-				store.deleteDel(bhp.getUniversalId());
-				logNotice("Stored bulletin:  " + publicCode + "->" + uid.getLocalId() + " Size: " + zipSize);
+				storeRetrievedBulletin(item, bur, zip);
 			}
 			finally
 			{
@@ -239,28 +289,303 @@ public class MirroringRetriever implements LoggerInterface
 		}
 		catch(ServerErrorException e)
 		{
+			passFailed = true;
 			logError("Supplier server:", e);
 		}
 		catch(ServerNotAvailableException e)
 		{
+			passFailed = true;
 			// TODO: Notify once per hour that something is wrong
 		}
 		catch (Exception e)
 		{
+			passFailed = true;
 			logError(e);
 		}
 		
 	}
 
+	private void retrieveAndStoreResumableBulletin(BulletinMirroringInformation item, String bur) throws Exception
+	{
+		UniversalId uid = item.getUid();
+		PartialMirrorDownload download = PartialMirrorDownload.open(partialDownloadDirectory, uid, item.getmTime());
+		try
+		{
+			if(download.wasResumed())
+				logNotice("Resuming bulletin: " + uid.getLocalId() + " at " + download.getOffset() + " of " + download.getTotalLength());
+			retrieveRemainingChunks(download, uid);
+		}
+		finally
+		{
+			download.close();
+		}
+
+		try
+		{
+			storeRetrievedBulletin(item, bur, download.getFile());
+		}
+		finally
+		{
+			download.discard();
+		}
+	}
+
+	protected void retrieveRemainingChunks(PartialMirrorDownload download, UniversalId uid) throws Exception
+	{
+		while(!download.isComplete())
+		{
+			int offset = (int)download.getOffset();
+			int requestedSize = chunkSizer.getChunkSize();
+			long startedAt = System.currentTimeMillis();
+			NetworkResponse response = null;
+			try
+			{
+				response = gateway.getBulletinChunk(getSecurity(), uid.getAccountId(), uid.getLocalId(), offset, requestedSize);
+			}
+			catch(Exception e)
+			{
+				chunkSizer.chunkFailed();
+				throw e;
+			}
+			long elapsedMillis = System.currentTimeMillis() - startedAt;
+			String resultCode = response.getResultCode();
+			if(resultCode.equals(NetworkInterfaceConstants.NO_SERVER))
+			{
+				chunkSizer.chunkFailed();
+				throw new ServerNotAvailableException();
+			}
+			if(!resultCode.equals(NetworkInterfaceConstants.OK) && !resultCode.equals(NetworkInterfaceConstants.CHUNK_OK))
+			{
+				chunkSizer.chunkFailed();
+				throw new ServerErrorException(resultCode);
+			}
+
+			Vector details = response.getResultVector();
+			int totalLength = ((Integer)details.get(0)).intValue();
+			int chunkSize = ((Integer)details.get(1)).intValue();
+			String exportId = PartialMirrorDownload.UNKNOWN_EXPORT_ID;
+			if(details.size() > 3)
+				exportId = (String)details.get(3);
+			if(!download.setExport(totalLength, exportId))
+			{
+				logWarning("Bulletin " + uid.getLocalId() + " was exported again during download, restarting");
+				continue;
+			}
+
+			byte[] data = StreamableBase64.decode((String)details.get(2));
+			if(data.length != chunkSize)
+			{
+				logError("chunk=" + data.length + ", returned=" + chunkSize);
+				throw new ServerErrorException("chunkSize didn't match data length");
+			}
+			download.append(data);
+			boolean wasLastChunk = resultCode.equals(NetworkInterfaceConstants.OK);
+			chunkSizer.chunkSucceeded(requestedSize, chunkSize, elapsedMillis, wasLastChunk);
+		}
+	}
+
+	public void setPartialDownloadDirectory(File directory)
+	{
+		partialDownloadDirectory = directory;
+		deleteStalePartialDownloads();
+	}
+
+	private void deleteStalePartialDownloads()
+	{
+		if(partialDownloadDirectory == null)
+			return;
+
+		int deleted = PartialMirrorDownload.deleteStaleDownloads(partialDownloadDirectory, PartialMirrorDownload.DEFAULT_MAX_AGE_MILLIS);
+		if(deleted > 0)
+			logNotice("Deleted " + deleted + " stale partial downloads");
+	}
+
+	protected void retrieveAndStoreBatch(Vector batch)
+	{
+		HashMap<String, BulletinMirroringInformation> pending = new HashMap<String, BulletinMirroringInformation>();
+		for(int i = 0; i < batch.size(); ++i)
+		{
+			BulletinMirroringInformation item = (BulletinMirroringInformation)batch.get(i);
+			pending.put(item.getUid().toString(), item);
+		}
+
+		try
+		{
+			if(!retrieveAndStoreBatch(batch, pending))
+			{
+				passFailed = true;
+				scheduleSleep();
+			}
+		}
+		catch(Exception e)
+		{
+			passFailed = true;
+			logError("getBulletinBatch: ", e);
+			scheduleSleep();
+		}
+		finally
+		{
+			returnItemsToRetrieve(batch, pending);
+		}
+	}
+
+	private boolean retrieveAndStoreBatch(Vector batch, HashMap<String, BulletinMirroringInformation> pending) throws Exception
+	{
+		Vector uids = new Vector();
+		for(int i = 0; i < batch.size(); ++i)
+			uids.add(((BulletinMirroringInformation)batch.get(i)).getUid());
+
+		logNotice("Getting batch of " + batch.size() + " bulletins");
+		CallerSideChangeJournalGateway batchGateway = (CallerSideChangeJournalGateway)gateway;
+		NetworkResponse response = batchGateway.getBulletinBatchForMirroring(getSecurity(), uids, MIRRORING_MAX_BATCH_BYTES);
+		String resultCode = response.getResultCode();
+		if(resultCode.equals(NetworkInterfaceConstants.UNKNOWN_COMMAND))
+		{
+			logInfo("getBulletinBatch not supported, falling back to chunks");
+			batchesNotSupported = true;
+			for(int i = 0; i < batch.size(); ++i)
+			{
+				BulletinMirroringInformation item = (BulletinMirroringInformation)batch.get(i);
+				pending.remove(item.getUid().toString());
+				retrieveAndStoreBulletinInChunks(item);
+			}
+			return true;
+		}
+		if(!resultCode.equals(NetworkInterfaceConstants.OK))
+		{
+			if(!resultCode.equals(NetworkInterfaceConstants.NO_SERVER))
+				logError("getBulletinBatch returned " + resultCode);
+			return false;
+		}
+
+		Vector entries = response.getResultVector();
+		for(int i = 0; i < entries.size(); ++i)
+		{
+			Object[] entry = (Object[])entries.get(i);
+			UniversalId uid = UniversalId.createFromAccountAndLocalId((String)entry[0], (String)entry[1]);
+			BulletinMirroringInformation item = pending.get(uid.toString());
+			if(item == null)
+				continue;
+
+			String itemResultCode = (String)entry[2];
+			if(itemResultCode.equals(NetworkInterfaceConstants.OK))
+			{
+				String bur = (String)entry[3];
+				String zipBase64 = (String)entry[4];
+				pending.remove(uid.toString());
+				storeBatchedBulletin(item, bur, zipBase64);
+			}
+			else if(itemResultCode.equals(SupplierSideMirroringHandler.BATCH_ITEM_TOO_LARGE))
+			{
+				pending.remove(uid.toString());
+				retrieveAndStoreBulletinInChunks(item);
+			}
+			else
+			{
+				pending.remove(uid.toString());
+				passFailed = true;
+				logWarning("getBulletinBatch: " + uid.getLocalId() + " returned " + itemResultCode);
+			}
+		}
+		return true;
+	}
+
+	private void storeBatchedBulletin(BulletinMirroringInformation item, String bur, String zipBase64)
+	{
+		try
+		{
+			File zip = File.createTempFile("$$$MirroringRetriever", null);
+			try
+			{
+				zip.deleteOnExit();
+				FileOutputStream out = new FileOutputStream(zip);
+				try
+				{
+					StreamableBase64.decode(new StringReader(zipBase64), out);
+				}
+				finally
+				{
+					out.close();
+				}
+				storeRetrievedBulletin(item, bur, zip);
+			}
+			finally
+			{
+				zip.delete();
+			}
+		}
+		catch (Exception e)
+		{
+			passFailed = true;
+			logError(e);
+		}
+	}
+
+	private void storeRetrievedBulletin(BulletinMirroringInformation item, String bur, File zip) throws Exception
+	{
+		UniversalId uid = item.getUid();
+		String publicCode = MartusCrypto.getFormattedPublicCode(uid.getAccountId());
+		long zipSize = zip.length();
+		long mTime = item.getmTime();
+		BulletinHeaderPacket bhp = store.saveZipFileToDatabase(zip, uid.getAccountId(), mTime);
+		store.writeBur(bhp, bur);
+		store.deleteDel(bhp.getUniversalId());
+		logNotice("Stored bulletin:  " + publicCode + "->" + uid.getLocalId() + " Size: " + zipSize);
+	}
+
+	private boolean canRetrieveBatches()
+	{
+		return (gateway instanceof CallerSideChangeJournalGateway) && !batchesNotSupported;
+	}
+
+	synchronized Vector takeMoreItemsForBatch(BulletinMirroringInformation firstItem)
+	{
+		Vector batch = new Vector();
+		batch.add(firstItem);
+		while(batch.size() < MIRRORING_MAX_BATCH_ITEMS && itemsToRetrieve.size() > 0)
+			batch.add(itemsToRetrieve.remove(0));
+		outstandingItems += batch.size() - 1;
+		return batch;
+	}
+
+	private synchronized void returnItemsToRetrieve(Vector batch, HashMap<String, BulletinMirroringInformation> notRetrieved)
+	{
+		for(int i = batch.size() - 1; i >= 0; --i)
+		{
+			BulletinMirroringInformation item = (BulletinMirroringInformation)batch.get(i);
+			if(notRetrieved.containsKey(item.getUid().toString()))
+				itemsToRetrieve.add(0, item);
+		}
+	}
+
 	protected BulletinMirroringInformation getNextItemToRetrieve()
 	{
 		try
 		{
 			while(itemsToRetrieve.size() == 0)
 			{
+				if(!listingAllAccounts)
+				{
+					int changeState = listNextChanges();
+					if(changeState == CHANGES_LISTED)
+						continue;
+					if(changeState == PASS_FINISHED || changeState == ITEMS_OUTSTANDING)
+						return null;
+					listingAllAccounts = true;
+				}
+
 				String nextAccountId = getNextAccountToRetrieve();
 				if(nextAccountId == null)
+				{
+					listingAllAccounts = false;
 					return null;
+				}
+
+				if(comparingTrees)
+				{
+					itemsToRetrieve = listDivergentBulletins(nextAccountId);
+					continue;
+				}
 	
 				int totalIdsReturned = 0;
 				String mirroringCallUsed = "listAvailableIdsForMirroring"; 
@@ -292,6 +617,7 @@ public class MirroringRetriever implements LoggerInterface
 				}
 				else
 				{
+					passFailed = true;
 					logWarning("MirroringRetriever.getNextItemToRetrieve: Returned NetworkResponse: " + response.getResultCode());				
 				}
 			}
@@ -304,6 +630,7 @@ public class MirroringRetriever implements LoggerInterface
 		}
 		catch (Exception e)
 		{
+			passFailed = true;
 			logError("MirroringRetriever.getNextUidToRetrieve: ",e);
 			MartusLogger.logException(e);
 			return null;
@@ -314,6 +641,12 @@ public class MirroringRetriever implements LoggerInterface
 	{
 		try
 		{
+			if(accountsToRetrieve == null)
+			{
+				accountsToRetrieve = listDivergentAccounts();
+				comparingTrees = (accountsToRetrieve != null);
+			}
+
 			if(accountsToRetrieve == null)
 			{
 				logInfo("Getting list of accounts");
@@ -326,6 +659,7 @@ public class MirroringRetriever implements LoggerInterface
 				}
 				else
 				{
+					passFailed = true;
 					logError("error returned by " + ip + ": " + resultCode);
 				}
 			}
@@ -340,12 +674,256 @@ public class MirroringRetriever implements LoggerInterface
 		}
 		catch (Exception e)
 		{
+			passFailed = true;
 			logError("getNextAccountToRetrieve: ", e);
 			return null;
 		}
 	}
 
+	Vector listDivergentAccounts() throws Exception
+	{
+		MirroringHashTree ourTree = store.getMirroringHashTree();
+		if(!(gateway instanceof CallerSideChangeJournalGateway) || !ourTree.isReady())
+			return null;
+
+		Vector buckets = getTreeNode(new Vector());
+		if(buckets == null)
+			return null;
+
+		Vector divergentAccounts = new Vector();
+		for(int i = 1; i < buckets.size(); ++i)
+		{
+			Object[] bucket = (Object[])buckets.get(i);
+			String bucketName = (String)bucket[0];
+			if(bucket[1].equals(ourTree.getAccountBucketHash(bucketName)))
+				continue;
 
+			Vector path = new Vector();
+			path.add(bucketName);
+			Vector accounts = getTreeNode(path);
+			if(accounts == null)
+				return null;
+			for(int j = 1; j < accounts.size(); ++j)
+			{
+				Object[] account = (Object[])accounts.get(j);
+				String accountId = (String)account[0];
+				if(!account[1].equals(ourTree.getAccountHash(accountId)))
+					divergentAccounts.add(accountId);
+			}
+		}
+		logNotice("Mirroring hash tree: " + divergentAccounts.size() + " accounts differ");
+		return divergentAccounts;
+	}
+
+	Vector listDivergentBulletins(String accountId) throws Exception
+	{
+		MirroringHashTree ourTree = store.getMirroringHashTree();
+		String accountBucketName = MirroringHashTree.getAccountBucketName(accountId);
+		Vector path = new Vector();
+		path.add(accountBucketName);
+		path.add(accountId);
+		Vector buckets = getTreeNode(path);
+		if(buckets == null)
+		{
+			passFailed = true;
+			return new Vector();
+		}
+
+		Map<String, String> ourBucketHashes = ourTree.getBulletinBucketHashes(accountId);
+		Vector dataToRetrieve = new Vector();
+		int divergentCount = 0;
+		for(int i = 1; i < buckets.size(); ++i)
+		{
+			Object[] bucket = (Object[])buckets.get(i);
+			String bulletinBucketName = (String)bucket[0];
+			if(bucket[1].equals(ourBucketHashes.get(bulletinBucketName)))
+				continue;
+
+			Vector leafPath = new Vector(path);
+			leafPath.add(bulletinBucketName);
+			Vector infos = getTreeNode(leafPath);
+			if(infos == null)
+			{
+				passFailed = true;
+				continue;
+			}
+			for(int j = 1; j < infos.size(); ++j)
+			{
+				Vector info = new Vector(Arrays.asList((Object[])infos.get(j)));
+				BulletinMirroringInformation mirroringInfo = new BulletinMirroringInformation(accountId, info);
+				DatabaseKey key = getDatabaseKey(mirroringInfo);
+				String theirDigest = MirroringHashTree.computeDigest(key, mirroringInfo.getmTime());
+				if(theirDigest.equals(ourTree.getDigest(key)))
+					continue;
+				++divergentCount;
+				if(doWeWantThis(mirroringInfo))
+					dataToRetrieve.add(mirroringInfo);
+			}
+		}
+
+		if(divergentCount > 0)
+		{
+			String publicCode = MartusCrypto.getFormattedPublicCode(accountId);
+			logInfo("Mirroring hash tree: " + publicCode + " -> " + divergentCount + " -> " + dataToRetrieve.size());
+		}
+		return dataToRetrieve;
+	}
+
+	private Vector getTreeNode(Vector path) throws Exception
+	{
+		CallerSideChangeJournalGateway treeGateway = (CallerSideChangeJournalGateway)gateway;
+		NetworkResponse response = treeGateway.getMirroringTreeNode(getSecurity(), path);
+		if(!networkResponseOk(response))
+		{
+			logDebug("getMirroringTreeNode returned " + response.getResultCode());
+			return null;
+		}
+
+		Vector node = response.getResultVector();
+		if(!SupplierSideMirroringHandler.TREE_READY.equals(node.get(0)))
+		{
+			logDebug("getMirroringTreeNode: supplier tree not ready");
+			return null;
+		}
+		return node;
+	}
+
+	private int listNextChanges() throws Exception
+	{
+		if(!(gateway instanceof CallerSideChangeJournalGateway))
+			return FULL_LISTING_NEEDED;
+
+		if(changesFinished)
+		{
+			changesFinished = false;
+			return PASS_FINISHED;
+		}
+
+		if(!listingChanges)
+		{
+			if(outstandingItems > 0)
+				return ITEMS_OUTSTANDING;
+			commitPendingCursor();
+			listingChanges = true;
+		}
+
+		String since = pendingCursor;
+		if(since == null)
+			since = cursor;
+		if(since == null)
+			since = "";
+		CallerSideChangeJournalGateway journalGateway = (CallerSideChangeJournalGateway)gateway;
+		NetworkResponse response = journalGateway.listChangesSinceForMirroring(getSecurity(), since);
+		if(!networkResponseOk(response))
+		{
+			logDebug("listChangesSinceForMirroring returned " + response.getResultCode());
+			listingChanges = false;
+			pendingCursor = null;
+			return FULL_LISTING_NEEDED;
+		}
+
+		Vector changes = response.getResultVector();
+		pendingCursor = (String)changes.get(0);
+		String status = (String)changes.get(1);
+		if(status.equals(SupplierSideMirroringHandler.CHANGES_FULL_LISTING_REQUIRED))
+		{
+			logInfo("listChangesSinceForMirroring: full listing required");
+			listingChanges = false;
+			return FULL_LISTING_NEEDED;
+		}
+
+		itemsToRetrieve = listOnlyChangesThatWeWant(changes);
+		int changeCount = changes.size() - 2;
+		if(changeCount > 0 || itemsToRetrieve.size() > 0)
+			logInfo("listChangesSinceForMirroring: " + since + " -> " + changeCount + " -> " + itemsToRetrieve.size());
+
+		if(!status.equals(SupplierSideMirroringHandler.CHANGES_MORE))
+		{
+			listingChanges = false;
+			changesFinished = true;
+		}
+		return CHANGES_LISTED;
+	}
+
+	private void commitPendingCursor()
+	{
+		if(pendingCursor != null && !passFailed)
+		{
+			cursor = pendingCursor;
+			saveCursor();
+		}
+		pendingCursor = null;
+		passFailed = false;
+	}
+
+	protected Vector listOnlyChangesThatWeWant(Vector changes)
+	{
+		Vector dataToRetrieve = new Vector();
+		for(int i = 2; i < changes.size(); ++i)
+		{
+			Object[] change = (Object[])changes.get(i);
+			String accountId = (String)change[0];
+			Vector info = new Vector(Arrays.asList((Object[])change[1]));
+			BulletinMirroringInformation mirroringInfo = new BulletinMirroringInformation(accountId, info);
+			if(doWeWantThis(mirroringInfo))
+				dataToRetrieve.add(mirroringInfo);
+		}
+		return dataToRetrieve;
+	}
+
+	public void setCursorFile(File cursorFileToUse)
+	{
+		cursorFile = cursorFileToUse;
+		cursor = null;
+		if(!cursorFile.exists())
+			return;
+
+		try
+		{
+			UnicodeReader reader = new UnicodeReader(cursorFile);
+			try
+			{
+				cursor = reader.readLine();
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException e)
+		{
+			logError("Unable to read mirroring cursor " + cursorFile.getName(), e);
+		}
+	}
+
+	public String getCursor()
+	{
+		return cursor;
+	}
+
+	private void saveCursor()
+	{
+		if(cursorFile == null)
+			return;
+
+		try
+		{
+			cursorFile.getParentFile().mkdirs();
+			UnicodeWriter writer = new UnicodeWriter(cursorFile);
+			try
+			{
+				writer.writeln(cursor);
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		catch (IOException e)
+		{
+			logError("Unable to save mirroring cursor " + cursorFile.getName(), e);
+		}
+	}
 	
 	private String retrieveBurFromMirror(UniversalId uid)
 		throws MartusSignatureException, MissingBulletinUploadRecordException, ServerNotAvailableException
@@ -408,14 +986,13 @@ public class MirroringRetriever implements LoggerInterface
 			return false;
 		
 		UniversalId uid = mirroringInfo.getUid();
-		DatabaseKey sealedKey = DatabaseKey.createSealedKey(uid);
-		if(store.doesBulletinRevisionExist(sealedKey))
+		if(store.getHeaderKeyIndex().doesSealedHeaderExist(uid))
 			return false;
 		
 		try
 		{
 			if(mirroringInfo.isSealed())
-				return (!store.doesBulletinRevisionExist(key));
+				return true;
 			
 			if(store.doesBulletinDelRecordExist(DeleteRequestRecord.getDelKey(uid)))
 			{
@@ -452,6 +1029,8 @@ public class MirroringRetriever implements LoggerInterface
 	
 	private void scheduleSleep() 
 	{
+		deleteStalePartialDownloads();
+		logInfo("Chunk sizing: " + chunkSizer.getStatistics());
 		logNotice("Scheduling mirror sleep for " + ip + " of " + inactiveSleepMillis / 1000 / 60 + " minutes");
 		sleepUntil = System.currentTimeMillis() + inactiveSleepMillis;
 	}
@@ -466,7 +1045,7 @@ public class MirroringRetriever implements LoggerInterface
 	{
 		FileOutputStream out = new FileOutputStream(destFile);
 
-		int chunkSize = MIRRORING_MAX_CHUNK_SIZE;
+		int chunkSize = chunkSizer.getChunkSize();
 		ProgressMeterInterface nullProgressMeter = null;
 		int totalLength = BulletinZipUtilities.retrieveBulletinZipToStream(uid,
 				out, chunkSize, gateway, getSecurity(), nullProgressMeter);
@@ -541,11 +1120,30 @@ public class MirroringRetriever implements LoggerInterface
 	ServerBulletinStore store;	
 	Vector itemsToRetrieve;
 	Vector accountsToRetrieve;
+	
+	private File cursorFile;
+	private String cursor;
+	private String pendingCursor;
+	private boolean listingAllAccounts;
+	private boolean comparingTrees;
+	private boolean batchesNotSupported;
+	private File partialDownloadDirectory;
+	private AdaptiveChunkSizer chunkSizer = new AdaptiveChunkSizer();
+	private boolean listingChanges;
+	private boolean changesFinished;
+	private volatile boolean passFailed;
+	private int outstandingItems;
 
 	public static long inactiveSleepMillis = 15 * 60 * 1000;
 
-	protected long sleepUntil;
+	protected volatile long sleepUntil;
+	
+	static final int MIRRORING_MAX_BATCH_ITEMS = 100;
+	static final int MIRRORING_MAX_BATCH_BYTES = 4 * 1024 * 1024;
 	
-	static final int MIRRORING_MAX_CHUNK_SIZE = 1024 * 1024;
+	private static final int CHANGES_LISTED = 0;
+	private static final int PASS_FINISHED = 1;
+	private static final int FULL_LISTING_NEEDED = 2;
+	private static final int ITEMS_OUTSTANDING = 3;
 
 }
@@ -0,0 +1,238 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2002-2014, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.formirroring;
+
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.martus.common.LoggerInterface;
+
+/*
+ * Runs mirror pulls on a small pool of worker threads, so one slow or
+ * busy supplier no longer holds up the others or the rest of the
+ * background tick. Each supplier gets at most a few workers at a time,
+ * which lets one of them list or fetch a BUR while another downloads
+ * chunks. A worker pulls one bulletin, or one batch of small ones, and
+ * then goes to the back of the shared queue, so suppliers take turns.
+ * When a supplier runs out of bulletins, its last worker pulls its
+ * templates. Stopping lets pulls already in progress finish, so a
+ * shutdown doesn't cut off a bulletin halfway through being stored.
+ */
+public class MirroringScheduler
+{
+	public MirroringScheduler(int workerCountToUse, int maxWorkersPerSupplierToUse, LoggerInterface loggerToUse)
+	{
+		maxWorkersPerSupplier = maxWorkersPerSupplierToUse;
+		logger = loggerToUse;
+		suppliers = new HashMap<MirroringRetriever, SupplierState>();
+		executor = Executors.newFixedThreadPool(workerCountToUse, new WorkerThreadFactory());
+	}
+
+	public synchronized void schedule(Vector retrievers)
+	{
+		if(isStopped)
+			return;
+
+		for(int i = 0; i < retrievers.size(); ++i)
+		{
+			MirroringRetriever retriever = (MirroringRetriever)retrievers.get(i);
+			if(retriever.isSleeping())
+				continue;
+
+			SupplierState state = getSupplierState(retriever);
+			while(state.activeWorkers < maxWorkersPerSupplier)
+			{
+				++state.activeWorkers;
+				executor.execute(new PullTask(retriever, state));
+			}
+		}
+	}
+
+	public synchronized boolean isIdle()
+	{
+		for(SupplierState state : suppliers.values())
+		{
+			if(state.activeWorkers > 0)
+				return false;
+		}
+		return true;
+	}
+
+	public synchronized int getActiveWorkers(MirroringRetriever retriever)
+	{
+		return getSupplierState(retriever).activeWorkers;
+	}
+
+	public int getBulletinsPulled()
+	{
+		return bulletinsPulled.get();
+	}
+
+	public boolean stop() throws InterruptedException
+	{
+		return stop(DEFAULT_STOP_TIMEOUT_MILLIS);
+	}
+
+	public boolean stop(long timeoutMillis) throws InterruptedException
+	{
+		synchronized(this)
+		{
+			isStopped = true;
+			executor.shutdown();
+		}
+
+		if(executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+			return true;
+		executor.shutdownNow();
+		return false;
+	}
+
+	private synchronized boolean isStopped()
+	{
+		return isStopped;
+	}
+
+	private SupplierState getSupplierState(MirroringRetriever retriever)
+	{
+		SupplierState state = suppliers.get(retriever);
+		if(state == null)
+		{
+			state = new SupplierState();
+			suppliers.put(retriever, state);
+		}
+		return state;
+	}
+
+	private synchronized boolean requeue(PullTask task)
+	{
+		if(isStopped)
+			return false;
+		executor.execute(task);
+		return true;
+	}
+
+	private void workerFinished(MirroringRetriever retriever, SupplierState state)
+	{
+		synchronized(this)
+		{
+			if(state.activeWorkers > 1 || isStopped)
+			{
+				--state.activeWorkers;
+				return;
+			}
+		}
+
+		try
+		{
+			retriever.pullAllTemplates();
+		}
+		catch(RuntimeException e)
+		{
+			logger.logError("MirroringScheduler: pulling templates", e);
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				--state.activeWorkers;
+			}
+		}
+	}
+
+	class PullTask implements Runnable
+	{
+		PullTask(MirroringRetriever retrieverToUse, SupplierState stateToUse)
+		{
+			retriever = retrieverToUse;
+			state = stateToUse;
+		}
+
+		public void run()
+		{
+			if(isStopped())
+			{
+				workerFinished(retriever, state);
+				return;
+			}
+
+			BulletinMirroringInformation item = null;
+			try
+			{
+				item = retriever.takeNextItemToRetrieve();
+				if(item != null)
+				{
+					retriever.retrieveAndStoreBulletin(item);
+					bulletinsPulled.incrementAndGet();
+				}
+			}
+			catch(RuntimeException e)
+			{
+				logger.logError("MirroringScheduler: pulling bulletin", e);
+			}
+
+			if(item != null && requeue(this))
+				return;
+			workerFinished(retriever, state);
+		}
+
+		private MirroringRetriever retriever;
+		private SupplierState state;
+	}
+
+	static class SupplierState
+	{
+		int activeWorkers;
+	}
+
+	static class WorkerThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "MirrorPuller-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+		private AtomicInteger threadNumber = new AtomicInteger();
+	}
+
+	public static final int DEFAULT_WORKER_COUNT = 4;
+	public static final int DEFAULT_MAX_WORKERS_PER_SUPPLIER = 2;
+	public static final long DEFAULT_STOP_TIMEOUT_MILLIS = 60 * 1000;
+
+	private int maxWorkersPerSupplier;
+	private LoggerInterface logger;
+	private HashMap<MirroringRetriever, SupplierState> suppliers;
+	private ExecutorService executor;
+	private boolean isStopped;
+	private AtomicInteger bulletinsPulled = new AtomicInteger();
+}
@@ -0,0 +1,304 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.formirroring;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import org.martus.common.packet.UniversalId;
+import org.martus.server.main.IncrementalSha1;
+import org.martus.server.main.UploadSession;
+import org.martus.util.UnicodeReader;
+import org.martus.util.UnicodeWriter;
+
+/*
+ * A bulletin zip that is being mirrored in chunks. It is staged under the
+ * data directory, one file per supplier and uid, next to a small sidecar
+ * that records the bulletin's mTime, the length and export id the supplier
+ * reported, and the SHA-1 of what has arrived so far. The sidecar is
+ * written after each chunk, so when a transfer fails or the server
+ * restarts, the next attempt picks up after the last chunk that made it
+ * to disk.
+ * 
+ * If the supplier re-exports the zip part way through, the export id or
+ * length of the next chunk won't match and the download starts over.
+ * The bytes it has then no longer belong to the mTime it was listed with,
+ * so that mTime is forgotten and the download won't be resumed against
+ * that listing again.
+ */
+public class PartialMirrorDownload
+{
+	public static PartialMirrorDownload open(File supplierDirectory, UniversalId uid, long mTime) throws IOException
+	{
+		supplierDirectory.mkdirs();
+		File zipFile = new File(supplierDirectory, getFilename(uid));
+		return new PartialMirrorDownload(zipFile, mTime);
+	}
+
+	PartialMirrorDownload(File zipFileToUse, long mTimeToUse) throws IOException
+	{
+		zipFile = zipFileToUse;
+		mTime = mTimeToUse;
+		totalLength = UNKNOWN_LENGTH;
+		exportId = UNKNOWN_EXPORT_ID;
+		digest = loadState();
+		if(digest == null)
+		{
+			deleteFiles(zipFile);
+			digest = new IncrementalSha1();
+		}
+		else
+		{
+			resumed = true;
+		}
+		file = new RandomAccessFile(zipFile, "rw");
+		file.setLength(digest.getLength());
+		file.seek(digest.getLength());
+	}
+
+	public File getFile()
+	{
+		return zipFile;
+	}
+
+	public long getOffset()
+	{
+		return digest.getLength();
+	}
+
+	public int getTotalLength()
+	{
+		return totalLength;
+	}
+
+	public boolean wasResumed()
+	{
+		return resumed;
+	}
+
+	public boolean isComplete()
+	{
+		return totalLength != UNKNOWN_LENGTH && getOffset() == totalLength;
+	}
+
+	public String getExportId()
+	{
+		return exportId;
+	}
+
+	public boolean setExport(int newTotalLength, String newExportId) throws IOException
+	{
+		if(totalLength == newTotalLength && exportId.equals(newExportId))
+			return true;
+
+		boolean wasUnknown = (totalLength == UNKNOWN_LENGTH);
+		if(!wasUnknown)
+			restart();
+		totalLength = newTotalLength;
+		exportId = newExportId;
+		saveState();
+		return wasUnknown;
+	}
+
+	public void append(byte[] data) throws IOException
+	{
+		if(totalLength == UNKNOWN_LENGTH || getOffset() + data.length > totalLength)
+			throw new IOException("Chunk runs past the end of " + zipFile.getName());
+		file.write(data);
+		digest.update(data, 0, data.length);
+		saveState();
+	}
+
+	public void close()
+	{
+		try
+		{
+			file.close();
+		}
+		catch(IOException nothingWeCanDo)
+		{
+		}
+	}
+
+	public void discard()
+	{
+		close();
+		deleteFiles(zipFile);
+	}
+
+	private void restart() throws IOException
+	{
+		file.setLength(0);
+		file.seek(0);
+		digest = new IncrementalSha1();
+		totalLength = UNKNOWN_LENGTH;
+		exportId = UNKNOWN_EXPORT_ID;
+		mTime = UNKNOWN_MTIME;
+	}
+
+	private IncrementalSha1 loadState()
+	{
+		File stateFile = getStateFile(zipFile);
+		if(!zipFile.exists() || !stateFile.exists())
+			return null;
+
+		try
+		{
+			UnicodeReader reader = new UnicodeReader(stateFile);
+			try
+			{
+				long savedMTime = Long.parseLong(reader.readLine());
+				int savedTotalLength = Integer.parseInt(reader.readLine());
+				IncrementalSha1 saved = IncrementalSha1.createFromState(reader.readLine());
+				String savedExportId = reader.readLine();
+				if(savedExportId == null)
+					savedExportId = UNKNOWN_EXPORT_ID;
+				if(savedMTime != mTime || saved.getLength() > zipFile.length())
+					return null;
+
+				RandomAccessFile truncator = new RandomAccessFile(zipFile, "rw");
+				try
+				{
+					truncator.setLength(saved.getLength());
+				}
+				finally
+				{
+					truncator.close();
+				}
+				IncrementalSha1 onDisk = UploadSession.computeDigest(zipFile);
+				if(!onDisk.getState().equals(saved.getState()))
+					return null;
+
+				totalLength = savedTotalLength;
+				exportId = savedExportId;
+				return saved;
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch(Exception staleOrDamaged)
+		{
+			return null;
+		}
+	}
+
+	private void saveState() throws IOException
+	{
+		UnicodeWriter writer = new UnicodeWriter(getStateFile(zipFile));
+		try
+		{
+			writer.writeln(Long.toString(mTime));
+			writer.writeln(Integer.toString(totalLength));
+			writer.writeln(digest.getState());
+			writer.writeln(exportId);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	public static int deleteStaleDownloads(File directory, long maxAgeMillis)
+	{
+		File[] files = directory.listFiles();
+		if(files == null)
+			return 0;
+
+		long cutoff = System.currentTimeMillis() - maxAgeMillis;
+		int deleted = 0;
+		for(int i = 0; i < files.length; ++i)
+		{
+			File candidate = files[i];
+			if(candidate.isDirectory())
+				deleted += deleteStaleDownloads(candidate, maxAgeMillis);
+			else if(candidate.lastModified() < cutoff && candidate.delete() && candidate.getName().endsWith(ZIP_FILE_SUFFIX))
+				++deleted;
+		}
+		return deleted;
+	}
+
+	static String getFilename(UniversalId uid)
+	{
+		IncrementalSha1 sha1 = new IncrementalSha1();
+		byte[] bytes = getBytes(uid.toString());
+		sha1.update(bytes, 0, bytes.length);
+		byte[] hash = sha1.getDigest();
+		StringBuffer name = new StringBuffer();
+		for(int i = 0; i < hash.length; ++i)
+		{
+			String hex = Integer.toHexString(hash[i] & 0xff);
+			if(hex.length() < 2)
+				name.append('0');
+			name.append(hex);
+		}
+		name.append(ZIP_FILE_SUFFIX);
+		return name.toString();
+	}
+
+	private static byte[] getBytes(String text)
+	{
+		try
+		{
+			return text.getBytes("UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	static File getStateFile(File zipFile)
+	{
+		return new File(zipFile.getPath() + STATE_FILE_SUFFIX);
+	}
+
+	static void deleteFiles(File zipFile)
+	{
+		zipFile.delete();
+		getStateFile(zipFile).delete();
+	}
+
+	public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+	public static final String UNKNOWN_EXPORT_ID = "";
+	private static final int UNKNOWN_LENGTH = -1;
+	private static final long UNKNOWN_MTIME = -1;
+	private static final String ZIP_FILE_SUFFIX = ".zip";
+	private static final String STATE_FILE_SUFFIX = ".state";
+
+	private File zipFile;
+	private long mTime;
+	private int totalLength;
+	private String exportId;
+	private IncrementalSha1 digest;
+	private RandomAccessFile file;
+	private boolean resumed;
+}
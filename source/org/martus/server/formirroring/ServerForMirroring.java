@@ -30,6 +30,8 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
@@ -43,15 +45,19 @@ import org.martus.common.database.Database;
 import org.martus.common.database.DatabaseKey;
 import org.martus.common.database.ReadableDatabase;
 import org.martus.common.network.MartusXmlRpcServer;
+import org.martus.common.network.NetworkInterfaceConstants;
 import org.martus.common.network.mirroring.MirroringInterface;
 import org.martus.common.network.mirroring.SupplierSideMirroringInterface;
 import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.common.packet.UniversalId;
+import org.martus.server.main.AccountSet;
+import org.martus.server.main.ChangeJournal;
+import org.martus.server.main.FormTemplateCatalog;
 import org.martus.server.main.MartusServer;
+import org.martus.server.main.MirroringHashTree;
 import org.martus.server.main.ServerBulletinStore;
 import org.martus.util.DirectoryUtils;
 import org.martus.util.LoggerUtil;
-import org.martus.util.StreamableBase64;
-import org.martus.util.inputstreamwithseek.InputStreamWithSeek;
 
 
 public class ServerForMirroring implements ServerSupplierInterface
@@ -136,7 +142,7 @@ public class ServerForMirroring implements ServerSupplierInterface
 	public void loadConfigurationFiles() throws IOException, InvalidPublicKeyFileException, PublicInformationInvalidException
 	{
 		File authorizedCallersDir = getAuthorizedCallersDirectory();
-		authorizedCallers = coreServer.loadServerPublicKeys(authorizedCallersDir, "Mirror");
+		authorizedCallers = new AccountSet(coreServer.loadServerPublicKeys(authorizedCallersDir, "Mirror"));
 		logNotice("Authorized " + authorizedCallers.size() + " Mirrors to call us");
 	}
 	
@@ -211,10 +217,7 @@ public class ServerForMirroring implements ServerSupplierInterface
 						return;
 					if(!BulletinHeaderPacket.isValidLocalId(key.getLocalId()))
 						return;
-					InputStreamWithSeek in = getDatabase().openInputStream(key, null);
-					byte[] sigBytes = BulletinHeaderPacket.verifyPacketSignature(in, getSecurity());
-					in.close();
-					String sigString = StreamableBase64.encode(sigBytes);
+					String sigString = getStore().getHeaderSignatureCache().getSignature(getDatabase(), key, getSecurity());
 					Vector info = new Vector();
 					info.add(key.getLocalId());
 					info.add(sigString);
@@ -244,12 +247,7 @@ public class ServerForMirroring implements ServerSupplierInterface
 				{
 					if(!BulletinHeaderPacket.isValidLocalId(key.getLocalId()))
 						return;
-					InputStreamWithSeek in = getDatabase().openInputStream(key, null);
-					byte[] sigBytes = BulletinHeaderPacket.verifyPacketSignature(in, getSecurity());
-					in.close();
-					String sigString = StreamableBase64.encode(sigBytes);
-					BulletinMirroringInformation bulletinInfo = new BulletinMirroringInformation(getDatabase(), key, sigString);
-					infos.add(bulletinInfo.getInfoWithLocalId());
+					infos.add(getMirroringInfoWithLocalId(key));
 				}
 				catch (Exception e)
 				{
@@ -265,14 +263,114 @@ public class ServerForMirroring implements ServerSupplierInterface
 		return collector.infos;
 	}
 
+	public Vector listChangesSinceForMirroring(String cursor)
+	{
+		Vector result = new Vector();
+		ChangeJournal journal = getStore().getChangeJournal();
+		if(journal == null)
+		{
+			result.add("");
+			result.add(SupplierSideMirroringHandler.CHANGES_FULL_LISTING_REQUIRED);
+			return result;
+		}
+
+		ChangeJournal.Changes changes = journal.getChangesSince(cursor, MAX_CHANGES_PER_RESPONSE);
+		result.add(changes.getCursor());
+		if(changes.isFullListingRequired())
+			result.add(SupplierSideMirroringHandler.CHANGES_FULL_LISTING_REQUIRED);
+		else if(changes.hasMore())
+			result.add(SupplierSideMirroringHandler.CHANGES_MORE);
+		else
+			result.add(SupplierSideMirroringHandler.CHANGES_COMPLETE);
+
+		Vector changeList = changes.getChanges();
+		for(int i = 0; i < changeList.size(); ++i)
+		{
+			ChangeJournal.Change change = (ChangeJournal.Change)changeList.get(i);
+			if(change.isDeleted())
+				continue;
+			UniversalId uid = change.getUid();
+			DatabaseKey key = coreServer.findHeaderKeyInDatabase(uid.getAccountId(), uid.getLocalId());
+			if(key == null)
+				continue;
+			try
+			{
+				Vector info = new Vector();
+				info.add(uid.getAccountId());
+				info.add(getMirroringInfoWithLocalId(key).toArray());
+				result.add(info.toArray());
+			}
+			catch (Exception e)
+			{
+				logError("listChangesSinceForMirroring " + e.getMessage(), e);
+			}
+		}
+		return result;
+	}
+
+	public Vector getMirroringTreeNodeForMirroring(Vector path)
+	{
+		Vector result = new Vector();
+		MirroringHashTree tree = getStore().getMirroringHashTree();
+		if(!tree.isReady() || path.size() > 3)
+		{
+			result.add(SupplierSideMirroringHandler.TREE_NOT_READY);
+			return result;
+		}
+
+		result.add(SupplierSideMirroringHandler.TREE_READY);
+		if(path.size() == 3)
+		{
+			String accountId = (String)path.get(1);
+			Vector<DatabaseKey> keys = tree.getBulletinKeys(accountId, (String)path.get(2));
+			for(int i = 0; i < keys.size(); ++i)
+			{
+				try
+				{
+					result.add(getMirroringInfoWithLocalId(keys.get(i)).toArray());
+				}
+				catch (Exception e)
+				{
+					logError("getMirroringTreeNodeForMirroring " + e.getMessage(), e);
+				}
+			}
+			return result;
+		}
+
+		Map<String, String> children;
+		if(path.size() == 0)
+			children = tree.getAccountBucketHashes();
+		else if(path.size() == 1)
+			children = tree.getAccountHashes((String)path.get(0));
+		else
+			children = tree.getBulletinBucketHashes((String)path.get(1));
+		Iterator<String> names = children.keySet().iterator();
+		while(names.hasNext())
+		{
+			String name = names.next();
+			Vector child = new Vector();
+			child.add(name);
+			child.add(children.get(name));
+			result.add(child.toArray());
+		}
+		return result;
+	}
+
+	Vector getMirroringInfoWithLocalId(DatabaseKey key) throws Exception
+	{
+		String sigString = getStore().getHeaderSignatureCache().getSignature(getDatabase(), key, getSecurity());
+		BulletinMirroringInformation bulletinInfo = new BulletinMirroringInformation(getDatabase(), key, sigString);
+		return bulletinInfo.getInfoWithLocalId();
+	}
+
 	@Override
 	public Vector listAvailableFormTemplateInfos(String authorAccountId) 
 	{
 		Vector result = new Vector();
 		try 
 		{
-			Vector templateFiles = getStore().getListOfFormTemplatesForAccount(authorAccountId);
-			Vector templateInfosVector = extractTemplateInfosFromFiles(templateFiles);
+			Vector<FormTemplateCatalog.Entry> templates = getStore().getFormTemplateCatalog().getEntries(authorAccountId, getSecurity());
+			Vector templateInfosVector = extractTemplateInfos(templates);
 			return templateInfosVector;
 		} 
 		catch (Exception e) 
@@ -286,8 +384,7 @@ public class ServerForMirroring implements ServerSupplierInterface
 	{
 		Vector templateVector = new Vector();
 		try {
-			File templateFile = getStore().getFormTemplateFileFromAccount(authorAccountId, templateFilename);
-			String base64Template = StreamableBase64.readAllAndEncodeBase64(templateFile);
+			String base64Template = getStore().getFormTemplateCatalog().getBase64(authorAccountId, templateFilename, getSecurity());
 			templateVector.add(base64Template);
 		} 
 		catch (Exception e) 
@@ -297,13 +394,12 @@ public class ServerForMirroring implements ServerSupplierInterface
 		return templateVector;
 	}
 	
-	private Vector<String> extractTemplateInfosFromFiles(Vector templateFiles) throws Exception
+	private Vector<String> extractTemplateInfos(Vector<FormTemplateCatalog.Entry> templates)
 	{
 		Vector<String> infos = new Vector<String>();
-		for (Object rawFile : templateFiles) 
+		for (FormTemplateCatalog.Entry template : templates) 
 		{
-			File file = (File)rawFile;
-			TemplateInfoForMirroring info = new TemplateInfoForMirroring(file);
+			TemplateInfoForMirroring info = new TemplateInfoForMirroring(template.getFilename(), template.getLastModified(), template.getSize());
 			infos.add(info.asString());
 		}
 		return infos;
@@ -327,7 +423,54 @@ public class ServerForMirroring implements ServerSupplierInterface
 	
 	public Vector getBulletinChunkWithoutVerifyingCaller(String authorAccountId, String bulletinLocalId, int chunkOffset, int maxChunkSize)
 	{
-		return coreServer.getBulletinChunkWithoutVerifyingCaller(authorAccountId, bulletinLocalId, chunkOffset, maxChunkSize);
+		return coreServer.getBulletinChunkForMirroring(authorAccountId, bulletinLocalId, chunkOffset, maxChunkSize);
+	}
+
+	public Vector getBulletinBatchForMirroring(Vector uids, int maxBytes)
+	{
+		Vector batch = new Vector();
+		int remainingBytes = coreServer.getChunkSizePolicy().capChunkSize(Math.min(maxBytes, MAX_BATCH_BYTES));
+		for(int i = 0; i < uids.size() && i < MAX_BATCH_ITEMS && remainingBytes > 0; ++i)
+		{
+			UniversalId uid = (UniversalId)uids.get(i);
+			String accountId = uid.getAccountId();
+			String localId = uid.getLocalId();
+			int maxZipSize = Math.min(remainingBytes, MAX_BATCH_ITEM_BYTES);
+			Vector zip = coreServer.getBulletinZipWithoutVerifyingCaller(accountId, localId, maxZipSize);
+			String resultCode = (String)zip.get(0);
+
+			Vector entry = new Vector();
+			entry.add(accountId);
+			entry.add(localId);
+			if(resultCode.equals(NetworkInterfaceConstants.CHUNK_OK))
+			{
+				int zipSize = ((Integer)zip.get(1)).intValue();
+				if(zipSize <= MAX_BATCH_ITEM_BYTES && batch.size() > 0)
+					break;
+				entry.add(SupplierSideMirroringHandler.BATCH_ITEM_TOO_LARGE);
+			}
+			else if(resultCode.equals(NetworkInterfaceConstants.OK))
+			{
+				String bur = getBulletinUploadRecord(accountId, localId);
+				if(bur == null)
+				{
+					entry.add(NetworkInterfaceConstants.ITEM_NOT_FOUND);
+				}
+				else
+				{
+					entry.add(NetworkInterfaceConstants.OK);
+					entry.add(bur);
+					entry.add(zip.get(3));
+					remainingBytes -= ((Integer)zip.get(1)).intValue();
+				}
+			}
+			else
+			{
+				entry.add(resultCode);
+			}
+			batch.add(entry.toArray());
+		}
+		return batch;
 	}
 	//End ServerSupplierInterface
 
@@ -351,9 +494,13 @@ public class ServerForMirroring implements ServerSupplierInterface
 		return new File(coreServer.getStartupConfigDirectory(), "mirrorsWhoCallUs");
 	}
 	
+	static final int MAX_CHANGES_PER_RESPONSE = 1000;
+	static final int MAX_BATCH_ITEMS = 200;
+	static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+	static final int MAX_BATCH_ITEM_BYTES = 256 * 1024;
 	
 	MartusServer coreServer;
 	LoggerInterface logger;
-	Vector authorizedCallers;
+	AccountSet authorizedCallers;
 	MirroringRetriever retriever;
 }
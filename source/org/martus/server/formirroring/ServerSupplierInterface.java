@@ -40,7 +40,10 @@ public interface ServerSupplierInterface extends LoggerInterface
 	public String getBulletinUploadRecord(String authorAccountId, String bulletinLocalId);
 	public Vector getBulletinChunkWithoutVerifyingCaller(String authorAccountId, String bulletinLocalId,
 			int chunkOffset, int maxChunkSize);
+	public Vector getBulletinBatchForMirroring(Vector uids, int maxBytes);
 	public Set listAvailableIdsForMirroring(String authorAccountId);
+	public Vector listChangesSinceForMirroring(String cursor);
+	public Vector getMirroringTreeNodeForMirroring(Vector path);
 	public Vector listAvailableFormTemplateInfos(String authorAccountId);
 	public Vector getFormTemplate(String authorAccountId, String templateName);
 }
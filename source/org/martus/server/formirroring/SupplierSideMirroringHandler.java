@@ -33,6 +33,7 @@ import org.martus.common.LoggerInterface;
 import org.martus.common.crypto.MartusCrypto;
 import org.martus.common.network.NetworkInterfaceConstants;
 import org.martus.common.network.mirroring.SupplierSideMirroringInterface;
+import org.martus.common.packet.UniversalId;
 import org.martus.util.LoggerUtil;
 
 public class SupplierSideMirroringHandler implements SupplierSideMirroringInterface, NetworkInterfaceConstants, LoggerInterface
@@ -179,6 +180,46 @@ public class SupplierSideMirroringHandler implements SupplierSideMirroringInterf
 				result.add(infos.toArray());
 				return result;
 			}
+			case cmdListChangesSinceForMirroring:
+			{
+				logInfo("listChangesSince");
+				String cursor = (String)parameters.get(1);
+				Vector changes = supplier.listChangesSinceForMirroring(cursor);
+				int changeCount = changes.size() - 2;
+				if(changeCount > 0)
+					logNotice("listChangesSince: " + cursor + " -> " + changeCount);
+				else
+					logInfo("listChangesSince: None");
+
+				result.add(OK);
+				result.add(changes.toArray());
+				return result;
+			}
+			case cmdGetMirroringTreeNodeForMirroring:
+			{
+				Vector path = new Vector(parameters.subList(1, parameters.size()));
+				logInfo("getMirroringTreeNode: " + path.size());
+				Vector node = supplier.getMirroringTreeNodeForMirroring(path);
+				logDebug("getMirroringTreeNode: " + node.get(0) + " -> " + (node.size() - 1));
+
+				result.add(OK);
+				result.add(node.toArray());
+				return result;
+			}
+			case cmdGetBulletinBatchForMirroring:
+			{
+				int maxBytes = ((Integer)parameters.get(1)).intValue();
+				Vector uids = new Vector();
+				for(int i = 2; i + 1 < parameters.size(); i += 2)
+					uids.add(UniversalId.createFromAccountAndLocalId((String)parameters.get(i), (String)parameters.get(i + 1)));
+				logInfo("getBulletinBatch: " + uids.size());
+				Vector batch = supplier.getBulletinBatchForMirroring(uids, maxBytes);
+				logNotice("getBulletinBatch: " + uids.size() + " -> " + batch.size());
+
+				result.add(OK);
+				result.add(batch.toArray());
+				return result;
+			}
 			case cmdGetBulletinUploadRecordForMirroring:
 			{
 				String authorAccountId = (String)parameters.get(1);
@@ -278,6 +319,15 @@ public class SupplierSideMirroringHandler implements SupplierSideMirroringInterf
 		if(cmdString.equals(CMD_MIRRORING_LIST_AVAILABLE_IDS))
 			return cmdListAvailableIdsForMirroring;
 
+		if(cmdString.equals(CMD_MIRRORING_LIST_CHANGES_SINCE))
+			return cmdListChangesSinceForMirroring;
+
+		if(cmdString.equals(CMD_MIRRORING_GET_TREE_NODE))
+			return cmdGetMirroringTreeNodeForMirroring;
+
+		if(cmdString.equals(CMD_MIRRORING_GET_BULLETIN_BATCH))
+			return cmdGetBulletinBatchForMirroring;
+
 		if(cmdString.equals(CMD_MIRRORING_GET_BULLETIN_UPLOAD_RECORD))
 			return cmdGetBulletinUploadRecordForMirroring;
 
@@ -354,6 +404,21 @@ public class SupplierSideMirroringHandler implements SupplierSideMirroringInterf
 	final static int cmdListAvailableIdsForMirroring = 6;
 	final static int cmdGetListOfFormTemplates = 7;
 	final static int cmdGetFormTemplate = 8;
+	final static int cmdListChangesSinceForMirroring = 9;
+	final static int cmdGetMirroringTreeNodeForMirroring = 10;
+	final static int cmdGetBulletinBatchForMirroring = 11;
+	
+	public final static String CMD_MIRRORING_LIST_CHANGES_SINCE = "listChangesSinceForMirroring";
+	public final static String CHANGES_COMPLETE = "complete";
+	public final static String CHANGES_MORE = "more";
+	public final static String CHANGES_FULL_LISTING_REQUIRED = "fullListingRequired";
+	
+	public final static String CMD_MIRRORING_GET_TREE_NODE = "getMirroringTreeNodeForMirroring";
+	public final static String TREE_READY = "ready";
+	public final static String TREE_NOT_READY = "notReady";
+	
+	public final static String CMD_MIRRORING_GET_BULLETIN_BATCH = "getBulletinBatchForMirroring";
+	public final static String BATCH_ITEM_TOO_LARGE = "tooLarge";
 	
 	ServerSupplierInterface supplier;
 	MartusCrypto verifier;
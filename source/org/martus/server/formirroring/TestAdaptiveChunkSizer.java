@@ -0,0 +1,99 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.formirroring;
+
+import org.martus.util.TestCaseEnhanced;
+
+public class TestAdaptiveChunkSizer extends TestCaseEnhanced
+{
+	public TestAdaptiveChunkSizer(String name)
+	{
+		super(name);
+	}
+
+	public void testSlowStartDoubles() throws Exception
+	{
+		AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(KB, KB, 64 * KB);
+		assertEquals(KB, sizer.getChunkSize());
+		sizer.chunkSucceeded(KB, KB, FAST_MILLIS, false);
+		assertEquals(2 * KB, sizer.getChunkSize());
+		sizer.chunkSucceeded(2 * KB, 2 * KB, FAST_MILLIS, false);
+		assertEquals(4 * KB, sizer.getChunkSize());
+	}
+
+	public void testFailureHalvesThenGrowsByStep() throws Exception
+	{
+		AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1024 * KB, KB, 4096 * KB);
+		sizer.chunkFailed();
+		assertEquals(512 * KB, sizer.getChunkSize());
+		sizer.chunkSucceeded(512 * KB, 512 * KB, FAST_MILLIS, false);
+		assertEquals("still doubling?", 512 * KB + AdaptiveChunkSizer.GROWTH_STEP, sizer.getChunkSize());
+	}
+
+	public void testHeldToWhatTheLinkCanMove() throws Exception
+	{
+		AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(100 * KB, KB, 4096 * KB);
+		long slowMillis = AdaptiveChunkSizer.TARGET_ROUND_TRIP_MILLIS;
+		sizer.chunkSucceeded(100 * KB, 100 * KB, slowMillis, false);
+		assertEquals(100 * KB * 1000 / slowMillis, sizer.getSmoothedBytesPerSecond());
+		assertEquals(slowMillis, sizer.getSmoothedRoundTripMillis());
+		assertEquals("grew past the link?", 100 * KB, sizer.getChunkSize());
+		sizer.chunkSucceeded(100 * KB, 100 * KB, slowMillis, false);
+		assertEquals("went back to doubling?", 100 * KB, sizer.getChunkSize());
+	}
+
+	public void testSupplierCappedChunk() throws Exception
+	{
+		AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(256 * KB, KB, 4096 * KB);
+		sizer.chunkSucceeded(256 * KB, 32 * KB, FAST_MILLIS, false);
+		assertEquals(32 * KB, sizer.getChunkSize());
+	}
+
+	public void testShortLastChunk() throws Exception
+	{
+		AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(256 * KB, KB, 4096 * KB);
+		sizer.chunkSucceeded(256 * KB, 10, FAST_MILLIS, true);
+		assertEquals(256 * KB, sizer.getChunkSize());
+		assertEquals("measured a partial chunk?", 0, sizer.getSmoothedBytesPerSecond());
+	}
+
+	public void testLimits() throws Exception
+	{
+		AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(2 * KB, KB, 4 * KB);
+		sizer.chunkFailed();
+		sizer.chunkFailed();
+		sizer.chunkFailed();
+		assertEquals(KB, sizer.getChunkSize());
+		for(int i = 0; i < 10; ++i)
+			sizer.chunkSucceeded(sizer.getChunkSize(), sizer.getChunkSize(), FAST_MILLIS, false);
+		assertEquals(4 * KB, sizer.getChunkSize());
+	}
+
+	private static final int KB = 1024;
+	private static final long FAST_MILLIS = 10;
+}
@@ -45,9 +45,12 @@ public class TestForMirroring
 	{
 		TestSuite suite= new TestSuite("All Server Mirroring Tests");
 
+		suite.addTest(new TestSuite(TestAdaptiveChunkSizer.class));
 		suite.addTest(new TestSuite(TestBulletinMirroringInformation.class));
 		suite.addTest(new TestSuite(TestMirroringRetriever.class));
+		suite.addTest(new TestSuite(TestMirroringScheduler.class));
 		suite.addTest(new TestSuite(TestMirrorPuller.class));
+		suite.addTest(new TestSuite(TestPartialMirrorDownload.class));
 		suite.addTest(new TestSuite(TestServerForMirroring.class));
 		suite.addTest(new TestSuite(TestSupplierSideMirroringHandler.class));
 		
@@ -30,9 +30,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
 
 import org.martus.common.FieldCollection;
 import org.martus.common.LoggerInterface;
@@ -289,6 +291,60 @@ public class TestMirroringRetriever extends TestCaseEnhanced
 		assertEquals("file wrong length?", expectedLength, tempFile.length());
 	}
 	
+	public void testRetrieveRemainingChunks() throws Exception
+	{
+		supplier.returnResultTag = MirroringInterface.RESULT_OK;
+		
+		UniversalId uid = UniversalIdForTesting.createDummyUniversalId();
+		supplier.addZipData(uid, StreamableBase64.encode("some text"));
+		File downloadDirectory = createTempDirectory();
+		try
+		{
+			realRetriever.setPartialDownloadDirectory(downloadDirectory);
+			PartialMirrorDownload download = PartialMirrorDownload.open(downloadDirectory, uid, 0);
+			realRetriever.retrieveRemainingChunks(download, uid);
+			download.close();
+			assertEquals(0, supplier.gotChunkOffset);
+			assertTrue("not complete?", download.isComplete());
+
+			int expectedLength = StreamableBase64.decode((String)supplier.zipData.get(uid)).length;
+			assertEquals("file wrong length?", expectedLength, download.getFile().length());
+		}
+		finally
+		{
+			DirectoryUtils.deleteEntireDirectoryTree(downloadDirectory);
+		}
+	}
+	
+	public void testRestartsWhenSupplierExportsAgain() throws Exception
+	{
+		ReexportingSupplier reexportingSupplier = new ReexportingSupplier();
+		MartusCrypto security = server.getSecurity();
+		reexportingSupplier.authorizedCaller = security.getPublicKeyString();
+		SupplierSideMirroringHandler handler = new SupplierSideMirroringHandler(reexportingSupplier, security);
+		CallerSideMirroringGateway gateway = new CallerSideMirroringGateway(new PassThroughMirroringGateway(handler));
+		MirroringRetriever retriever = new MirroringRetriever(server.getStore(), gateway, "Dummy IP", new LoggerToNull());
+
+		UniversalId uid = UniversalIdForTesting.createDummyUniversalId();
+		File downloadDirectory = createTempDirectory();
+		try
+		{
+			retriever.setPartialDownloadDirectory(downloadDirectory);
+			PartialMirrorDownload download = PartialMirrorDownload.open(downloadDirectory, uid, 0);
+			retriever.retrieveRemainingChunks(download, uid);
+			download.close();
+			assertTrue("not complete?", download.isComplete());
+			assertEquals("didn't export again?", 2, reexportingSupplier.exportCount);
+
+			byte[] retrieved = Files.readAllBytes(download.getFile().toPath());
+			assertTrue("joined two exports?", Arrays.equals(reexportingSupplier.zipBytes, retrieved));
+		}
+		finally
+		{
+			DirectoryUtils.deleteEntireDirectoryTree(downloadDirectory);
+		}
+	}
+	
 	public void testTickWithNewMirroringServer() throws Exception
 	{
 		TestCallerSideMirroringGateway newGateway = new TestCallerSideMirroringGateway(wrappedHandler);
@@ -313,6 +369,240 @@ public class TestMirroringRetriever extends TestCaseEnhanced
 		assertTrue(oldGateway.listBulletinsForMirroringCalled);
 	}
 	
+	public void testChangeJournalCursor() throws Exception
+	{
+		CallerSideChangeJournalGateway journalGateway = new CallerSideChangeJournalGateway(wrappedHandler);
+		MirroringRetriever retriever = new MirroringRetriever(server.getStore(), journalGateway, "Dummy IP", new LoggerToNull());
+		File cursorDirectory = createTempDirectory();
+		try
+		{
+			File cursorFile = new File(cursorDirectory, "Dummy IP.cursor");
+			retriever.setCursorFile(cursorFile);
+			assertNull("already have a cursor?", retriever.getCursor());
+
+			retriever.pullNextBulletin();
+			assertEquals("didn't ask for changes?", "", supplier.gotCursor);
+			assertTrue("not ready to sleep?", retriever.isSleeping());
+			assertNull("kept cursor before the pass finished?", retriever.getCursor());
+
+			retriever.sleepUntil = 0;
+			retriever.pullNextBulletin();
+			assertEquals(FakeServerSupplier.FAKE_CURSOR, retriever.getCursor());
+			assertEquals("didn't send cursor?", FakeServerSupplier.FAKE_CURSOR, supplier.gotCursor);
+
+			MirroringRetriever restarted = new MirroringRetriever(server.getStore(), journalGateway, "Dummy IP", new LoggerToNull());
+			restarted.setCursorFile(cursorFile);
+			assertEquals("didn't save cursor?", FakeServerSupplier.FAKE_CURSOR, restarted.getCursor());
+		}
+		finally
+		{
+			DirectoryUtils.deleteEntireDirectoryTree(cursorDirectory);
+		}
+	}
+
+	public void testRetrieveBatchOfSmallBulletins() throws Exception
+	{
+		CallerSideChangeJournalGateway journalGateway = new CallerSideChangeJournalGateway(wrappedHandler);
+		MirroringRetriever retriever = new MirroringRetriever(server.getStore(), journalGateway, "Dummy IP", new LoggerToNull());
+		addSealedBulletinsToMirror(3);
+		supplier.returnResultTag = MirroringInterface.RESULT_OK;
+
+		retriever.pullNextBulletin();
+		assertEquals("didn't ask for all of them?", 3, supplier.gotBatchUids.size());
+		assertNull("fell back to chunks?", supplier.gotLocalId);
+		assertEquals("didn't store the batch?", 3, server.getStore().getBulletinCount());
+		assertEquals(0, retriever.itemsToRetrieve.size());
+	}
+
+	public void testRetrieveBatchFallsBackToChunksForLargeBulletins() throws Exception
+	{
+		CallerSideChangeJournalGateway journalGateway = new CallerSideChangeJournalGateway(wrappedHandler);
+		MirroringRetriever retriever = new MirroringRetriever(server.getStore(), journalGateway, "Dummy IP", new LoggerToNull());
+		addSealedBulletinsToMirror(2);
+		supplier.returnResultTag = MirroringInterface.RESULT_OK;
+		supplier.maxBatchItemBytes = 0;
+
+		retriever.pullNextBulletin();
+		assertEquals(2, supplier.gotBatchUids.size());
+		assertNotNull("didn't use chunks?", supplier.gotLocalId);
+		assertEquals("didn't store large bulletins?", 2, server.getStore().getBulletinCount());
+	}
+
+	public void testRetrieveBatchFromOldSupplier() throws Exception
+	{
+		SupplierSideMirroringHandler oldHandler = new OldSupplierSideMirroringHandler(supplier, server.getSecurity());
+		CallerSideChangeJournalGateway journalGateway = new CallerSideChangeJournalGateway(new PassThroughMirroringGateway(oldHandler));
+		MirroringRetriever retriever = new MirroringRetriever(server.getStore(), journalGateway, "Dummy IP", new LoggerToNull());
+		addSealedBulletinsToMirror(2);
+		supplier.returnResultTag = MirroringInterface.RESULT_OK;
+
+		retriever.pullNextBulletin();
+		assertNull("old supplier handled a batch?", supplier.gotBatchUids);
+		assertEquals("didn't fall back to chunks?", 2, server.getStore().getBulletinCount());
+	}
+
+	public void testMalformedBatchDoesNotAdvanceCursor() throws Exception
+	{
+		CallerSideChangeJournalGateway journalGateway = new CallerSideChangeJournalGateway(wrappedHandler);
+		MirroringRetriever retriever = new MirroringRetriever(server.getStore(), journalGateway, "Dummy IP", new LoggerToNull());
+		File cursorDirectory = createTempDirectory();
+		try
+		{
+			retriever.setCursorFile(new File(cursorDirectory, "Dummy IP.cursor"));
+			addSealedBulletinsToMirror(2);
+			supplier.returnResultTag = MirroringInterface.RESULT_OK;
+			supplier.returnMalformedBatch = true;
+
+			retriever.pullNextBulletin();
+			assertEquals("lost the batch?", 2, retriever.itemsToRetrieve.size());
+			assertTrue("didn't back off?", retriever.isSleeping());
+			assertEquals(0, server.getStore().getBulletinCount());
+
+			supplier.returnMalformedBatch = false;
+			retriever.sleepUntil = 0;
+			retriever.pullNextBulletin();
+			assertEquals("didn't retry the batch?", 2, server.getStore().getBulletinCount());
+
+			retriever.pullNextBulletin();
+			assertTrue("pass not finished?", retriever.isSleeping());
+			retriever.sleepUntil = 0;
+			retriever.pullNextBulletin();
+			assertNull("advanced cursor after a failed pass?", retriever.getCursor());
+		}
+		finally
+		{
+			DirectoryUtils.deleteEntireDirectoryTree(cursorDirectory);
+		}
+	}
+
+	public void testCursorWaitsForPullsStillRunning() throws Exception
+	{
+		CallerSideChangeJournalGateway journalGateway = new CallerSideChangeJournalGateway(wrappedHandler);
+		final SlowBatchRetriever retriever = new SlowBatchRetriever(journalGateway);
+		File cursorDirectory = createTempDirectory();
+		try
+		{
+			retriever.setCursorFile(new File(cursorDirectory, "Dummy IP.cursor"));
+			addSealedBulletinsToMirror(1);
+			supplier.returnResultTag = MirroringInterface.RESULT_OK;
+			supplier.returnMalformedBatch = true;
+
+			Thread slowWorker = new Thread()
+			{
+				public void run()
+				{
+					retriever.pullNextBulletin();
+				}
+			};
+			slowWorker.start();
+			retriever.started.await();
+
+			retriever.pullNextBulletin();
+			assertTrue("pass not finished?", retriever.isSleeping());
+			retriever.sleepUntil = 0;
+			retriever.pullNextBulletin();
+			assertNull("saved cursor while a pull was running?", retriever.getCursor());
+
+			retriever.release.countDown();
+			slowWorker.join();
+			assertEquals("lost the failed item?", 1, retriever.itemsToRetrieve.size());
+
+			supplier.returnMalformedBatch = false;
+			retriever.sleepUntil = 0;
+			retriever.pullNextBulletin();
+			assertEquals("didn't retry the item?", 1, server.getStore().getBulletinCount());
+			retriever.pullNextBulletin();
+			assertNull("advanced cursor past a failed item?", retriever.getCursor());
+		}
+		finally
+		{
+			retriever.release.countDown();
+			DirectoryUtils.deleteEntireDirectoryTree(cursorDirectory);
+		}
+	}
+
+	class SlowBatchRetriever extends MirroringRetriever
+	{
+		SlowBatchRetriever(CallerSideChangeJournalGateway gatewayToUse)
+		{
+			super(server.getStore(), gatewayToUse, "Dummy IP", new LoggerToNull());
+		}
+
+		protected void retrieveAndStoreBatch(Vector batch)
+		{
+			if(started.getCount() > 0)
+			{
+				started.countDown();
+				try
+				{
+					release.await();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+			super.retrieveAndStoreBatch(batch);
+		}
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+	}
+
+	private void addSealedBulletinsToMirror(int count) throws Exception
+	{
+		BulletinStore serverStore = new MockBulletinStore(this);
+		MockDatabase db = (MockDatabase)serverStore.getDatabase();
+		MartusCrypto otherServerSecurity = MockMartusSecurity.createOtherServer();
+		MartusCrypto clientSecurity = MockMartusSecurity.createClient();
+		supplier.addAccountToMirror(clientSecurity.getPublicKeyString());
+		for(int i = 0; i < count; ++i)
+		{
+			Bulletin b = createAndSaveBulletin(serverStore, clientSecurity, true);
+			String bur = BulletinUploadRecord.createBulletinUploadRecord(b.getLocalId(), otherServerSecurity);
+			BulletinUploadRecord.writeSpecificBurToDatabase(db, b.getBulletinHeaderPacket(), bur);
+			DatabaseKey key = DatabaseKey.createKey(b.getUniversalId(), b.getStatus());
+			String sigString = extractSigString(db, key, otherServerSecurity);
+			supplier.addAvailableIdsToMirror(db, key, sigString);
+			supplier.addBulletinToMirror(key, sigString);
+			supplier.addBur(b.getUniversalId(), bur, b.getStatus());
+			supplier.addZipData(b.getUniversalId(), getZipString(db, b, clientSecurity));
+		}
+	}
+
+	class ReexportingSupplier extends FakeServerSupplier
+	{
+		public Vector getBulletinChunkWithoutVerifyingCaller(String authorAccountId, String bulletinLocalId,
+				int chunkOffset, int maxChunkSize)
+		{
+			if(chunksServed++ == 1)
+			{
+				zipBytes = "other export of the zip".getBytes();
+				++exportCount;
+			}
+
+			int chunkSize = Math.min(CHUNK_BYTES, zipBytes.length - chunkOffset);
+			byte[] chunk = new byte[chunkSize];
+			System.arraycopy(zipBytes, chunkOffset, chunk, 0, chunkSize);
+
+			Vector result = new Vector();
+			if(chunkOffset + chunkSize == zipBytes.length)
+				result.add(NetworkInterfaceConstants.OK);
+			else
+				result.add(NetworkInterfaceConstants.CHUNK_OK);
+			result.add(new Integer(zipBytes.length));
+			result.add(new Integer(chunkSize));
+			result.add(StreamableBase64.encode(chunk));
+			result.add("export " + exportCount);
+			return result;
+		}
+
+		static final int CHUNK_BYTES = 10;
+
+		byte[] zipBytes = "first export of the zip".getBytes();
+		int exportCount = 1;
+		int chunksServed;
+	}
+
 	class TestCallerSideMirroringGateway extends CallerSideMirroringGateway
 	{
 		public TestCallerSideMirroringGateway(CallerSideMirroringInterface handlerToUse)
@@ -348,6 +638,8 @@ public class TestMirroringRetriever extends TestCaseEnhanced
 			String cmdString = (String)possibleCommand;
 			if(cmdString.equals(CMD_MIRRORING_LIST_AVAILABLE_IDS))
 				return cmdUnknown;
+			if(cmdString.equals(CMD_MIRRORING_GET_BULLETIN_BATCH))
+				return cmdUnknown;
 			return super.extractCommand(possibleCommand);
 		}
 	}
@@ -0,0 +1,162 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2002-2014, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.formirroring;
+
+import java.util.Vector;
+
+import org.martus.common.LoggerToNull;
+import org.martus.common.test.UniversalIdForTesting;
+import org.martus.util.TestCaseEnhanced;
+
+public class TestMirroringScheduler extends TestCaseEnhanced
+{
+	public TestMirroringScheduler(String name)
+	{
+		super(name);
+	}
+
+	public void testPullsFromAllSuppliers() throws Exception
+	{
+		MirroringScheduler scheduler = new MirroringScheduler(3, 2, new LoggerToNull());
+		try
+		{
+			CountingRetriever slow = new CountingRetriever(20, 20);
+			CountingRetriever fast = new CountingRetriever(5, 0);
+			Vector retrievers = new Vector();
+			retrievers.add(slow);
+			retrievers.add(fast);
+
+			scheduler.schedule(retrievers);
+			scheduler.schedule(retrievers);
+			assertTrue("too many workers?", scheduler.getActiveWorkers(slow) <= 2);
+			waitUntilIdle(scheduler);
+
+			assertEquals("didn't drain slow supplier?", 20, slow.pulled);
+			assertEquals("didn't drain fast supplier?", 5, fast.pulled);
+			assertEquals(25, scheduler.getBulletinsPulled());
+			assertEquals("templates not pulled once?", 1, slow.templatePulls);
+			assertEquals("templates not pulled once?", 1, fast.templatePulls);
+			assertTrue("exceeded per-supplier limit?", slow.maxConcurrent <= 2);
+			assertTrue("fast supplier waited for slow one?", fast.finishedAt <= slow.finishedAt);
+
+			scheduler.schedule(retrievers);
+			assertTrue("scheduled a sleeping supplier?", scheduler.isIdle());
+		}
+		finally
+		{
+			scheduler.stop();
+		}
+	}
+
+	public void testStopWaitsForPullsInProgress() throws Exception
+	{
+		MirroringScheduler scheduler = new MirroringScheduler(2, 2, new LoggerToNull());
+		CountingRetriever retriever = new CountingRetriever(20, 100);
+		Vector retrievers = new Vector();
+		retrievers.add(retriever);
+
+		scheduler.schedule(retrievers);
+		for(int i = 0; i < 100 && retriever.concurrent == 0; ++i)
+			Thread.sleep(10);
+		assertTrue("never started pulling?", retriever.concurrent > 0);
+
+		assertTrue("didn't finish in time?", scheduler.stop());
+		assertEquals("left a pull running?", 0, retriever.concurrent);
+		assertTrue("pulled everything anyway?", retriever.pulled < 20);
+		assertTrue("not idle after stop?", scheduler.isIdle());
+		assertEquals("pulled templates while stopping?", 0, retriever.templatePulls);
+
+		scheduler.schedule(retrievers);
+		assertTrue("scheduled after stop?", scheduler.isIdle());
+	}
+
+	private void waitUntilIdle(MirroringScheduler scheduler) throws Exception
+	{
+		for(int i = 0; i < 500 && !scheduler.isIdle(); ++i)
+			Thread.sleep(10);
+		assertTrue("never finished?", scheduler.isIdle());
+	}
+
+	static class CountingRetriever extends MirroringRetriever
+	{
+		CountingRetriever(int itemCount, long millisPerItemToUse)
+		{
+			super(null, null, "ip", new LoggerToNull());
+			remaining = itemCount;
+			millisPerItem = millisPerItemToUse;
+		}
+
+		public synchronized BulletinMirroringInformation takeNextItemToRetrieve()
+		{
+			if(isSleeping())
+				return null;
+			if(remaining == 0)
+			{
+				sleepUntil = System.currentTimeMillis() + 60 * 1000;
+				return null;
+			}
+			--remaining;
+			return new BulletinMirroringInformation(UniversalIdForTesting.createDummyUniversalId());
+		}
+
+		public void retrieveAndStoreBulletin(BulletinMirroringInformation item)
+		{
+			synchronized(this)
+			{
+				++concurrent;
+				maxConcurrent = Math.max(maxConcurrent, concurrent);
+			}
+			try
+			{
+				if(millisPerItem > 0)
+					Thread.sleep(millisPerItem);
+			}
+			catch(InterruptedException e)
+			{
+			}
+			synchronized(this)
+			{
+				--concurrent;
+				++pulled;
+				finishedAt = System.currentTimeMillis();
+			}
+		}
+
+		public void pullAllTemplates()
+		{
+			++templatePulls;
+		}
+
+		int remaining;
+		long millisPerItem;
+		int concurrent;
+		int maxConcurrent;
+		int pulled;
+		int templatePulls;
+		long finishedAt;
+	}
+}
@@ -0,0 +1,222 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.formirroring;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.martus.common.packet.UniversalId;
+import org.martus.common.test.UniversalIdForTesting;
+import org.martus.util.DirectoryUtils;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestPartialMirrorDownload extends TestCaseEnhanced
+{
+	public TestPartialMirrorDownload(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		directory = createTempDirectory();
+		uid = UniversalIdForTesting.createDummyUniversalId();
+	}
+
+	public void tearDown() throws Exception
+	{
+		DirectoryUtils.deleteEntireDirectoryTree(directory);
+		super.tearDown();
+	}
+
+	public void testResume() throws Exception
+	{
+		PartialMirrorDownload download = PartialMirrorDownload.open(directory, uid, MTIME);
+		assertFalse("resumed a new download?", download.wasResumed());
+		assertTrue(download.setExport(DATA.length, EXPORT_ID));
+		download.append(firstChunk());
+		download.close();
+
+		PartialMirrorDownload resumed = PartialMirrorDownload.open(directory, uid, MTIME);
+		assertTrue("didn't resume?", resumed.wasResumed());
+		assertEquals(FIRST_CHUNK_LENGTH, resumed.getOffset());
+		assertEquals(DATA.length, resumed.getTotalLength());
+		assertFalse(resumed.isComplete());
+		resumed.append(secondChunk());
+		assertTrue("not complete?", resumed.isComplete());
+		resumed.close();
+		assertEquals(DATA.length, resumed.getFile().length());
+
+		resumed.discard();
+		assertFalse("didn't delete?", resumed.getFile().exists());
+		assertFalse("didn't delete state?", PartialMirrorDownload.getStateFile(resumed.getFile()).exists());
+	}
+
+	public void testRestartsIfBulletinChanged() throws Exception
+	{
+		PartialMirrorDownload download = PartialMirrorDownload.open(directory, uid, MTIME);
+		download.setExport(DATA.length, EXPORT_ID);
+		download.append(firstChunk());
+		download.close();
+
+		PartialMirrorDownload newer = PartialMirrorDownload.open(directory, uid, MTIME + 1);
+		assertFalse("resumed a different version?", newer.wasResumed());
+		assertEquals(0, newer.getOffset());
+		assertEquals(0, newer.getFile().length());
+		newer.close();
+	}
+
+	public void testRestartsIfLengthChanges() throws Exception
+	{
+		PartialMirrorDownload download = PartialMirrorDownload.open(directory, uid, MTIME);
+		download.setExport(DATA.length, EXPORT_ID);
+		download.append(firstChunk());
+		assertFalse("kept going?", download.setExport(DATA.length + 1, EXPORT_ID));
+		assertEquals(0, download.getOffset());
+		assertEquals(DATA.length + 1, download.getTotalLength());
+		download.close();
+
+		PartialMirrorDownload reopened = PartialMirrorDownload.open(directory, uid, MTIME);
+		assertFalse("resumed against the old listing?", reopened.wasResumed());
+		reopened.close();
+	}
+
+	public void testRestartsIfReexported() throws Exception
+	{
+		PartialMirrorDownload download = PartialMirrorDownload.open(directory, uid, MTIME);
+		download.setExport(DATA.length, EXPORT_ID);
+		download.append(firstChunk());
+		download.close();
+
+		PartialMirrorDownload resumed = PartialMirrorDownload.open(directory, uid, MTIME);
+		assertTrue("didn't resume?", resumed.wasResumed());
+		assertEquals(EXPORT_ID, resumed.getExportId());
+		assertFalse("kept old bytes?", resumed.setExport(DATA.length, OTHER_EXPORT_ID));
+		assertEquals(0, resumed.getOffset());
+		assertEquals(0, resumed.getFile().length());
+		assertEquals(OTHER_EXPORT_ID, resumed.getExportId());
+		resumed.close();
+	}
+
+	public void testDropsBytesWrittenAfterLastSavedChunk() throws Exception
+	{
+		PartialMirrorDownload download = PartialMirrorDownload.open(directory, uid, MTIME);
+		download.setExport(DATA.length, EXPORT_ID);
+		download.append(firstChunk());
+		download.close();
+		appendToFile(download.getFile(), secondChunk());
+
+		PartialMirrorDownload resumed = PartialMirrorDownload.open(directory, uid, MTIME);
+		assertTrue(resumed.wasResumed());
+		assertEquals(FIRST_CHUNK_LENGTH, resumed.getOffset());
+		assertEquals(FIRST_CHUNK_LENGTH, resumed.getFile().length());
+		resumed.close();
+	}
+
+	public void testRestartsIfDamaged() throws Exception
+	{
+		PartialMirrorDownload download = PartialMirrorDownload.open(directory, uid, MTIME);
+		download.setExport(DATA.length, EXPORT_ID);
+		download.append(firstChunk());
+		download.close();
+		RandomAccessFile file = new RandomAccessFile(download.getFile(), "rw");
+		file.write('X');
+		file.close();
+
+		PartialMirrorDownload restarted = PartialMirrorDownload.open(directory, uid, MTIME);
+		assertFalse("resumed a damaged file?", restarted.wasResumed());
+		assertEquals(0, restarted.getOffset());
+		restarted.close();
+	}
+
+	public void testAppendPastEnd() throws Exception
+	{
+		PartialMirrorDownload download = PartialMirrorDownload.open(directory, uid, MTIME);
+		download.setExport(FIRST_CHUNK_LENGTH, EXPORT_ID);
+		try
+		{
+			download.append(DATA);
+			fail("Should have thrown");
+		}
+		catch(Exception expected)
+		{
+		}
+		download.close();
+	}
+
+	public void testDeleteStaleDownloads() throws Exception
+	{
+		File supplierDirectory = new File(directory, "supplier");
+		PartialMirrorDownload download = PartialMirrorDownload.open(supplierDirectory, uid, MTIME);
+		download.setExport(DATA.length, EXPORT_ID);
+		download.append(firstChunk());
+		download.close();
+
+		long maxAge = 60 * 1000;
+		assertEquals("deleted a fresh download?", 0, PartialMirrorDownload.deleteStaleDownloads(directory, maxAge));
+		long longAgo = System.currentTimeMillis() - 2 * maxAge;
+		download.getFile().setLastModified(longAgo);
+		PartialMirrorDownload.getStateFile(download.getFile()).setLastModified(longAgo);
+		assertEquals(1, PartialMirrorDownload.deleteStaleDownloads(directory, maxAge));
+		assertFalse(download.getFile().exists());
+		assertFalse(PartialMirrorDownload.getStateFile(download.getFile()).exists());
+	}
+
+	private void appendToFile(File file, byte[] data) throws Exception
+	{
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		out.seek(out.length());
+		out.write(data);
+		out.close();
+	}
+
+	private byte[] firstChunk()
+	{
+		byte[] chunk = new byte[FIRST_CHUNK_LENGTH];
+		System.arraycopy(DATA, 0, chunk, 0, chunk.length);
+		return chunk;
+	}
+
+	private byte[] secondChunk()
+	{
+		byte[] chunk = new byte[DATA.length - FIRST_CHUNK_LENGTH];
+		System.arraycopy(DATA, FIRST_CHUNK_LENGTH, chunk, 0, chunk.length);
+		return chunk;
+	}
+
+	static final long MTIME = 1234567000L;
+	static final String EXPORT_ID = "export 1";
+	static final String OTHER_EXPORT_ID = "export 2";
+	static final byte[] DATA = "some zip data that arrives in two chunks".getBytes();
+	static final int FIRST_CHUNK_LENGTH = 12;
+
+	File directory;
+	UniversalId uid;
+}
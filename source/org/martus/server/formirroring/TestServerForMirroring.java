@@ -55,8 +55,10 @@ import org.martus.common.packet.UniversalId;
 import org.martus.common.test.UniversalIdForTesting;
 import org.martus.server.forclients.MockMartusServer;
 import org.martus.server.forclients.ServerForClients;
+import org.martus.server.main.ChangeJournal;
 import org.martus.server.main.ServerBulletinStore;
 import org.martus.util.Base64;
+import org.martus.util.DirectoryUtils;
 import org.martus.util.StreamableBase64;
 import org.martus.util.TestCaseEnhanced;
 
@@ -261,6 +263,45 @@ public class TestServerForMirroring extends TestCaseEnhanced
 		assertContains(bhp4.getLocalId(), ids2);
 	}
 
+	public void testListChangesSinceForMirroring() throws Exception
+	{
+		ServerBulletinStore store = coreServer.getStore();
+		Vector noJournal = server.listChangesSinceForMirroring("");
+		assertEquals(SupplierSideMirroringHandler.CHANGES_FULL_LISTING_REQUIRED, noJournal.get(1));
+
+		File journalDirectory = createTempDirectory();
+		try
+		{
+			store.setChangeJournalFile(new File(journalDirectory, ChangeJournal.CHANGE_JOURNAL_FILENAME));
+			Vector anchor = server.listChangesSinceForMirroring("");
+			assertEquals(2, anchor.size());
+			assertEquals(SupplierSideMirroringHandler.CHANGES_FULL_LISTING_REQUIRED, anchor.get(1));
+
+			ChangeJournal journal = store.getChangeJournal();
+			journal.recordSaved(bhp1.getUniversalId());
+			journal.recordSaved(bhp4.getUniversalId());
+			journal.recordDeleted(UniversalIdForTesting.createDummyUniversalId());
+			Vector changes = server.listChangesSinceForMirroring((String)anchor.get(0));
+			assertEquals(SupplierSideMirroringHandler.CHANGES_COMPLETE, changes.get(1));
+			assertEquals("deleted bulletin listed?", 4, changes.size());
+			Object[] first = (Object[])changes.get(2);
+			assertEquals(bhp1.getAccountId(), first[0]);
+			assertEquals(bhp1.getLocalId(), ((Object[])first[1])[0]);
+			Object[] second = (Object[])changes.get(3);
+			assertEquals(bhp4.getAccountId(), second[0]);
+			assertEquals(bhp4.getLocalId(), ((Object[])second[1])[0]);
+
+			Vector none = server.listChangesSinceForMirroring((String)changes.get(0));
+			assertEquals(2, none.size());
+			assertEquals(SupplierSideMirroringHandler.CHANGES_COMPLETE, none.get(1));
+		}
+		finally
+		{
+			store.setChangeJournalFile(null);
+			DirectoryUtils.deleteEntireDirectoryTree(journalDirectory);
+		}
+	}
+
 	private void internalTestSealeds()
 	{
 		ReadableDatabase db = coreServer.getDatabase();
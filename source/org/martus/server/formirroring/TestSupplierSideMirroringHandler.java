@@ -486,6 +486,43 @@ public class TestSupplierSideMirroringHandler extends TestCaseEnhanced
 		assertEquals(returnZipData, details[2]);
 	}
 
+	public void testGetBulletinBatch() throws Exception
+	{
+		final String authorAccountId = "a";
+		supplier.authorizedCaller = callerAccountId;
+		String returnZipData = StreamableBase64.encode("zip data");
+		UniversalId found = UniversalId.createFromAccountAndLocalId(authorAccountId, "b");
+		supplier.addZipData(found, returnZipData);
+		supplier.addBur(found, "bur", BulletinConstants.STATUSSEALED);
+		UniversalId missing = UniversalId.createFromAccountAndLocalId(authorAccountId, "c");
+
+		Vector parameters = new Vector();
+		parameters.add(SupplierSideMirroringHandler.CMD_MIRRORING_GET_BULLETIN_BATCH);
+		parameters.add(new Integer(1000));
+		parameters.add(found.getAccountId());
+		parameters.add(found.getLocalId());
+		parameters.add(missing.getAccountId());
+		parameters.add(missing.getLocalId());
+		String sig = callerSecurity.createSignatureOfVectorOfStrings(parameters);
+		Vector result = handler.request(callerAccountId, parameters, sig);
+
+		assertEquals(2, supplier.gotBatchUids.size());
+		assertEquals(found, supplier.gotBatchUids.get(0));
+		assertEquals(missing, supplier.gotBatchUids.get(1));
+
+		assertEquals(2, result.size());
+		assertEquals(NetworkInterfaceConstants.OK, result.get(0));
+		Object[] entries = (Object[])result.get(1);
+		assertEquals(2, entries.length);
+		Object[] foundEntry = (Object[])entries[0];
+		assertEquals(found.getLocalId(), foundEntry[1]);
+		assertEquals(NetworkInterfaceConstants.OK, foundEntry[2]);
+		assertEquals("bur", foundEntry[3]);
+		assertEquals(returnZipData, foundEntry[4]);
+		Object[] missingEntry = (Object[])entries[1];
+		assertEquals(NetworkInterfaceConstants.ITEM_NOT_FOUND, missingEntry[2]);
+	}
+
 	public void testGetBulletinChunkTypo() throws Exception
 	{
 		final String authorAccountId = "a";
@@ -0,0 +1,226 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.martus.common.MartusLogger;
+import org.martus.common.database.FileDatabase;
+import org.martus.common.database.ReadableDatabase.AccountVisitor;
+import org.martus.util.UnicodeReader;
+import org.martus.util.UnicodeWriter;
+
+/*
+ * Which account each stored access token belongs to, so resolving a token
+ * while the token authority is unreachable doesn't mean listing the token
+ * folder of every account. Each line of the index file names an account
+ * and its current token file; a later line for the same account replaces
+ * the earlier one. The file is only rebuilt from the accounts on disk when
+ * it is missing or can't be read.
+ */
+public class AccessTokenIndex
+{
+	public AccessTokenIndex(File indexFileToUse)
+	{
+		indexFile = indexFileToUse;
+		accountIdsByTokenFilename = new HashMap<String, String>();
+		tokenFilenamesByAccountId = new HashMap<String, String>();
+		loaded = load();
+	}
+
+	public synchronized boolean isLoaded()
+	{
+		return loaded;
+	}
+
+	public synchronized String findAccountId(String token)
+	{
+		return accountIdsByTokenFilename.get(FileDatabase.buildTokenFilename(token));
+	}
+
+	public synchronized String getTokenFilename(String accountId)
+	{
+		return tokenFilenamesByAccountId.get(accountId);
+	}
+
+	public synchronized int getAccountCount()
+	{
+		return tokenFilenamesByAccountId.size();
+	}
+
+	public synchronized void recordToken(String accountId, String tokenFilename)
+	{
+		remember(accountId, tokenFilename);
+		try
+		{
+			UnicodeWriter writer = new UnicodeWriter(indexFile, UnicodeWriter.APPEND);
+			try
+			{
+				writer.writeln(accountId + FIELD_DELIMITER + tokenFilename);
+			}
+			finally
+			{
+				writer.close();
+			}
+			++lineCount;
+		}
+		catch(IOException e)
+		{
+			MartusLogger.logError("AccessTokenIndex: unable to append to " + indexFile.getName());
+			MartusLogger.logException(e);
+			rewrite();
+		}
+	}
+
+	public synchronized void rebuild(ServerBulletinStore store)
+	{
+		accountIdsByTokenFilename.clear();
+		tokenFilenamesByAccountId.clear();
+		store.getDatabase().visitAllAccounts(new TokenFileCollector(store));
+		rewrite();
+		loaded = true;
+	}
+
+	class TokenFileCollector implements AccountVisitor
+	{
+		TokenFileCollector(ServerBulletinStore storeToUse)
+		{
+			store = storeToUse;
+		}
+
+		public void visit(String accountId)
+		{
+			try
+			{
+				File tokenFile = store.getTokenFileForAccount(accountId);
+				remember(accountId, tokenFile.getName());
+			}
+			catch(Exception ignoredExceptionTokenDoesntExist)
+			{
+			}
+		}
+
+		private ServerBulletinStore store;
+	}
+
+	private void remember(String accountId, String tokenFilename)
+	{
+		String previous = tokenFilenamesByAccountId.put(accountId, tokenFilename);
+		if(previous != null && accountId.equals(accountIdsByTokenFilename.get(previous)))
+			accountIdsByTokenFilename.remove(previous);
+		accountIdsByTokenFilename.put(tokenFilename, accountId);
+	}
+
+	private boolean load()
+	{
+		if(!indexFile.exists())
+			return false;
+
+		try
+		{
+			UnicodeReader reader = new UnicodeReader(indexFile);
+			try
+			{
+				String line;
+				while( (line = reader.readLine()) != null)
+				{
+					if(line.length() == 0)
+						continue;
+					String[] fields = line.split(FIELD_DELIMITER);
+					if(fields.length != 2)
+						throw new IOException("Bad token index line: " + line);
+					remember(fields[0], fields[1]);
+					++lineCount;
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch(Exception e)
+		{
+			MartusLogger.logError("AccessTokenIndex: unable to read " + indexFile.getName() + ", will rebuild");
+			MartusLogger.logException(e);
+			accountIdsByTokenFilename.clear();
+			tokenFilenamesByAccountId.clear();
+			return false;
+		}
+
+		if(lineCount > COMPACT_MINIMUM_LINES && lineCount > 2 * tokenFilenamesByAccountId.size())
+			rewrite();
+		return true;
+	}
+
+	private void rewrite()
+	{
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		try
+		{
+			UnicodeWriter writer = new UnicodeWriter(tempFile);
+			try
+			{
+				Iterator<Map.Entry<String, String>> iter = tokenFilenamesByAccountId.entrySet().iterator();
+				while(iter.hasNext())
+				{
+					Map.Entry<String, String> entry = iter.next();
+					writer.writeln(entry.getKey() + FIELD_DELIMITER + entry.getValue());
+				}
+			}
+			finally
+			{
+				writer.close();
+			}
+			indexFile.delete();
+			if(!tempFile.renameTo(indexFile))
+				throw new IOException("Unable to rename " + tempFile.getName());
+			lineCount = tokenFilenamesByAccountId.size();
+		}
+		catch(IOException e)
+		{
+			MartusLogger.logError("AccessTokenIndex: unable to rewrite " + indexFile.getName());
+			MartusLogger.logException(e);
+			tempFile.delete();
+			indexFile.delete();
+		}
+	}
+
+	public static final String ACCESS_TOKEN_INDEX_FILENAME = "accessTokenIndex.txt";
+	private static final String FIELD_DELIMITER = "\t";
+	private static final int COMPACT_MINIMUM_LINES = 10000;
+
+	private File indexFile;
+	private Map<String, String> accountIdsByTokenFilename;
+	private Map<String, String> tokenFilenamesByAccountId;
+	private boolean loaded;
+	private int lineCount;
+}
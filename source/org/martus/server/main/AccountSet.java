@@ -0,0 +1,98 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+/*
+ * A set of account ids that is read on every request and changed rarely.
+ * Lookups go to an immutable hash set without locking; every change
+ * builds a new set and swaps it in, so readers always see either the old
+ * contents or the new ones.
+ */
+public class AccountSet
+{
+	public AccountSet()
+	{
+		this(new Vector());
+	}
+
+	public AccountSet(Collection initialAccountIds)
+	{
+		replaceWith(initialAccountIds);
+	}
+
+	public boolean contains(String accountId)
+	{
+		if(accountId == null)
+			return false;
+		return accountIds.contains(accountId);
+	}
+
+	public int size()
+	{
+		return accountIds.size();
+	}
+
+	public synchronized void add(String accountId)
+	{
+		Set<String> newAccountIds = new HashSet<String>(accountIds);
+		newAccountIds.add(accountId);
+		accountIds = Collections.unmodifiableSet(newAccountIds);
+	}
+
+	public synchronized void remove(String accountId)
+	{
+		Set<String> newAccountIds = new HashSet<String>(accountIds);
+		newAccountIds.remove(accountId);
+		accountIds = Collections.unmodifiableSet(newAccountIds);
+	}
+
+	public synchronized void clear()
+	{
+		accountIds = Collections.emptySet();
+	}
+
+	public synchronized void replaceWith(Collection newAccountIds)
+	{
+		Set<String> newSet = new HashSet<String>();
+		for(Object accountId : newAccountIds)
+			newSet.add((String)accountId);
+		accountIds = Collections.unmodifiableSet(newSet);
+	}
+
+	public Vector toVector()
+	{
+		return new Vector(accountIds);
+	}
+
+	private volatile Set<String> accountIds;
+}
@@ -0,0 +1,200 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.martus.common.LoggerInterface;
+
+/*
+ * Keeps track of which files are present in the admin trigger directory,
+ * so request threads can check for a shutdown request without touching
+ * the filesystem. Once started, a daemon thread follows the directory
+ * with a WatchService, or rescans it on an interval if the platform
+ * can't watch it. Until then, each check looks at the file itself.
+ */
+public class AdminTriggerWatcher
+{
+	public AdminTriggerWatcher(File triggerDirectoryToUse, LoggerInterface loggerToUse)
+	{
+		triggerDirectory = triggerDirectoryToUse;
+		logger = loggerToUse;
+		present = new ConcurrentHashMap<String, Boolean>();
+		pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+	}
+
+	public void setPollIntervalMillis(long newPollIntervalMillis)
+	{
+		pollIntervalMillis = newPollIntervalMillis;
+	}
+
+	public synchronized void start()
+	{
+		if(watcherThread != null)
+			return;
+
+		refresh();
+		watching = true;
+		watcherThread = new Thread(new Watcher(), "AdminTriggerWatcher");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+	}
+
+	public synchronized void stop()
+	{
+		if(watcherThread == null)
+			return;
+
+		watching = false;
+		watcherThread.interrupt();
+		watcherThread = null;
+	}
+
+	public boolean isWatching()
+	{
+		return watching;
+	}
+
+	public boolean isPolling()
+	{
+		return polling;
+	}
+
+	public boolean isTriggered(String triggerFileName)
+	{
+		if(!watching)
+			return new File(triggerDirectory, triggerFileName).exists();
+		return present.containsKey(triggerFileName);
+	}
+
+	public void refresh()
+	{
+		String[] names = triggerDirectory.list();
+		if(names == null)
+			names = new String[0];
+
+		ConcurrentHashMap<String, Boolean> found = new ConcurrentHashMap<String, Boolean>();
+		for(int i = 0; i < names.length; ++i)
+			found.put(names[i], Boolean.TRUE);
+		present.putAll(found);
+		present.keySet().retainAll(found.keySet());
+	}
+
+	void update(String triggerFileName)
+	{
+		if(new File(triggerDirectory, triggerFileName).exists())
+			present.put(triggerFileName, Boolean.TRUE);
+		else
+			present.remove(triggerFileName);
+	}
+
+	class Watcher implements Runnable
+	{
+		public void run()
+		{
+			try
+			{
+				watch();
+			}
+			catch(InterruptedException stopped)
+			{
+				return;
+			}
+			catch(Exception e)
+			{
+				logger.logWarning("AdminTriggerWatcher: Unable to watch " + triggerDirectory + ", polling instead: " + e);
+			}
+			
+			poll();
+		}
+
+		private void watch() throws IOException, InterruptedException
+		{
+			WatchService service = FileSystems.getDefault().newWatchService();
+			try
+			{
+				Path directory = triggerDirectory.toPath();
+				directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, 
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				refresh();
+				while(watching)
+				{
+					WatchKey key = service.take();
+					for(WatchEvent<?> event : key.pollEvents())
+					{
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+							refresh();
+						else
+							update(((Path)event.context()).toString());
+					}
+					if(!key.reset())
+						throw new IOException("Watch key is no longer valid");
+				}
+			}
+			finally
+			{
+				service.close();
+			}
+		}
+
+		private void poll()
+		{
+			polling = true;
+			while(watching)
+			{
+				refresh();
+				try
+				{
+					Thread.sleep(pollIntervalMillis);
+				}
+				catch(InterruptedException stopped)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	public static final long DEFAULT_POLL_INTERVAL_MILLIS = 1000;
+
+	private File triggerDirectory;
+	private LoggerInterface logger;
+	private ConcurrentHashMap<String, Boolean> present;
+	private Thread watcherThread;
+	private volatile boolean watching;
+	private volatile boolean polling;
+	private volatile long pollIntervalMillis;
+}
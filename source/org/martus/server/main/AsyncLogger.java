@@ -0,0 +1,263 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.martus.common.LoggerInterface;
+
+/*
+ * Hands log records to a single writer thread, so request threads never
+ * wait on log output or on each other. The queue is bounded: when it is
+ * full, debug and info lines are dropped (and counted), while notice,
+ * warning and error lines wait briefly for room before giving up.
+ */
+public class AsyncLogger implements LoggerInterface
+{
+	public AsyncLogger(LoggerInterface destinationToUse)
+	{
+		this(destinationToUse, DEFAULT_CAPACITY);
+	}
+
+	public AsyncLogger(LoggerInterface destinationToUse, int capacityToUse)
+	{
+		destination = destinationToUse;
+		capacity = capacityToUse;
+		queue = new ConcurrentLinkedQueue<Record>();
+		queuedCount = new AtomicInteger();
+		droppedCount = new AtomicLong();
+		writer = new Thread(new Writer(), "AsyncLogger");
+		writer.setDaemon(true);
+	}
+
+	public void start()
+	{
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Flusher(), "AsyncLoggerFlush"));
+	}
+
+	public LoggerInterface getDestination()
+	{
+		return destination;
+	}
+
+	public void logDebug(String message)
+	{
+		enqueue(new Record(LEVEL_DEBUG, message, null), false);
+	}
+
+	public void logInfo(String message)
+	{
+		enqueue(new Record(LEVEL_INFO, message, null), false);
+	}
+
+	public void logNotice(String message)
+	{
+		enqueue(new Record(LEVEL_NOTICE, message, null), true);
+	}
+
+	public void logWarning(String message)
+	{
+		enqueue(new Record(LEVEL_WARNING, message, null), true);
+	}
+
+	public void logError(String message)
+	{
+		enqueue(new Record(LEVEL_ERROR, message, null), true);
+	}
+
+	public void logError(Exception e)
+	{
+		enqueue(new Record(LEVEL_ERROR, null, e), true);
+	}
+
+	public void logError(String message, Exception e)
+	{
+		enqueue(new Record(LEVEL_ERROR, message, e), true);
+	}
+
+	public int getQueuedCount()
+	{
+		return queuedCount.get();
+	}
+
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	public synchronized void flush()
+	{
+		writeQueuedRecords();
+	}
+
+	private void enqueue(Record record, boolean important)
+	{
+		if(!reserveSpace(important))
+		{
+			droppedCount.incrementAndGet();
+			return;
+		}
+
+		queue.add(record);
+		if(writerIsWaiting)
+			LockSupport.unpark(writer);
+	}
+
+	private boolean reserveSpace(boolean important)
+	{
+		long giveUpAt = 0;
+		while(true)
+		{
+			int queued = queuedCount.get();
+			if(queued < capacity)
+			{
+				if(queuedCount.compareAndSet(queued, queued + 1))
+					return true;
+				continue;
+			}
+
+			if(!important)
+				return false;
+
+			long now = System.nanoTime();
+			if(giveUpAt == 0)
+				giveUpAt = now + MAX_WAIT_FOR_SPACE_NANOS;
+			else if(now - giveUpAt > 0)
+				return false;
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(WAIT_FOR_SPACE_NANOS);
+		}
+	}
+
+	synchronized void writeQueuedRecords()
+	{
+		Record record;
+		while((record = queue.poll()) != null)
+		{
+			queuedCount.decrementAndGet();
+			write(record);
+		}
+
+		long dropped = droppedCount.getAndSet(0);
+		if(dropped > 0)
+			destination.logWarning("AsyncLogger: queue full, dropped " + dropped + " log message(s)");
+	}
+
+	private void write(Record record)
+	{
+		try
+		{
+			switch(record.level)
+			{
+				case LEVEL_DEBUG:
+					destination.logDebug(record.message);
+					break;
+				case LEVEL_INFO:
+					destination.logInfo(record.message);
+					break;
+				case LEVEL_NOTICE:
+					destination.logNotice(record.message);
+					break;
+				case LEVEL_WARNING:
+					destination.logWarning(record.message);
+					break;
+				default:
+					if(record.exception == null)
+						destination.logError(record.message);
+					else if(record.message == null)
+						destination.logError(record.exception);
+					else
+						destination.logError(record.message, record.exception);
+			}
+		}
+		catch(RuntimeException e)
+		{
+			// NOTE: nowhere left to log this
+			e.printStackTrace();
+		}
+	}
+
+	class Writer implements Runnable
+	{
+		public void run()
+		{
+			while(true)
+			{
+				writeQueuedRecords();
+				writerIsWaiting = true;
+				if(queue.isEmpty())
+					LockSupport.parkNanos(this, MAX_WRITER_IDLE_NANOS);
+				writerIsWaiting = false;
+			}
+		}
+	}
+
+	class Flusher implements Runnable
+	{
+		public void run()
+		{
+			flush();
+		}
+	}
+
+	static class Record
+	{
+		Record(int levelToUse, String messageToUse, Exception exceptionToUse)
+		{
+			level = levelToUse;
+			message = messageToUse;
+			exception = exceptionToUse;
+		}
+
+		int level;
+		String message;
+		Exception exception;
+	}
+
+	public static final int LEVEL_DEBUG = 0;
+	public static final int LEVEL_INFO = 1;
+	public static final int LEVEL_NOTICE = 2;
+	public static final int LEVEL_WARNING = 3;
+	public static final int LEVEL_ERROR = 4;
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+	private static final long WAIT_FOR_SPACE_NANOS = 1000L * 1000;
+	private static final long MAX_WAIT_FOR_SPACE_NANOS = 250L * 1000 * 1000;
+	private static final long MAX_WRITER_IDLE_NANOS = 500L * 1000 * 1000;
+
+	private LoggerInterface destination;
+	private int capacity;
+	private ConcurrentLinkedQueue<Record> queue;
+	private AtomicInteger queuedCount;
+	private AtomicLong droppedCount;
+	private Thread writer;
+	private volatile boolean writerIsWaiting;
+}
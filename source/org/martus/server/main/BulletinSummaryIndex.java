@@ -0,0 +1,596 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.martus.common.HeadquartersKeys;
+import org.martus.common.MartusLogger;
+import org.martus.common.MartusUtilities;
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.database.Database;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.ReadableDatabase;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.common.packet.UniversalId;
+import org.martus.util.UnicodeReader;
+import org.martus.util.UnicodeWriter;
+
+/*
+ * Keeps the pieces of each bulletin header that the summary lists need,
+ * so listing an account's bulletins doesn't have to load and verify every
+ * header packet. A single entry is checked against the record mTime
+ * before use, so a packet written by any path other than the store hooks
+ * is reloaded the next time that entry is asked for.
+ * 
+ * The first time an account's entries are listed, every header in the
+ * account is indexed and the account is marked complete. From then on the
+ * store's save and delete hooks keep it current, and listing the account
+ * doesn't touch the packet files at all, so a header written around the
+ * hooks only shows up in listings once the index is cleared. Saves and
+ * deletes that happen while an account is being indexed are kept.
+ */
+public class BulletinSummaryIndex
+{
+	public BulletinSummaryIndex(ServerBulletinStore storeToUse)
+	{
+		store = storeToUse;
+		accounts = new ConcurrentHashMap<String, AccountEntries>();
+	}
+
+	public void setIndexDirectory(File directoryToUse)
+	{
+		indexDirectory = directoryToUse;
+		if(indexDirectory != null)
+			indexDirectory.mkdirs();
+		accounts.clear();
+	}
+
+	public File getIndexDirectory()
+	{
+		return indexDirectory;
+	}
+
+	public Entry getEntry(DatabaseKey headerKey) throws Exception
+	{
+		ReadableDatabase db = store.getDatabase();
+		long mTime = db.getmTime(headerKey);
+		AccountEntries entries = getAccountEntries(headerKey.getAccountId());
+		Entry entry = entries.get(headerKey);
+		if(entry != null && entry.getmTime() == mTime)
+		{
+			hits.incrementAndGet();
+			return entry;
+		}
+
+		misses.incrementAndGet();
+		BulletinHeaderPacket bhp = store.getHeaderPacketCache().load(db, headerKey, store.getSignatureVerifier());
+		entry = new Entry(headerKey, mTime, bhp, MartusUtilities.getBulletinSize(db, bhp));
+		entries.put(entry);
+		return entry;
+	}
+
+	public Vector getEntriesForAccount(String accountId) throws Exception
+	{
+		AccountEntries entries = getAccountEntries(accountId);
+		if(!entries.isComplete())
+			indexAccount(entries);
+		return entries.getAll();
+	}
+
+	private void indexAccount(AccountEntries entries) throws Exception
+	{
+		class HeaderKeyCollector implements Database.PacketVisitor
+		{
+			public void visit(DatabaseKey key)
+			{
+				if(BulletinHeaderPacket.isValidLocalId(key.getLocalId()))
+					headerKeys.add(key);
+			}
+
+			Vector headerKeys = new Vector();
+		}
+
+		entries.beginIndexing();
+		try
+		{
+			HeaderKeyCollector collector = new HeaderKeyCollector();
+			store.visitAllBulletinsForAccount(collector, entries.getAccountId());
+			Set<String> indexed = new HashSet<String>();
+			for(int i = 0; i < collector.headerKeys.size(); ++i)
+			{
+				DatabaseKey key = (DatabaseKey)collector.headerKeys.get(i);
+				try
+				{
+					getEntry(key);
+					indexed.add(entries.getMapKey(key));
+				}
+				catch(Exception e)
+				{
+					MartusLogger.logException(e);
+				}
+			}
+			entries.markComplete(indexed);
+		}
+		finally
+		{
+			entries.endIndexing();
+		}
+	}
+
+	public void update(BulletinHeaderPacket bhp)
+	{
+		try
+		{
+			ReadableDatabase db = store.getDatabase();
+			DatabaseKey headerKey = bhp.createKeyWithHeaderStatus(bhp.getUniversalId());
+			Entry entry = new Entry(headerKey, db.getmTime(headerKey), bhp, MartusUtilities.getBulletinSize(db, bhp));
+			AccountEntries entries = getAccountEntries(bhp.getAccountId());
+			entries.put(entry);
+			if(headerKey.isSealed())
+				entries.remove(DatabaseKey.createDraftKey(bhp.getUniversalId()));
+		}
+		catch(Exception e)
+		{
+			MartusLogger.logException(e);
+		}
+	}
+
+	public void remove(DatabaseKey headerKey)
+	{
+		try
+		{
+			getAccountEntries(headerKey.getAccountId()).remove(headerKey);
+		}
+		catch(Exception e)
+		{
+			MartusLogger.logException(e);
+		}
+	}
+
+	public void clear()
+	{
+		accounts.clear();
+		if(indexDirectory == null)
+			return;
+		File[] files = indexDirectory.listFiles();
+		if(files == null)
+			return;
+		for(int i = 0; i < files.length; ++i)
+			files[i].delete();
+	}
+
+	public int getHitCount()
+	{
+		return hits.get();
+	}
+
+	public int getMissCount()
+	{
+		return misses.get();
+	}
+
+	private AccountEntries getAccountEntries(String accountId) throws Exception
+	{
+		AccountEntries entries = accounts.get(accountId);
+		if(entries != null)
+			return entries;
+
+		entries = new AccountEntries(accountId, getAccountFile(accountId));
+		AccountEntries existing = accounts.putIfAbsent(accountId, entries);
+		if(existing != null)
+			return existing;
+		return entries;
+	}
+
+	private File getAccountFile(String accountId) throws Exception
+	{
+		if(indexDirectory == null)
+			return null;
+		return new File(indexDirectory, MartusCrypto.getHexDigest(accountId) + INDEX_FILE_EXTENSION);
+	}
+
+	class AccountEntries
+	{
+		AccountEntries(String accountIdToUse, File fileToUse)
+		{
+			accountId = accountIdToUse;
+			file = fileToUse;
+			entries = new HashMap<String, Entry>();
+		}
+
+		String getAccountId()
+		{
+			return accountId;
+		}
+
+		synchronized Entry get(DatabaseKey key)
+		{
+			loadIfNecessary();
+			return entries.get(getMapKey(key));
+		}
+
+		synchronized Vector getAll()
+		{
+			loadIfNecessary();
+			return new Vector(entries.values());
+		}
+
+		synchronized boolean isComplete()
+		{
+			loadIfNecessary();
+			return complete;
+		}
+
+		synchronized void beginIndexing()
+		{
+			if(indexingCount++ == 0)
+				changedWhileIndexing = new HashSet<String>();
+		}
+
+		synchronized void endIndexing()
+		{
+			if(--indexingCount == 0)
+				changedWhileIndexing = null;
+		}
+
+		synchronized void markComplete(Set<String> indexedKeys)
+		{
+			loadIfNecessary();
+			for(Iterator<String> iter = entries.keySet().iterator(); iter.hasNext();)
+			{
+				String mapKey = iter.next();
+				if(!indexedKeys.contains(mapKey) && !changedWhileIndexing.contains(mapKey))
+					iter.remove();
+			}
+			complete = true;
+			rewrite();
+		}
+
+		synchronized void put(Entry entry)
+		{
+			loadIfNecessary();
+			noteChange(entry.getKey());
+			Entry old = entries.put(getMapKey(entry.getKey()), entry);
+			int supersededLines = 0;
+			if(old != null)
+				supersededLines = 1;
+			append(ADDED + FIELD_DELIMITER + entry.toString(), supersededLines);
+		}
+
+		synchronized void remove(DatabaseKey key)
+		{
+			loadIfNecessary();
+			noteChange(key);
+			if(entries.remove(getMapKey(key)) == null)
+				return;
+			append(REMOVED + FIELD_DELIMITER + getMapKey(key), 2);
+		}
+
+		private void noteChange(DatabaseKey key)
+		{
+			if(changedWhileIndexing != null)
+				changedWhileIndexing.add(getMapKey(key));
+		}
+
+		private void loadIfNecessary()
+		{
+			if(loaded)
+				return;
+			loaded = true;
+			if(file == null)
+				return;
+
+			int lineCount = 0;
+			try
+			{
+				UnicodeReader reader = new UnicodeReader(file);
+				try
+				{
+					String line = null;
+					while( (line = reader.readLine()) != null)
+					{
+						++lineCount;
+						loadLine(line);
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+			catch(FileNotFoundException nothingIndexedYet)
+			{
+				return;
+			}
+			catch(Exception e)
+			{
+				MartusLogger.logError("BulletinSummaryIndex: discarding unreadable index " + file.getName());
+				MartusLogger.logException(e);
+				entries.clear();
+				complete = false;
+				file.delete();
+				return;
+			}
+
+			obsoleteLineCount = lineCount - entries.size();
+			if(complete)
+				--obsoleteLineCount;
+			if(obsoleteLineCount > entries.size())
+				rewrite();
+		}
+
+		private void loadLine(String line)
+		{
+			if(line.length() == 0)
+				return;
+
+			String[] fields = line.split(FIELD_DELIMITER, -1);
+			if(fields[0].equals(COMPLETE))
+			{
+				complete = true;
+				return;
+			}
+			if(fields[0].equals(REMOVED))
+			{
+				entries.remove(fields[1]);
+				return;
+			}
+
+			Entry entry = Entry.createFromFields(accountId, fields, 1);
+			entries.put(getMapKey(entry.getKey()), entry);
+		}
+
+		private void append(String line, int newlyObsoleteLines)
+		{
+			if(file == null)
+				return;
+
+			obsoleteLineCount += newlyObsoleteLines;
+			if(obsoleteLineCount > entries.size() + MINIMUM_LINES_BEFORE_COMPACTING)
+			{
+				rewrite();
+				return;
+			}
+
+			try
+			{
+				UnicodeWriter writer = new UnicodeWriter(file, UnicodeWriter.APPEND);
+				writer.writeln(line);
+				writer.close();
+			}
+			catch(IOException e)
+			{
+				MartusLogger.logError("BulletinSummaryIndex: unable to append to " + file.getName());
+				MartusLogger.logException(e);
+			}
+		}
+
+		private void rewrite()
+		{
+			if(file == null)
+				return;
+
+			File tempFile = new File(file.getPath() + ".tmp");
+			try
+			{
+				UnicodeWriter writer = new UnicodeWriter(tempFile);
+				for(Iterator<Entry> iter = entries.values().iterator(); iter.hasNext();)
+					writer.writeln(ADDED + FIELD_DELIMITER + iter.next().toString());
+				if(complete)
+					writer.writeln(COMPLETE);
+				writer.close();
+				file.delete();
+				if(!tempFile.renameTo(file))
+					throw new IOException("Unable to rename " + tempFile.getName());
+				obsoleteLineCount = 0;
+			}
+			catch(IOException e)
+			{
+				MartusLogger.logError("BulletinSummaryIndex: unable to rewrite " + file.getName());
+				MartusLogger.logException(e);
+				tempFile.delete();
+			}
+		}
+
+		String getMapKey(DatabaseKey key)
+		{
+			return Entry.getStatusCode(key) + key.getLocalId();
+		}
+
+		private String accountId;
+		private File file;
+		private Map<String, Entry> entries;
+		private int obsoleteLineCount;
+		private boolean loaded;
+		private boolean complete;
+		private int indexingCount;
+		private Set<String> changedWhileIndexing;
+	}
+
+	public static class Entry
+	{
+		Entry(DatabaseKey keyToUse, long mTimeToUse, BulletinHeaderPacket bhp, int sizeToUse)
+		{
+			key = keyToUse;
+			mTime = mTimeToUse;
+			fieldDataPacketId = bhp.getFieldDataPacketId();
+			lastSavedTime = bhp.getLastSavedTime();
+			bulletinSize = sizeToUse;
+			history = bhp.getHistory().toString();
+
+			authorizedHqKeys = new Vector();
+			HeadquartersKeys hqKeys = bhp.getAuthorizedToReadKeys();
+			for(int i = 0; i < hqKeys.size(); ++i)
+				authorizedHqKeys.add(hqKeys.get(i).getPublicKey());
+		}
+
+		private Entry()
+		{
+		}
+
+		static Entry createFromFields(String accountId, String[] fields, int start)
+		{
+			Entry entry = new Entry();
+			UniversalId uid = UniversalId.createFromAccountAndLocalId(accountId, fields[start + 1]);
+			if(fields[start].equals(DRAFT))
+				entry.key = DatabaseKey.createDraftKey(uid);
+			else
+				entry.key = DatabaseKey.createSealedKey(uid);
+			entry.mTime = Long.parseLong(fields[start + 2]);
+			entry.fieldDataPacketId = fields[start + 3];
+			entry.lastSavedTime = Long.parseLong(fields[start + 4]);
+			entry.bulletinSize = Integer.parseInt(fields[start + 5]);
+			entry.history = fields[start + 6];
+			entry.authorizedHqKeys = new Vector();
+			String[] hqKeys = fields[start + 7].split(" ");
+			for(int i = 0; i < hqKeys.length; ++i)
+			{
+				if(hqKeys[i].length() > 0)
+					entry.authorizedHqKeys.add(hqKeys[i]);
+			}
+			return entry;
+		}
+
+		static String getStatusCode(DatabaseKey key)
+		{
+			if(key.isDraft())
+				return DRAFT;
+			return SEALED;
+		}
+
+		public DatabaseKey getKey()
+		{
+			return key;
+		}
+
+		public String getAccountId()
+		{
+			return key.getAccountId();
+		}
+
+		public String getLocalId()
+		{
+			return key.getLocalId();
+		}
+
+		public boolean isDraft()
+		{
+			return key.isDraft();
+		}
+
+		public boolean isSealed()
+		{
+			return key.isSealed();
+		}
+
+		public long getmTime()
+		{
+			return mTime;
+		}
+
+		public String getFieldDataPacketId()
+		{
+			return fieldDataPacketId;
+		}
+
+		public long getLastSavedTime()
+		{
+			return lastSavedTime;
+		}
+
+		public int getBulletinSize()
+		{
+			return bulletinSize;
+		}
+
+		public String getHistory()
+		{
+			return history;
+		}
+
+		public boolean isHQAuthorizedToRead(String hqAccountId)
+		{
+			return authorizedHqKeys.contains(hqAccountId);
+		}
+
+		public Vector getAuthorizedHqKeys()
+		{
+			return authorizedHqKeys;
+		}
+
+		public String toString()
+		{
+			String hqKeys = "";
+			for(int i = 0; i < authorizedHqKeys.size(); ++i)
+			{
+				if(i > 0)
+					hqKeys += " ";
+				hqKeys += authorizedHqKeys.get(i);
+			}
+
+			return getStatusCode(key) + FIELD_DELIMITER + key.getLocalId() + FIELD_DELIMITER +
+				mTime + FIELD_DELIMITER + fieldDataPacketId + FIELD_DELIMITER +
+				lastSavedTime + FIELD_DELIMITER + bulletinSize + FIELD_DELIMITER +
+				history + FIELD_DELIMITER + hqKeys;
+		}
+
+		private DatabaseKey key;
+		private long mTime;
+		private String fieldDataPacketId;
+		private long lastSavedTime;
+		private int bulletinSize;
+		private String history;
+		private Vector authorizedHqKeys;
+	}
+
+	private static final String FIELD_DELIMITER = "\t";
+	private static final String ADDED = "+";
+	private static final String REMOVED = "-";
+	private static final String COMPLETE = "*";
+	private static final String DRAFT = "D";
+	private static final String SEALED = "S";
+	private static final String INDEX_FILE_EXTENSION = ".idx";
+	private static final int MINIMUM_LINES_BEFORE_COMPACTING = 100;
+	public static final String SUMMARY_INDEX_DIRECTORY = "summaryIndex";
+
+	private ServerBulletinStore store;
+	private File indexDirectory;
+	private ConcurrentHashMap<String, AccountEntries> accounts;
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger misses = new AtomicInteger();
+}
@@ -0,0 +1,358 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import org.martus.common.MartusLogger;
+import org.martus.common.packet.UniversalId;
+import org.martus.util.UnicodeReader;
+import org.martus.util.UnicodeWriter;
+
+/*
+ * An append-only record of which bulletins the store has saved or deleted,
+ * in order. Every change gets the next sequence number, so a mirror that
+ * remembers the last sequence it saw only has to ask about what came after.
+ * 
+ * Only the latest change to each bulletin is kept in memory, because a
+ * caller never needs to know that a bulletin changed twice. A cursor is only
+ * meaningful to the journal that issued it; if the journal file is lost or
+ * can't be written, it starts over with a new id and callers are told to do
+ * a full listing.
+ */
+public class ChangeJournal
+{
+	public ChangeJournal(File journalFileToUse)
+	{
+		journalFile = journalFileToUse;
+		latestByUid = new HashMap<String, Change>();
+		changesBySequence = new TreeMap<Long, Change>();
+		load();
+	}
+
+	public synchronized void recordSaved(UniversalId uid)
+	{
+		recordChange(SAVED, uid);
+	}
+
+	public synchronized void recordDeleted(UniversalId uid)
+	{
+		recordChange(DELETED, uid);
+	}
+
+	public synchronized String getCursor()
+	{
+		return createCursor(journalId, sequence);
+	}
+
+	public synchronized long getSequence()
+	{
+		return sequence;
+	}
+
+	public synchronized int getChangeCount()
+	{
+		return latestByUid.size();
+	}
+
+	public synchronized Changes getChangesSince(String cursor, int maxChanges)
+	{
+		long since = getSequenceFromCursor(cursor);
+		if(since < 0)
+			return new Changes(getCursor(), false, true, new Vector<Change>());
+
+		Vector<Change> changes = new Vector<Change>();
+		long lastSequence = since;
+		Iterator<Change> iter = changesBySequence.tailMap(new Long(since + 1)).values().iterator();
+		while(iter.hasNext() && changes.size() < maxChanges)
+		{
+			Change change = iter.next();
+			changes.add(change);
+			lastSequence = change.getSequence();
+		}
+		boolean more = iter.hasNext();
+		if(!more)
+			lastSequence = sequence;
+		return new Changes(createCursor(journalId, lastSequence), more, false, changes);
+	}
+
+	long getSequenceFromCursor(String cursor)
+	{
+		if(cursor == null)
+			return -1;
+		int split = cursor.indexOf(CURSOR_DELIMITER);
+		if(split < 0)
+			return -1;
+		if(!cursor.substring(0, split).equals(journalId))
+			return -1;
+		try
+		{
+			long cursorSequence = Long.parseLong(cursor.substring(split + 1));
+			if(cursorSequence < 0 || cursorSequence > sequence)
+				return -1;
+			return cursorSequence;
+		}
+		catch(NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private void recordChange(String type, UniversalId uid)
+	{
+		Change change = new Change(sequence + 1, type, uid);
+		try
+		{
+			UnicodeWriter writer = new UnicodeWriter(journalFile, UnicodeWriter.APPEND);
+			try
+			{
+				writer.writeln(change.toString());
+			}
+			finally
+			{
+				writer.close();
+			}
+			sequence = change.getSequence();
+			remember(change);
+			++lineCount;
+		}
+		catch(IOException e)
+		{
+			MartusLogger.logError("ChangeJournal: unable to append to " + journalFile.getName());
+			MartusLogger.logException(e);
+			sequence = change.getSequence();
+			remember(change);
+			startOver();
+		}
+	}
+
+	private void remember(Change change)
+	{
+		Change previous = latestByUid.put(change.getUidKey(), change);
+		if(previous != null)
+			changesBySequence.remove(new Long(previous.getSequence()));
+		changesBySequence.put(new Long(change.getSequence()), change);
+	}
+
+	private void load()
+	{
+		if(!journalFile.exists())
+		{
+			startOver();
+			return;
+		}
+
+		try
+		{
+			UnicodeReader reader = new UnicodeReader(journalFile);
+			try
+			{
+				journalId = reader.readLine();
+				if(journalId == null || journalId.indexOf(CURSOR_DELIMITER) >= 0)
+					throw new IOException("Missing journal id");
+				String line;
+				while( (line = reader.readLine()) != null)
+				{
+					if(line.length() == 0)
+						continue;
+					Change change = Change.createFromString(line);
+					if(change.getSequence() <= sequence)
+						throw new IOException("Sequence out of order: " + line);
+					sequence = change.getSequence();
+					remember(change);
+					++lineCount;
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch(Exception e)
+		{
+			MartusLogger.logError("ChangeJournal: unable to read " + journalFile.getName() + ", starting over");
+			MartusLogger.logException(e);
+			startOver();
+			return;
+		}
+
+		if(lineCount > COMPACT_MINIMUM_LINES && lineCount > 2 * latestByUid.size())
+			rewrite(journalId);
+	}
+
+	private void startOver()
+	{
+		String newJournalId = Long.toString(System.currentTimeMillis());
+		if(newJournalId.equals(journalId))
+			newJournalId = newJournalId + "a";
+		rewrite(newJournalId);
+	}
+
+	private void rewrite(String newJournalId)
+	{
+		journalId = newJournalId;
+		File tempFile = new File(journalFile.getPath() + ".tmp");
+		try
+		{
+			UnicodeWriter writer = new UnicodeWriter(tempFile);
+			try
+			{
+				writer.writeln(journalId);
+				for(Iterator<Change> iter = changesBySequence.values().iterator(); iter.hasNext();)
+					writer.writeln(iter.next().toString());
+			}
+			finally
+			{
+				writer.close();
+			}
+			journalFile.delete();
+			if(!tempFile.renameTo(journalFile))
+				throw new IOException("Unable to rename " + tempFile.getName());
+			lineCount = changesBySequence.size();
+		}
+		catch(IOException e)
+		{
+			MartusLogger.logError("ChangeJournal: unable to rewrite " + journalFile.getName());
+			MartusLogger.logException(e);
+			tempFile.delete();
+		}
+	}
+
+	static String createCursor(String journalId, long sequence)
+	{
+		return journalId + CURSOR_DELIMITER + sequence;
+	}
+
+	public static class Changes
+	{
+		Changes(String cursorToUse, boolean moreToUse, boolean fullListingRequiredToUse, Vector<Change> changesToUse)
+		{
+			cursor = cursorToUse;
+			more = moreToUse;
+			fullListingRequired = fullListingRequiredToUse;
+			changes = changesToUse;
+		}
+
+		public String getCursor()
+		{
+			return cursor;
+		}
+
+		public boolean hasMore()
+		{
+			return more;
+		}
+
+		public boolean isFullListingRequired()
+		{
+			return fullListingRequired;
+		}
+
+		public Vector<Change> getChanges()
+		{
+			return changes;
+		}
+
+		private String cursor;
+		private boolean more;
+		private boolean fullListingRequired;
+		private Vector<Change> changes;
+	}
+
+	public static class Change
+	{
+		Change(long sequenceToUse, String typeToUse, UniversalId uidToUse)
+		{
+			sequence = sequenceToUse;
+			type = typeToUse;
+			uid = uidToUse;
+		}
+
+		static Change createFromString(String line) throws IOException
+		{
+			String[] fields = line.split(FIELD_DELIMITER);
+			if(fields.length != 4)
+				throw new IOException("Bad journal line: " + line);
+			if(!fields[1].equals(SAVED) && !fields[1].equals(DELETED))
+				throw new IOException("Bad change type: " + line);
+			long sequence = Long.parseLong(fields[0]);
+			UniversalId uid = UniversalId.createFromAccountAndLocalId(fields[2], fields[3]);
+			return new Change(sequence, fields[1], uid);
+		}
+
+		public long getSequence()
+		{
+			return sequence;
+		}
+
+		public UniversalId getUid()
+		{
+			return uid;
+		}
+
+		public boolean isDeleted()
+		{
+			return type.equals(DELETED);
+		}
+
+		String getUidKey()
+		{
+			return uid.toString();
+		}
+
+		public String toString()
+		{
+			return sequence + FIELD_DELIMITER + type + FIELD_DELIMITER + uid.getAccountId() + FIELD_DELIMITER + uid.getLocalId();
+		}
+
+		private long sequence;
+		private String type;
+		private UniversalId uid;
+	}
+
+	public static final String CHANGE_JOURNAL_FILENAME = "changeJournal.txt";
+
+	private static final String SAVED = "S";
+	private static final String DELETED = "D";
+	private static final String FIELD_DELIMITER = "\t";
+	private static final String CURSOR_DELIMITER = ":";
+	private static final int COMPACT_MINIMUM_LINES = 10000;
+
+	private File journalFile;
+	private String journalId;
+	private long sequence;
+	private int lineCount;
+	private Map<String, Change> latestByUid;
+	private TreeMap<Long, Change> changesBySequence;
+}
@@ -0,0 +1,107 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Decides how much of a bulletin zip one download request may return.
+ * Serving a chunk holds the raw bytes and their base64 text in memory at
+ * the same time, so the cap shrinks along with the heap that is left,
+ * and callers that asked for more simply get a shorter chunk and come
+ * back for the rest.
+ */
+public class ChunkSizePolicy
+{
+	public ChunkSizePolicy()
+	{
+		maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+	}
+
+	public void setMaxChunkSize(int newMaxChunkSize)
+	{
+		maxChunkSize = Math.max(newMaxChunkSize, MIN_CHUNK_SIZE);
+	}
+
+	public int getMaxChunkSize()
+	{
+		return maxChunkSize;
+	}
+
+	public int getCurrentCap()
+	{
+		long memoryCap = getAvailableMemory() / MEMORY_PER_CHUNK_BYTE;
+		if(memoryCap >= maxChunkSize)
+			return maxChunkSize;
+		return (int)Math.max(memoryCap, MIN_CHUNK_SIZE);
+	}
+
+	public int capChunkSize(int requestedChunkSize)
+	{
+		int cap = getCurrentCap();
+		if(requestedChunkSize <= cap)
+			return requestedChunkSize;
+
+		if(cap < maxChunkSize)
+			cappedForMemory.incrementAndGet();
+		else
+			cappedForSize.incrementAndGet();
+		return cap;
+	}
+
+	public int getCappedForMemoryCount()
+	{
+		return cappedForMemory.get();
+	}
+
+	public int getCappedForSizeCount()
+	{
+		return cappedForSize.get();
+	}
+
+	public String getStatistics()
+	{
+		return "max=" + getMaxChunkSize() + " current=" + getCurrentCap() +
+				" cappedForSize=" + getCappedForSizeCount() + " cappedForMemory=" + getCappedForMemoryCount();
+	}
+
+	long getAvailableMemory()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return runtime.maxMemory() - used;
+	}
+
+	public static final int DEFAULT_MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+	public static final int MIN_CHUNK_SIZE = 16 * 1024;
+	private static final int MEMORY_PER_CHUNK_BYTE = 64;
+
+	private volatile int maxChunkSize;
+	private AtomicInteger cappedForMemory = new AtomicInteger();
+	private AtomicInteger cappedForSize = new AtomicInteger();
+}
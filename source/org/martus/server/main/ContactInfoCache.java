@@ -0,0 +1,142 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Contact info that has already had its signature verified and been
+ * encoded for the wire, so an amplifier sync that asks for thousands of
+ * unchanged accounts doesn't redo the RSA verification for each. An entry
+ * is only used while the contact file still has the length and timestamp
+ * it had when it was read, and the store drops it when new contact info
+ * is written.
+ */
+public class ContactInfoCache
+{
+	public ContactInfoCache()
+	{
+		maxEntries = DEFAULT_MAX_ENTRIES;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	public synchronized void setMaxEntries(int newMaxEntries)
+	{
+		maxEntries = newMaxEntries;
+		evictIfNecessary();
+	}
+
+	public Vector get(String accountId, File contactFile)
+	{
+		long lastModified = contactFile.lastModified();
+		long length = contactFile.length();
+		synchronized(this)
+		{
+			Entry entry = entries.get(accountId);
+			if(entry != null && entry.lastModified == lastModified && entry.length == length)
+			{
+				hits.incrementAndGet();
+				return new Vector(entry.encodedContactInfo);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public synchronized void put(String accountId, long lastModified, long length, Vector encodedContactInfo)
+	{
+		entries.put(accountId, new Entry(lastModified, length, new Vector(encodedContactInfo)));
+		evictIfNecessary();
+	}
+
+	public synchronized void invalidate(String accountId)
+	{
+		entries.remove(accountId);
+	}
+
+	public synchronized int getEntryCount()
+	{
+		return entries.size();
+	}
+
+	public int getHitCount()
+	{
+		return hits.get();
+	}
+
+	public int getMissCount()
+	{
+		return misses.get();
+	}
+
+	public int getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	public String getStatistics()
+	{
+		return "contacts=" + getEntryCount() + " hits=" + getHitCount() +
+				" misses=" + getMissCount() + " evictions=" + getEvictionCount();
+	}
+
+	private void evictIfNecessary()
+	{
+		while(entries.size() > maxEntries)
+		{
+			String eldest = entries.keySet().iterator().next();
+			entries.remove(eldest);
+			evictions.incrementAndGet();
+		}
+	}
+
+	static class Entry
+	{
+		Entry(long lastModifiedToUse, long lengthToUse, Vector encodedContactInfoToUse)
+		{
+			lastModified = lastModifiedToUse;
+			length = lengthToUse;
+			encodedContactInfo = encodedContactInfoToUse;
+		}
+
+		long lastModified;
+		long length;
+		Vector encodedContactInfo;
+	}
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private LinkedHashMap<String, Entry> entries;
+	private int maxEntries;
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger misses = new AtomicInteger();
+	private AtomicInteger evictions = new AtomicInteger();
+}
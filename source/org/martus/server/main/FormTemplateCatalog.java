@@ -0,0 +1,395 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.martus.common.MartusLogger;
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.fieldspec.CustomFieldTemplate;
+import org.martus.common.fieldspec.CustomFieldTemplate.FutureVersionException;
+import org.martus.util.StreamableBase64;
+
+/*
+ * What we know about each account's form templates, so listing them doesn't
+ * import and verify every template file and fetching one doesn't re-read
+ * and re-encode it. An account's folder is scanned the first time it is
+ * asked about, and again only if the folder's timestamp changes behind our
+ * back. Templates saved through the store are recorded as they are saved.
+ * The base64 payload is kept for templates below a size limit, and only
+ * while the file still has the length and timestamp it had when encoded.
+ */
+public class FormTemplateCatalog
+{
+	public FormTemplateCatalog(ServerBulletinStore storeToUse)
+	{
+		store = storeToUse;
+		accounts = new ConcurrentHashMap<String, AccountTemplates>();
+		maxPayloadBytes = DEFAULT_MAX_PAYLOAD_BYTES;
+	}
+
+	public void setMaxPayloadBytes(long newMaxPayloadBytes)
+	{
+		maxPayloadBytes = newMaxPayloadBytes;
+	}
+
+	public Vector getTitlesAndDescriptions(String accountId, MartusCrypto security) throws Exception
+	{
+		Vector titlesAndDescriptions = new Vector();
+		AccountTemplates templates = getTemplates(accountId, security);
+		synchronized(templates)
+		{
+			for(Entry entry : templates.entries.values())
+			{
+				if(!entry.isImportable())
+					continue;
+				Vector titleAndDescription = new Vector();
+				titleAndDescription.add(entry.title);
+				titleAndDescription.add(entry.description);
+				titlesAndDescriptions.add(titleAndDescription.toArray());
+			}
+		}
+		return titlesAndDescriptions;
+	}
+
+	public Vector<Entry> getEntries(String accountId, MartusCrypto security) throws Exception
+	{
+		AccountTemplates templates = getTemplates(accountId, security);
+		synchronized(templates)
+		{
+			return new Vector<Entry>(templates.entries.values());
+		}
+	}
+
+	public String getBase64(String accountId, String filename, MartusCrypto security) throws Exception
+	{
+		File file = store.getFormTemplateFileFromAccount(accountId, filename);
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		AccountTemplates templates = getTemplates(accountId, security);
+		Entry entry;
+		synchronized(templates)
+		{
+			entry = templates.entries.get(filename);
+		}
+		if(entry == null)
+			throw new FileNotFoundException(filename);
+
+		String cached = entry.getPayload(lastModified, length);
+		if(cached != null)
+		{
+			payloadHits.incrementAndGet();
+			return cached;
+		}
+
+		payloadMisses.incrementAndGet();
+		String base64 = StreamableBase64.readAllAndEncodeBase64(file);
+		if(length <= MAX_PAYLOAD_BYTES_PER_TEMPLATE && file.lastModified() == lastModified && file.length() == length)
+			entry.setPayload(lastModified, length, base64);
+		return base64;
+	}
+
+	public void templateSaved(String accountId, File templateFile, String title, String description)
+	{
+		AccountTemplates templates = accounts.get(accountId);
+		if(templates == null)
+			return;
+		synchronized(templates)
+		{
+			templates.put(new Entry(templateFile, title, description));
+			templates.folderLastModified = templateFile.getParentFile().lastModified();
+		}
+	}
+
+	public void templateTouched(String accountId, File templateFile)
+	{
+		AccountTemplates templates = accounts.get(accountId);
+		if(templates == null)
+			return;
+		synchronized(templates)
+		{
+			Entry entry = templates.entries.get(templateFile.getName());
+			if(entry == null)
+				return;
+			templates.put(new Entry(templateFile, entry.title, entry.description));
+		}
+	}
+
+	public void invalidate(String accountId)
+	{
+		AccountTemplates templates = accounts.remove(accountId);
+		if(templates != null)
+			templates.clear();
+	}
+
+	public void clear()
+	{
+		for(Iterator<String> iter = accounts.keySet().iterator(); iter.hasNext(); )
+			invalidate(iter.next());
+	}
+
+	public int getAccountCount()
+	{
+		return accounts.size();
+	}
+
+	public long getPayloadBytes()
+	{
+		return payloadBytes.get();
+	}
+
+	public int getScanCount()
+	{
+		return scans.get();
+	}
+
+	public int getPayloadHitCount()
+	{
+		return payloadHits.get();
+	}
+
+	public int getPayloadMissCount()
+	{
+		return payloadMisses.get();
+	}
+
+	public String getStatistics()
+	{
+		return "accounts=" + getAccountCount() + " scans=" + getScanCount() +
+				" payloadBytes=" + getPayloadBytes() + " payloadHits=" + getPayloadHitCount() +
+				" payloadMisses=" + getPayloadMissCount();
+	}
+
+	private AccountTemplates getTemplates(String accountId, MartusCrypto security) throws Exception
+	{
+		AccountTemplates templates = accounts.get(accountId);
+		if(templates == null)
+		{
+			AccountTemplates newTemplates = new AccountTemplates();
+			templates = accounts.putIfAbsent(accountId, newTemplates);
+			if(templates == null)
+				templates = newTemplates;
+		}
+
+		synchronized(templates)
+		{
+			long folderLastModified = getFolderLastModified(accountId);
+			if(!templates.isLoaded() || templates.folderLastModified != folderLastModified)
+				scan(accountId, templates, folderLastModified, security);
+		}
+		return templates;
+	}
+
+	private void scan(String accountId, AccountTemplates templates, long folderLastModified, MartusCrypto security) throws Exception
+	{
+		scans.incrementAndGet();
+		TreeMap<String, Entry> previous = templates.entries;
+		TreeMap<String, Entry> current = new TreeMap<String, Entry>();
+		Vector templateFiles = store.getListOfFormTemplatesForAccount(accountId);
+		for(int i = 0; i < templateFiles.size(); ++i)
+		{
+			File templateFile = (File)templateFiles.get(i);
+			Entry old = previous.get(templateFile.getName());
+			if(old != null && old.matches(templateFile))
+			{
+				current.put(old.getFilename(), old);
+				continue;
+			}
+			Entry entry = importEntry(templateFile, security);
+			current.put(entry.getFilename(), entry);
+		}
+		for(Entry old : previous.values())
+		{
+			if(current.get(old.getFilename()) != old)
+				old.discardPayload();
+		}
+		templates.entries = current;
+		templates.folderLastModified = folderLastModified;
+	}
+
+	private Entry importEntry(File templateFile, MartusCrypto security) throws Exception
+	{
+		try
+		{
+			CustomFieldTemplate template = new CustomFieldTemplate();
+			template.importTemplate(templateFile, security);
+			return new Entry(templateFile, template.getTitle(), template.getDescription());
+		}
+		catch (FutureVersionException eLogExceptionButContinueWithRemainingValidForms)
+		{
+			MartusLogger.logException(eLogExceptionButContinueWithRemainingValidForms);
+			return new Entry(templateFile, null, null);
+		}
+	}
+
+	private long getFolderLastModified(String accountId)
+	{
+		try
+		{
+			return store.getAbsoluteFormTemplatesFolderForAccount(accountId).lastModified();
+		}
+		catch(IOException e)
+		{
+			return 0;
+		}
+	}
+
+	class AccountTemplates
+	{
+		AccountTemplates()
+		{
+			entries = new TreeMap<String, Entry>();
+			folderLastModified = NOT_LOADED;
+		}
+
+		boolean isLoaded()
+		{
+			return folderLastModified != NOT_LOADED;
+		}
+
+		void put(Entry entry)
+		{
+			Entry old = entries.put(entry.getFilename(), entry);
+			if(old != null)
+				old.discardPayload();
+		}
+
+		void clear()
+		{
+			for(Entry entry : entries.values())
+				entry.discardPayload();
+			entries = new TreeMap<String, Entry>();
+			folderLastModified = NOT_LOADED;
+		}
+
+		TreeMap<String, Entry> entries;
+		long folderLastModified;
+	}
+
+	public class Entry
+	{
+		Entry(File templateFile, String titleToUse, String descriptionToUse)
+		{
+			filename = templateFile.getName();
+			lastModified = templateFile.lastModified();
+			size = templateFile.length();
+			title = titleToUse;
+			description = descriptionToUse;
+		}
+
+		public String getFilename()
+		{
+			return filename;
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		public String getTitle()
+		{
+			return title;
+		}
+
+		public String getDescription()
+		{
+			return description;
+		}
+
+		boolean isImportable()
+		{
+			return title != null;
+		}
+
+		boolean matches(File templateFile)
+		{
+			return templateFile.lastModified() == lastModified && templateFile.length() == size;
+		}
+
+		synchronized String getPayload(long currentLastModified, long currentLength)
+		{
+			if(payload == null || payloadLastModified != currentLastModified || payloadLength != currentLength)
+				return null;
+			return payload;
+		}
+
+		synchronized void setPayload(long lastModifiedToUse, long lengthToUse, String base64)
+		{
+			if(payloadBytes.get() + base64.length() > maxPayloadBytes)
+				return;
+			discardPayload();
+			payload = base64;
+			payloadLastModified = lastModifiedToUse;
+			payloadLength = lengthToUse;
+			payloadBytes.addAndGet(payload.length());
+		}
+
+		synchronized void discardPayload()
+		{
+			if(payload != null)
+				payloadBytes.addAndGet(-payload.length());
+			payload = null;
+		}
+
+		private String filename;
+		private long lastModified;
+		private long size;
+		private String title;
+		private String description;
+		private String payload;
+		private long payloadLastModified;
+		private long payloadLength;
+	}
+
+	private static final long NOT_LOADED = Long.MIN_VALUE;
+	public static final long MAX_PAYLOAD_BYTES_PER_TEMPLATE = 1024 * 1024;
+	public static final long DEFAULT_MAX_PAYLOAD_BYTES = 64L * 1024 * 1024;
+
+	private ServerBulletinStore store;
+	private ConcurrentHashMap<String, AccountTemplates> accounts;
+	private volatile long maxPayloadBytes;
+	private AtomicLong payloadBytes = new AtomicLong();
+	private AtomicInteger scans = new AtomicInteger();
+	private AtomicInteger payloadHits = new AtomicInteger();
+	private AtomicInteger payloadMisses = new AtomicInteger();
+}
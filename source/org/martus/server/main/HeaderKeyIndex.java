@@ -0,0 +1,174 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.martus.common.database.Database;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.ReadableDatabase;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.common.packet.UniversalId;
+
+/*
+ * Remembers which bulletin headers exist, as sealed and/or draft, so the
+ * common "is there a sealed header for this bulletin" question is a hash
+ * lookup instead of a trip to the filesystem. A sealed header is never
+ * changed or removed except through the store, which tells us, so a
+ * sealed flag can be trusted. Anything else is checked against the
+ * database and the answer remembered.
+ */
+public class HeaderKeyIndex
+{
+	public HeaderKeyIndex(ServerBulletinStore storeToUse)
+	{
+		store = storeToUse;
+		accounts = new ConcurrentHashMap<String, ConcurrentHashMap<String, Byte>>();
+	}
+
+	public DatabaseKey findHeaderKey(UniversalId uid)
+	{
+		int flags = getFlags(uid);
+		if((flags & SEALED) == 0)
+			flags = refresh(uid);
+		else
+			hits.incrementAndGet();
+
+		if((flags & SEALED) != 0)
+			return DatabaseKey.createSealedKey(uid);
+		if((flags & DRAFT) != 0)
+			return DatabaseKey.createDraftKey(uid);
+		return null;
+	}
+
+	public boolean doesSealedHeaderExist(UniversalId uid)
+	{
+		int flags = getFlags(uid);
+		if((flags & SEALED) != 0)
+		{
+			hits.incrementAndGet();
+			return true;
+		}
+		return (refresh(uid) & SEALED) != 0;
+	}
+
+	public int refresh(UniversalId uid)
+	{
+		lookups.incrementAndGet();
+		ReadableDatabase db = store.getDatabase();
+		int flags = 0;
+		if(db.doesRecordExist(DatabaseKey.createSealedKey(uid)))
+			flags |= SEALED;
+		if(db.doesRecordExist(DatabaseKey.createDraftKey(uid)))
+			flags |= DRAFT;
+		setFlags(uid, flags);
+		return flags;
+	}
+
+	public void loadAccount(String accountId)
+	{
+		class Loader implements Database.PacketVisitor
+		{
+			public void visit(DatabaseKey key)
+			{
+				if(!BulletinHeaderPacket.isValidLocalId(key.getLocalId()))
+					return;
+				UniversalId uid = key.getUniversalId();
+				int flag = key.isDraft() ? DRAFT : SEALED;
+				setFlags(uid, getFlags(uid) | flag);
+			}
+		}
+
+		store.visitAllBulletinsForAccount(new Loader(), accountId);
+	}
+
+	public void clear()
+	{
+		accounts.clear();
+	}
+
+	public int getHeaderCount()
+	{
+		int count = 0;
+		for(ConcurrentHashMap<String, Byte> localIds : accounts.values())
+			count += localIds.size();
+		return count;
+	}
+
+	public int getHitCount()
+	{
+		return hits.get();
+	}
+
+	public int getDatabaseLookupCount()
+	{
+		return lookups.get();
+	}
+
+	private int getFlags(UniversalId uid)
+	{
+		ConcurrentHashMap<String, Byte> localIds = accounts.get(uid.getAccountId());
+		if(localIds == null)
+			return 0;
+		Byte flags = localIds.get(uid.getLocalId());
+		if(flags == null)
+			return 0;
+		return flags.byteValue();
+	}
+
+	private void setFlags(UniversalId uid, int flags)
+	{
+		ConcurrentHashMap<String, Byte> localIds = getLocalIds(uid.getAccountId());
+		if(flags == 0)
+			localIds.remove(uid.getLocalId());
+		else
+			localIds.put(uid.getLocalId(), Byte.valueOf((byte)flags));
+	}
+
+	private ConcurrentHashMap<String, Byte> getLocalIds(String accountId)
+	{
+		ConcurrentHashMap<String, Byte> localIds = accounts.get(accountId);
+		if(localIds != null)
+			return localIds;
+
+		ConcurrentHashMap<String, Byte> newLocalIds = new ConcurrentHashMap<String, Byte>();
+		localIds = accounts.putIfAbsent(accountId, newLocalIds);
+		if(localIds != null)
+			return localIds;
+		return newLocalIds;
+	}
+
+	private static final int SEALED = 1;
+	private static final int DRAFT = 2;
+
+	private ServerBulletinStore store;
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, Byte>> accounts;
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger lookups = new AtomicInteger();
+}
@@ -0,0 +1,198 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.martus.common.bulletinstore.BulletinStore;
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.crypto.MartusCrypto.CryptoException;
+import org.martus.common.crypto.MartusCrypto.DecryptionException;
+import org.martus.common.database.Database.RecordHiddenException;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.ReadableDatabase;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.common.packet.Packet.InvalidPacketException;
+import org.martus.common.packet.Packet.SignatureVerificationException;
+import org.martus.common.packet.Packet.WrongPacketTypeException;
+
+/*
+ * Header packets that have already been loaded and had their signatures
+ * verified, so HQ authorization checks, the summary index and the
+ * amplifier don't pay for RSA verification every time they look at the
+ * same bulletin. Each entry remembers the record mTime it was loaded at
+ * and is reloaded if the record has changed since. The packets are
+ * shared between threads, so callers must treat them as read-only.
+ */
+public class HeaderPacketCache
+{
+	public HeaderPacketCache(ServerBulletinStore storeToUse)
+	{
+		store = storeToUse;
+		maxEntries = DEFAULT_MAX_ENTRIES;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	public synchronized void setMaxEntries(int newMaxEntries)
+	{
+		maxEntries = newMaxEntries;
+		evictIfNecessary();
+	}
+
+	public synchronized int getMaxEntries()
+	{
+		return maxEntries;
+	}
+
+	public BulletinHeaderPacket load(ReadableDatabase db, DatabaseKey headerKey, MartusCrypto verifier) throws
+			IOException,
+			CryptoException,
+			InvalidPacketException,
+			WrongPacketTypeException,
+			SignatureVerificationException,
+			DecryptionException
+	{
+		if(db != store.getDatabase())
+			return BulletinStore.loadBulletinHeaderPacket(db, headerKey, verifier);
+
+		String mapKey = getMapKey(headerKey);
+		long mTime;
+		try
+		{
+			mTime = db.getmTime(headerKey);
+		}
+		catch(RecordHiddenException e)
+		{
+			remove(headerKey);
+			return BulletinStore.loadBulletinHeaderPacket(db, headerKey, verifier);
+		}
+
+		synchronized(this)
+		{
+			Entry entry = entries.get(mapKey);
+			if(entry != null && entry.mTime == mTime)
+			{
+				hits.incrementAndGet();
+				return entry.bhp;
+			}
+		}
+
+		misses.incrementAndGet();
+		BulletinHeaderPacket bhp = BulletinStore.loadBulletinHeaderPacket(db, headerKey, verifier);
+		synchronized(this)
+		{
+			entries.put(mapKey, new Entry(mTime, bhp));
+			evictIfNecessary();
+		}
+		return bhp;
+	}
+
+	public synchronized void remove(DatabaseKey headerKey)
+	{
+		entries.remove(getMapKey(headerKey));
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+
+	public synchronized int getEntryCount()
+	{
+		return entries.size();
+	}
+
+	public int getHitCount()
+	{
+		return hits.get();
+	}
+
+	public int getMissCount()
+	{
+		return misses.get();
+	}
+
+	public int getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	public int getHitPercent()
+	{
+		int hitCount = getHitCount();
+		int total = hitCount + getMissCount();
+		if(total == 0)
+			return 0;
+		return (int)(100L * hitCount / total);
+	}
+
+	public String getStatistics()
+	{
+		return "headers=" + getEntryCount() + " hits=" + getHitCount() +
+				" misses=" + getMissCount() + " evictions=" + getEvictionCount() +
+				" hitPercent=" + getHitPercent();
+	}
+
+	private void evictIfNecessary()
+	{
+		while(entries.size() > maxEntries)
+		{
+			String eldest = entries.keySet().iterator().next();
+			entries.remove(eldest);
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static String getMapKey(DatabaseKey key)
+	{
+		return BulletinSummaryIndex.Entry.getStatusCode(key) + key.getUniversalId().toString();
+	}
+
+	static class Entry
+	{
+		Entry(long mTimeToUse, BulletinHeaderPacket bhpToUse)
+		{
+			mTime = mTimeToUse;
+			bhp = bhpToUse;
+		}
+
+		long mTime;
+		BulletinHeaderPacket bhp;
+	}
+
+	public static final int DEFAULT_MAX_ENTRIES = 20000;
+
+	private ServerBulletinStore store;
+	private LinkedHashMap<String, Entry> entries;
+	private int maxEntries;
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger misses = new AtomicInteger();
+	private AtomicInteger evictions = new AtomicInteger();
+}
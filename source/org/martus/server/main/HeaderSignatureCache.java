@@ -0,0 +1,373 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.martus.common.MartusLogger;
+import org.martus.common.MartusUtilities;
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.FileDatabase;
+import org.martus.common.database.ReadableDatabase;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.util.StreamableBase64;
+import org.martus.util.inputstreamwithseek.InputStreamWithSeek;
+
+/*
+ * The verified signature of each header packet, so answering a mirror's
+ * listing doesn't mean an RSA verification for every bulletin of the
+ * account each time any mirror asks. An entry is only used while the
+ * record still has the mTime and size it had when it was verified.
+ * 
+ * Entries are added as bulletins are imported and whenever a header has
+ * to be verified anyway, and the whole cache is saved to a file signed
+ * with the server's key so a restart doesn't mean verifying everything
+ * again. A file that is damaged, unsigned or from another version is
+ * ignored.
+ */
+public class HeaderSignatureCache
+{
+	public HeaderSignatureCache(ServerBulletinStore storeToUse)
+	{
+		store = storeToUse;
+		entriesByAccount = new ConcurrentHashMap<String, Map<String, Entry>>();
+	}
+
+	public void setCacheFile(File cacheFileToUse)
+	{
+		cacheFile = cacheFileToUse;
+		entriesByAccount.clear();
+		if(cacheFile != null)
+			load();
+	}
+
+	public String getSignature(ReadableDatabase db, DatabaseKey headerKey, MartusCrypto verifier) throws Exception
+	{
+		if(db != store.getDatabase())
+			return StreamableBase64.encode(verifySignature(db, headerKey, verifier));
+
+		long mTime = db.getmTime(headerKey);
+		long size = getRecordSize(db, headerKey);
+		Entry entry = getAccountEntries(headerKey.getAccountId()).get(getMapKey(headerKey));
+		if(entry != null && entry.matches(mTime, size))
+		{
+			hits.incrementAndGet();
+			return StreamableBase64.encode(entry.signature);
+		}
+
+		misses.incrementAndGet();
+		byte[] sigBytes = verifySignature(db, headerKey, verifier);
+		put(headerKey, new Entry(mTime, size, sigBytes));
+		return StreamableBase64.encode(sigBytes);
+	}
+
+	public void recordImported(DatabaseKey headerKey)
+	{
+		try
+		{
+			remove(headerKey);
+			getSignature(store.getDatabase(), headerKey, store.getSignatureVerifier());
+		}
+		catch(Exception e)
+		{
+			MartusLogger.logError("HeaderSignatureCache: unable to verify " + headerKey.getLocalId());
+			MartusLogger.logException(e);
+		}
+	}
+
+	public void remove(DatabaseKey headerKey)
+	{
+		Map<String, Entry> entries = entriesByAccount.get(headerKey.getAccountId());
+		if(entries != null && entries.remove(getMapKey(headerKey)) != null)
+			changed = true;
+	}
+
+	public synchronized boolean save()
+	{
+		if(cacheFile == null || !changed)
+			return false;
+
+		changed = false;
+		try
+		{
+			write(store.getSignatureGenerator());
+			return true;
+		}
+		catch(Exception e)
+		{
+			changed = true;
+			MartusLogger.logError("HeaderSignatureCache: unable to save " + cacheFile);
+			MartusLogger.logException(e);
+			return false;
+		}
+	}
+
+	public int getEntryCount()
+	{
+		int count = 0;
+		for(Map<String, Entry> entries : entriesByAccount.values())
+			count += entries.size();
+		return count;
+	}
+
+	public int getHitCount()
+	{
+		return hits.get();
+	}
+
+	public int getMissCount()
+	{
+		return misses.get();
+	}
+
+	public String getStatistics()
+	{
+		return "signatures=" + getEntryCount() + " hits=" + getHitCount() + " misses=" + getMissCount();
+	}
+
+	private void put(DatabaseKey headerKey, Entry entry)
+	{
+		getAccountEntries(headerKey.getAccountId()).put(getMapKey(headerKey), entry);
+		changed = true;
+	}
+
+	private Map<String, Entry> getAccountEntries(String accountId)
+	{
+		Map<String, Entry> entries = entriesByAccount.get(accountId);
+		if(entries != null)
+			return entries;
+
+		Map<String, Entry> newEntries = new ConcurrentHashMap<String, Entry>();
+		entries = entriesByAccount.putIfAbsent(accountId, newEntries);
+		if(entries != null)
+			return entries;
+		return newEntries;
+	}
+
+	private static byte[] verifySignature(ReadableDatabase db, DatabaseKey headerKey, MartusCrypto verifier) throws Exception
+	{
+		InputStreamWithSeek in = db.openInputStream(headerKey, null);
+		try
+		{
+			return BulletinHeaderPacket.verifyPacketSignature(in, verifier);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static long getRecordSize(ReadableDatabase db, DatabaseKey key)
+	{
+		if(!(db instanceof FileDatabase))
+			return UNKNOWN_SIZE;
+		try
+		{
+			return ((FileDatabase)db).getFileForRecord(key).length();
+		}
+		catch(Exception e)
+		{
+			return UNKNOWN_SIZE;
+		}
+	}
+
+	private static String getMapKey(DatabaseKey key)
+	{
+		return BulletinSummaryIndex.Entry.getStatusCode(key) + key.getLocalId();
+	}
+
+	private void write(MartusCrypto signer) throws Exception
+	{
+		File tempFile = new File(cacheFile.getPath() + TEMP_FILE_SUFFIX);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entriesByAccount.size());
+			Iterator<String> accounts = entriesByAccount.keySet().iterator();
+			while(accounts.hasNext())
+			{
+				String accountId = accounts.next();
+				Map<String, Entry> entries = new HashMap<String, Entry>(entriesByAccount.get(accountId));
+				writeBytes(out, accountId.getBytes(CHARSET));
+				out.writeInt(entries.size());
+				Iterator<String> keys = entries.keySet().iterator();
+				while(keys.hasNext())
+				{
+					String mapKey = keys.next();
+					Entry entry = entries.get(mapKey);
+					writeBytes(out, mapKey.getBytes(CHARSET));
+					out.writeLong(entry.mTime);
+					out.writeLong(entry.size);
+					writeBytes(out, entry.signature);
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		File tempSignature = MartusUtilities.createSignatureFileFromFile(tempFile, signer);
+		File signature = MartusUtilities.getSignatureFileFromFile(cacheFile);
+		MartusUtilities.deleteInterimFileAndSignature(cacheFile);
+		if(!tempFile.renameTo(cacheFile) || !tempSignature.renameTo(signature))
+		{
+			MartusUtilities.deleteInterimFileAndSignature(tempFile);
+			MartusUtilities.deleteInterimFileAndSignature(cacheFile);
+			throw new IOException("Unable to replace " + cacheFile);
+		}
+	}
+
+	private void load()
+	{
+		if(!cacheFile.exists())
+			return;
+
+		try
+		{
+			MartusCrypto verifier = store.getSignatureVerifier();
+			File signature = MartusUtilities.getSignatureFileFromFile(cacheFile);
+			MartusUtilities.verifyFileAndSignature(cacheFile, signature, verifier, verifier.getPublicKeyString());
+
+			FileInputStream in = new FileInputStream(cacheFile);
+			try
+			{
+				FileChannel channel = in.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				read(buffer);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(Exception e)
+		{
+			MartusLogger.logError("Ignoring header signature cache: " + cacheFile);
+			MartusLogger.logException(e);
+			entriesByAccount.clear();
+		}
+	}
+
+	private void read(MappedByteBuffer buffer) throws IOException
+	{
+		if(buffer.getInt() != MAGIC)
+			throw new IOException("Not a header signature cache");
+		int version = buffer.getInt();
+		if(version != VERSION)
+			throw new IOException("Unknown header signature cache version " + version);
+
+		int accountCount = readCount(buffer);
+		for(int i = 0; i < accountCount; ++i)
+		{
+			Map<String, Entry> entries = getAccountEntries(new String(readBytes(buffer), CHARSET));
+			int entryCount = readCount(buffer);
+			for(int j = 0; j < entryCount; ++j)
+			{
+				String mapKey = new String(readBytes(buffer), CHARSET);
+				long mTime = buffer.getLong();
+				long size = buffer.getLong();
+				entries.put(mapKey, new Entry(mTime, size, readBytes(buffer)));
+			}
+		}
+		if(buffer.hasRemaining())
+			throw new IOException("Unexpected data at end of header signature cache");
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+	{
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static int readCount(MappedByteBuffer buffer) throws IOException
+	{
+		int count = buffer.getInt();
+		if(count < 0)
+			throw new IOException("Damaged header signature cache");
+		return count;
+	}
+
+	private static byte[] readBytes(MappedByteBuffer buffer) throws IOException
+	{
+		int length = buffer.getInt();
+		if(length < 0 || length > buffer.remaining())
+			throw new IOException("Damaged header signature cache");
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	static class Entry
+	{
+		Entry(long mTimeToUse, long sizeToUse, byte[] signatureToUse)
+		{
+			mTime = mTimeToUse;
+			size = sizeToUse;
+			signature = signatureToUse;
+		}
+
+		boolean matches(long currentMTime, long currentSize)
+		{
+			return mTime == currentMTime && size == currentSize;
+		}
+
+		long mTime;
+		long size;
+		byte[] signature;
+	}
+
+	public static final String CACHE_FILENAME = "headerSignatures.cache";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final String CHARSET = "UTF-8";
+	private static final int MAGIC = 0x4d485343;
+	private static final int VERSION = 1;
+	private static final long UNKNOWN_SIZE = -1;
+
+	private ServerBulletinStore store;
+	private File cacheFile;
+	private ConcurrentHashMap<String, Map<String, Entry>> entriesByAccount;
+	private volatile boolean changed;
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger misses = new AtomicInteger();
+}
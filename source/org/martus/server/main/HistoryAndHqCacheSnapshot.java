@@ -0,0 +1,242 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+import org.martus.common.MartusLogger;
+import org.martus.common.MartusUtilities;
+import org.martus.common.crypto.MartusCrypto;
+
+/*
+ * What the cache warmer knew at a moment in time: which accounts each HQ
+ * is authorized by, which accounts had been warmed, and the change journal
+ * cursor at that moment. The file is written by the server and signed with
+ * its key, and one that is damaged, unsigned, from another version or from
+ * another server is ignored.
+ */
+public class HistoryAndHqCacheSnapshot
+{
+	public HistoryAndHqCacheSnapshot(String journalCursorToUse, long createdMillisToUse, boolean hadErrorsToUse)
+	{
+		journalCursor = journalCursorToUse;
+		createdMillis = createdMillisToUse;
+		hadErrors = hadErrorsToUse;
+		fieldOfficesByHq = new HashMap<String, Set<String>>();
+		accountIds = new Vector<String>();
+	}
+
+	public String getJournalCursor()
+	{
+		return journalCursor;
+	}
+
+	public long getCreatedMillis()
+	{
+		return createdMillis;
+	}
+
+	public boolean hadErrors()
+	{
+		return hadErrors;
+	}
+
+	public Map<String, Set<String>> getFieldOfficesByHq()
+	{
+		return fieldOfficesByHq;
+	}
+
+	public Vector<String> getAccountIds()
+	{
+		return accountIds;
+	}
+
+	public void addFieldOffices(String hqAccountId, Set<String> fieldOfficeAccountIds)
+	{
+		fieldOfficesByHq.put(hqAccountId, new HashSet<String>(fieldOfficeAccountIds));
+	}
+
+	public void addAccount(String accountId)
+	{
+		accountIds.add(accountId);
+	}
+
+	public void save(File snapshotFile, MartusCrypto signer) throws Exception
+	{
+		File tempFile = new File(snapshotFile.getPath() + TEMP_FILE_SUFFIX);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(createdMillis);
+			writeString(out, journalCursor);
+			out.writeBoolean(hadErrors);
+			out.writeInt(fieldOfficesByHq.size());
+			Iterator<String> hqs = fieldOfficesByHq.keySet().iterator();
+			while(hqs.hasNext())
+			{
+				String hqAccountId = hqs.next();
+				writeString(out, hqAccountId);
+				writeStrings(out, fieldOfficesByHq.get(hqAccountId));
+			}
+			writeStrings(out, accountIds);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		File tempSignature = MartusUtilities.createSignatureFileFromFile(tempFile, signer);
+		File signature = MartusUtilities.getSignatureFileFromFile(snapshotFile);
+		MartusUtilities.deleteInterimFileAndSignature(snapshotFile);
+		if(!tempFile.renameTo(snapshotFile) || !tempSignature.renameTo(signature))
+		{
+			MartusUtilities.deleteInterimFileAndSignature(tempFile);
+			MartusUtilities.deleteInterimFileAndSignature(snapshotFile);
+			throw new IOException("Unable to replace " + snapshotFile);
+		}
+	}
+
+	public static HistoryAndHqCacheSnapshot load(File snapshotFile, MartusCrypto verifier)
+	{
+		if(!snapshotFile.exists())
+			return null;
+
+		try
+		{
+			File signature = MartusUtilities.getSignatureFileFromFile(snapshotFile);
+			MartusUtilities.verifyFileAndSignature(snapshotFile, signature, verifier, verifier.getPublicKeyString());
+
+			FileInputStream in = new FileInputStream(snapshotFile);
+			try
+			{
+				FileChannel channel = in.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return read(buffer);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(Exception e)
+		{
+			MartusLogger.logError("Ignoring history and HQ cache snapshot: " + snapshotFile);
+			MartusLogger.logException(e);
+			return null;
+		}
+	}
+
+	static HistoryAndHqCacheSnapshot read(MappedByteBuffer buffer) throws IOException
+	{
+		if(buffer.getInt() != MAGIC)
+			throw new IOException("Not a cache snapshot");
+		int version = buffer.getInt();
+		if(version != VERSION)
+			throw new IOException("Unknown cache snapshot version " + version);
+
+		long createdMillis = buffer.getLong();
+		String journalCursor = readString(buffer);
+		boolean hadErrors = (buffer.get() != 0);
+		HistoryAndHqCacheSnapshot snapshot = new HistoryAndHqCacheSnapshot(journalCursor, createdMillis, hadErrors);
+		int hqCount = buffer.getInt();
+		for(int i = 0; i < hqCount; ++i)
+		{
+			String hqAccountId = readString(buffer);
+			snapshot.fieldOfficesByHq.put(hqAccountId, new HashSet<String>(readStrings(buffer)));
+		}
+		snapshot.accountIds.addAll(readStrings(buffer));
+		if(buffer.hasRemaining())
+			throw new IOException("Unexpected data at end of cache snapshot");
+		return snapshot;
+	}
+
+	private static void writeStrings(DataOutputStream out, Iterable<String> strings) throws IOException
+	{
+		Vector<String> list = new Vector<String>();
+		for(String string : strings)
+			list.add(string);
+		out.writeInt(list.size());
+		for(int i = 0; i < list.size(); ++i)
+			writeString(out, list.get(i));
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException
+	{
+		byte[] bytes = string.getBytes(CHARSET);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static Vector<String> readStrings(MappedByteBuffer buffer) throws IOException
+	{
+		int count = buffer.getInt();
+		if(count < 0)
+			throw new IOException("Damaged cache snapshot");
+		Vector<String> strings = new Vector<String>();
+		for(int i = 0; i < count; ++i)
+			strings.add(readString(buffer));
+		return strings;
+	}
+
+	private static String readString(MappedByteBuffer buffer) throws IOException
+	{
+		int length = buffer.getInt();
+		if(length < 0 || length > buffer.remaining())
+			throw new IOException("Damaged cache snapshot");
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	public static final String SNAPSHOT_FILENAME = "historyAndHqCache.snapshot";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final String CHARSET = "UTF-8";
+	private static final int MAGIC = 0x4d485143;
+	private static final int VERSION = 1;
+
+	private String journalCursor;
+	private long createdMillis;
+	private boolean hadErrors;
+	private Map<String, Set<String>> fieldOfficesByHq;
+	private Vector<String> accountIds;
+}
@@ -0,0 +1,454 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.martus.common.LoggerInterface;
+import org.martus.common.MartusLogger;
+import org.martus.common.database.Database;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.common.packet.UniversalId;
+
+/*
+ * Fills the history and HQ cache in the background so the server can take
+ * requests right after startup. Accounts are first warmed in parallel on
+ * a fork-join pool, which loads each bulletin's summary index entry and
+ * header key index, and notes which HQs it authorizes. Until the full cache is ready, field
+ * office lists are answered from those notes, and a request that needs
+ * accounts the pool hasn't reached yet warms them itself.
+ * 
+ * The notes are saved in a signed snapshot at shutdown and periodically.
+ * On startup the snapshot is restored and only the bulletins the change
+ * journal says were saved since then are loaded, instead of every
+ * bulletin on the server.
+ */
+public class HistoryAndHqCacheWarmer
+{
+	public HistoryAndHqCacheWarmer(ServerBulletinStore storeToUse)
+	{
+		store = storeToUse;
+		accounts = new ConcurrentHashMap<String, AccountWarmUp>();
+		fieldOfficesByHq = new ConcurrentHashMap<String, Set<String>>();
+		allAccountIds = new Vector<String>();
+	}
+
+	public void setSnapshotFile(File snapshotFileToUse)
+	{
+		snapshotFile = snapshotFileToUse;
+	}
+
+	public File getSnapshotFile()
+	{
+		return snapshotFile;
+	}
+
+	public synchronized void start(LoggerInterface loggerToUse, int parallelism)
+	{
+		if(warmerThread != null)
+			return;
+
+		logger = loggerToUse;
+		allAccountIds = listAllAccounts();
+		for(int i = 0; i < allAccountIds.size(); ++i)
+			getAccountWarmUp(allAccountIds.get(i));
+		restoreFromSnapshot();
+		pool = new ForkJoinPool(parallelism);
+		started = true;
+		warming = true;
+		warmerThread = new Thread(new Warmer(), "HistoryAndHqCacheWarmer");
+		warmerThread.setDaemon(true);
+		warmerThread.start();
+	}
+
+	public boolean isWarming()
+	{
+		return warming;
+	}
+
+	public boolean isReady()
+	{
+		return ready;
+	}
+
+	public boolean hadErrors()
+	{
+		return failedBulletins.get() > 0;
+	}
+
+	public boolean wasRestoredFromSnapshot()
+	{
+		return restoredFromSnapshot;
+	}
+
+	public synchronized boolean saveSnapshot()
+	{
+		if(snapshotFile == null || !started)
+			return false;
+		ChangeJournal journal = store.getChangeJournal();
+		if(journal == null)
+			return false;
+		if(getWarmedAccountCount() < getAccountCount())
+			return false;
+
+		HistoryAndHqCacheSnapshot snapshot = new HistoryAndHqCacheSnapshot(journal.getCursor(), System.currentTimeMillis(), hadErrors());
+		Iterator<String> hqs = fieldOfficesByHq.keySet().iterator();
+		while(hqs.hasNext())
+		{
+			String hqAccountId = hqs.next();
+			snapshot.addFieldOffices(hqAccountId, fieldOfficesByHq.get(hqAccountId));
+		}
+		Iterator<String> accountIds = accounts.keySet().iterator();
+		while(accountIds.hasNext())
+			snapshot.addAccount(accountIds.next());
+
+		try
+		{
+			snapshot.save(snapshotFile, store.getSignatureGenerator());
+			return true;
+		}
+		catch(Exception e)
+		{
+			MartusLogger.logError("Unable to save history and HQ cache snapshot");
+			MartusLogger.logException(e);
+			return false;
+		}
+	}
+
+	public int getAccountCount()
+	{
+		return allAccountIds.size();
+	}
+
+	public int getWarmedAccountCount()
+	{
+		return warmedAccounts.get();
+	}
+
+	public int getWarmedBulletinCount()
+	{
+		return warmedBulletins.get();
+	}
+
+	public int getFailedBulletinCount()
+	{
+		return failedBulletins.get();
+	}
+
+	public String getStatistics()
+	{
+		return "ready=" + isReady() + " accounts=" + getWarmedAccountCount() + "/" + getAccountCount() +
+				" bulletins=" + getWarmedBulletinCount() + " failed=" + getFailedBulletinCount();
+	}
+
+	public void warmAccount(String accountId)
+	{
+		AccountWarmUp warmUp = getAccountWarmUp(accountId);
+		if(warmUp.claim())
+		{
+			try
+			{
+				store.visitAllBulletinsForAccount(new BulletinWarmer(), accountId);
+				store.getHeaderKeyIndex().loadAccount(accountId);
+			}
+			finally
+			{
+				warmedAccounts.incrementAndGet();
+				warmUp.finished();
+			}
+		}
+		else
+		{
+			warmUp.waitUntilFinished();
+		}
+	}
+
+	public Vector getFieldOffices(String hqAccountId)
+	{
+		for(int i = 0; i < allAccountIds.size(); ++i)
+			warmAccount(allAccountIds.get(i));
+
+		Vector fieldOffices = new Vector();
+		Set<String> accountIds = fieldOfficesByHq.get(hqAccountId);
+		if(accountIds != null)
+			fieldOffices.addAll(accountIds);
+		return fieldOffices;
+	}
+
+	public void bulletinSaved(BulletinHeaderPacket bhp)
+	{
+		if(!started)
+			return;
+		for(int i = 0; i < bhp.getAuthorizedToReadKeys().size(); ++i)
+			addFieldOffice(bhp.getAuthorizedToReadKeys().get(i).getPublicKey(), bhp.getAccountId());
+	}
+
+	private void addFieldOffice(String hqAccountId, String fieldOfficeAccountId)
+	{
+		Set<String> accountIds = fieldOfficesByHq.get(hqAccountId);
+		if(accountIds == null)
+		{
+			Set<String> newAccountIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			accountIds = fieldOfficesByHq.putIfAbsent(hqAccountId, newAccountIds);
+			if(accountIds == null)
+				accountIds = newAccountIds;
+		}
+		accountIds.add(fieldOfficeAccountId);
+	}
+
+	private void restoreFromSnapshot()
+	{
+		ChangeJournal journal = store.getChangeJournal();
+		if(snapshotFile == null || journal == null)
+			return;
+		HistoryAndHqCacheSnapshot snapshot = HistoryAndHqCacheSnapshot.load(snapshotFile, store.getSignatureVerifier());
+		if(snapshot == null)
+			return;
+		if(snapshot.hadErrors())
+		{
+			logger.logNotice("Cache snapshot had errors, warming all accounts");
+			return;
+		}
+
+		Vector<UniversalId> savedSince = new Vector<UniversalId>();
+		String cursor = snapshot.getJournalCursor();
+		ChangeJournal.Changes changes;
+		do
+		{
+			changes = journal.getChangesSince(cursor, MAX_CHANGES_PER_REPLAY_BATCH);
+			if(changes.isFullListingRequired())
+			{
+				logger.logNotice("Cache snapshot is older than the change journal, warming all accounts");
+				return;
+			}
+			Vector<ChangeJournal.Change> batch = changes.getChanges();
+			for(int i = 0; i < batch.size(); ++i)
+			{
+				if(!batch.get(i).isDeleted())
+					savedSince.add(batch.get(i).getUid());
+			}
+			cursor = changes.getCursor();
+		}
+		while(changes.hasMore());
+
+		Iterator<String> hqs = snapshot.getFieldOfficesByHq().keySet().iterator();
+		while(hqs.hasNext())
+		{
+			String hqAccountId = hqs.next();
+			Iterator<String> fieldOffices = snapshot.getFieldOfficesByHq().get(hqAccountId).iterator();
+			while(fieldOffices.hasNext())
+				addFieldOffice(hqAccountId, fieldOffices.next());
+		}
+		Vector<String> restoredAccounts = snapshot.getAccountIds();
+		for(int i = 0; i < restoredAccounts.size(); ++i)
+		{
+			if(getAccountWarmUp(restoredAccounts.get(i)).claim())
+			{
+				warmedAccounts.incrementAndGet();
+				getAccountWarmUp(restoredAccounts.get(i)).finished();
+			}
+		}
+
+		BulletinWarmer replayer = new BulletinWarmer();
+		for(int i = 0; i < savedSince.size(); ++i)
+		{
+			UniversalId uid = savedSince.get(i);
+			DatabaseKey headerKey = DatabaseKey.createSealedKey(uid);
+			if(!store.getDatabase().doesRecordExist(headerKey))
+				headerKey.setDraft();
+			if(store.getDatabase().doesRecordExist(headerKey))
+				replayer.visit(headerKey);
+		}
+		restoredFromSnapshot = true;
+		logger.logNotice("Restored cache snapshot, replayed " + savedSince.size() + " changed bulletins");
+	}
+
+	private AccountWarmUp getAccountWarmUp(String accountId)
+	{
+		AccountWarmUp warmUp = accounts.get(accountId);
+		if(warmUp != null)
+			return warmUp;
+
+		AccountWarmUp newWarmUp = new AccountWarmUp();
+		AccountWarmUp existing = accounts.putIfAbsent(accountId, newWarmUp);
+		if(existing != null)
+			return existing;
+		return newWarmUp;
+	}
+
+	private Vector<String> listAllAccounts()
+	{
+		class Collector implements Database.AccountVisitor
+		{
+			public void visit(String accountId)
+			{
+				accounts.add(accountId);
+			}
+			
+			Vector<String> accounts = new Vector<String>();
+		}
+
+		Collector collector = new Collector();
+		store.getDatabase().visitAllAccounts(collector);
+		return collector.accounts;
+	}
+
+	class Warmer implements Runnable
+	{
+		public void run()
+		{
+			long startedAt = System.currentTimeMillis();
+			try
+			{
+				pool.invoke(new WarmAccounts(allAccountIds, 0, allAccountIds.size()));
+				logger.logNotice("Warmed accounts for HQ lookups: " + getStatistics());
+				store.fillHistoryAndHqCache();
+				ready = true;
+				warming = false;
+				long seconds = (System.currentTimeMillis() - startedAt) / 1000;
+				logger.logNotice("Finished initializing cache in " + seconds + " seconds");
+			}
+			catch(Exception e)
+			{
+				logger.logError("HistoryAndHqCacheWarmer", e);
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
+	}
+
+	class WarmAccounts extends RecursiveAction
+	{
+		WarmAccounts(List<String> accountIdsToUse, int startToUse, int endToUse)
+		{
+			accountIds = accountIdsToUse;
+			start = startToUse;
+			end = endToUse;
+		}
+
+		protected void compute()
+		{
+			if(end - start <= 1)
+			{
+				if(end > start)
+					warmAccount(accountIds.get(start));
+				return;
+			}
+
+			int middle = (start + end) / 2;
+			invokeAll(new WarmAccounts(accountIds, start, middle), new WarmAccounts(accountIds, middle, end));
+		}
+
+		private List<String> accountIds;
+		private int start;
+		private int end;
+	}
+
+	class BulletinWarmer implements Database.PacketVisitor
+	{
+		public void visit(DatabaseKey key)
+		{
+			if(!BulletinHeaderPacket.isValidLocalId(key.getLocalId()))
+				return;
+
+			try
+			{
+				BulletinSummaryIndex.Entry entry = store.getSummaryIndex().getEntry(key);
+				Vector hqKeys = entry.getAuthorizedHqKeys();
+				for(int i = 0; i < hqKeys.size(); ++i)
+					addFieldOffice((String)hqKeys.get(i), key.getAccountId());
+				warmedBulletins.incrementAndGet();
+			}
+			catch(Exception e)
+			{
+				failedBulletins.incrementAndGet();
+				MartusLogger.logException(e);
+			}
+		}
+	}
+
+	static class AccountWarmUp
+	{
+		boolean claim()
+		{
+			return claimed.compareAndSet(false, true);
+		}
+
+		void finished()
+		{
+			done.countDown();
+		}
+
+		void waitUntilFinished()
+		{
+			try
+			{
+				done.await();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private AtomicBoolean claimed = new AtomicBoolean();
+		private CountDownLatch done = new CountDownLatch(1);
+	}
+
+	private static final int MAX_CHANGES_PER_REPLAY_BATCH = 10000;
+
+	private ServerBulletinStore store;
+	private LoggerInterface logger;
+	private File snapshotFile;
+	private ConcurrentHashMap<String, AccountWarmUp> accounts;
+	private ConcurrentHashMap<String, Set<String>> fieldOfficesByHq;
+	private Vector<String> allAccountIds;
+	private ForkJoinPool pool;
+	private Thread warmerThread;
+	private volatile boolean started;
+	private volatile boolean warming;
+	private volatile boolean restoredFromSnapshot;
+	private volatile boolean ready;
+	private AtomicInteger warmedAccounts = new AtomicInteger();
+	private AtomicInteger warmedBulletins = new AtomicInteger();
+	private AtomicInteger failedBulletins = new AtomicInteger();
+}
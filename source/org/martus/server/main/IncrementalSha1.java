@@ -0,0 +1,237 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A SHA-1 digest whose running state can be copied, finished without
+ * disturbing it, and written out as a short string. That lets an upload
+ * keep its digest up to date chunk by chunk, across server restarts,
+ * instead of rereading the partial file whenever a client asks.
+ */
+public class IncrementalSha1
+{
+	public IncrementalSha1()
+	{
+		state = new int[] {0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0};
+		block = new byte[BLOCK_BYTES];
+		words = new int[80];
+	}
+
+	public IncrementalSha1 copy()
+	{
+		IncrementalSha1 other = new IncrementalSha1();
+		System.arraycopy(state, 0, other.state, 0, state.length);
+		System.arraycopy(block, 0, other.block, 0, block.length);
+		other.length = length;
+		return other;
+	}
+
+	public long getLength()
+	{
+		return length;
+	}
+
+	public void update(byte[] data, int offset, int count)
+	{
+		int end = offset + count;
+		while(offset < end)
+		{
+			int used = getBytesInBlock();
+			int toCopy = Math.min(BLOCK_BYTES - used, end - offset);
+			System.arraycopy(data, offset, block, used, toCopy);
+			offset += toCopy;
+			length += toCopy;
+			if(getBytesInBlock() == 0)
+				processBlock(block, 0);
+		}
+	}
+
+	public void update(ByteBuffer data)
+	{
+		ByteBuffer source = data.duplicate();
+		if(source.hasArray())
+		{
+			update(source.array(), source.arrayOffset() + source.position(), source.remaining());
+			return;
+		}
+
+		byte[] scratch = new byte[Math.min(source.remaining(), SCRATCH_BYTES)];
+		while(source.hasRemaining())
+		{
+			int count = Math.min(source.remaining(), scratch.length);
+			source.get(scratch, 0, count);
+			update(scratch, 0, count);
+		}
+	}
+
+	public byte[] getDigest()
+	{
+		IncrementalSha1 finisher = copy();
+		long bitLength = length * 8;
+		byte[] padding = new byte[BLOCK_BYTES * 2];
+		padding[0] = (byte)0x80;
+		int used = getBytesInBlock();
+		int padBytes = (used < BLOCK_BYTES - 8) ? (BLOCK_BYTES - 8 - used) : (2 * BLOCK_BYTES - 8 - used);
+		finisher.update(padding, 0, padBytes);
+		byte[] lengthBytes = new byte[8];
+		for(int i = 0; i < 8; ++i)
+			lengthBytes[i] = (byte)(bitLength >>> (56 - 8 * i));
+		finisher.update(lengthBytes, 0, lengthBytes.length);
+
+		byte[] digest = new byte[DIGEST_BYTES];
+		for(int i = 0; i < finisher.state.length; ++i)
+		{
+			digest[4 * i] = (byte)(finisher.state[i] >>> 24);
+			digest[4 * i + 1] = (byte)(finisher.state[i] >>> 16);
+			digest[4 * i + 2] = (byte)(finisher.state[i] >>> 8);
+			digest[4 * i + 3] = (byte)finisher.state[i];
+		}
+		return digest;
+	}
+
+	public String getState()
+	{
+		StringBuffer result = new StringBuffer();
+		result.append(length);
+		result.append(STATE_SEPARATOR);
+		for(int i = 0; i < state.length; ++i)
+			appendHex(result, state[i]);
+		result.append(STATE_SEPARATOR);
+		for(int i = 0; i < getBytesInBlock(); ++i)
+		{
+			result.append(HEX_DIGITS[(block[i] >> 4) & 0x0f]);
+			result.append(HEX_DIGITS[block[i] & 0x0f]);
+		}
+		return result.toString();
+	}
+
+	public static IncrementalSha1 createFromState(String savedState) throws InvalidStateException
+	{
+		try
+		{
+			String[] parts = savedState.trim().split(STATE_SEPARATOR, -1);
+			if(parts.length != 3 || parts[1].length() != 40)
+				throw new InvalidStateException();
+
+			IncrementalSha1 sha1 = new IncrementalSha1();
+			sha1.length = Long.parseLong(parts[0]);
+			if(sha1.length < 0 || parts[2].length() != 2 * sha1.getBytesInBlock())
+				throw new InvalidStateException();
+			for(int i = 0; i < sha1.state.length; ++i)
+				sha1.state[i] = (int)Long.parseLong(parts[1].substring(8 * i, 8 * i + 8), 16);
+			for(int i = 0; i < sha1.getBytesInBlock(); ++i)
+				sha1.block[i] = (byte)Integer.parseInt(parts[2].substring(2 * i, 2 * i + 2), 16);
+			return sha1;
+		}
+		catch(NumberFormatException e)
+		{
+			throw new InvalidStateException();
+		}
+	}
+
+	private int getBytesInBlock()
+	{
+		return (int)(length % BLOCK_BYTES);
+	}
+
+	private void processBlock(byte[] data, int offset)
+	{
+		for(int i = 0; i < 16; ++i)
+		{
+			int at = offset + 4 * i;
+			words[i] = ((data[at] & 0xff) << 24) | ((data[at + 1] & 0xff) << 16) |
+					((data[at + 2] & 0xff) << 8) | (data[at + 3] & 0xff);
+		}
+		for(int i = 16; i < 80; ++i)
+			words[i] = Integer.rotateLeft(words[i - 3] ^ words[i - 8] ^ words[i - 14] ^ words[i - 16], 1);
+
+		int a = state[0];
+		int b = state[1];
+		int c = state[2];
+		int d = state[3];
+		int e = state[4];
+		for(int i = 0; i < 80; ++i)
+		{
+			int f;
+			int k;
+			if(i < 20)
+			{
+				f = (b & c) | (~b & d);
+				k = 0x5A827999;
+			}
+			else if(i < 40)
+			{
+				f = b ^ c ^ d;
+				k = 0x6ED9EBA1;
+			}
+			else if(i < 60)
+			{
+				f = (b & c) | (b & d) | (c & d);
+				k = 0x8F1BBCDC;
+			}
+			else
+			{
+				f = b ^ c ^ d;
+				k = 0xCA62C1D6;
+			}
+			int temp = Integer.rotateLeft(a, 5) + f + e + k + words[i];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		state[0] += a;
+		state[1] += b;
+		state[2] += c;
+		state[3] += d;
+		state[4] += e;
+	}
+
+	private static void appendHex(StringBuffer result, int value)
+	{
+		for(int shift = 28; shift >= 0; shift -= 4)
+			result.append(HEX_DIGITS[(value >>> shift) & 0x0f]);
+	}
+
+	public static class InvalidStateException extends Exception
+	{
+	}
+
+	private static final int BLOCK_BYTES = 64;
+	private static final int DIGEST_BYTES = 20;
+	private static final int SCRATCH_BYTES = 8 * 1024;
+	private static final String STATE_SEPARATOR = ":";
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private int[] state;
+	private byte[] block;
+	private int[] words;
+	private long length;
+}
@@ -0,0 +1,203 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+
+import org.martus.common.MartusUtilities;
+import org.martus.common.MartusUtilities.FileTooLargeException;
+import org.martus.common.network.NetworkInterfaceConstants;
+import org.martus.util.StreamableBase64;
+
+/*
+ * Serves getBulletinChunk requests out of an interim zip. Each request
+ * thread keeps its read buffer and base64 output buffer between calls,
+ * so serving a chunk only allocates the String handed to xmlrpc. Only
+ * buffers up to a client-sized chunk are kept; larger chunks get their
+ * own buffers, so idle threads don't hold on to megabytes each.
+ * 
+ * Mirrors are also sent an export id, a digest of the zip's signature,
+ * so they can tell when the zip was exported again between two chunks.
+ */
+public class InterimFileChunkReader
+{
+	public static Vector createChunkResponse(File interimFile, int chunkOffset, int maxChunkSize) throws IOException, FileTooLargeException
+	{
+		Vector result = new Vector();
+		int totalLength = MartusUtilities.getCappedFileLength(interimFile);
+
+		int chunkSize = totalLength - chunkOffset;
+		if(chunkSize > maxChunkSize)
+			chunkSize = maxChunkSize;
+
+		if(chunkSize < 0 || chunkOffset < 0)
+		{
+			result.add(NetworkInterfaceConstants.INVALID_DATA);
+			return result;
+		}
+
+		String zipString = readChunkAsBase64(interimFile, chunkOffset, chunkSize);
+
+		int endPosition = chunkOffset + chunkSize;
+		if(endPosition >= totalLength)
+			result.add(NetworkInterfaceConstants.OK);
+		else
+			result.add(NetworkInterfaceConstants.CHUNK_OK);
+		result.add(new Integer(totalLength));
+		result.add(new Integer(chunkSize));
+		result.add(zipString);
+		return result;
+	}
+
+	public static String getExportId(File interimFile) throws IOException
+	{
+		File signatureFile = MartusUtilities.getSignatureFileFromFile(interimFile);
+		return StreamableBase64.encode(UploadSession.computeDigest(signatureFile).getDigest());
+	}
+
+	public static String readChunkAsBase64(File file, long offset, int length) throws IOException
+	{
+		ByteBuffer buffer = getReadBuffer(length);
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			long position = offset;
+			while(buffer.hasRemaining())
+			{
+				int bytesRead = channel.read(buffer, position);
+				if(bytesRead < 0)
+					throw new EOFException("Reached end of " + file.getName() + " at " + position);
+				position += bytesRead;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		char[] encoded = getEncodeBuffer(length);
+		int encodedLength = encodeBase64(buffer.array(), length, encoded);
+		return new String(encoded, 0, encodedLength);
+	}
+
+	static int encodeBase64(byte[] data, int length, char[] out)
+	{
+		int in = 0;
+		int o = 0;
+		while(length - in >= 3)
+		{
+			int bits = ((data[in] & 0xff) << 16) | ((data[in + 1] & 0xff) << 8) | (data[in + 2] & 0xff);
+			out[o++] = BASE64_CHARS[(bits >> 18) & 0x3f];
+			out[o++] = BASE64_CHARS[(bits >> 12) & 0x3f];
+			out[o++] = BASE64_CHARS[(bits >> 6) & 0x3f];
+			out[o++] = BASE64_CHARS[bits & 0x3f];
+			in += 3;
+		}
+
+		int remaining = length - in;
+		if(remaining == 1)
+		{
+			int bits = (data[in] & 0xff) << 16;
+			out[o++] = BASE64_CHARS[(bits >> 18) & 0x3f];
+			out[o++] = BASE64_CHARS[(bits >> 12) & 0x3f];
+			out[o++] = BASE64_PAD;
+			out[o++] = BASE64_PAD;
+		}
+		else if(remaining == 2)
+		{
+			int bits = ((data[in] & 0xff) << 16) | ((data[in + 1] & 0xff) << 8);
+			out[o++] = BASE64_CHARS[(bits >> 18) & 0x3f];
+			out[o++] = BASE64_CHARS[(bits >> 12) & 0x3f];
+			out[o++] = BASE64_CHARS[(bits >> 6) & 0x3f];
+			out[o++] = BASE64_PAD;
+		}
+		return o;
+	}
+
+	static int getEncodedLength(int length)
+	{
+		return ((length + 2) / 3) * 4;
+	}
+
+	static int getRetainedBufferBytes()
+	{
+		int bytes = 0;
+		ByteBuffer buffer = readBuffer.get();
+		if(buffer != null)
+			bytes += buffer.capacity();
+		char[] chars = encodeBuffer.get();
+		if(chars != null)
+			bytes += chars.length * 2;
+		return bytes;
+	}
+
+	private static ByteBuffer getReadBuffer(int length)
+	{
+		if(length > MAX_RETAINED_BUFFER_BYTES)
+			return ByteBuffer.allocate(length);
+
+		ByteBuffer buffer = readBuffer.get();
+		if(buffer == null || buffer.capacity() < length)
+		{
+			buffer = ByteBuffer.allocate(length);
+			readBuffer.set(buffer);
+		}
+		buffer.clear();
+		buffer.limit(length);
+		return buffer;
+	}
+
+	private static char[] getEncodeBuffer(int length)
+	{
+		int encodedLength = getEncodedLength(length);
+		if(length > MAX_RETAINED_BUFFER_BYTES)
+			return new char[encodedLength];
+
+		char[] buffer = encodeBuffer.get();
+		if(buffer == null || buffer.length < encodedLength)
+		{
+			buffer = new char[encodedLength];
+			encodeBuffer.set(buffer);
+		}
+		return buffer;
+	}
+
+	private static final int MAX_RETAINED_BUFFER_BYTES = NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE;
+	private static final char BASE64_PAD = '=';
+	private static final char[] BASE64_CHARS =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private static ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>();
+	private static ThreadLocal<char[]> encodeBuffer = new ThreadLocal<char[]>();
+}
@@ -26,21 +26,16 @@ Boston, MA 02111-1307, USA.
 
 package org.martus.server.main;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.TimerTask;
 import java.util.Vector;
 import java.util.zip.ZipFile;
@@ -60,7 +55,6 @@ import org.martus.common.MartusUtilities.PublicInformationInvalidException;
 import org.martus.common.Version;
 import org.martus.common.VersionBuildDate;
 import org.martus.common.bulletin.BulletinZipUtilities;
-import org.martus.common.bulletinstore.BulletinStore;
 import org.martus.common.crypto.MartusCrypto;
 import org.martus.common.crypto.MartusCrypto.AuthorizationFailedException;
 import org.martus.common.crypto.MartusCrypto.CreateDigestException;
@@ -101,7 +95,6 @@ import org.martus.util.DirectoryUtils;
 import org.martus.util.StreamableBase64;
 import org.martus.util.StreamableBase64.InvalidBase64Exception;
 import org.martus.util.UnicodeReader;
-import org.martus.util.inputstreamwithseek.FileInputStreamWithSeek;
 
 public class MartusServer implements NetworkInterfaceConstants, ServerCallbackInterface
 {
@@ -124,6 +117,9 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 				System.exit(ServerSideUtilities.EXIT_MISSING_DATA_DIRECTORY);
 			}
 			MartusServer server = new MartusServer(directory);
+			AsyncLogger asyncLogger = new AsyncLogger(server.getLogger());
+			asyncLogger.start();
+			server.setLogger(asyncLogger);
 
 			server.processCommandLine(args);
 			server.deleteRunningFile();
@@ -156,9 +152,9 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 			if(!server.deleteStartupFiles())
 				System.exit(ServerSideUtilities.EXIT_STARTUP_DIRECTORY_NOT_EMPTY);
 			
-			server.logNotice("Initializing cache (may take a while!)...");
-			server.store.fillHistoryAndHqCache();
-			server.logNotice("Finished initializing cache");
+			server.logNotice("Initializing cache in the background...");
+			server.store.startFillingHistoryAndHqCache(server.getLogger());
+			server.store.startBuildingMirroringHashTree(server.getLogger());
 
 			server.startBackgroundTimers();
 			
@@ -219,12 +215,20 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		
 		getTriggerDirectory().mkdirs();
 		getStartupConfigDirectory().mkdirs();
+		triggerWatcher = new AdminTriggerWatcher(getTriggerDirectory(), this);
 		serverForClients = createServerForClients();
 		serverForMirroring = new ServerForMirroring(this, this);
 		mirroringRetrieverManager = new MirrorPuller(this, this);
 		serverForAmplifiers = new ServerForAmplifiers(this, this);
 		amp = new MartusAmplifier(this);
-		failedUploadRequestsPerIp = new Hashtable();
+		uploadRequestLimiter = new UploadRequestLimiter(getMaxFailedUploadAllowedAttemptsPerIp(), UploadRequestLimiter.DEFAULT_MAX_TRACKED_IPS);
+		uploadSessions = new UploadSessionManager();
+		chunkSizePolicy = new ChunkSizePolicy();
+	}
+	
+	public ChunkSizePolicy getChunkSizePolicy()
+	{
+		return chunkSizePolicy;
 	}
 	
 	public ServerForClients createServerForClients()
@@ -261,14 +265,25 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		BackgroundServerTimerTask uploadRequestsMonitor = new UploadRequestsMonitor();
 		BackgroundServerTimerTask backgroundTimerTick = new BackgroundTimerTick();
 		BackgroundServerTimerTask syncAmplifierWithServersMonitor = new SyncAmplifierWithServersMonitor();
+		BackgroundServerTimerTask uploadSessionMonitor = new UploadSessionMonitor();
+		BackgroundServerTimerTask accountListReloadMonitor = new AccountListReloadMonitor();
+		BackgroundServerTimerTask cacheSnapshotWriter = new CacheSnapshotWriter();
 		
+		triggerWatcher.start();
 		Vector timers = new Vector();
+		uploadRequestLimiter.setDecayIntervalMillis(magicWordsGuessIntervalMillis);
 		MartusUtilities.startTimer(shutdownRequestMonitor, shutdownRequestIntervalMillis);
 		timers.add(shutdownRequestMonitor);
 		MartusUtilities.startTimer(uploadRequestsMonitor, magicWordsGuessIntervalMillis);
 		timers.add(uploadRequestsMonitor);
 		MartusUtilities.startTimerWithDelayInMillis(backgroundTimerTick, MartusServer.mainTickDelayMillis, MartusServer.mainTickIntervalMillis);
 		timers.add(backgroundTimerTick);
+		MartusUtilities.startTimer(uploadSessionMonitor, uploadSessionIntervalMillis);
+		timers.add(uploadSessionMonitor);
+		MartusUtilities.startTimer(accountListReloadMonitor, accountListReloadIntervalMillis);
+		timers.add(accountListReloadMonitor);
+		MartusUtilities.startTimerWithDelayInMillis(cacheSnapshotWriter, cacheSnapshotIntervalMillis, cacheSnapshotIntervalMillis);
+		timers.add(cacheSnapshotWriter);
 		if(isAmplifierEnabled())
 		{
 			MartusUtilities.startTimer(syncAmplifierWithServersMonitor, amplifierDataSynchIntervalMillis);
@@ -581,150 +596,126 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		
 		if(chunkSize > NetworkInterfaceConstants.MAXIMUM_CLIENT_MAX_CHUNK_SIZE)
 		{
-			interimZipFile.delete();
+			uploadSessions.discard(uid, interimZipFile);
 			logError("putBulletinChunk INVALID_DATA (> MAXIMUM_CLIENT_MAX_CHUNK_SIZE)");
 			return NetworkInterfaceConstants.INVALID_DATA;
 		}			
 		
 		if(chunkOffset + chunkSize > totalSize)
 		{
-			interimZipFile.delete();
+			uploadSessions.discard(uid, interimZipFile);
 			logError("putBulletinChunk INVALID_DATA (chunkOffset+chunkSize > totalSize)");
 			return NetworkInterfaceConstants.INVALID_DATA;
 		}			
 		
-		if(chunkOffset == 0)
+		UploadSession session = null;
+		try
 		{
 			//this log made no sence. log("putBulletinChunk: restarting at zero");
-			interimZipFile.delete();
+			session = uploadSessions.getSession(uploaderAccountId, uid, interimZipFile, chunkOffset == 0);
 		}
-		
-		double oldFileLength = interimZipFile.length();
-		if(oldFileLength != chunkOffset)
-		{
-			interimZipFile.delete();
-			logError("putBulletinChunk INVALID_DATA (existing interim length was " + oldFileLength + ")");
-			return NetworkInterfaceConstants.INVALID_DATA;
-		}
-		
-		if(oldFileLength + chunkSize > totalSize)
-		{
-			interimZipFile.delete();
-			logError("putBulletinChunk INVALID_DATA (> totalSize)");
-			return NetworkInterfaceConstants.INVALID_DATA;
-		}			
-		
-		StringReader reader = null;
-		FileOutputStream out = null;
-		try 
-		{
-			reader = new StringReader(data);
-			out = new FileOutputStream(interimZipFile.getPath(), true);
-			StreamableBase64.decode(reader, out);
-			out.close();
-			reader.close();
-		} 
-		catch(Exception e)
+		catch(IOException e)
 		{
-			try 
-			{
-				if(out != null)
-					out.close();
-			} 
-			catch (IOException nothingWeCanDo) 
-			{
-			}
-			if(reader != null)
-				reader.close();
-			interimZipFile.delete();
-			logError("putBulletinChunk INVALID_DATA ", e);
-			return NetworkInterfaceConstants.INVALID_DATA;
+			logError("putBulletinChunk Error opening interim file.", e);
+			return NetworkInterfaceConstants.SERVER_ERROR;
 		}
 		
 		String result = NetworkInterfaceConstants.INVALID_DATA;
-		double newFileLength = interimZipFile.length();
-		if(chunkSize != newFileLength - oldFileLength)
-		{
-			interimZipFile.delete();
-			logError("putBulletinChunk INVALID_DATA (chunkSize != actual dataSize)");
-			return NetworkInterfaceConstants.INVALID_DATA;
-		}			
-		
-		if(newFileLength < totalSize)
-		{
-			result = NetworkInterfaceConstants.CHUNK_OK;
-		}
-		else
+		synchronized(session)
 		{
-			//log("entering saveUploadedBulletinZipFile");
-			try
-			{
-				if(!isAuthorizedToUpload(uploaderAccountId, authorAccountId, interimZipFile))
-				{
-					result = NetworkInterfaceConstants.NOTYOURBULLETIN;
-					logError("putBulletinChunk NOTYOURBULLETIN isAuthorizedToUpload uploaderAccountId");
-				}
-				else
-				{
-					result = saveUploadedBulletinZipFile(authorAccountId, bulletinLocalId, interimZipFile);
-				}
-			}
-			catch (InvalidPacketException e1)
-			{
-				result = NetworkInterfaceConstants.INVALID_DATA;
-				logError("putBulletinChunk InvalidPacketException: ", e1);
-			}
-			catch (SignatureVerificationException e1)
+			long oldFileLength = session.getOffset();
+			if(oldFileLength != chunkOffset || !session.matchesFileOnDisk())
 			{
-				result = NetworkInterfaceConstants.SIG_ERROR;
-				logError("putBulletinChunk SignatureVerificationException: ", e1);
+				uploadSessions.discard(uid, interimZipFile);
+				logError("putBulletinChunk INVALID_DATA (existing interim length was " + oldFileLength + ")");
+				return NetworkInterfaceConstants.INVALID_DATA;
 			}
-			catch (DecryptionException e1)
-			{
-				result = NetworkInterfaceConstants.INVALID_DATA;
-				logError("putBulletinChunk DecryptionException: ", e1);
-			}
-			catch (IOException e1)
+			
+			long bytesWritten = 0;
+			try 
 			{
-				result = NetworkInterfaceConstants.SERVER_ERROR;
-				logError("putBulletinChunk IOException: ", e1);
-			}
-			catch (SealedPacketExistsException e1)
+				bytesWritten = session.appendBase64(data);
+			} 
+			catch(Exception e)
 			{
-				result = NetworkInterfaceConstants.DUPLICATE;
-				logError("putBulletinChunk SealedPacketExistsException: ", e1);
+				uploadSessions.discard(uid, interimZipFile);
+				logError("putBulletinChunk INVALID_DATA ", e);
+				return NetworkInterfaceConstants.INVALID_DATA;
 			}
-			catch (DuplicatePacketException e1)
+			
+			if(chunkSize != bytesWritten)
 			{
-				result = NetworkInterfaceConstants.DUPLICATE;
-				logError("putBulletinChunk DuplicatePacketException: ", e1);
-			}
-			catch (WrongAccountException e1)
+				uploadSessions.discard(uid, interimZipFile);
+				logError("putBulletinChunk INVALID_DATA (chunkSize != actual dataSize)");
+				return NetworkInterfaceConstants.INVALID_DATA;
+			}			
+			
+			if(session.getOffset() < totalSize)
 			{
-				result = NetworkInterfaceConstants.INVALID_DATA;
-				logError("putBulletinChunk WrongAccountException: ", e1);
+				result = NetworkInterfaceConstants.CHUNK_OK;
 			}
-			catch (Exception e1)
+			else
 			{
-				result = NetworkInterfaceConstants.INVALID_DATA;
-				logError("Unknown exception: ", e1);
+				uploadSessions.close(uid);
+				//log("entering saveUploadedBulletinZipFile");
+				try
+				{
+					result = saveCompletedUpload(uploaderAccountId, authorAccountId, interimZipFile);
+				}
+				catch (InvalidPacketException e1)
+				{
+					result = NetworkInterfaceConstants.INVALID_DATA;
+					logError("putBulletinChunk InvalidPacketException: ", e1);
+				}
+				catch (SignatureVerificationException e1)
+				{
+					result = NetworkInterfaceConstants.SIG_ERROR;
+					logError("putBulletinChunk SignatureVerificationException: ", e1);
+				}
+				catch (DecryptionException e1)
+				{
+					result = NetworkInterfaceConstants.INVALID_DATA;
+					logError("putBulletinChunk DecryptionException: ", e1);
+				}
+				catch (IOException e1)
+				{
+					result = NetworkInterfaceConstants.SERVER_ERROR;
+					logError("putBulletinChunk IOException: ", e1);
+				}
+				catch (WrongAccountException e1)
+				{
+					result = NetworkInterfaceConstants.INVALID_DATA;
+					logError("putBulletinChunk WrongAccountException: ", e1);
+				}
+				catch (Exception e1)
+				{
+					result = NetworkInterfaceConstants.INVALID_DATA;
+					logError("Unknown exception: ", e1);
+				}
+	
+				//log("returned from saveUploadedBulletinZipFile result =" + result);
+				if(keepUploadsForDownload && result.equals(NetworkInterfaceConstants.OK))
+					keepUploadAsOutgoingInterimFile(uid, interimZipFile);
+				UploadSession.deleteInterimFile(interimZipFile);
 			}
-
-			//log("returned from saveUploadedBulletinZipFile result =" + result);
-			interimZipFile.delete();
 		}
 		
 		logNotice("putBulletinChunk: Exit " + result);
 		return result;
 	}
 
-	private boolean isAuthorizedToUpload(String uploaderAccountId, String authorAccountId, File zipFile) throws Exception
+	private String saveCompletedUpload(String uploaderAccountId, String authorAccountId, File zipFile) throws Exception
 	{
 		ZipFile zip = new ZipFile(zipFile);
 		try
 		{
 			BulletinHeaderPacket header = MartusUtilities.extractHeaderPacket(authorAccountId, zip, getSecurity());
-			return header.isAuthorizedToUpload(uploaderAccountId);
+			if(!header.isAuthorizedToUpload(uploaderAccountId))
+			{
+				logError("putBulletinChunk NOTYOURBULLETIN isAuthorizedToUpload uploaderAccountId");
+				return NetworkInterfaceConstants.NOTYOURBULLETIN;
+			}
+			return saveUploadedBulletinZipFile(authorAccountId, zip, header);
 		}
 		finally
 		{
@@ -732,6 +723,30 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		}
 	}	
 	
+	private void keepUploadAsOutgoingInterimFile(UniversalId uid, File uploadedZipFile)
+	{
+		File signatureFile = null;
+		try
+		{
+			DatabaseKey headerKey = findHeaderKeyInDatabase(uid.getAccountId(), uid.getLocalId());
+			if(headerKey == null)
+				return;
+			signatureFile = MartusUtilities.createSignatureFileFromFile(uploadedZipFile, getSecurity());
+			OutgoingInterimFileCache cache = getStore().getOutgoingInterimFileCache();
+			if(cache.adopt(headerKey, uploadedZipFile, new InterimFileBuilder()))
+				logDebug("Kept upload as outgoing interim file: " + uid.getLocalId());
+		}
+		catch(Exception e)
+		{
+			logError("keepUploadAsOutgoingInterimFile: ", e);
+		}
+		finally
+		{
+			if(signatureFile != null)
+				signatureFile.delete();
+		}
+	}
+	
 	public Vector getBulletinChunk(String myAccountId, String authorAccountId, String bulletinLocalId,
 		int chunkOffset, int maxChunkSize) 
 	{
@@ -871,15 +886,24 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		
 		try
 		{
-			Vector decodedContactInfo = getStore().readContactInfo(accountId);
-			if(!getSecurity().verifySignatureOfVectorOfStrings(decodedContactInfo, accountId))
+			ContactInfoCache cache = getStore().getContactInfoCache();
+			File contactFile = getStore().getContactInfoFile(accountId);
+			Vector encodedContactInfo = cache.get(accountId, contactFile);
+			if(encodedContactInfo == null)
 			{
-				String accountInfo = MartusCrypto.formatAccountIdForLog(accountId);
-				logError("getContactInfo: "+ accountInfo +": Signature failed");
-				results.add(NetworkInterfaceConstants.SIG_ERROR);
-				return results;
+				long lastModified = contactFile.lastModified();
+				long length = contactFile.length();
+				Vector decodedContactInfo = getStore().readContactInfo(accountId);
+				if(!getSecurity().verifySignatureOfVectorOfStrings(decodedContactInfo, accountId))
+				{
+					String accountInfo = MartusCrypto.formatAccountIdForLog(accountId);
+					logError("getContactInfo: "+ accountInfo +": Signature failed");
+					results.add(NetworkInterfaceConstants.SIG_ERROR);
+					return results;
+				}
+				encodedContactInfo = ContactInfo.encodeContactInfoVector(decodedContactInfo);
+				cache.put(accountId, lastModified, length, encodedContactInfo);
 			}
-			Vector encodedContactInfo = ContactInfo.encodeContactInfoVector(decodedContactInfo);
 			
 			results.add(NetworkInterfaceConstants.OK);
 			results.add(encodedContactInfo);
@@ -919,7 +943,7 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		try 
 		{
 			partialUploadFile = getStore().getIncomingInterimFile(uid);
-			status = getPartialUploadStatus(partialUploadFile);
+			status = getPartialUploadStatus(uid, partialUploadFile);
 		} 
 		catch (Exception e) 
 		{
@@ -932,7 +956,7 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		return result;
 	}
 
-	private PartialUploadStatus getPartialUploadStatus(File partialUploadFile) 
+	private PartialUploadStatus getPartialUploadStatus(UniversalId uid, File partialUploadFile) 
 	{
 		PartialUploadStatus emptyStatus = new PartialUploadStatus(0L, "");
 		
@@ -941,20 +965,11 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 
 		try
 		{
-			long length = partialUploadFile.length();
-			FileInputStreamWithSeek input = new FileInputStreamWithSeek(partialUploadFile);
-			BufferedInputStream buffered = new BufferedInputStream(input);
-			try
-			{
-				String partialSha1 = MartusSecurity.createBase64Digest(buffered);
-				logInfo("getPartialUploadStatus found file of length " + length);
-				return new PartialUploadStatus(length, partialSha1);
-			}
-			finally
-			{
-				buffered.close();
-				input.close();
-			}
+			IncrementalSha1 digest = uploadSessions.getPartialUploadDigest(uid, partialUploadFile);
+			long length = digest.getLength();
+			String partialSha1 = StreamableBase64.encode(digest.getDigest());
+			logInfo("getPartialUploadStatus found file of length " + length);
+			return new PartialUploadStatus(length, partialSha1);
 		}
 		catch(Exception e)
 		{
@@ -1020,13 +1035,8 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		
 		ReadableDatabase db = getDatabase();
 		
-		UniversalId headerUid = UniversalId.createFromAccountAndLocalId(authorAccountId, bulletinLocalId);
-		DatabaseKey headerKey = DatabaseKey.createSealedKey(headerUid);
-		
-		if(!db.doesRecordExist(headerKey))
-			headerKey.setDraft();
-		
-		if(!db.doesRecordExist(headerKey))
+		DatabaseKey headerKey = findHeaderKeyInDatabase(authorAccountId, bulletinLocalId);
+		if(headerKey == null)
 		{
 			return returnSingleErrorResponseAndLog( "  header packet not found", NetworkInterfaceConstants.ITEM_NOT_FOUND );
 		}
@@ -1037,11 +1047,6 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 			dataPacketKey = DatabaseKey.createDraftKey(dataPacketUid);
 		else
 			dataPacketKey = DatabaseKey.createSealedKey(dataPacketUid);
-			
-		if(!db.doesRecordExist(dataPacketKey))
-		{
-			return returnSingleErrorResponseAndLog( "  data packet not found", NetworkInterfaceConstants.ITEM_NOT_FOUND );
-		}
 		
 		try
 		{
@@ -1051,8 +1056,19 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 				return returnSingleErrorResponseAndLog( "  neither author nor HQ account", NetworkInterfaceConstants.NOTYOURBULLETIN );
 			}
 			
-			String packetXml = db.readRecord(dataPacketKey, getSecurity());
-		
+			String packetXml = null;
+			try
+			{
+				packetXml = db.readRecord(dataPacketKey, getSecurity());
+			}
+			catch(RecordHiddenException treatAsMissing)
+			{
+			}
+			if(packetXml == null)
+			{
+				return returnSingleErrorResponseAndLog( "  data packet not found", NetworkInterfaceConstants.ITEM_NOT_FOUND );
+			}
+			
 			result.add(NetworkInterfaceConstants.OK);
 			result.add(packetXml);
 			return result;
@@ -1191,6 +1207,18 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 	
 	public Vector getBulletinChunkWithoutVerifyingCaller(String authorAccountId, String bulletinLocalId,
 				int chunkOffset, int maxChunkSize)
+	{
+		return getBulletinChunkResponse(authorAccountId, bulletinLocalId, chunkOffset, maxChunkSize, false);
+	}
+	
+	public Vector getBulletinChunkForMirroring(String authorAccountId, String bulletinLocalId,
+				int chunkOffset, int maxChunkSize)
+	{
+		return getBulletinChunkResponse(authorAccountId, bulletinLocalId, chunkOffset, maxChunkSize, true);
+	}
+	
+	private Vector getBulletinChunkResponse(String authorAccountId, String bulletinLocalId,
+				int chunkOffset, int maxChunkSize, boolean includeExportId)
 	{
 		DatabaseKey headerKey =	findHeaderKeyInDatabase(authorAccountId, bulletinLocalId);
 		if(headerKey == null)
@@ -1198,7 +1226,7 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		
 		try
 		{
-			return buildBulletinChunkResponse(headerKey, chunkOffset, maxChunkSize);
+			return buildBulletinChunkResponse(headerKey, chunkOffset, maxChunkSize, includeExportId);
 		}
 		catch(RecordHiddenException e)
 		{
@@ -1214,28 +1242,68 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 	}
 
 
+	public Vector getBulletinZipWithoutVerifyingCaller(String authorAccountId, String bulletinLocalId, int maxZipSize)
+	{
+		DatabaseKey headerKey =	findHeaderKeyInDatabase(authorAccountId, bulletinLocalId);
+		if(headerKey == null)
+			return returnSingleErrorResponseAndLog("getBulletinZipWithoutVerifyingCaller:  NOT_FOUND ", NetworkInterfaceConstants.ITEM_NOT_FOUND);
+		
+		try
+		{
+			return buildBulletinZipResponse(headerKey, maxZipSize);
+		}
+		catch(Exception e)
+		{
+			logError(e);
+			return returnSingleErrorResponseAndLog("getBulletinZipWithoutVerifyingCaller:  SERVER_ERROR ", NetworkInterfaceConstants.SERVER_ERROR);
+		}
+	}
+
 	public DatabaseKey findHeaderKeyInDatabase(String authorAccountId,String bulletinLocalId) 
 	{
 		UniversalId uid = UniversalId.createFromAccountAndLocalId(authorAccountId, bulletinLocalId);
-		DatabaseKey headerKey = DatabaseKey.createSealedKey(uid);
-		if(getDatabase().doesRecordExist(headerKey))
-			return headerKey;
-
-		headerKey.setDraft();
-		if(getDatabase().doesRecordExist(headerKey))
-			return headerKey;
-
-		return null;
+		return getStore().getHeaderKeyIndex().findHeaderKey(uid);
 	}
 
 	public String saveUploadedBulletinZipFile(String authorAccountId, String bulletinLocalId, File zipFile) 
+	{
+		ZipFile zip = null;
+		try
+		{
+			zip = new ZipFile(zipFile);
+		}
+		catch (Exception e)
+		{
+			logError("saveUpload INVALID_DATA: ", e);
+			return NetworkInterfaceConstants.INVALID_DATA;
+		}
+		
+		try
+		{
+			return saveUploadedBulletinZipFile(authorAccountId, zip, null);
+		}
+		finally
+		{
+			try
+			{
+				zip.close();
+			}
+			catch (IOException nothingWeCanDo)
+			{
+			}
+		}
+	}
+
+	private String saveUploadedBulletinZipFile(String authorAccountId, ZipFile zip, BulletinHeaderPacket alreadyVerifiedHeader) 
 	{
 		String result = NetworkInterfaceConstants.OK;
 		
-		BulletinHeaderPacket bhp = null;
+		BulletinHeaderPacket bhp = alreadyVerifiedHeader;
 		try
 		{
-			bhp = getStore().saveZipFileToDatabase(zipFile, authorAccountId);
+			if(bhp == null)
+				bhp = MartusUtilities.extractHeaderPacket(authorAccountId, zip, getSecurity());
+			getStore().saveZipFileToDatabase(zip, bhp, authorAccountId, System.currentTimeMillis());
 		}
 		catch (DuplicatePacketException e)
 		{
@@ -1291,60 +1359,75 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		return bhp.isHQAuthorizedToRead(hqPublicKey);
 	}
 	
-	private Vector buildBulletinChunkResponse(DatabaseKey headerKey, int chunkOffset, int maxChunkSize) throws Exception
+	private Vector buildBulletinChunkResponse(DatabaseKey headerKey, int chunkOffset, int maxChunkSize, boolean includeExportId) throws Exception
 	{
-		Vector result = new Vector();
+		OutgoingInterimFileCache cache = getStore().getOutgoingInterimFileCache();
 		//log("entering createInterimBulletinFile");
-		File tempFile = createInterimBulletinFile(headerKey);
+		File tempFile = cache.acquire(headerKey, new InterimFileBuilder());
 		//log("createInterimBulletinFile done");
-		int totalLength = MartusUtilities.getCappedFileLength(tempFile);
-		
-		int chunkSize = totalLength - chunkOffset;
-		if(chunkSize > maxChunkSize)
-			chunkSize = maxChunkSize;
-		
-		if(chunkSize < 0)
+		try
 		{
-			logError("Illegal chunk request, offset=" + chunkOffset + ", totalLength=" + totalLength);
-			result.add(NetworkInterfaceConstants.INVALID_DATA);
+			int chunkSize = chunkSizePolicy.capChunkSize(maxChunkSize);
+			Vector result = InterimFileChunkReader.createChunkResponse(tempFile, chunkOffset, chunkSize);
+			if(result.get(0).equals(NetworkInterfaceConstants.INVALID_DATA))
+			{
+				logError("Illegal chunk request, offset=" + chunkOffset + ", totalLength=" + tempFile.length());
+				return result;
+			}
+			if(includeExportId)
+				result.add(InterimFileChunkReader.getExportId(tempFile));
+			logNotice("downloadBulletinChunk: Exit " + result.get(0));
 			return result;
 		}
-			
-		byte[] rawData = new byte[chunkSize];
-		
-		FileInputStream in = new FileInputStream(tempFile);
-		in.skip(chunkOffset);
-		in.read(rawData);
-		in.close();
-		
-		String zipString = StreamableBase64.encode(rawData);
-		
-		int endPosition = chunkOffset + chunkSize;
-		if(endPosition >= totalLength)
+		finally
 		{
-			MartusUtilities.deleteInterimFileAndSignature(tempFile);
-			result.add(NetworkInterfaceConstants.OK);
+			cache.release(headerKey, tempFile);
 		}
-		else
+	}
+	
+	private Vector buildBulletinZipResponse(DatabaseKey headerKey, int maxZipSize) throws Exception
+	{
+		OutgoingInterimFileCache cache = getStore().getOutgoingInterimFileCache();
+		File tempFile = cache.acquire(headerKey, new InterimFileBuilder());
+		try
 		{
+			long totalLength = tempFile.length();
+			if(totalLength <= maxZipSize)
+				return InterimFileChunkReader.createChunkResponse(tempFile, 0, maxZipSize);
+
+			Vector result = new Vector();
 			result.add(NetworkInterfaceConstants.CHUNK_OK);
+			result.add(new Integer((int)totalLength));
+			return result;
+		}
+		finally
+		{
+			cache.release(headerKey, tempFile);
 		}
-		result.add(new Integer(totalLength));
-		result.add(new Integer(chunkSize));
-		result.add(zipString);
-		logNotice("downloadBulletinChunk: Exit " + result.get(0));
-		return result;
 	}
-
-	public File createInterimBulletinFile(DatabaseKey headerKey) throws Exception
+	
+	class InterimFileBuilder implements OutgoingInterimFileCache.Builder
 	{
-		File interimFile = getStore().getOutgoingInterimFile(headerKey.getUniversalId());
-		File interimFileSignature = MartusUtilities.getSignatureFileFromFile(interimFile);
-		if(interimFile.exists() && interimFileSignature.exists())
+		public File getInterimFile(UniversalId uid) throws Exception
+		{
+			return getStore().getOutgoingInterimFile(uid);
+		}
+
+		public File createInterimFile(DatabaseKey headerKey, File interimFile) throws Exception
+		{
+			return createInterimBulletinFile(headerKey, interimFile);
+		}
+		
+		public boolean verifyInterimFile(File interimFile)
 		{
-			if(verifyBulletinInterimFile(interimFile, interimFileSignature, getSecurity().getPublicKeyString()))
-				return interimFile;
+			File signatureFile = MartusUtilities.getSignatureFileFromFile(interimFile);
+			return verifyBulletinInterimFile(interimFile, signatureFile, getSecurity().getPublicKeyString());
 		}
+	}
+
+	public File createInterimBulletinFile(DatabaseKey headerKey, File interimFile) throws Exception
+	{
+		File interimFileSignature = MartusUtilities.getSignatureFileFromFile(interimFile);
 		MartusUtilities.deleteInterimFileAndSignature(interimFile);
 
 		File tempDirectory = interimFile.getParentFile();
@@ -1484,7 +1567,7 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 
 	public boolean isShutdownRequested()
 	{
-		boolean exitFile = getShutdownFile().exists();
+		boolean exitFile = triggerWatcher.isTriggered(MARTUSSHUTDOWNFILENAME);
 		if(exitFile && !loggedShutdownRequested)
 		{
 			loggedShutdownRequested = true;
@@ -1501,33 +1584,14 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		return serverForClients.canExitNow();
 	}
 	
-	public synchronized void incrementFailedUploadRequestsForCurrentClientIp()
+	public void incrementFailedUploadRequestsForCurrentClientIp()
 	{
-		String ip = getCurrentClientIp();
-		int failedUploadRequest = 1;
-		if(failedUploadRequestsPerIp.containsKey(ip))
-		{
-			Integer currentValue = (Integer) failedUploadRequestsPerIp.get(ip);
-			failedUploadRequest = currentValue.intValue() + failedUploadRequest;
-		}
-		failedUploadRequestsPerIp.put(ip, new Integer(failedUploadRequest));
+		uploadRequestLimiter.recordFailedAttempt(getCurrentClientIp());
 	}
 	
-	public synchronized void subtractMaxFailedUploadRequestsForIp(String ip)
+	public void subtractMaxFailedUploadRequestsForIp(String ip)
 	{
-		if(failedUploadRequestsPerIp.containsKey(ip))
-		{
-			Integer currentValue = (Integer) failedUploadRequestsPerIp.get(ip);
-			int newValue = currentValue.intValue() - getMaxFailedUploadAllowedAttemptsPerIp();
-			if(newValue < 0)
-			{
-				failedUploadRequestsPerIp.remove(ip);
-			}
-			else
-			{
-				failedUploadRequestsPerIp.put(ip, new Integer(newValue));
-			}
-		}
+		uploadRequestLimiter.forgiveOneInterval(ip);
 	}
 	
 	public int getMaxFailedUploadAllowedAttemptsPerIp()
@@ -1537,22 +1601,17 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 	
 	public int getNumFailedUploadRequestsForIp(String ip)
 	{
-		if(failedUploadRequestsPerIp.containsKey(ip))
-		{
-			Integer currentValue = (Integer) failedUploadRequestsPerIp.get(ip);
-			return currentValue.intValue();
-		}
-		return 0;
+		return uploadRequestLimiter.getFailedAttempts(ip);
 	}
 	
-	public synchronized boolean areUploadRequestsAllowedForCurrentIp()
+	public boolean areUploadRequestsAllowedForCurrentIp()
 	{
-		String ip = getCurrentClientIp();
-		if(failedUploadRequestsPerIp.containsKey(ip))
-		{
-			return (getNumFailedUploadRequestsForIp(ip) < getMaxFailedUploadAllowedAttemptsPerIp());
-		}
-		return true;
+		return uploadRequestLimiter.isAllowed(getCurrentClientIp());
+	}
+
+	public UploadRequestLimiter getUploadRequestLimiter()
+	{
+		return uploadRequestLimiter;
 	}
 
 
@@ -1626,9 +1685,15 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		if(accountId == null)
 			return "";
 
+		String[] cached = cachedCallerPublicCode.get();
+		if(cached != null && cached[0].equals(accountId))
+			return cached[1];
+
 		try 
 		{
-			return MartusSecurity.computeFormattedPublicCode(accountId);
+			String publicCode = MartusSecurity.computeFormattedPublicCode(accountId);
+			cachedCallerPublicCode.set(new String[] {accountId, publicCode});
+			return publicCode;
 		} 
 		catch (Exception e) 
 		{
@@ -1641,11 +1706,26 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 	private String getThreadId() 
 	{
 		String rawName = Thread.currentThread().getName();
-		rawName = rawName.replaceAll(" ", "_");
-		return "tname=" + rawName;
+		String[] cached = cachedThreadId.get();
+		if(cached != null && cached[0].equals(rawName))
+			return cached[1];
+
+		String threadId = "tname=" + rawName.replaceAll(" ", "_");
+		cachedThreadId.set(new String[] {rawName, threadId});
+		return threadId;
 	}
 
-	public synchronized void logError(String message)
+	public void setLogLevel(int newLogLevel)
+	{
+		logLevel = newLogLevel;
+	}
+
+	public boolean isLogging(int level)
+	{
+		return level >= logLevel;
+	}
+
+	public void logError(String message)
 	{
 		getLogger().logError(createLogString(message));
 	}
@@ -1660,23 +1740,31 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		getLogger().logError(createLogString(message), e);
 	}
 
-	public synchronized void logInfo(String message)
+	public void logInfo(String message)
 	{
+		if(!isLogging(AsyncLogger.LEVEL_INFO))
+			return;
 		getLogger().logInfo(createLogString(message));
 	}
 
-	public synchronized void logNotice(String message)
+	public void logNotice(String message)
 	{
+		if(!isLogging(AsyncLogger.LEVEL_NOTICE))
+			return;
 		getLogger().logNotice(createLogString(message));
 	}
 	
-	public synchronized void logWarning(String message)
+	public void logWarning(String message)
 	{
+		if(!isLogging(AsyncLogger.LEVEL_WARNING))
+			return;
 		getLogger().logWarning(createLogString(message));
 	}
 
-	public synchronized void logDebug(String message)
+	public void logDebug(String message)
 	{
+		if(!isLogging(AsyncLogger.LEVEL_DEBUG))
+			return;
 		getLogger().logDebug(createLogString(message));
 	}
 	
@@ -1688,6 +1776,26 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		return serverName;
 	}
 
+	public void reloadAccountSetIfChanged(ReloadableAccountSet accounts, String label)
+	{
+		if(accounts == null)
+			return;
+		
+		File file = accounts.getFile();
+		try
+		{
+			if(!accounts.reloadIfChanged())
+				return;
+			logNotice("Reloaded " + accounts.size() + " " + label + " from " + file.getName());
+			if(isSecureMode())
+				file.delete();
+		}
+		catch(Exception e)
+		{
+			logError("Unable to reload " + file.getName() + ", keeping the current list", e);
+		}
+	}
+
 	public Vector loadServerPublicKeys(File directoryContainingPublicKeyFiles, String label) throws IOException, InvalidPublicKeyFileException, PublicInformationInvalidException
 	{
 		Vector servers = new Vector();
@@ -1722,7 +1830,7 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		SignatureVerificationException,
 		DecryptionException
 	{
-		return BulletinStore.loadBulletinHeaderPacket(db, key, getSecurity());
+		return getStore().getHeaderPacketCache().load(db, key, getSecurity());
 	}
 	
 	public class UnexpectedExitException extends Exception
@@ -1797,6 +1905,17 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 	}
 
 
+	static int getLogLevelFromName(String levelName)
+	{
+		String[] names = {"debug", "info", "notice", "warning", "error"};
+		for(int i = 0; i < names.length; ++i)
+		{
+			if(names[i].equalsIgnoreCase(levelName))
+				return AsyncLogger.LEVEL_DEBUG + i;
+		}
+		return -1;
+	}
+
 	public void processCommandLine(String[] args) throws Exception
 	{
 		long indexEveryXMinutes = 0;
@@ -1813,6 +1932,11 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		String simulateBadConnectionTag = "--simulate-bad-connection";
 		String embeddedPresentationFiles = "--embedded-presentation";
 		String tokenAuthority = "--token-authority=";
+		String interimCacheMegabytesTag = "--interim-cache-megabytes=";
+		String headerCacheEntriesTag = "--header-cache-entries=";
+		String maxDownloadChunkKbTag = "--max-download-chunk-kb=";
+		String logLevelTag = "--log-level=";
+		String keepUploadsForDownloadTag = "--keep-uploads-for-download";
 		
 		setAmplifierEnabled(false);
 		String amplifierIndexingMessage = "";
@@ -1837,6 +1961,8 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 				simulateBadConnection = true;
 			if(argument.equals(embeddedPresentationFiles))
 				useEmbeddedPresentationFiles = true;
+			if(argument.equals(keepUploadsForDownloadTag))
+				keepUploadsForDownload = true;
 			if(argument.startsWith(ampipTag))
 				setAmpIpAddress(argument.substring(ampipTag.length()));
 
@@ -1854,6 +1980,42 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 				logNotice("Mirror sleep duration: " + MirroringRetriever.inactiveSleepMillis/1000/60 + " minutes");
 			}
 			
+			if(argument.startsWith(interimCacheMegabytesTag))
+			{
+				String megabytes = argument.substring(interimCacheMegabytesTag.length());
+				long maxBytes = new Long(megabytes).longValue() * 1024 * 1024;
+				getStore().getOutgoingInterimFileCache().setMaxBytes(maxBytes);
+				getStore().getOutgoingInterimPublicOnlyFileCache().setMaxBytes(maxBytes);
+				logNotice("Interim file cache size: " + megabytes + " MB");
+			}
+			
+			if(argument.startsWith(headerCacheEntriesTag))
+			{
+				String entries = argument.substring(headerCacheEntriesTag.length());
+				getStore().getHeaderPacketCache().setMaxEntries(new Integer(entries).intValue());
+				logNotice("Header packet cache size: " + entries + " headers");
+			}
+			
+			if(argument.startsWith(maxDownloadChunkKbTag))
+			{
+				String kilobytes = argument.substring(maxDownloadChunkKbTag.length());
+				chunkSizePolicy.setMaxChunkSize(new Integer(kilobytes).intValue() * 1024);
+				logNotice("Maximum download chunk size: " + chunkSizePolicy.getMaxChunkSize() / 1024 + " KB");
+			}
+			
+			if(argument.startsWith(logLevelTag))
+			{
+				String levelName = argument.substring(logLevelTag.length());
+				int level = getLogLevelFromName(levelName);
+				if(level < 0)
+				{
+					logError("Unknown log level: " + levelName);
+					serverExit(ServerSideUtilities.EXIT_INVALID_COMMAND_LINE);
+				}
+				setLogLevel(level);
+				logNotice("Log level: " + levelName);
+			}
+			
 			if(argument.startsWith(tokenAuthority))
 			{
 				tokenAuthorityBase = argument.substring(tokenAuthority.length());
@@ -1910,6 +2072,11 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		File packetsDirectory = new File(getDataDirectory(), "packets");
 		Database diskDatabase = new ServerFileDatabase(packetsDirectory, getSecurity());
 		initializeBulletinStore(diskDatabase);
+		store.setSummaryIndexDirectory(new File(getDataDirectory(), BulletinSummaryIndex.SUMMARY_INDEX_DIRECTORY));
+		store.setChangeJournalFile(new File(getDataDirectory(), ChangeJournal.CHANGE_JOURNAL_FILENAME));
+		store.setAccessTokenIndexFile(new File(getDataDirectory(), AccessTokenIndex.ACCESS_TOKEN_INDEX_FILENAME));
+		store.setHeaderSignatureCacheFile(new File(getDataDirectory(), HeaderSignatureCache.CACHE_FILENAME));
+		store.setHistoryAndHqCacheSnapshotFile(new File(getDataDirectory(), HistoryAndHqCacheSnapshot.SNAPSHOT_FILENAME));
 	}
 
 	public void initializeBulletinStore(Database databaseToUse)
@@ -1950,6 +2117,11 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		return new File(getTriggerDirectory(), MARTUSSHUTDOWNFILENAME);
 	}
 
+	public AdminTriggerWatcher getTriggerWatcher()
+	{
+		return triggerWatcher;
+	}
+
 	public File getTriggerDirectory()
 	{
 		return new File(getDataDirectory(), ADMINTRIGGERDIRECTORY);
@@ -2094,12 +2266,62 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 		public void run()
 		{
 			verifyTimerAlive();
-			Iterator failedUploadReqIps = failedUploadRequestsPerIp.keySet().iterator();
-			while(failedUploadReqIps.hasNext())
-			{
-				String ip = (String) failedUploadReqIps.next();
-				subtractMaxFailedUploadRequestsForIp(ip);
-			}
+			int removed = uploadRequestLimiter.removeExpired();
+			if(removed > 0)
+				logDebug("UploadRequestsMonitor: stopped tracking " + removed + " ip(s), " + 
+						uploadRequestLimiter.getRejectedCount() + " request(s) rejected so far");
+		}
+	}
+	
+	private class UploadSessionMonitor extends BackgroundServerTimerTask
+	{
+		UploadSessionMonitor()
+		{
+			super("UploadSessionMonitor");
+		}
+		
+		public void run()
+		{
+			verifyTimerAlive();
+			int closed = uploadSessions.closeIdleSessions(UploadSessionManager.DEFAULT_IDLE_TIMEOUT_MILLIS);
+			if(closed > 0)
+				logDebug("Closed idle upload sessions: " + closed);
+		}
+	}
+	
+	private class CacheSnapshotWriter extends BackgroundServerTimerTask
+	{
+		CacheSnapshotWriter()
+		{
+			super("CacheSnapshotWriter");
+		}
+		
+		public void run()
+		{
+			verifyTimerAlive();
+			if(isShutdownRequested())
+				return;
+			if(getStore().saveHistoryAndHqCacheSnapshot())
+				logDebug("Saved history and HQ cache snapshot: " + getStore().getHistoryAndHqCacheWarmer().getStatistics());
+			if(getStore().saveHeaderSignatureCache())
+				logDebug("Saved header signature cache: " + getStore().getHeaderSignatureCache().getStatistics());
+		}
+	}
+	
+	private class AccountListReloadMonitor extends BackgroundServerTimerTask
+	{
+		AccountListReloadMonitor()
+		{
+			super("AccountListReloadMonitor");
+		}
+		
+		public void run()
+		{
+			verifyTimerAlive();
+			if(isClientListenerEnabled())
+				serverForClients.reloadAccountListsIfChanged();
+			if(isAmplifierListenerEnabled())
+				serverForAmplifiers.reloadAccountListsIfChanged();
 		}
 	}
 	
@@ -2118,6 +2340,11 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 				logNotice("Shutdown request acknowledged, preparing to shutdown.");
 				
 				serverForClients.prepareToShutdown();				
+				mirroringRetrieverManager.stop();
+				if(getStore().saveHistoryAndHqCacheSnapshot())
+					logNotice("Saved history and HQ cache snapshot");
+				if(getStore().saveHeaderSignatureCache())
+					logNotice("Saved header signature cache");
 				getShutdownFile().delete();
 				logNotice("Server has exited.");
 				try
@@ -2197,9 +2424,15 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 	private ServerBulletinStore store;
 	private String complianceStatement; 
 	
-	Hashtable failedUploadRequestsPerIp;
+	UploadRequestLimiter uploadRequestLimiter;
+	UploadSessionManager uploadSessions;
+	ChunkSizePolicy chunkSizePolicy;
+	AdminTriggerWatcher triggerWatcher;
 	
 	private LoggerInterface logger;
+	private volatile int logLevel;
+	private static ThreadLocal<String[]> cachedThreadId = new ThreadLocal<String[]>();
+	private static ThreadLocal<String[]> cachedCallerPublicCode = new ThreadLocal<String[]>();
 	String serverName;
 	
 	private boolean secureMode;
@@ -2207,6 +2440,7 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 	private String ampIpAddress;
 	public boolean simulateBadConnection;
 	public boolean useEmbeddedPresentationFiles;
+	public boolean keepUploadsForDownload;
 	private boolean loggedShutdownRequested;
 	public String tokenAuthorityBase;
 	
@@ -2233,5 +2467,8 @@ public class MartusServer implements NetworkInterfaceConstants, ServerCallbackIn
 	
 	private static final long shutdownRequestIntervalMillis = MILLIS_IN_ONE_SECOND;
 	private static final long magicWordsGuessIntervalMillis = MILLIS_IN_ONE_MINUTE;
+	private static final long uploadSessionIntervalMillis = MILLIS_IN_ONE_MINUTE;
+	private static final long accountListReloadIntervalMillis = 15 * MILLIS_IN_ONE_SECOND;
+	private static final long cacheSnapshotIntervalMillis = 30 * MILLIS_IN_ONE_MINUTE;
 	private static final long timerWatchDogIntervalMillis = (long)(1.5 * MILLIS_IN_ONE_HOUR);
 }
@@ -0,0 +1,486 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+import org.martus.common.LoggerInterface;
+import org.martus.common.MartusLogger;
+import org.martus.common.database.Database;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.ReadableDatabase;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.common.packet.UniversalId;
+
+/*
+ * A hash tree over every bulletin header on the server, so two mirrors can
+ * find where they differ by comparing hashes from the top down instead of
+ * listing every account and every bulletin.
+ * 
+ * Accounts are spread over buckets by a hash of the account id, and each
+ * account's bulletins over buckets by a hash of the local id. Each header
+ * contributes a digest of its account, local id, status and mTime, and
+ * the hash of any node is the XOR of the digests beneath it, so a save or
+ * delete only has to XOR one digest out and another in along its path.
+ * 
+ * The tree is built in the background at startup and is not used for
+ * comparisons until it is complete.
+ */
+public class MirroringHashTree
+{
+	public MirroringHashTree(ServerBulletinStore storeToUse)
+	{
+		store = storeToUse;
+		accounts = new HashMap<String, AccountNode>();
+		accountBucketHashes = new long[ACCOUNT_BUCKETS];
+	}
+
+	public synchronized void start(LoggerInterface loggerToUse)
+	{
+		if(builderThread != null)
+			return;
+
+		logger = loggerToUse;
+		builderThread = new Thread(new Builder(), "MirroringHashTreeBuilder");
+		builderThread.setDaemon(true);
+		builderThread.start();
+	}
+
+	public boolean isReady()
+	{
+		return ready;
+	}
+
+	public void loadAll()
+	{
+		class Collector implements Database.AccountVisitor
+		{
+			public void visit(String accountId)
+			{
+				accountIds.add(accountId);
+			}
+
+			Vector<String> accountIds = new Vector<String>();
+		}
+
+		Collector collector = new Collector();
+		store.getDatabase().visitAllAccounts(collector);
+		for(int i = 0; i < collector.accountIds.size(); ++i)
+			loadAccount(collector.accountIds.get(i));
+		ready = true;
+	}
+
+	public void loadAccount(String accountId)
+	{
+		class Loader implements Database.PacketVisitor
+		{
+			public void visit(DatabaseKey key)
+			{
+				if(!BulletinHeaderPacket.isValidLocalId(key.getLocalId()))
+					return;
+				Item item = createItem(key);
+				if(item != null)
+					items.add(item);
+			}
+
+			Vector<Item> items = new Vector<Item>();
+		}
+
+		AccountNode node = new AccountNode(accountId);
+		synchronized(this)
+		{
+			replaceAccount(node);
+		}
+
+		Loader loader = new Loader();
+		store.visitAllBulletinsForAccount(loader, accountId);
+
+		Vector<UniversalId> refreshedWhileLoading;
+		synchronized(this)
+		{
+			for(int i = 0; i < loader.items.size(); ++i)
+				put(node, loader.items.get(i));
+			refreshedWhileLoading = node.finishLoading();
+		}
+		for(int i = 0; i < refreshedWhileLoading.size(); ++i)
+			refresh(refreshedWhileLoading.get(i));
+	}
+
+	public void refresh(UniversalId uid)
+	{
+		Item sealed = createItem(DatabaseKey.createSealedKey(uid));
+		Item draft = createItem(DatabaseKey.createDraftKey(uid));
+		synchronized(this)
+		{
+			AccountNode node = accounts.get(uid.getAccountId());
+			if(node == null)
+			{
+				node = new AccountNode(uid.getAccountId());
+				node.finishLoading();
+				accounts.put(uid.getAccountId(), node);
+			}
+			if(node.isLoading())
+			{
+				node.refreshAfterLoading(uid);
+				return;
+			}
+			remove(node, getItemKey(DatabaseKey.createSealedKey(uid)));
+			remove(node, getItemKey(DatabaseKey.createDraftKey(uid)));
+			if(sealed != null)
+				put(node, sealed);
+			if(draft != null)
+				put(node, draft);
+		}
+	}
+
+	public synchronized String getRootHash()
+	{
+		long hash = 0;
+		for(int i = 0; i < accountBucketHashes.length; ++i)
+			hash ^= accountBucketHashes[i];
+		return toHex(hash);
+	}
+
+	public synchronized Map<String, String> getAccountBucketHashes()
+	{
+		Map<String, String> hashes = new HashMap<String, String>();
+		for(int bucket = 0; bucket < accountBucketHashes.length; ++bucket)
+		{
+			if(accountBucketHashes[bucket] != 0)
+				hashes.put(getBucketName(bucket), toHex(accountBucketHashes[bucket]));
+		}
+		return hashes;
+	}
+
+	public synchronized String getAccountBucketHash(String bucketName)
+	{
+		int bucket = parseBucketName(bucketName, ACCOUNT_BUCKETS);
+		if(bucket < 0)
+			return toHex(0);
+		return toHex(accountBucketHashes[bucket]);
+	}
+
+	public synchronized Map<String, String> getAccountHashes(String bucketName)
+	{
+		int bucket = parseBucketName(bucketName, ACCOUNT_BUCKETS);
+		Map<String, String> hashes = new HashMap<String, String>();
+		Iterator<AccountNode> iter = accounts.values().iterator();
+		while(iter.hasNext())
+		{
+			AccountNode node = iter.next();
+			if(node.bucket == bucket && node.items.size() > 0)
+				hashes.put(node.accountId, toHex(node.hash));
+		}
+		return hashes;
+	}
+
+	public synchronized String getAccountHash(String accountId)
+	{
+		AccountNode node = accounts.get(accountId);
+		if(node == null)
+			return toHex(0);
+		return toHex(node.hash);
+	}
+
+	public synchronized Map<String, String> getBulletinBucketHashes(String accountId)
+	{
+		long[] bucketHashes = new long[BULLETIN_BUCKETS];
+		AccountNode node = accounts.get(accountId);
+		if(node != null)
+		{
+			Iterator<Item> iter = node.items.values().iterator();
+			while(iter.hasNext())
+			{
+				Item item = iter.next();
+				bucketHashes[item.bulletinBucket] ^= item.digest;
+			}
+		}
+
+		Map<String, String> hashes = new HashMap<String, String>();
+		for(int bucket = 0; bucket < bucketHashes.length; ++bucket)
+		{
+			if(bucketHashes[bucket] != 0)
+				hashes.put(getBucketName(bucket), toHex(bucketHashes[bucket]));
+		}
+		return hashes;
+	}
+
+	public synchronized Vector<DatabaseKey> getBulletinKeys(String accountId, String bulletinBucketName)
+	{
+		int bucket = parseBucketName(bulletinBucketName, BULLETIN_BUCKETS);
+		Vector<DatabaseKey> keys = new Vector<DatabaseKey>();
+		AccountNode node = accounts.get(accountId);
+		if(node == null)
+			return keys;
+		Iterator<Item> iter = node.items.values().iterator();
+		while(iter.hasNext())
+		{
+			Item item = iter.next();
+			if(item.bulletinBucket == bucket)
+				keys.add(item.key);
+		}
+		return keys;
+	}
+
+	public synchronized String getDigest(DatabaseKey key)
+	{
+		AccountNode node = accounts.get(key.getAccountId());
+		if(node == null)
+			return null;
+		Item item = node.items.get(getItemKey(key));
+		if(item == null)
+			return null;
+		return toHex(item.digest);
+	}
+
+	public synchronized int getAccountCount()
+	{
+		return accounts.size();
+	}
+
+	public synchronized int getBulletinCount()
+	{
+		int count = 0;
+		Iterator<AccountNode> iter = accounts.values().iterator();
+		while(iter.hasNext())
+			count += iter.next().items.size();
+		return count;
+	}
+
+	public String getStatistics()
+	{
+		return "ready=" + isReady() + " accounts=" + getAccountCount() + " bulletins=" + getBulletinCount() + " root=" + getRootHash();
+	}
+
+	public static String computeDigest(DatabaseKey key, long mTime)
+	{
+		return toHex(digest(key, mTime));
+	}
+
+	public static String getAccountBucketName(String accountId)
+	{
+		return getBucketName(getAccountBucket(accountId));
+	}
+
+	public static String getBulletinBucketName(String localId)
+	{
+		return getBucketName(getBulletinBucket(localId));
+	}
+
+	class Builder implements Runnable
+	{
+		public void run()
+		{
+			long startedAt = System.currentTimeMillis();
+			try
+			{
+				loadAll();
+				logger.logNotice("Mirroring hash tree ready in " + (System.currentTimeMillis() - startedAt) + " ms: " + getStatistics());
+			}
+			catch(Exception e)
+			{
+				logger.logError("Unable to build mirroring hash tree");
+				MartusLogger.logException(e);
+			}
+		}
+	}
+
+	private Item createItem(DatabaseKey key)
+	{
+		ReadableDatabase db = store.getDatabase();
+		try
+		{
+			if(!db.doesRecordExist(key))
+				return null;
+			return new Item(key, digest(key, db.getmTime(key)));
+		}
+		catch(Exception recordIsHiddenOrGoneSoLeaveItOut)
+		{
+			return null;
+		}
+	}
+
+	private void replaceAccount(AccountNode node)
+	{
+		AccountNode old = accounts.put(node.accountId, node);
+		if(old != null)
+			accountBucketHashes[old.bucket] ^= old.hash;
+	}
+
+	private void put(AccountNode node, Item item)
+	{
+		remove(node, item.itemKey);
+		node.items.put(item.itemKey, item);
+		node.hash ^= item.digest;
+		accountBucketHashes[node.bucket] ^= item.digest;
+	}
+
+	private void remove(AccountNode node, String itemKey)
+	{
+		Item old = node.items.remove(itemKey);
+		if(old == null)
+			return;
+		node.hash ^= old.digest;
+		accountBucketHashes[node.bucket] ^= old.digest;
+	}
+
+	static String getItemKey(DatabaseKey key)
+	{
+		return BulletinSummaryIndex.Entry.getStatusCode(key) + key.getLocalId();
+	}
+
+	static long digest(DatabaseKey key, long mTime)
+	{
+		String description = key.getAccountId() + FIELD_DELIMITER + key.getLocalId() + FIELD_DELIMITER +
+				BulletinSummaryIndex.Entry.getStatusCode(key) + FIELD_DELIMITER + mTime;
+		byte[] sha1 = sha1(description);
+		long digest = 0;
+		for(int i = 0; i < 8; ++i)
+			digest = (digest << 8) | (sha1[i] & 0xff);
+		return digest;
+	}
+
+	static int getAccountBucket(String accountId)
+	{
+		return sha1(accountId)[0] & 0xff;
+	}
+
+	static int getBulletinBucket(String localId)
+	{
+		return (sha1(localId)[0] & 0xff) >>> 4;
+	}
+
+	private static byte[] sha1(String text)
+	{
+		try
+		{
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return sha1.digest(text.getBytes("UTF-8"));
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String getBucketName(int bucket)
+	{
+		return Integer.toHexString(bucket);
+	}
+
+	static int parseBucketName(String bucketName, int bucketCount)
+	{
+		try
+		{
+			int bucket = Integer.parseInt(bucketName, 16);
+			if(bucket < 0 || bucket >= bucketCount)
+				return -1;
+			return bucket;
+		}
+		catch(NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	static String toHex(long hash)
+	{
+		return Long.toHexString(hash);
+	}
+
+	static class Item
+	{
+		Item(DatabaseKey keyToUse, long digestToUse)
+		{
+			key = keyToUse;
+			itemKey = getItemKey(keyToUse);
+			digest = digestToUse;
+			bulletinBucket = getBulletinBucket(keyToUse.getLocalId());
+		}
+
+		DatabaseKey key;
+		String itemKey;
+		long digest;
+		int bulletinBucket;
+	}
+
+	static class AccountNode
+	{
+		AccountNode(String accountIdToUse)
+		{
+			accountId = accountIdToUse;
+			bucket = getAccountBucket(accountIdToUse);
+			items = new HashMap<String, Item>();
+			refreshedWhileLoading = new Vector<UniversalId>();
+		}
+
+		boolean isLoading()
+		{
+			return refreshedWhileLoading != null;
+		}
+
+		void refreshAfterLoading(UniversalId uid)
+		{
+			refreshedWhileLoading.add(uid);
+		}
+
+		Vector<UniversalId> finishLoading()
+		{
+			Vector<UniversalId> refreshed = refreshedWhileLoading;
+			refreshedWhileLoading = null;
+			return refreshed;
+		}
+
+		String accountId;
+		int bucket;
+		long hash;
+		Map<String, Item> items;
+		Vector<UniversalId> refreshedWhileLoading;
+	}
+
+	static final int ACCOUNT_BUCKETS = 256;
+	static final int BULLETIN_BUCKETS = 16;
+	private static final String FIELD_DELIMITER = "\t";
+
+	private ServerBulletinStore store;
+	private LoggerInterface logger;
+	private Thread builderThread;
+	private volatile boolean ready;
+	private Map<String, AccountNode> accounts;
+	private long[] accountBucketHashes;
+}
@@ -0,0 +1,459 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.martus.common.MartusUtilities;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.packet.UniversalId;
+
+/*
+ * Tracks the signed outgoing zips that downloads are served from. Only one
+ * thread builds the zip for a given bulletin; everyone else waits for it and
+ * then shares the result. Files that are not being downloaded are evicted,
+ * least recently used first, once the cache grows past its byte budget.
+ * A zip that is already signed, such as a bulletin that was just uploaded,
+ * can be adopted so the first download doesn't have to export it again.
+ * Each zip's signature is checked once, when it is built or adopted; after
+ * that a download only checks that its length and mtime haven't changed.
+ * 
+ * When a bulletin changes while someone is still reading its zip, the new
+ * zip is built under a different name and the old one is retired, to be
+ * deleted once its last reader releases it.
+ */
+public class OutgoingInterimFileCache
+{
+	public interface Builder
+	{
+		public File getInterimFile(UniversalId uid) throws Exception;
+		public File createInterimFile(DatabaseKey headerKey, File interimFile) throws Exception;
+		public boolean verifyInterimFile(File interimFile);
+	}
+
+	public OutgoingInterimFileCache(ServerBulletinStore storeToUse)
+	{
+		store = storeToUse;
+		entries = new ConcurrentHashMap<String, Entry>();
+		maxBytes = DEFAULT_MAX_BYTES;
+	}
+
+	public void setMaxBytes(long newMaxBytes)
+	{
+		maxBytes = newMaxBytes;
+		evictIfNecessary();
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public File acquire(DatabaseKey headerKey, Builder builder) throws Exception
+	{
+		UniversalId uid = headerKey.getUniversalId();
+		long headerMTime = store.getDatabase().getmTime(headerKey);
+		File interimFile = null;
+		while(interimFile == null)
+		{
+			Entry entry = getOrCreateEntry(uid);
+			synchronized(entry)
+			{
+				if(entry.isRemoved())
+					continue;
+
+				if(entry.isCurrent(headerMTime))
+				{
+					hits.incrementAndGet();
+				}
+				else
+				{
+					misses.incrementAndGet();
+					if(entry.isFileInUse())
+						entry.retireFile();
+					else
+						entry.discardFile();
+					File newFile = entry.chooseUnusedFile(builder.getInterimFile(uid));
+					MartusUtilities.deleteInterimFileAndSignature(newFile);
+					long startedAt = System.currentTimeMillis();
+					entry.setFile(builder.createInterimFile(headerKey, newFile));
+					entry.setHeaderMTime(headerMTime);
+					buildMillis.addAndGet(System.currentTimeMillis() - startedAt);
+				}
+				entry.pin(clock.incrementAndGet());
+				interimFile = entry.getFile();
+			}
+		}
+
+		evictIfNecessary();
+		return interimFile;
+	}
+
+	public boolean adopt(DatabaseKey headerKey, File signedFile, Builder builder) throws Exception
+	{
+		UniversalId uid = headerKey.getUniversalId();
+		long headerMTime = store.getDatabase().getmTime(headerKey);
+		Entry entry = getOrCreateEntry(uid);
+		synchronized(entry)
+		{
+			if(entry.isRemoved() || entry.isPinned())
+				return false;
+
+			entry.discardFile();
+			File interimFile = builder.getInterimFile(uid);
+			MartusUtilities.deleteInterimFileAndSignature(interimFile);
+			File signature = MartusUtilities.getSignatureFileFromFile(signedFile);
+			File interimSignature = MartusUtilities.getSignatureFileFromFile(interimFile);
+			if(!signedFile.renameTo(interimFile))
+				return false;
+			if(!signature.renameTo(interimSignature))
+			{
+				interimFile.delete();
+				return false;
+			}
+			if(!builder.verifyInterimFile(interimFile))
+			{
+				MartusUtilities.deleteInterimFileAndSignature(interimFile);
+				return false;
+			}
+			entry.setFile(interimFile);
+			entry.setHeaderMTime(headerMTime);
+			adopted.incrementAndGet();
+		}
+
+		evictIfNecessary();
+		return true;
+	}
+
+	public void release(DatabaseKey headerKey, File interimFile)
+	{
+		Entry entry = entries.get(headerKey.getUniversalId().toString());
+		if(entry == null)
+			return;
+		synchronized(entry)
+		{
+			entry.unpin(interimFile);
+		}
+	}
+
+	public void invalidate(UniversalId uid)
+	{
+		Entry entry = entries.get(uid.toString());
+		if(entry == null)
+			return;
+		synchronized(entry)
+		{
+			if(entry.isPinned())
+				entry.setHeaderMTime(UNKNOWN_MTIME);
+			else
+				removeEntry(entry);
+		}
+	}
+
+	public long getTotalBytes()
+	{
+		return totalBytes.get();
+	}
+
+	public int getFileCount()
+	{
+		return entries.size();
+	}
+
+	public int getHitCount()
+	{
+		return hits.get();
+	}
+
+	public int getMissCount()
+	{
+		return misses.get();
+	}
+
+	public int getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	public int getAdoptedCount()
+	{
+		return adopted.get();
+	}
+
+	public int getRetiredCount()
+	{
+		return retired.get();
+	}
+
+	public long getTotalBuildMillis()
+	{
+		return buildMillis.get();
+	}
+
+	public String getStatistics()
+	{
+		return "files=" + getFileCount() + " bytes=" + getTotalBytes() +
+				" hits=" + getHitCount() + " misses=" + getMissCount() +
+				" evictions=" + getEvictionCount() + " adopted=" + getAdoptedCount() +
+				" retired=" + getRetiredCount() +
+				" buildMillis=" + getTotalBuildMillis();
+	}
+
+	private Entry getOrCreateEntry(UniversalId uid)
+	{
+		Entry entry = entries.get(uid.toString());
+		if(entry != null)
+			return entry;
+
+		Entry newEntry = new Entry(uid);
+		Entry existing = entries.putIfAbsent(uid.toString(), newEntry);
+		if(existing != null)
+			return existing;
+		return newEntry;
+	}
+
+	private void evictIfNecessary()
+	{
+		if(totalBytes.get() <= maxBytes)
+			return;
+
+		List<Entry> candidates = new ArrayList<Entry>(entries.values());
+		Collections.sort(candidates, new LeastRecentlyUsedFirst());
+		for(int i = 0; i < candidates.size() && totalBytes.get() > maxBytes; ++i)
+		{
+			Entry entry = candidates.get(i);
+			synchronized(entry)
+			{
+				if(entry.isPinned() || entry.isRemoved())
+					continue;
+				removeEntry(entry);
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void removeEntry(Entry entry)
+	{
+		entry.discardFile();
+		entry.markRemoved();
+		entries.remove(entry.getUid().toString(), entry);
+	}
+
+	static class LeastRecentlyUsedFirst implements Comparator<Entry>
+	{
+		public int compare(Entry e1, Entry e2)
+		{
+			long used1 = e1.getLastUsed();
+			long used2 = e2.getLastUsed();
+			if(used1 < used2)
+				return -1;
+			if(used1 > used2)
+				return 1;
+			return 0;
+		}
+	}
+
+	class Entry
+	{
+		Entry(UniversalId uidToUse)
+		{
+			uid = uidToUse;
+			headerMTime = UNKNOWN_MTIME;
+			retiredFiles = new ArrayList<RetiredFile>();
+		}
+
+		UniversalId getUid()
+		{
+			return uid;
+		}
+
+		File getFile()
+		{
+			return file;
+		}
+
+		void setFile(File newFile)
+		{
+			totalBytes.addAndGet(-length);
+			file = newFile;
+			length = newFile.length();
+			lastModified = newFile.lastModified();
+			totalBytes.addAndGet(length);
+		}
+
+		void discardFile()
+		{
+			if(file != null)
+				MartusUtilities.deleteInterimFileAndSignature(file);
+			totalBytes.addAndGet(-length);
+			file = null;
+			length = 0;
+			headerMTime = UNKNOWN_MTIME;
+		}
+
+		void retireFile()
+		{
+			retiredFiles.add(new RetiredFile(file, length, pinCount));
+			retired.incrementAndGet();
+			file = null;
+			length = 0;
+			pinCount = 0;
+			headerMTime = UNKNOWN_MTIME;
+		}
+
+		File chooseUnusedFile(File baseFile)
+		{
+			File candidate = baseFile;
+			while(isRetired(candidate))
+				candidate = new File(baseFile.getPath() + GENERATION_SEPARATOR + (++generation));
+			return candidate;
+		}
+
+		private boolean isRetired(File candidate)
+		{
+			for(int i = 0; i < retiredFiles.size(); ++i)
+			{
+				if(retiredFiles.get(i).file.equals(candidate))
+					return true;
+			}
+			return false;
+		}
+
+		void setHeaderMTime(long newHeaderMTime)
+		{
+			headerMTime = newHeaderMTime;
+		}
+
+		boolean isCurrent(long currentHeaderMTime)
+		{
+			if(file == null || headerMTime != currentHeaderMTime)
+				return false;
+			return file.length() == length && file.lastModified() == lastModified;
+		}
+
+		void pin(long now)
+		{
+			++pinCount;
+			lastUsed = now;
+		}
+
+		void unpin(File pinnedFile)
+		{
+			if(pinnedFile.equals(file) && pinCount > 0)
+			{
+				--pinCount;
+				return;
+			}
+
+			for(int i = 0; i < retiredFiles.size(); ++i)
+			{
+				RetiredFile old = retiredFiles.get(i);
+				if(!old.file.equals(pinnedFile))
+					continue;
+				if(--old.pinCount > 0)
+					return;
+				MartusUtilities.deleteInterimFileAndSignature(old.file);
+				totalBytes.addAndGet(-old.length);
+				retiredFiles.remove(i);
+				return;
+			}
+		}
+
+		boolean isFileInUse()
+		{
+			return pinCount > 0;
+		}
+
+		boolean isPinned()
+		{
+			return pinCount > 0 || !retiredFiles.isEmpty();
+		}
+
+		long getLastUsed()
+		{
+			return lastUsed;
+		}
+
+		void markRemoved()
+		{
+			removed = true;
+		}
+
+		boolean isRemoved()
+		{
+			return removed;
+		}
+
+		private UniversalId uid;
+		private File file;
+		private long length;
+		private long lastModified;
+		private long headerMTime;
+		private int pinCount;
+		private volatile long lastUsed;
+		private boolean removed;
+		private int generation;
+		private List<RetiredFile> retiredFiles;
+	}
+
+	static class RetiredFile
+	{
+		RetiredFile(File fileToUse, long lengthToUse, int pinCountToUse)
+		{
+			file = fileToUse;
+			length = lengthToUse;
+			pinCount = pinCountToUse;
+		}
+
+		File file;
+		long length;
+		int pinCount;
+	}
+
+	private static final long UNKNOWN_MTIME = -1;
+	private static final String GENERATION_SEPARATOR = ".";
+	public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+	private ServerBulletinStore store;
+	private ConcurrentHashMap<String, Entry> entries;
+	private volatile long maxBytes;
+	private AtomicLong totalBytes = new AtomicLong();
+	private AtomicLong clock = new AtomicLong();
+	private AtomicLong buildMillis = new AtomicLong();
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger misses = new AtomicInteger();
+	private AtomicInteger evictions = new AtomicInteger();
+	private AtomicInteger adopted = new AtomicInteger();
+	private AtomicInteger retired = new AtomicInteger();
+}
@@ -0,0 +1,89 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+
+import org.martus.common.MartusUtilities;
+import org.martus.util.UnicodeReader;
+
+/*
+ * An AccountSet loaded from an admin list file. When the file is replaced
+ * while the server is running, reloadIfChanged swaps in the new contents.
+ * A missing file is not treated as an empty list, because in secure mode
+ * the startup files are deleted once they have been read.
+ */
+public class ReloadableAccountSet extends AccountSet
+{
+	public ReloadableAccountSet(File fileToUse, Vector initialAccountIds)
+	{
+		super(initialAccountIds);
+		file = fileToUse;
+		rememberFileState();
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public synchronized boolean reloadIfChanged() throws IOException
+	{
+		if(!file.exists())
+			return false;
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if(lastModified == loadedLastModified && length == loadedLength)
+			return false;
+
+		BufferedReader reader = new BufferedReader(new UnicodeReader(file));
+		try
+		{
+			replaceWith(MartusUtilities.loadListFromFile(reader));
+		}
+		finally
+		{
+			reader.close();
+		}
+		loadedLastModified = lastModified;
+		loadedLength = length;
+		return true;
+	}
+
+	private void rememberFileState()
+	{
+		loadedLastModified = file.lastModified();
+		loadedLength = file.length();
+	}
+
+	private File file;
+	private long loadedLastModified;
+	private long loadedLength;
+}
@@ -41,7 +41,6 @@ import org.martus.common.ContactInfo;
 import org.martus.common.LoggerInterface;
 import org.martus.common.MartusAccountAccessToken;
 import org.martus.common.MartusAccountAccessToken.TokenInvalidException;
-import org.martus.common.MartusLogger;
 import org.martus.common.MartusUtilities;
 import org.martus.common.MartusUtilities.FileVerificationException;
 import org.martus.common.bulletinstore.BulletinStore;
@@ -57,7 +56,6 @@ import org.martus.common.database.Database.RecordHiddenException;
 import org.martus.common.database.DatabaseKey;
 import org.martus.common.database.DeleteRequestRecord;
 import org.martus.common.fieldspec.CustomFieldTemplate;
-import org.martus.common.fieldspec.CustomFieldTemplate.FutureVersionException;
 import org.martus.common.network.NetworkInterfaceConstants;
 import org.martus.common.packet.BulletinHeaderPacket;
 import org.martus.common.packet.Packet.InvalidPacketException;
@@ -71,10 +69,126 @@ import org.martus.common.utilities.MartusServerUtilities.MartusSignatureFileDoes
 
 public class ServerBulletinStore extends BulletinStore
 {
+	public ServerBulletinStore()
+	{
+		summaryIndex = new BulletinSummaryIndex(this);
+		headerPacketCache = new HeaderPacketCache(this);
+		headerKeyIndex = new HeaderKeyIndex(this);
+		headerSignatureCache = new HeaderSignatureCache(this);
+		contactInfoCache = new ContactInfoCache();
+		formTemplateCatalog = new FormTemplateCatalog(this);
+		historyAndHqCacheWarmer = new HistoryAndHqCacheWarmer(this);
+		mirroringHashTree = new MirroringHashTree(this);
+		outgoingInterimFileCache = new OutgoingInterimFileCache(this);
+		outgoingInterimPublicOnlyFileCache = new OutgoingInterimFileCache(this);
+	}
+	
+	public void setSummaryIndexDirectory(File indexDirectory)
+	{
+		summaryIndex.setIndexDirectory(indexDirectory);
+	}
+	
+	public BulletinSummaryIndex getSummaryIndex()
+	{
+		return summaryIndex;
+	}
+	
+	public HeaderPacketCache getHeaderPacketCache()
+	{
+		return headerPacketCache;
+	}
+	
+	public HeaderKeyIndex getHeaderKeyIndex()
+	{
+		return headerKeyIndex;
+	}
+	
+	public HeaderSignatureCache getHeaderSignatureCache()
+	{
+		return headerSignatureCache;
+	}
+	
+	public void setHeaderSignatureCacheFile(File cacheFile)
+	{
+		headerSignatureCache.setCacheFile(cacheFile);
+	}
+	
+	public boolean saveHeaderSignatureCache()
+	{
+		return headerSignatureCache.save();
+	}
+	
+	public void setChangeJournalFile(File journalFile)
+	{
+		changeJournal = null;
+		if(journalFile != null)
+			changeJournal = new ChangeJournal(journalFile);
+	}
+	
+	public ChangeJournal getChangeJournal()
+	{
+		return changeJournal;
+	}
+	
+	public void setAccessTokenIndexFile(File indexFile)
+	{
+		accessTokenIndex = null;
+		if(indexFile == null)
+			return;
+		accessTokenIndex = new AccessTokenIndex(indexFile);
+		if(!accessTokenIndex.isLoaded())
+			accessTokenIndex.rebuild(this);
+	}
+	
+	public AccessTokenIndex getAccessTokenIndex()
+	{
+		return accessTokenIndex;
+	}
+	
+	public OutgoingInterimFileCache getOutgoingInterimFileCache()
+	{
+		return outgoingInterimFileCache;
+	}
+	
+	public OutgoingInterimFileCache getOutgoingInterimPublicOnlyFileCache()
+	{
+		return outgoingInterimPublicOnlyFileCache;
+	}
+	
 	public void fillHistoryAndHqCache()
 	{
 		getHistoryAndHqCache().fillCache();
 	}
+	
+	public void startFillingHistoryAndHqCache(LoggerInterface logger)
+	{
+		historyAndHqCacheWarmer.start(logger, Runtime.getRuntime().availableProcessors());
+	}
+	
+	public void setHistoryAndHqCacheSnapshotFile(File snapshotFile)
+	{
+		historyAndHqCacheWarmer.setSnapshotFile(snapshotFile);
+	}
+	
+	public boolean saveHistoryAndHqCacheSnapshot()
+	{
+		return historyAndHqCacheWarmer.saveSnapshot();
+	}
+	
+	public HistoryAndHqCacheWarmer getHistoryAndHqCacheWarmer()
+	{
+		return historyAndHqCacheWarmer;
+	}
+	
+	public void startBuildingMirroringHashTree(LoggerInterface logger)
+	{
+		mirroringHashTree.start(logger);
+	}
+	
+	public MirroringHashTree getMirroringHashTree()
+	{
+		return mirroringHashTree;
+	}
 
 	public void deleteBulletinRevision(DatabaseKey keyToDelete)
 			throws IOException, CryptoException, InvalidPacketException,
@@ -83,6 +197,14 @@ public class ServerBulletinStore extends BulletinStore
 			NoKeyPairException
 	{
 		super.deleteBulletinRevision(keyToDelete);
+		summaryIndex.remove(keyToDelete);
+		headerPacketCache.remove(keyToDelete);
+		headerSignatureCache.remove(keyToDelete);
+		headerKeyIndex.refresh(keyToDelete.getUniversalId());
+		mirroringHashTree.refresh(keyToDelete.getUniversalId());
+		invalidateOutgoingInterimFiles(keyToDelete.getUniversalId());
+		if(changeJournal != null)
+			changeJournal.recordDeleted(keyToDelete.getUniversalId());
 		DatabaseKey burKey = BulletinUploadRecord.getBurKey(keyToDelete);
 		deleteSpecificPacket(burKey);			
 	}
@@ -129,20 +251,37 @@ public class ServerBulletinStore extends BulletinStore
 
 	public boolean doesContactInfoExist(String accountId) throws IOException
 	{
-		File contactFile = getWriteableDatabase().getContactInfoFile(accountId);
+		File contactFile = getContactInfoFile(accountId);
 		return contactFile.exists();
 	}
 	
 	public Vector readContactInfo(String accountId) throws IOException
 	{
-		File contactFile = getWriteableDatabase().getContactInfoFile(accountId);
+		File contactFile = getContactInfoFile(accountId);
 		return ContactInfo.loadFromFile(contactFile);
 	}
 	
 	public void writeContactInfo(String accountId, Vector contactInfo) throws IOException
 	{
-		File contactFile = getWriteableDatabase().getContactInfoFile(accountId);
-		MartusServerUtilities.writeContatctInfo(accountId, contactInfo, contactFile);
+		File contactFile = getContactInfoFile(accountId);
+		try
+		{
+			MartusServerUtilities.writeContatctInfo(accountId, contactInfo, contactFile);
+		}
+		finally
+		{
+			contactInfoCache.invalidate(accountId);
+		}
+	}
+	
+	public File getContactInfoFile(String accountId) throws IOException
+	{
+		return getWriteableDatabase().getContactInfoFile(accountId);
+	}
+	
+	public ContactInfoCache getContactInfoCache()
+	{
+		return contactInfoCache;
 	}
 	
 	public void writeAccessTokens(String accountId, String tokenData) throws IOException, MartusSignatureException, InterruptedException, MartusSignatureFileAlreadyExistsException, TokenInvalidException
@@ -151,9 +290,16 @@ public class ServerBulletinStore extends BulletinStore
 		File tokenFile = getAccessTokenFileForAccount(accountId, currentToken);
 		MartusServerUtilities.writeAccessTokenData(accountId, tokenData, tokenFile);
 		MartusServerUtilities.createSignatureFileFromFileOnServer(tokenFile, getSignatureGenerator());
+		if(accessTokenIndex != null)
+			accessTokenIndex.recordToken(accountId, tokenFile.getName());
+	}
+	
+	public FormTemplateCatalog getFormTemplateCatalog()
+	{
+		return formTemplateCatalog;
 	}
 	
-	public void moveFormTemplateIntoAccount(String accountId, File fromFile, File toFile, LoggerInterface logger) throws IOException, MartusSignatureException, InterruptedException, MartusSignatureFileAlreadyExistsException, TokenInvalidException
+	public void moveFormTemplateIntoAccount(String accountId, File fromFile, File toFile, CustomFieldTemplate template, LoggerInterface logger) throws IOException, MartusSignatureException, InterruptedException, MartusSignatureFileAlreadyExistsException, TokenInvalidException
 	{
 		if(toFile.exists())
 		{
@@ -166,6 +312,13 @@ public class ServerBulletinStore extends BulletinStore
 			String errorMsg = "Unable to Rename temp FormTemplate to account's FormTemplates directory, From TempFile = " + fromFile.getAbsolutePath() + ", To Account Template File = " + toFile.getAbsolutePath();
 			throw new IOException(errorMsg);
 		}
+		formTemplateCatalog.templateSaved(accountId, toFile, template.getTitle(), template.getDescription());
+	}
+	
+	public void setFormTemplateLastModified(String accountId, File templateFile, long lastModifiedMillis)
+	{
+		templateFile.setLastModified(lastModifiedMillis);
+		formTemplateCatalog.templateTouched(accountId, templateFile);
 	}
 	
 	public File getTokenFileForAccount(String accountId) throws IOException, FileNotFoundException 
@@ -270,9 +423,8 @@ public class ServerBulletinStore extends BulletinStore
 		try
 		{
 			zip = new ZipFile(zipFile);
-			BulletinHeaderPacket header = validateZipFilePacketsForImport(zip, authorAccountId);
-			importBulletinZipFile(zip, authorAccountId, mTime);
-			return header;
+			BulletinHeaderPacket header = MartusUtilities.extractHeaderPacket(authorAccountId, zip, getSignatureVerifier());
+			return saveZipFileToDatabase(zip, header, authorAccountId, mTime);
 		}
 		finally
 		{
@@ -281,9 +433,38 @@ public class ServerBulletinStore extends BulletinStore
 		}
 	}
 
+	public BulletinHeaderPacket saveZipFileToDatabase(ZipFile zip, BulletinHeaderPacket verifiedHeader, String authorAccountId, long mTime) throws
+			Exception
+	{
+		validateZipFilePacketsForImport(zip, verifiedHeader, authorAccountId);
+		importBulletinZipFile(zip, authorAccountId, mTime);
+		summaryIndex.update(verifiedHeader);
+		headerPacketCache.remove(verifiedHeader.createKeyWithHeaderStatus(verifiedHeader.getUniversalId()));
+		headerSignatureCache.recordImported(verifiedHeader.createKeyWithHeaderStatus(verifiedHeader.getUniversalId()));
+		historyAndHqCacheWarmer.bulletinSaved(verifiedHeader);
+		headerKeyIndex.refresh(verifiedHeader.getUniversalId());
+		mirroringHashTree.refresh(verifiedHeader.getUniversalId());
+		invalidateOutgoingInterimFiles(verifiedHeader.getUniversalId());
+		if(changeJournal != null)
+			changeJournal.recordSaved(verifiedHeader.getUniversalId());
+		return verifiedHeader;
+	}
+
+	private void invalidateOutgoingInterimFiles(UniversalId uid)
+	{
+		outgoingInterimFileCache.invalidate(uid);
+		outgoingInterimPublicOnlyFileCache.invalidate(uid);
+	}
+
 	public BulletinHeaderPacket validateZipFilePacketsForImport(ZipFile zip, String authorAccountId) throws Exception 
 	{
 		BulletinHeaderPacket header = MartusUtilities.extractHeaderPacket(authorAccountId, zip, getSignatureVerifier());
+		validateZipFilePacketsForImport(zip, header, authorAccountId);
+		return header;
+	}
+
+	public void validateZipFilePacketsForImport(ZipFile zip, BulletinHeaderPacket header, String authorAccountId) throws Exception 
+	{
 		Enumeration entries = zip.entries();
 		while(entries.hasMoreElements())
 		{
@@ -298,8 +479,6 @@ public class ServerBulletinStore extends BulletinStore
 				throw new DuplicatePacketException(entry.getName());
 			}
 		}
-		
-		return header;
 	}
 	
 	public Vector getFieldOfficeAccountIdsWithResultCode(String hqAccountId, LoggerInterface logger)
@@ -308,9 +487,19 @@ public class ServerBulletinStore extends BulletinStore
 		
 		try
 		{
-			Vector fieldOfficeAccounts = getFieldOffices(hqAccountId);
-			if(hadErrorsWhileCacheing())
-				throw new Exception();
+			Vector fieldOfficeAccounts;
+			if(historyAndHqCacheWarmer.isWarming())
+			{
+				fieldOfficeAccounts = historyAndHqCacheWarmer.getFieldOffices(hqAccountId);
+				if(historyAndHqCacheWarmer.hadErrors())
+					throw new Exception();
+			}
+			else
+			{
+				fieldOfficeAccounts = getFieldOffices(hqAccountId);
+				if(hadErrorsWhileCacheing())
+					throw new Exception();
+			}
 			results.add(NetworkInterfaceConstants.OK);
 			results.addAll(fieldOfficeAccounts);
 		}
@@ -326,28 +515,7 @@ public class ServerBulletinStore extends BulletinStore
 	public Vector getFormTemplateTitleAndDescriptionsForAccount(
 			String accountToGetFormsFrom, MartusCrypto security) throws Exception 
 	{
-		Vector formsTemplateFiles = getListOfFormTemplatesForAccount(accountToGetFormsFrom);
-		int numberOfForms = formsTemplateFiles.size();
-		Vector formTemplatesTitleAndDescriptions = new Vector();
-		for(int i = 0; i < numberOfForms; ++i)
-		{
-			try
-			{
-				CustomFieldTemplate formTemplate = new CustomFieldTemplate();
-				File fileToImport = (File)formsTemplateFiles.get(i);
-				formTemplate.importTemplate(fileToImport, security);
-				Vector currentFormVectorToAdd = new Vector();
-				currentFormVectorToAdd.add(formTemplate.getTitle());
-				currentFormVectorToAdd.add(formTemplate.getDescription());
-				formTemplatesTitleAndDescriptions.add(currentFormVectorToAdd.toArray());
-			} 
-			catch (FutureVersionException eLogExceptionButContinueWithRemainingValidForms) 
-			{
-				MartusLogger.logException(eLogExceptionButContinueWithRemainingValidForms);
-			}
-			
-		}
-		return formTemplatesTitleAndDescriptions;
+		return formTemplateCatalog.getTitlesAndDescriptions(accountToGetFormsFrom, security);
 	}
 
 	public static class DuplicatePacketException extends Exception
@@ -368,4 +536,16 @@ public class ServerBulletinStore extends BulletinStore
 
 	}
 	
+	private BulletinSummaryIndex summaryIndex;
+	private HeaderPacketCache headerPacketCache;
+	private HeaderKeyIndex headerKeyIndex;
+	private HeaderSignatureCache headerSignatureCache;
+	private ContactInfoCache contactInfoCache;
+	private FormTemplateCatalog formTemplateCatalog;
+	private HistoryAndHqCacheWarmer historyAndHqCacheWarmer;
+	private MirroringHashTree mirroringHashTree;
+	private OutgoingInterimFileCache outgoingInterimFileCache;
+	private OutgoingInterimFileCache outgoingInterimPublicOnlyFileCache;
+	private ChangeJournal changeJournal;
+	private AccessTokenIndex accessTokenIndex;
 }
@@ -0,0 +1,106 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+
+import org.martus.common.database.FileDatabase;
+import org.martus.util.TestCaseEnhanced;
+import org.martus.util.UnicodeWriter;
+
+
+public class TestAccessTokenIndex extends TestCaseEnhanced
+{
+	public TestAccessTokenIndex(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		indexFile = createTempFile();
+		indexFile.delete();
+	}
+
+	public void tearDown() throws Exception
+	{
+		indexFile.delete();
+		super.tearDown();
+	}
+
+	public void testMissingFile() throws Exception
+	{
+		AccessTokenIndex index = new AccessTokenIndex(indexFile);
+		assertFalse("loaded a missing file?", index.isLoaded());
+		assertNull(index.findAccountId("1234567"));
+	}
+
+	public void testRecordAndReload() throws Exception
+	{
+		AccessTokenIndex index = new AccessTokenIndex(indexFile);
+		index.recordToken("account1", FileDatabase.buildTokenFilename("1111111"));
+		index.recordToken("account2", FileDatabase.buildTokenFilename("2222222"));
+		assertEquals("account1", index.findAccountId("1111111"));
+		assertEquals("account2", index.findAccountId("2222222"));
+		assertNull(index.findAccountId("3333333"));
+
+		AccessTokenIndex reloaded = new AccessTokenIndex(indexFile);
+		assertTrue("didn't load?", reloaded.isLoaded());
+		assertEquals(2, reloaded.getAccountCount());
+		assertEquals("account1", reloaded.findAccountId("1111111"));
+		assertEquals("account2", reloaded.findAccountId("2222222"));
+	}
+
+	public void testNewTokenReplacesOld() throws Exception
+	{
+		AccessTokenIndex index = new AccessTokenIndex(indexFile);
+		index.recordToken("account1", FileDatabase.buildTokenFilename("1111111"));
+		index.recordToken("account1", FileDatabase.buildTokenFilename("4444444"));
+		assertNull("kept old token?", index.findAccountId("1111111"));
+		assertEquals("account1", index.findAccountId("4444444"));
+		assertEquals(FileDatabase.buildTokenFilename("4444444"), index.getTokenFilename("account1"));
+
+		AccessTokenIndex reloaded = new AccessTokenIndex(indexFile);
+		assertNull("kept old token?", reloaded.findAccountId("1111111"));
+		assertEquals("account1", reloaded.findAccountId("4444444"));
+		assertEquals(1, reloaded.getAccountCount());
+	}
+
+	public void testDamagedFile() throws Exception
+	{
+		UnicodeWriter writer = new UnicodeWriter(indexFile);
+		writer.writeln("not a valid line");
+		writer.close();
+		AccessTokenIndex index = new AccessTokenIndex(indexFile);
+		assertFalse("loaded a damaged file?", index.isLoaded());
+		assertEquals(0, index.getAccountCount());
+	}
+
+	File indexFile;
+}
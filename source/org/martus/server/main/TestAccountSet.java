@@ -0,0 +1,92 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.util.Vector;
+
+import org.martus.util.TestCaseEnhanced;
+import org.martus.util.UnicodeWriter;
+
+
+public class TestAccountSet extends TestCaseEnhanced
+{
+	public TestAccountSet(String name)
+	{
+		super(name);
+	}
+
+	public void testBasics() throws Exception
+	{
+		Vector initial = new Vector();
+		initial.add(ACCOUNT1);
+		AccountSet accounts = new AccountSet(initial);
+		assertTrue(accounts.contains(ACCOUNT1));
+		assertFalse(accounts.contains(ACCOUNT2));
+		assertFalse("contains null?", accounts.contains(null));
+
+		accounts.add(ACCOUNT2);
+		assertEquals(2, accounts.size());
+		assertTrue(accounts.contains(ACCOUNT2));
+		accounts.remove(ACCOUNT1);
+		assertFalse(accounts.contains(ACCOUNT1));
+		accounts.clear();
+		assertEquals(0, accounts.size());
+		initial.clear();
+		assertEquals("not a copy?", 0, new AccountSet(initial).size());
+	}
+
+	public void testReloadIfChanged() throws Exception
+	{
+		File listFile = createTempFile();
+		writeList(listFile, ACCOUNT1);
+		Vector initial = new Vector();
+		initial.add(ACCOUNT1);
+		ReloadableAccountSet accounts = new ReloadableAccountSet(listFile, initial);
+		assertFalse("reloaded unchanged file?", accounts.reloadIfChanged());
+
+		writeList(listFile, ACCOUNT2);
+		listFile.setLastModified(listFile.lastModified() + 2000);
+		assertTrue("didn't reload?", accounts.reloadIfChanged());
+		assertFalse(accounts.contains(ACCOUNT1));
+		assertTrue(accounts.contains(ACCOUNT2));
+
+		listFile.delete();
+		assertFalse("reloaded missing file?", accounts.reloadIfChanged());
+		assertTrue("forgot accounts when file was deleted?", accounts.contains(ACCOUNT2));
+	}
+
+	private void writeList(File listFile, String accountId) throws Exception
+	{
+		UnicodeWriter writer = new UnicodeWriter(listFile);
+		writer.writeln(accountId);
+		writer.close();
+	}
+
+	static final String ACCOUNT1 = "account one";
+	static final String ACCOUNT2 = "account two, longer";
+}
@@ -0,0 +1,114 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+
+import org.martus.util.DirectoryUtils;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestAdminTriggerWatcher extends TestCaseEnhanced
+{
+	public TestAdminTriggerWatcher(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		triggerDirectory = createTempDirectory();
+		logger = new TestAsyncLogger.RecordingLogger();
+		watcher = new AdminTriggerWatcher(triggerDirectory, logger);
+		watcher.setPollIntervalMillis(10);
+	}
+
+	public void tearDown() throws Exception
+	{
+		watcher.stop();
+		DirectoryUtils.deleteEntireDirectoryTree(triggerDirectory);
+		super.tearDown();
+	}
+
+	public void testChecksFileUntilStarted() throws Exception
+	{
+		File exitFile = new File(triggerDirectory, "exit");
+		assertFalse(watcher.isWatching());
+		assertFalse(watcher.isTriggered("exit"));
+		exitFile.createNewFile();
+		assertTrue("didn't see new file?", watcher.isTriggered("exit"));
+		exitFile.delete();
+		assertFalse("didn't see deletion?", watcher.isTriggered("exit"));
+	}
+
+	public void testRefresh() throws Exception
+	{
+		File exitFile = new File(triggerDirectory, "exit");
+		exitFile.createNewFile();
+		watcher.start();
+		exitFile.delete();
+		new File(triggerDirectory, "other").createNewFile();
+
+		watcher.refresh();
+		assertFalse("kept deleted file?", watcher.isTriggered("exit"));
+		assertTrue("missed new file?", watcher.isTriggered("other"));
+	}
+
+	public void testFollowsDirectory() throws Exception
+	{
+		File exitFile = new File(triggerDirectory, "exit");
+		exitFile.createNewFile();
+		watcher.start();
+		assertTrue(watcher.isWatching());
+		assertTrue("missed existing file?", watcher.isTriggered("exit"));
+
+		exitFile.delete();
+		assertTrue("didn't see deletion?", waitFor("exit", false));
+		exitFile.createNewFile();
+		assertTrue("didn't see new file?", waitFor("exit", true));
+	}
+
+	private boolean waitFor(String triggerFileName, boolean expected) throws Exception
+	{
+		long giveUpAt = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+		while(System.currentTimeMillis() < giveUpAt)
+		{
+			if(watcher.isTriggered(triggerFileName) == expected)
+				return true;
+			Thread.sleep(10);
+		}
+		return false;
+	}
+
+	private static final long MAX_WAIT_MILLIS = 30 * 1000;
+
+	File triggerDirectory;
+	TestAsyncLogger.RecordingLogger logger;
+	AdminTriggerWatcher watcher;
+}
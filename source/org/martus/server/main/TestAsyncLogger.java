@@ -0,0 +1,131 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.util.Vector;
+
+import org.martus.common.LoggerInterface;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestAsyncLogger extends TestCaseEnhanced
+{
+	public TestAsyncLogger(String name)
+	{
+		super(name);
+	}
+
+	public void testWritesInOrder() throws Exception
+	{
+		RecordingLogger destination = new RecordingLogger();
+		AsyncLogger logger = new AsyncLogger(destination, 10);
+		logger.logDebug("one");
+		logger.logNotice("two");
+		logger.logError("three", new Exception("oops"));
+		assertEquals(3, logger.getQueuedCount());
+		assertEquals("wrote before flush?", 0, destination.logged.size());
+
+		logger.flush();
+		assertEquals(0, logger.getQueuedCount());
+		assertEquals(4, destination.logged.size());
+		assertEquals("debug:one", destination.logged.get(0));
+		assertEquals("notice:two", destination.logged.get(1));
+		assertEquals("error:three", destination.logged.get(2));
+		assertEquals("exception:oops", destination.logged.get(3));
+	}
+
+	public void testDropsWhenFull() throws Exception
+	{
+		RecordingLogger destination = new RecordingLogger();
+		AsyncLogger logger = new AsyncLogger(destination, 2);
+		logger.logInfo("kept1");
+		logger.logInfo("kept2");
+		logger.logDebug("dropped");
+		logger.logInfo("dropped");
+		assertEquals(2, logger.getDroppedCount());
+
+		logger.flush();
+		assertEquals(3, destination.logged.size());
+		assertEquals("info:kept1", destination.logged.get(0));
+		assertEquals("info:kept2", destination.logged.get(1));
+		assertStartsWith("no dropped warning?", "warning:", (String)destination.logged.get(2));
+		assertEquals("didn't reset dropped count?", 0, logger.getDroppedCount());
+	}
+
+	public void testWriterThread() throws Exception
+	{
+		RecordingLogger destination = new RecordingLogger();
+		AsyncLogger logger = new AsyncLogger(destination);
+		logger.start();
+		logger.logWarning("hello");
+		for(int i = 0; i < 100 && logger.getQueuedCount() > 0; ++i)
+			Thread.sleep(10);
+		logger.flush();
+		assertEquals("warning:hello", destination.logged.get(0));
+	}
+
+	static class RecordingLogger implements LoggerInterface
+	{
+		public void logDebug(String message)
+		{
+			logged.add("debug:" + message);
+		}
+
+		public void logError(String message)
+		{
+			logged.add("error:" + message);
+		}
+
+		public void logError(Exception e)
+		{
+			logged.add("exception:" + e.getMessage());
+		}
+
+		public void logError(String message, Exception e)
+		{
+			logError(message);
+			logError(e);
+		}
+
+		public void logInfo(String message)
+		{
+			logged.add("info:" + message);
+		}
+
+		public void logNotice(String message)
+		{
+			logged.add("notice:" + message);
+		}
+
+		public void logWarning(String message)
+		{
+			logged.add("warning:" + message);
+		}
+
+		Vector logged = new Vector();
+	}
+}
@@ -0,0 +1,218 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.util.Vector;
+
+import org.martus.common.HeadquartersKey;
+import org.martus.common.HeadquartersKeys;
+import org.martus.common.bulletin.Bulletin;
+import org.martus.common.bulletin.BulletinZipUtilities;
+import org.martus.common.bulletinstore.BulletinStore;
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.database.Database.PacketVisitor;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.MockClientDatabase;
+import org.martus.common.database.MockServerDatabase;
+import org.martus.util.DirectoryUtils;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestBulletinSummaryIndex extends TestCaseEnhanced
+{
+	public TestBulletinSummaryIndex(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		authorSecurity = MockMartusSecurity.createClient();
+		hqSecurity = MockMartusSecurity.createHQ();
+		serverDatabase = new MockServerDatabase();
+		store = createServerStore();
+
+		clientStore = new BulletinStore();
+		clientStore.setSignatureGenerator(authorSecurity);
+		clientStore.setDatabase(new MockClientDatabase());
+
+		bulletin = new Bulletin(authorSecurity);
+		bulletin.setAuthorizedToReadKeys(new HeadquartersKeys(new HeadquartersKey(hqSecurity.getPublicKeyString())));
+		bulletin.setSealed();
+		clientStore.saveBulletinForTesting(bulletin);
+
+		zip = createTempFile();
+		BulletinZipUtilities.exportBulletinPacketsFromDatabaseToZipFile(clientStore.getDatabase(), bulletin.getDatabaseKey(), zip, authorSecurity);
+		indexDirectory = createTempDirectory();
+	}
+
+	public void tearDown() throws Exception
+	{
+		zip.delete();
+		DirectoryUtils.deleteEntireDirectoryTree(indexDirectory);
+		clientStore.deleteAllData();
+		store.deleteAllData();
+		super.tearDown();
+	}
+
+	public void testImportUpdatesIndex() throws Exception
+	{
+		store.saveZipFileToDatabase(zip, authorSecurity.getPublicKeyString());
+		BulletinSummaryIndex index = store.getSummaryIndex();
+
+		DatabaseKey key = bulletin.getDatabaseKey();
+		BulletinSummaryIndex.Entry entry = index.getEntry(key);
+		assertEquals("didn't use the imported entry?", 0, index.getMissCount());
+		assertEquals(1, index.getHitCount());
+		assertEquals(bulletin.getLocalId(), entry.getLocalId());
+		assertEquals(bulletin.getFieldDataPacket().getLocalId(), entry.getFieldDataPacketId());
+		assertEquals(bulletin.getLastSavedTime(), entry.getLastSavedTime());
+		assertTrue("not sealed?", entry.isSealed());
+		assertTrue("hq not authorized?", entry.isHQAuthorizedToRead(hqSecurity.getPublicKeyString()));
+		assertFalse("author is not an hq", entry.isHQAuthorizedToRead(authorSecurity.getPublicKeyString()));
+
+		store.deleteBulletinRevision(key);
+		store.saveZipFileToDatabase(zip, authorSecurity.getPublicKeyString());
+		assertEquals(bulletin.getLocalId(), index.getEntry(key).getLocalId());
+	}
+
+	public void testLoadsMissingEntry() throws Exception
+	{
+		store.saveZipFileToDatabase(zip, authorSecurity.getPublicKeyString());
+		ServerBulletinStore otherStore = createServerStore();
+		BulletinSummaryIndex index = otherStore.getSummaryIndex();
+
+		BulletinSummaryIndex.Entry entry = index.getEntry(bulletin.getDatabaseKey());
+		assertEquals(1, index.getMissCount());
+		assertEquals(bulletin.getFieldDataPacket().getLocalId(), entry.getFieldDataPacketId());
+		index.getEntry(bulletin.getDatabaseKey());
+		assertEquals(1, index.getMissCount());
+		assertEquals(1, index.getHitCount());
+	}
+
+	public void testPersistence() throws Exception
+	{
+		store.setSummaryIndexDirectory(indexDirectory);
+		store.saveZipFileToDatabase(zip, authorSecurity.getPublicKeyString());
+
+		ServerBulletinStore restartedStore = createServerStore();
+		restartedStore.setSummaryIndexDirectory(indexDirectory);
+		BulletinSummaryIndex index = restartedStore.getSummaryIndex();
+		BulletinSummaryIndex.Entry entry = index.getEntry(bulletin.getDatabaseKey());
+		assertEquals("didn't read the index file?", 0, index.getMissCount());
+		assertEquals(bulletin.getLastSavedTime(), entry.getLastSavedTime());
+		assertTrue("lost hq key?", entry.isHQAuthorizedToRead(hqSecurity.getPublicKeyString()));
+
+		index.remove(bulletin.getDatabaseKey());
+		ServerBulletinStore secondRestart = createServerStore();
+		secondRestart.setSummaryIndexDirectory(indexDirectory);
+		secondRestart.getSummaryIndex().getEntry(bulletin.getDatabaseKey());
+		assertEquals("didn't remember removal?", 1, secondRestart.getSummaryIndex().getMissCount());
+	}
+
+	public void testEntriesForAccount() throws Exception
+	{
+		String accountId = authorSecurity.getPublicKeyString();
+		store.saveZipFileToDatabase(zip, accountId);
+
+		ServerBulletinStore restartedStore = createServerStore();
+		restartedStore.setSummaryIndexDirectory(indexDirectory);
+		Vector entries = restartedStore.getSummaryIndex().getEntriesForAccount(accountId);
+		assertEquals(1, entries.size());
+		assertEquals(bulletin.getLocalId(), ((BulletinSummaryIndex.Entry)entries.get(0)).getLocalId());
+
+		ServerBulletinStore secondRestart = createServerStore();
+		secondRestart.setSummaryIndexDirectory(indexDirectory);
+		BulletinSummaryIndex index = secondRestart.getSummaryIndex();
+		assertEquals(1, index.getEntriesForAccount(accountId).size());
+		assertEquals("indexed the account again?", 0, index.getMissCount());
+		assertEquals("checked the headers again?", 0, index.getHitCount());
+
+		secondRestart.deleteBulletinRevision(bulletin.getDatabaseKey());
+		assertEquals("didn't drop deleted bulletin?", 0, index.getEntriesForAccount(accountId).size());
+	}
+
+	public void testUploadWhileIndexingAccount() throws Exception
+	{
+		final String accountId = authorSecurity.getPublicKeyString();
+		store.saveZipFileToDatabase(zip, accountId);
+
+		Bulletin uploaded = new Bulletin(authorSecurity);
+		uploaded.setSealed();
+		clientStore.saveBulletinForTesting(uploaded);
+		final File uploadedZip = createTempFile();
+		BulletinZipUtilities.exportBulletinPacketsFromDatabaseToZipFile(clientStore.getDatabase(), uploaded.getDatabaseKey(), uploadedZip, authorSecurity);
+		try
+		{
+			ServerBulletinStore uploadingStore = new ServerBulletinStore()
+			{
+				public void visitAllBulletinsForAccount(PacketVisitor visitor, String accountString)
+				{
+					super.visitAllBulletinsForAccount(visitor, accountString);
+					try
+					{
+						saveZipFileToDatabase(uploadedZip, accountId);
+					}
+					catch(Exception e)
+					{
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			uploadingStore.setDatabase(serverDatabase);
+			uploadingStore.setSignatureGenerator(MockMartusSecurity.createServer());
+
+			BulletinSummaryIndex index = uploadingStore.getSummaryIndex();
+			assertEquals("lost the upload?", 2, index.getEntriesForAccount(accountId).size());
+			assertEquals("lost the upload later?", 2, index.getEntriesForAccount(accountId).size());
+		}
+		finally
+		{
+			uploadedZip.delete();
+		}
+	}
+
+	private ServerBulletinStore createServerStore() throws Exception
+	{
+		ServerBulletinStore serverStore = new ServerBulletinStore();
+		serverStore.setDatabase(serverDatabase);
+		serverStore.setSignatureGenerator(MockMartusSecurity.createServer());
+		return serverStore;
+	}
+
+	MartusCrypto authorSecurity;
+	MartusCrypto hqSecurity;
+	MockServerDatabase serverDatabase;
+	ServerBulletinStore store;
+	BulletinStore clientStore;
+	Bulletin bulletin;
+	File zip;
+	File indexDirectory;
+}
@@ -0,0 +1,141 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.util.Vector;
+
+import org.martus.common.packet.UniversalId;
+import org.martus.common.test.UniversalIdForTesting;
+import org.martus.util.DirectoryUtils;
+import org.martus.util.TestCaseEnhanced;
+import org.martus.util.UnicodeWriter;
+
+
+public class TestChangeJournal extends TestCaseEnhanced
+{
+	public TestChangeJournal(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		journalDirectory = createTempDirectory();
+		journalFile = new File(journalDirectory, ChangeJournal.CHANGE_JOURNAL_FILENAME);
+	}
+
+	public void tearDown() throws Exception
+	{
+		DirectoryUtils.deleteEntireDirectoryTree(journalDirectory);
+		super.tearDown();
+	}
+
+	public void testChangesSinceCursor() throws Exception
+	{
+		ChangeJournal journal = new ChangeJournal(journalFile);
+		ChangeJournal.Changes unknown = journal.getChangesSince("", 100);
+		assertTrue("accepted empty cursor?", unknown.isFullListingRequired());
+		String start = unknown.getCursor();
+
+		UniversalId uid1 = UniversalIdForTesting.createDummyUniversalId();
+		UniversalId uid2 = UniversalIdForTesting.createDummyUniversalId();
+		journal.recordSaved(uid1);
+		journal.recordSaved(uid2);
+		journal.recordDeleted(uid1);
+		assertEquals(3, journal.getSequence());
+		assertEquals("kept superseded change?", 2, journal.getChangeCount());
+
+		ChangeJournal.Changes changes = journal.getChangesSince(start, 100);
+		assertFalse(changes.isFullListingRequired());
+		assertFalse(changes.hasMore());
+		Vector list = changes.getChanges();
+		assertEquals(2, list.size());
+		assertEquals(uid2, ((ChangeJournal.Change)list.get(0)).getUid());
+		assertEquals(uid1, ((ChangeJournal.Change)list.get(1)).getUid());
+		assertTrue(((ChangeJournal.Change)list.get(1)).isDeleted());
+		assertEquals(journal.getCursor(), changes.getCursor());
+
+		assertEquals(0, journal.getChangesSince(changes.getCursor(), 100).getChanges().size());
+	}
+
+	public void testPaging() throws Exception
+	{
+		ChangeJournal journal = new ChangeJournal(journalFile);
+		String start = journal.getCursor();
+		for(int i = 0; i < 5; ++i)
+			journal.recordSaved(UniversalIdForTesting.createDummyUniversalId());
+
+		ChangeJournal.Changes first = journal.getChangesSince(start, 3);
+		assertEquals(3, first.getChanges().size());
+		assertTrue("no more?", first.hasMore());
+		ChangeJournal.Changes second = journal.getChangesSince(first.getCursor(), 3);
+		assertEquals(2, second.getChanges().size());
+		assertFalse("still more?", second.hasMore());
+	}
+
+	public void testReload() throws Exception
+	{
+		ChangeJournal journal = new ChangeJournal(journalFile);
+		String start = journal.getCursor();
+		UniversalId uid = UniversalIdForTesting.createDummyUniversalId();
+		journal.recordSaved(uid);
+
+		ChangeJournal reloaded = new ChangeJournal(journalFile);
+		assertEquals(journal.getCursor(), reloaded.getCursor());
+		ChangeJournal.Changes changes = reloaded.getChangesSince(start, 100);
+		assertFalse("lost journal id?", changes.isFullListingRequired());
+		assertEquals(uid, ((ChangeJournal.Change)changes.getChanges().get(0)).getUid());
+	}
+
+	public void testDamagedJournalStartsOver() throws Exception
+	{
+		ChangeJournal journal = new ChangeJournal(journalFile);
+		journal.recordSaved(UniversalIdForTesting.createDummyUniversalId());
+		String oldCursor = journal.getCursor();
+
+		UnicodeWriter writer = new UnicodeWriter(journalFile, UnicodeWriter.APPEND);
+		writer.writeln("not a change");
+		writer.close();
+
+		ChangeJournal reloaded = new ChangeJournal(journalFile);
+		assertTrue("accepted cursor from damaged journal?", reloaded.getChangesSince(oldCursor, 100).isFullListingRequired());
+	}
+
+	public void testCursorFromTheFuture() throws Exception
+	{
+		ChangeJournal journal = new ChangeJournal(journalFile);
+		String cursor = journal.getCursor();
+		String future = cursor.substring(0, cursor.indexOf(':') + 1) + "99";
+		assertTrue(journal.getChangesSince(future, 100).isFullListingRequired());
+	}
+
+	File journalDirectory;
+	File journalFile;
+}
@@ -0,0 +1,86 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import org.martus.util.TestCaseEnhanced;
+
+public class TestChunkSizePolicy extends TestCaseEnhanced
+{
+	public TestChunkSizePolicy(String name)
+	{
+		super(name);
+	}
+
+	public void testPlentyOfMemory() throws Exception
+	{
+		FakeMemoryPolicy policy = new FakeMemoryPolicy(Long.MAX_VALUE);
+		policy.setMaxChunkSize(MB);
+		assertEquals(1000, policy.capChunkSize(1000));
+		assertEquals(MB, policy.capChunkSize(10 * MB));
+		assertEquals(1, policy.getCappedForSizeCount());
+		assertEquals(0, policy.getCappedForMemoryCount());
+	}
+
+	public void testMemoryPressure() throws Exception
+	{
+		FakeMemoryPolicy policy = new FakeMemoryPolicy(64L * 100 * 1024);
+		policy.setMaxChunkSize(MB);
+		assertEquals(100 * 1024, policy.getCurrentCap());
+		assertEquals(100 * 1024, policy.capChunkSize(MB));
+		assertEquals(1, policy.getCappedForMemoryCount());
+		assertEquals(0, policy.getCappedForSizeCount());
+
+		policy.availableMemory = 0;
+		assertEquals(ChunkSizePolicy.MIN_CHUNK_SIZE, policy.capChunkSize(MB));
+	}
+
+	public void testMinimumMaxChunkSize() throws Exception
+	{
+		ChunkSizePolicy policy = new ChunkSizePolicy();
+		assertEquals(ChunkSizePolicy.DEFAULT_MAX_CHUNK_SIZE, policy.getMaxChunkSize());
+		policy.setMaxChunkSize(1);
+		assertEquals(ChunkSizePolicy.MIN_CHUNK_SIZE, policy.getMaxChunkSize());
+	}
+
+	static class FakeMemoryPolicy extends ChunkSizePolicy
+	{
+		FakeMemoryPolicy(long availableMemoryToUse)
+		{
+			availableMemory = availableMemoryToUse;
+		}
+
+		long getAvailableMemory()
+		{
+			return availableMemory;
+		}
+
+		long availableMemory;
+	}
+
+	private static final int MB = 1024 * 1024;
+}
@@ -0,0 +1,107 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Vector;
+
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestContactInfoCache extends TestCaseEnhanced
+{
+	public TestContactInfoCache(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		contactFile = createTempFile();
+		writeContactFile(10);
+		encoded = new Vector();
+		encoded.add("encoded");
+		cache = new ContactInfoCache();
+	}
+
+	public void tearDown() throws Exception
+	{
+		contactFile.delete();
+		super.tearDown();
+	}
+
+	public void testHit() throws Exception
+	{
+		assertNull(cache.get("account", contactFile));
+		cache.put("account", contactFile.lastModified(), contactFile.length(), encoded);
+		Vector got = cache.get("account", contactFile);
+		assertEquals(encoded, got);
+		assertNotSame("shared our vector?", encoded, got);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getEntryCount());
+	}
+
+	public void testFileChanged() throws Exception
+	{
+		cache.put("account", contactFile.lastModified(), contactFile.length(), encoded);
+		writeContactFile(20);
+		assertNull("used stale entry?", cache.get("account", contactFile));
+	}
+
+	public void testInvalidate() throws Exception
+	{
+		cache.put("account", contactFile.lastModified(), contactFile.length(), encoded);
+		cache.invalidate("account");
+		assertNull(cache.get("account", contactFile));
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws Exception
+	{
+		cache.setMaxEntries(1);
+		cache.put("first", contactFile.lastModified(), contactFile.length(), encoded);
+		cache.put("second", contactFile.lastModified(), contactFile.length(), encoded);
+		assertNull(cache.get("first", contactFile));
+		assertNotNull(cache.get("second", contactFile));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	private void writeContactFile(int length) throws Exception
+	{
+		FileOutputStream out = new FileOutputStream(contactFile);
+		out.write(new byte[length]);
+		out.close();
+	}
+
+	File contactFile;
+	Vector encoded;
+	ContactInfoCache cache;
+}
@@ -0,0 +1,174 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Vector;
+
+import org.martus.common.FieldCollection;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.database.MockServerDatabase;
+import org.martus.common.fieldspec.CustomFieldTemplate;
+import org.martus.common.fieldspec.StandardFieldSpecs;
+import org.martus.server.forclients.ServerForClients;
+import org.martus.util.StreamableBase64;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestFormTemplateCatalog extends TestCaseEnhanced
+{
+	public TestFormTemplateCatalog(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		security = MockMartusSecurity.createServer();
+		store = new ServerBulletinStore();
+		store.setDatabase(new MockServerDatabase());
+		store.setSignatureGenerator(security);
+		accountId = MockMartusSecurity.createClient().getPublicKeyString();
+		catalog = store.getFormTemplateCatalog();
+	}
+
+	public void tearDown() throws Exception
+	{
+		store.deleteAllData();
+		super.tearDown();
+	}
+
+	public void testListsWithoutRescanning() throws Exception
+	{
+		assertEquals(0, catalog.getTitlesAndDescriptions(accountId, security).size());
+		saveTemplate("First");
+		saveTemplate("Second");
+		Vector titlesAndDescriptions = catalog.getTitlesAndDescriptions(accountId, security);
+		assertEquals(2, titlesAndDescriptions.size());
+		assertEquals("rescanned after save?", 1, catalog.getScanCount());
+
+		Vector<FormTemplateCatalog.Entry> entries = catalog.getEntries(accountId, security);
+		Vector files = store.getListOfFormTemplatesForAccount(accountId);
+		assertEquals(files.size(), entries.size());
+		for(int i = 0; i < files.size(); ++i)
+		{
+			File file = (File)files.get(i);
+			FormTemplateCatalog.Entry entry = entries.get(i);
+			assertEquals("wrong order?", file.getName(), entry.getFilename());
+			assertEquals(file.lastModified(), entry.getLastModified());
+			assertEquals(file.length(), entry.getSize());
+			Object[] titleAndDescription = (Object[])titlesAndDescriptions.get(i);
+			assertEquals(entry.getTitle(), titleAndDescription[0]);
+			assertEquals(DESCRIPTION, titleAndDescription[1]);
+		}
+	}
+
+	public void testCachesPayload() throws Exception
+	{
+		saveTemplate("First");
+		String filename = ServerForClients.calculateFileNameFromString("First");
+		File file = store.getFormTemplateFileFromAccount(accountId, filename);
+		String expected = StreamableBase64.readAllAndEncodeBase64(file);
+		assertEquals(expected, catalog.getBase64(accountId, filename, security));
+		assertEquals(expected, catalog.getBase64(accountId, filename, security));
+		assertEquals(1, catalog.getPayloadMissCount());
+		assertEquals(1, catalog.getPayloadHitCount());
+		assertEquals(expected.length(), catalog.getPayloadBytes());
+
+		saveTemplate("First");
+		assertEquals("kept replaced payload?", 0, catalog.getPayloadBytes());
+	}
+
+	public void testPayloadBudget() throws Exception
+	{
+		catalog.setMaxPayloadBytes(0);
+		saveTemplate("First");
+		String filename = ServerForClients.calculateFileNameFromString("First");
+		catalog.getBase64(accountId, filename, security);
+		catalog.getBase64(accountId, filename, security);
+		assertEquals(0, catalog.getPayloadBytes());
+		assertEquals(2, catalog.getPayloadMissCount());
+	}
+
+	public void testMissingTemplate() throws Exception
+	{
+		saveTemplate("First");
+		try
+		{
+			catalog.getBase64(accountId, "no such template", security);
+			fail("Should have thrown");
+		}
+		catch(FileNotFoundException ignoreExpected)
+		{
+		}
+	}
+
+	public void testNoticesChangesBehindOurBack() throws Exception
+	{
+		saveTemplate("First");
+		saveTemplate("Second");
+		assertEquals(2, catalog.getTitlesAndDescriptions(accountId, security).size());
+
+		File folder = store.getAbsoluteFormTemplatesFolderForAccount(accountId);
+		long folderLastModified = folder.lastModified();
+		store.getFormTemplateFileFromAccount(accountId, ServerForClients.calculateFileNameFromString("First")).delete();
+		folder.setLastModified(folderLastModified + 10000);
+		assertEquals(1, catalog.getTitlesAndDescriptions(accountId, security).size());
+		assertEquals(2, catalog.getScanCount());
+	}
+
+	public void testSetLastModified() throws Exception
+	{
+		saveTemplate("First");
+		String filename = ServerForClients.calculateFileNameFromString("First");
+		File file = store.getFormTemplateFileFromAccount(accountId, filename);
+		long mirroredTime = (file.lastModified() / 1000 - 1000) * 1000;
+		store.setFormTemplateLastModified(accountId, file, mirroredTime);
+		FormTemplateCatalog.Entry entry = catalog.getEntries(accountId, security).get(0);
+		assertEquals(mirroredTime, entry.getLastModified());
+		assertEquals(1, catalog.getScanCount());
+	}
+
+	private void saveTemplate(String title) throws Exception
+	{
+		FieldCollection topSection = new FieldCollection(StandardFieldSpecs.getDefaultTopSetionFieldSpecs());
+		FieldCollection bottomSection = new FieldCollection(StandardFieldSpecs.getDefaultBottomSectionFieldSpecs());
+		CustomFieldTemplate template = new CustomFieldTemplate(title, DESCRIPTION, topSection, bottomSection);
+		String base64Template = template.getExportedTemplateAsBase64String(security);
+		ServerForClients.saveBase64FormTemplate(store, accountId, base64Template, security, new TestAsyncLogger.RecordingLogger());
+	}
+
+	private static final String DESCRIPTION = "This is a description";
+
+	MockMartusSecurity security;
+	ServerBulletinStore store;
+	String accountId;
+	FormTemplateCatalog catalog;
+}
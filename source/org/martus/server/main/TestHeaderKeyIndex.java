@@ -0,0 +1,118 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import org.martus.common.bulletin.Bulletin;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.MockServerDatabase;
+import org.martus.common.packet.UniversalId;
+import org.martus.common.test.UniversalIdForTesting;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestHeaderKeyIndex extends TestCaseEnhanced
+{
+	public TestHeaderKeyIndex(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		store = new ServerBulletinStore();
+		store.setDatabase(new MockServerDatabase());
+		store.setSignatureGenerator(MockMartusSecurity.createServer());
+
+		authorSecurity = MockMartusSecurity.createClient();
+		Bulletin sealed = new Bulletin(authorSecurity);
+		sealed.setSealed();
+		store.saveBulletinForTesting(sealed);
+		sealedUid = sealed.getUniversalId();
+		Bulletin draft = new Bulletin(authorSecurity);
+		draft.setDraft();
+		store.saveBulletinForTesting(draft);
+		draftUid = draft.getUniversalId();
+
+		index = store.getHeaderKeyIndex();
+	}
+
+	public void tearDown() throws Exception
+	{
+		store.deleteAllData();
+		super.tearDown();
+	}
+
+	public void testSealed() throws Exception
+	{
+		assertEquals(DatabaseKey.createSealedKey(sealedUid), index.findHeaderKey(sealedUid));
+		assertEquals(1, index.getDatabaseLookupCount());
+		assertEquals(DatabaseKey.createSealedKey(sealedUid), index.findHeaderKey(sealedUid));
+		assertTrue(index.doesSealedHeaderExist(sealedUid));
+		assertEquals("looked up again?", 1, index.getDatabaseLookupCount());
+		assertEquals(2, index.getHitCount());
+	}
+
+	public void testDraftIsAlwaysChecked() throws Exception
+	{
+		assertEquals(DatabaseKey.createDraftKey(draftUid), index.findHeaderKey(draftUid));
+		assertFalse(index.doesSealedHeaderExist(draftUid));
+		assertEquals(2, index.getDatabaseLookupCount());
+		assertEquals(0, index.getHitCount());
+	}
+
+	public void testMissing() throws Exception
+	{
+		UniversalId missingUid = UniversalIdForTesting.createFromAccountAndPrefix(authorSecurity.getPublicKeyString(), "B-");
+		assertNull(index.findHeaderKey(missingUid));
+		assertFalse(index.doesSealedHeaderExist(missingUid));
+		assertEquals(0, index.getHeaderCount());
+	}
+
+	public void testLoadAccount() throws Exception
+	{
+		index.loadAccount(authorSecurity.getPublicKeyString());
+		assertEquals(2, index.getHeaderCount());
+		assertTrue(index.doesSealedHeaderExist(sealedUid));
+		assertEquals(0, index.getDatabaseLookupCount());
+	}
+
+	public void testDeleteRemoves() throws Exception
+	{
+		assertTrue(index.doesSealedHeaderExist(sealedUid));
+		store.deleteBulletinRevision(DatabaseKey.createSealedKey(sealedUid));
+		assertNull("still found?", index.findHeaderKey(sealedUid));
+	}
+
+	ServerBulletinStore store;
+	MockMartusSecurity authorSecurity;
+	UniversalId sealedUid;
+	UniversalId draftUid;
+	HeaderKeyIndex index;
+}
@@ -0,0 +1,130 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import org.martus.common.bulletin.Bulletin;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.MockServerDatabase;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestHeaderPacketCache extends TestCaseEnhanced
+{
+	public TestHeaderPacketCache(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		security = MockMartusSecurity.createServer();
+		store = new ServerBulletinStore();
+		store.setDatabase(new MockServerDatabase());
+		store.setSignatureGenerator(security);
+
+		MockMartusSecurity authorSecurity = MockMartusSecurity.createClient();
+		Bulletin b1 = new Bulletin(authorSecurity);
+		store.saveBulletinForTesting(b1);
+		key1 = b1.getDatabaseKey();
+		Bulletin b2 = new Bulletin(authorSecurity);
+		store.saveBulletinForTesting(b2);
+		key2 = b2.getDatabaseKey();
+
+		cache = store.getHeaderPacketCache();
+	}
+
+	public void tearDown() throws Exception
+	{
+		store.deleteAllData();
+		super.tearDown();
+	}
+
+	public void testLoadsOnce() throws Exception
+	{
+		BulletinHeaderPacket first = cache.load(store.getDatabase(), key1, security);
+		BulletinHeaderPacket second = cache.load(store.getDatabase(), key1, security);
+		assertEquals(key1.getUniversalId(), first.getUniversalId());
+		assertSame("loaded twice?", first, second);
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(50, cache.getHitPercent());
+		assertEquals(1, cache.getEntryCount());
+	}
+
+	public void testRemove() throws Exception
+	{
+		BulletinHeaderPacket first = cache.load(store.getDatabase(), key1, security);
+		cache.remove(key1);
+		assertEquals(0, cache.getEntryCount());
+		BulletinHeaderPacket second = cache.load(store.getDatabase(), key1, security);
+		assertNotSame("didn't reload?", first, second);
+		assertEquals(2, cache.getMissCount());
+	}
+
+	public void testDeleteRemoves() throws Exception
+	{
+		cache.load(store.getDatabase(), key1, security);
+		store.deleteBulletinRevision(key1);
+		assertEquals("kept deleted header?", 0, cache.getEntryCount());
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws Exception
+	{
+		cache.setMaxEntries(1);
+		cache.load(store.getDatabase(), key1, security);
+		cache.load(store.getDatabase(), key2, security);
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(1, cache.getEvictionCount());
+		cache.load(store.getDatabase(), key2, security);
+		assertEquals("evicted newest?", 1, cache.getHitCount());
+	}
+
+	public void testDoesNotCacheOtherDatabases() throws Exception
+	{
+		MockServerDatabase otherDatabase = new MockServerDatabase();
+		Bulletin b = new Bulletin(MockMartusSecurity.createClient());
+		ServerBulletinStore otherStore = new ServerBulletinStore();
+		otherStore.setDatabase(otherDatabase);
+		otherStore.setSignatureGenerator(security);
+		otherStore.saveBulletinForTesting(b);
+
+		cache.load(otherDatabase, b.getDatabaseKey(), security);
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getMissCount());
+		otherStore.deleteAllData();
+	}
+
+	MockMartusSecurity security;
+	ServerBulletinStore store;
+	DatabaseKey key1;
+	DatabaseKey key2;
+	HeaderPacketCache cache;
+}
@@ -0,0 +1,157 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.martus.common.bulletin.Bulletin;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.MockServerDatabase;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.util.DirectoryUtils;
+import org.martus.util.StreamableBase64;
+import org.martus.util.TestCaseEnhanced;
+import org.martus.util.inputstreamwithseek.InputStreamWithSeek;
+
+
+public class TestHeaderSignatureCache extends TestCaseEnhanced
+{
+	public TestHeaderSignatureCache(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		security = MockMartusSecurity.createServer();
+		db = new MockServerDatabase();
+		store = new ServerBulletinStore();
+		store.setDatabase(db);
+		store.setSignatureGenerator(security);
+
+		Bulletin b = new Bulletin(MockMartusSecurity.createClient());
+		b.setSealed();
+		store.saveBulletinForTesting(b);
+		key = b.getDatabaseKey();
+
+		directory = createTempDirectory();
+		cacheFile = new File(directory, HeaderSignatureCache.CACHE_FILENAME);
+		cache = new HeaderSignatureCache(store);
+	}
+
+	public void tearDown() throws Exception
+	{
+		DirectoryUtils.deleteEntireDirectoryTree(directory);
+		store.deleteAllData();
+		super.tearDown();
+	}
+
+	public void testCachesSignature() throws Exception
+	{
+		String expected = getSignatureDirectly();
+		assertEquals(expected, cache.getSignature(db, key, security));
+		assertEquals(expected, cache.getSignature(db, key, security));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getEntryCount());
+	}
+
+	public void testRecordChanged() throws Exception
+	{
+		cache.getSignature(db, key, security);
+		db.setmTime(key, db.getmTime(key) + 1000);
+		cache.getSignature(db, key, security);
+		assertEquals("used stale signature?", 2, cache.getMissCount());
+	}
+
+	public void testRemove() throws Exception
+	{
+		cache.getSignature(db, key, security);
+		cache.remove(key);
+		assertEquals(0, cache.getEntryCount());
+		cache.getSignature(db, key, security);
+		assertEquals(2, cache.getMissCount());
+	}
+
+	public void testRecordImported() throws Exception
+	{
+		cache.recordImported(key);
+		assertEquals(getSignatureDirectly(), cache.getSignature(db, key, security));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	public void testSaveAndLoad() throws Exception
+	{
+		cache.setCacheFile(cacheFile);
+		assertFalse("saved empty cache?", cache.save());
+		String expected = cache.getSignature(db, key, security);
+		assertTrue("didn't save?", cache.save());
+		assertFalse("saved unchanged cache?", cache.save());
+
+		HeaderSignatureCache reloaded = new HeaderSignatureCache(store);
+		reloaded.setCacheFile(cacheFile);
+		assertEquals(1, reloaded.getEntryCount());
+		assertEquals(expected, reloaded.getSignature(db, key, security));
+		assertEquals(1, reloaded.getHitCount());
+		assertEquals(0, reloaded.getMissCount());
+	}
+
+	public void testIgnoresDamagedFile() throws Exception
+	{
+		cache.setCacheFile(cacheFile);
+		cache.getSignature(db, key, security);
+		cache.save();
+		RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+		file.seek(20);
+		file.write(0xff);
+		file.close();
+
+		HeaderSignatureCache reloaded = new HeaderSignatureCache(store);
+		reloaded.setCacheFile(cacheFile);
+		assertEquals("used damaged cache?", 0, reloaded.getEntryCount());
+	}
+
+	private String getSignatureDirectly() throws Exception
+	{
+		InputStreamWithSeek in = db.openInputStream(key, null);
+		byte[] sigBytes = BulletinHeaderPacket.verifyPacketSignature(in, security);
+		in.close();
+		return StreamableBase64.encode(sigBytes);
+	}
+
+	MockMartusSecurity security;
+	MockServerDatabase db;
+	ServerBulletinStore store;
+	DatabaseKey key;
+	File directory;
+	File cacheFile;
+	HeaderSignatureCache cache;
+}
@@ -0,0 +1,115 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.util.DirectoryUtils;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestHistoryAndHqCacheSnapshot extends TestCaseEnhanced
+{
+	public TestHistoryAndHqCacheSnapshot(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		security = MockMartusSecurity.createServer();
+		directory = createTempDirectory();
+		snapshotFile = new File(directory, HistoryAndHqCacheSnapshot.SNAPSHOT_FILENAME);
+	}
+
+	public void tearDown() throws Exception
+	{
+		DirectoryUtils.deleteEntireDirectoryTree(directory);
+		super.tearDown();
+	}
+
+	public void testSaveAndLoad() throws Exception
+	{
+		createSnapshot().save(snapshotFile, security);
+		HistoryAndHqCacheSnapshot loaded = HistoryAndHqCacheSnapshot.load(snapshotFile, security);
+		assertNotNull("didn't load?", loaded);
+		assertEquals("journal:7", loaded.getJournalCursor());
+		assertEquals(1234, loaded.getCreatedMillis());
+		assertFalse(loaded.hadErrors());
+		assertEquals(1, loaded.getFieldOfficesByHq().size());
+		Set<String> fieldOffices = loaded.getFieldOfficesByHq().get("hq");
+		assertEquals(2, fieldOffices.size());
+		assertTrue(fieldOffices.contains("fo1"));
+		assertTrue(fieldOffices.contains("fo2"));
+		assertEquals(3, loaded.getAccountIds().size());
+		assertFalse("left temp file?", new File(snapshotFile.getPath() + ".tmp").exists());
+	}
+
+	public void testMissing() throws Exception
+	{
+		assertNull(HistoryAndHqCacheSnapshot.load(snapshotFile, security));
+	}
+
+	public void testDamaged() throws Exception
+	{
+		createSnapshot().save(snapshotFile, security);
+		RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+		file.seek(20);
+		file.write(0xff);
+		file.close();
+		assertNull("used damaged snapshot?", HistoryAndHqCacheSnapshot.load(snapshotFile, security));
+	}
+
+	public void testFromAnotherServer() throws Exception
+	{
+		createSnapshot().save(snapshotFile, MockMartusSecurity.createOtherServer());
+		assertNull("trusted other server?", HistoryAndHqCacheSnapshot.load(snapshotFile, security));
+	}
+
+	private HistoryAndHqCacheSnapshot createSnapshot()
+	{
+		HistoryAndHqCacheSnapshot snapshot = new HistoryAndHqCacheSnapshot("journal:7", 1234, false);
+		Set<String> fieldOffices = new HashSet<String>();
+		fieldOffices.add("fo1");
+		fieldOffices.add("fo2");
+		snapshot.addFieldOffices("hq", fieldOffices);
+		snapshot.addAccount("fo1");
+		snapshot.addAccount("fo2");
+		snapshot.addAccount("hq");
+		return snapshot;
+	}
+
+	MockMartusSecurity security;
+	File directory;
+	File snapshotFile;
+}
@@ -0,0 +1,153 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.util.Vector;
+
+import org.martus.common.HeadquartersKey;
+import org.martus.common.HeadquartersKeys;
+import org.martus.common.bulletin.Bulletin;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.database.MockServerDatabase;
+import org.martus.util.DirectoryUtils;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestHistoryAndHqCacheWarmer extends TestCaseEnhanced
+{
+	public TestHistoryAndHqCacheWarmer(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		store = new ServerBulletinStore();
+		store.setDatabase(new MockServerDatabase());
+		store.setSignatureGenerator(MockMartusSecurity.createServer());
+
+		hqSecurity = MockMartusSecurity.createHQ();
+		HeadquartersKeys keys = new HeadquartersKeys();
+		keys.add(new HeadquartersKey(hqSecurity.getPublicKeyString()));
+
+		fieldOfficeSecurity = MockMartusSecurity.createClient();
+		Bulletin authorized = new Bulletin(fieldOfficeSecurity);
+		authorized.setAuthorizedToReadKeys(keys);
+		store.saveBulletinForTesting(authorized);
+
+		otherSecurity = MockMartusSecurity.createOtherClient();
+		Bulletin notAuthorized = new Bulletin(otherSecurity);
+		store.saveBulletinForTesting(notAuthorized);
+
+		warmer = store.getHistoryAndHqCacheWarmer();
+	}
+
+	public void tearDown() throws Exception
+	{
+		store.deleteAllData();
+		super.tearDown();
+	}
+
+	public void testNotStarted() throws Exception
+	{
+		assertFalse(warmer.isWarming());
+		assertFalse(warmer.isReady());
+		assertEquals(0, warmer.getAccountCount());
+	}
+
+	public void testWarmAccount() throws Exception
+	{
+		warmer.warmAccount(fieldOfficeSecurity.getPublicKeyString());
+		warmer.warmAccount(fieldOfficeSecurity.getPublicKeyString());
+		assertEquals("warmed twice?", 1, warmer.getWarmedAccountCount());
+		assertEquals(1, warmer.getWarmedBulletinCount());
+		assertEquals(0, warmer.getFailedBulletinCount());
+	}
+
+	public void testFieldOfficesWhileWarming() throws Exception
+	{
+		warmer.start(new TestAsyncLogger.RecordingLogger(), 2);
+		assertEquals(2, warmer.getAccountCount());
+
+		Vector fieldOffices = warmer.getFieldOffices(hqSecurity.getPublicKeyString());
+		assertEquals(1, fieldOffices.size());
+		assertEquals(fieldOfficeSecurity.getPublicKeyString(), fieldOffices.get(0));
+		assertEquals(2, warmer.getWarmedAccountCount());
+		assertEquals(0, warmer.getFieldOffices(fieldOfficeSecurity.getPublicKeyString()).size());
+
+		waitUntilReady(warmer);
+		assertFalse(warmer.isWarming());
+	}
+
+	public void testRestoreFromSnapshot() throws Exception
+	{
+		File directory = createTempDirectory();
+		try
+		{
+			store.setChangeJournalFile(new File(directory, ChangeJournal.CHANGE_JOURNAL_FILENAME));
+			store.setHistoryAndHqCacheSnapshotFile(new File(directory, HistoryAndHqCacheSnapshot.SNAPSHOT_FILENAME));
+			assertFalse("saved before warming?", store.saveHistoryAndHqCacheSnapshot());
+			warmer.start(new TestAsyncLogger.RecordingLogger(), 2);
+			waitUntilReady(warmer);
+			assertTrue("didn't save?", store.saveHistoryAndHqCacheSnapshot());
+			assertFalse(warmer.wasRestoredFromSnapshot());
+
+			HistoryAndHqCacheWarmer restarted = new HistoryAndHqCacheWarmer(store);
+			restarted.setSnapshotFile(warmer.getSnapshotFile());
+			restarted.start(new TestAsyncLogger.RecordingLogger(), 2);
+			assertTrue("didn't restore?", restarted.wasRestoredFromSnapshot());
+			assertEquals("warmed again?", 0, restarted.getWarmedBulletinCount());
+			Vector fieldOffices = restarted.getFieldOffices(hqSecurity.getPublicKeyString());
+			assertEquals(1, fieldOffices.size());
+			assertEquals(fieldOfficeSecurity.getPublicKeyString(), fieldOffices.get(0));
+			waitUntilReady(restarted);
+		}
+		finally
+		{
+			DirectoryUtils.deleteEntireDirectoryTree(directory);
+		}
+	}
+
+	private void waitUntilReady(HistoryAndHqCacheWarmer warmerToWaitFor) throws Exception
+	{
+		long giveUpAt = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+		while(!warmerToWaitFor.isReady() && System.currentTimeMillis() < giveUpAt)
+			Thread.sleep(10);
+		assertTrue("never became ready?", warmerToWaitFor.isReady());
+	}
+
+	private static final long MAX_WAIT_MILLIS = 30 * 1000;
+
+	ServerBulletinStore store;
+	MockMartusSecurity hqSecurity;
+	MockMartusSecurity fieldOfficeSecurity;
+	MockMartusSecurity otherSecurity;
+	HistoryAndHqCacheWarmer warmer;
+}
@@ -0,0 +1,99 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestIncrementalSha1 extends TestCaseEnhanced
+{
+	public TestIncrementalSha1(String name)
+	{
+		super(name);
+	}
+
+	public void testMatchesMessageDigest() throws Exception
+	{
+		for(int size = 0; size < 300; size += 7)
+		{
+			byte[] data = createSampleData(size);
+			IncrementalSha1 sha1 = new IncrementalSha1();
+			int half = size / 2;
+			sha1.update(data, 0, half);
+			sha1.update(data, half, size - half);
+			assertEquals(size, sha1.getLength());
+			assertTrue("wrong digest for " + size, Arrays.equals(getExpected(data), sha1.getDigest()));
+		}
+	}
+
+	public void testDigestDoesNotDisturbState() throws Exception
+	{
+		byte[] data = createSampleData(150);
+		IncrementalSha1 sha1 = new IncrementalSha1();
+		sha1.update(data, 0, 100);
+		sha1.getDigest();
+		sha1.update(data, 100, 50);
+		assertTrue("disturbed?", Arrays.equals(getExpected(data), sha1.getDigest()));
+	}
+
+	public void testSavedState() throws Exception
+	{
+		byte[] data = createSampleData(200);
+		IncrementalSha1 sha1 = new IncrementalSha1();
+		sha1.update(data, 0, 131);
+		IncrementalSha1 restored = IncrementalSha1.createFromState(sha1.getState());
+		assertEquals(131, restored.getLength());
+		restored.update(ByteBuffer.wrap(data, 131, 69));
+		assertTrue("wrong after restore?", Arrays.equals(getExpected(data), restored.getDigest()));
+
+		try
+		{
+			IncrementalSha1.createFromState("131:abc:00");
+			fail("accepted damaged state?");
+		}
+		catch(IncrementalSha1.InvalidStateException ignoreExpected)
+		{
+		}
+	}
+
+	private byte[] createSampleData(int size)
+	{
+		byte[] data = new byte[size];
+		for(int i = 0; i < size; ++i)
+			data[i] = (byte)(i * 31 + 7);
+		return data;
+	}
+
+	private byte[] getExpected(byte[] data) throws Exception
+	{
+		return MessageDigest.getInstance("SHA-1").digest(data);
+	}
+}
@@ -0,0 +1,139 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.martus.common.MartusUtilities;
+import org.martus.common.network.NetworkInterfaceConstants;
+import org.martus.util.StreamableBase64;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestInterimFileChunkReader extends TestCaseEnhanced
+{
+	public TestInterimFileChunkReader(String name)
+	{
+		super(name);
+	}
+
+	public void testEncodeMatchesStreamableBase64() throws Exception
+	{
+		for(int length = 0; length < 10; ++length)
+		{
+			byte[] data = new byte[length];
+			for(int i = 0; i < length; ++i)
+				data[i] = (byte)(i * 97 - 3);
+			char[] out = new char[InterimFileChunkReader.getEncodedLength(length)];
+			int encodedLength = InterimFileChunkReader.encodeBase64(data, length, out);
+			String encoded = new String(out, 0, encodedLength);
+			assertTrue("bad decode for length " + length, Arrays.equals(data, StreamableBase64.decode(encoded)));
+		}
+	}
+
+	public void testChunks() throws Exception
+	{
+		byte[] data = new byte[1000];
+		for(int i = 0; i < data.length; ++i)
+			data[i] = (byte)i;
+		File interimFile = createTempFile();
+		FileOutputStream out = new FileOutputStream(interimFile);
+		out.write(data);
+		out.close();
+
+		Vector first = InterimFileChunkReader.createChunkResponse(interimFile, 0, 300);
+		assertEquals(NetworkInterfaceConstants.CHUNK_OK, first.get(0));
+		assertEquals(new Integer(1000), first.get(1));
+		assertEquals(new Integer(300), first.get(2));
+		byte[] firstBytes = StreamableBase64.decode((String)first.get(3));
+		assertTrue("wrong first chunk?", Arrays.equals(subArray(data, 0, 300), firstBytes));
+
+		Vector bad = InterimFileChunkReader.createChunkResponse(interimFile, 1001, 300);
+		assertEquals(NetworkInterfaceConstants.INVALID_DATA, bad.get(0));
+
+		Vector last = InterimFileChunkReader.createChunkResponse(interimFile, 900, 300);
+		assertEquals(NetworkInterfaceConstants.OK, last.get(0));
+		assertEquals(new Integer(100), last.get(2));
+		byte[] lastBytes = StreamableBase64.decode((String)last.get(3));
+		assertTrue("wrong last chunk?", Arrays.equals(subArray(data, 900, 100), lastBytes));
+		interimFile.delete();
+	}
+
+	public void testExportIdFollowsSignature() throws Exception
+	{
+		File interimFile = createTempFile();
+		File signatureFile = MartusUtilities.getSignatureFileFromFile(interimFile);
+		writeFile(signatureFile, "first signature".getBytes());
+		String firstId = InterimFileChunkReader.getExportId(interimFile);
+		assertEquals(firstId, InterimFileChunkReader.getExportId(interimFile));
+
+		writeFile(signatureFile, "other signature".getBytes());
+		assertNotEquals("same id after export?", firstId, InterimFileChunkReader.getExportId(interimFile));
+		MartusUtilities.deleteInterimFileAndSignature(interimFile);
+	}
+
+	public void testLargeChunkIsNotRetained() throws Exception
+	{
+		int smallSize = 300;
+		int largeSize = NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE + 1;
+		byte[] data = new byte[largeSize];
+		for(int i = 0; i < data.length; ++i)
+			data[i] = (byte)(i * 31);
+		File interimFile = createTempFile();
+		FileOutputStream out = new FileOutputStream(interimFile);
+		out.write(data);
+		out.close();
+
+		InterimFileChunkReader.createChunkResponse(interimFile, 0, smallSize);
+		int retained = InterimFileChunkReader.getRetainedBufferBytes();
+		assertTrue("didn't keep small buffers?", retained > 0);
+
+		Vector large = InterimFileChunkReader.createChunkResponse(interimFile, 0, largeSize);
+		assertEquals(NetworkInterfaceConstants.OK, large.get(0));
+		byte[] largeBytes = StreamableBase64.decode((String)large.get(3));
+		assertTrue("wrong large chunk?", Arrays.equals(data, largeBytes));
+		assertEquals("kept large buffers?", retained, InterimFileChunkReader.getRetainedBufferBytes());
+		interimFile.delete();
+	}
+
+	private byte[] subArray(byte[] data, int offset, int length)
+	{
+		byte[] result = new byte[length];
+		System.arraycopy(data, offset, result, 0, length);
+		return result;
+	}
+
+	private void writeFile(File file, byte[] data) throws Exception
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+	}
+}
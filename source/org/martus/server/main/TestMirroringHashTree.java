@@ -0,0 +1,147 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+
+package org.martus.server.main;
+
+import java.util.Vector;
+
+import org.martus.common.bulletin.Bulletin;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.MockServerDatabase;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestMirroringHashTree extends TestCaseEnhanced
+{
+	public TestMirroringHashTree(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		db1 = new MockServerDatabase();
+		store1 = createStore(db1);
+		db2 = new MockServerDatabase();
+		store2 = createStore(db2);
+
+		Bulletin b = new Bulletin(MockMartusSecurity.createClient());
+		store1.saveBulletinForTesting(b);
+		store2.saveBulletinForTesting(b);
+		key = b.getDatabaseKey();
+		accountId = key.getAccountId();
+		db1.setmTime(key, MTIME);
+		db2.setmTime(key, MTIME);
+
+		tree1 = new MirroringHashTree(store1);
+		tree2 = new MirroringHashTree(store2);
+	}
+
+	public void tearDown() throws Exception
+	{
+		store1.deleteAllData();
+		store2.deleteAllData();
+		super.tearDown();
+	}
+
+	public void testLoadAll() throws Exception
+	{
+		assertFalse("ready before loading?", tree1.isReady());
+		tree1.loadAll();
+		assertTrue("not ready?", tree1.isReady());
+		assertEquals(1, tree1.getAccountCount());
+		assertEquals(1, tree1.getBulletinCount());
+		assertEquals(MirroringHashTree.computeDigest(key, MTIME), tree1.getDigest(key));
+	}
+
+	public void testSameBulletinsHashTheSame() throws Exception
+	{
+		tree1.loadAll();
+		tree2.loadAll();
+		assertEquals(tree1.getRootHash(), tree2.getRootHash());
+		assertEquals(tree1.getAccountHash(accountId), tree2.getAccountHash(accountId));
+		assertEquals(tree1.getBulletinBucketHashes(accountId), tree2.getBulletinBucketHashes(accountId));
+	}
+
+	public void testRefreshAfterChange() throws Exception
+	{
+		tree1.loadAll();
+		tree2.loadAll();
+		db2.setmTime(key, MTIME + 1000);
+		tree2.refresh(key.getUniversalId());
+		assertNotEquals("root didn't change?", tree1.getRootHash(), tree2.getRootHash());
+
+		String bucketName = MirroringHashTree.getAccountBucketName(accountId);
+		assertNotEquals("bucket didn't change?", tree1.getAccountBucketHash(bucketName), tree2.getAccountBucketHash(bucketName));
+		assertNotEquals("account didn't change?", tree1.getAccountHash(accountId), tree2.getAccountHash(accountId));
+		assertEquals(MirroringHashTree.computeDigest(key, MTIME + 1000), tree2.getDigest(key));
+
+		db2.setmTime(key, MTIME);
+		tree2.refresh(key.getUniversalId());
+		assertEquals("didn't converge?", tree1.getRootHash(), tree2.getRootHash());
+	}
+
+	public void testGetBulletinKeys() throws Exception
+	{
+		tree1.loadAll();
+		String bulletinBucketName = MirroringHashTree.getBulletinBucketName(key.getLocalId());
+		Vector<DatabaseKey> keys = tree1.getBulletinKeys(accountId, bulletinBucketName);
+		assertEquals(1, keys.size());
+		assertEquals(key, keys.get(0));
+	}
+
+	public void testRefreshOfDeletedBulletin() throws Exception
+	{
+		tree1.loadAll();
+		db1.discardRecord(key);
+		tree1.refresh(key.getUniversalId());
+		assertNull("kept digest?", tree1.getDigest(key));
+		assertEquals(0, tree1.getBulletinCount());
+		assertEquals(MirroringHashTree.toHex(0), tree1.getRootHash());
+	}
+
+	private ServerBulletinStore createStore(MockServerDatabase db) throws Exception
+	{
+		ServerBulletinStore store = new ServerBulletinStore();
+		store.setDatabase(db);
+		store.setSignatureGenerator(MockMartusSecurity.createServer());
+		return store;
+	}
+
+	static final long MTIME = 1234567000L;
+
+	MockServerDatabase db1;
+	MockServerDatabase db2;
+	ServerBulletinStore store1;
+	ServerBulletinStore store2;
+	DatabaseKey key;
+	String accountId;
+	MirroringHashTree tree1;
+	MirroringHashTree tree2;
+}
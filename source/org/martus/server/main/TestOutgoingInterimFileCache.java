@@ -0,0 +1,265 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.martus.common.MartusUtilities;
+import org.martus.common.bulletin.Bulletin;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.MockServerDatabase;
+import org.martus.common.packet.UniversalId;
+import org.martus.util.DirectoryUtils;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestOutgoingInterimFileCache extends TestCaseEnhanced
+{
+	public TestOutgoingInterimFileCache(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		store = new ServerBulletinStore();
+		store.setDatabase(new MockServerDatabase());
+		store.setSignatureGenerator(MockMartusSecurity.createServer());
+
+		MockMartusSecurity authorSecurity = MockMartusSecurity.createClient();
+		Bulletin b1 = new Bulletin(authorSecurity);
+		store.saveBulletinForTesting(b1);
+		key1 = b1.getDatabaseKey();
+		Bulletin b2 = new Bulletin(authorSecurity);
+		store.saveBulletinForTesting(b2);
+		key2 = b2.getDatabaseKey();
+
+		interimDirectory = createTempDirectory();
+		builder = new CountingBuilder();
+		cache = new OutgoingInterimFileCache(store);
+	}
+
+	public void tearDown() throws Exception
+	{
+		DirectoryUtils.deleteEntireDirectoryTree(interimDirectory);
+		store.deleteAllData();
+		super.tearDown();
+	}
+
+	public void testBuildsOnce() throws Exception
+	{
+		File first = cache.acquire(key1, builder);
+		cache.release(key1, first);
+		File second = cache.acquire(key1, builder);
+		cache.release(key1, second);
+		assertEquals(first, second);
+		assertEquals("built twice?", 1, builder.buildCount);
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(FILE_SIZE, cache.getTotalBytes());
+	}
+
+	public void testVerifiesOnlyWhenBuilt() throws Exception
+	{
+		for(int i = 0; i < 3; ++i)
+		{
+			File interimFile = cache.acquire(key1, builder);
+			cache.release(key1, interimFile);
+		}
+		assertEquals(1, builder.buildCount);
+		assertEquals("verified a cache hit?", 0, builder.verifyCount);
+	}
+
+	public void testInvalidate() throws Exception
+	{
+		File interimFile = cache.acquire(key1, builder);
+		cache.release(key1, interimFile);
+		cache.invalidate(key1.getUniversalId());
+		assertFalse("didn't delete?", interimFile.exists());
+		assertEquals(0, cache.getTotalBytes());
+
+		File rebuilt = cache.acquire(key1, builder);
+		cache.release(key1, rebuilt);
+		assertEquals("didn't rebuild?", 2, builder.buildCount);
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws Exception
+	{
+		cache.setMaxBytes(FILE_SIZE);
+		File first = cache.acquire(key1, builder);
+		cache.release(key1, first);
+		File second = cache.acquire(key2, builder);
+		cache.release(key2, second);
+		assertFalse("didn't evict oldest?", first.exists());
+		assertTrue("evicted newest?", second.exists());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(FILE_SIZE, cache.getTotalBytes());
+	}
+
+	public void testDoesNotEvictPinnedFiles() throws Exception
+	{
+		cache.setMaxBytes(FILE_SIZE);
+		File first = cache.acquire(key1, builder);
+		File second = cache.acquire(key2, builder);
+		assertTrue("evicted a file being downloaded?", first.exists());
+		assertTrue("evicted a file being downloaded?", second.exists());
+		cache.release(key1, first);
+		cache.release(key2, second);
+	}
+
+	public void testAdopt() throws Exception
+	{
+		File signedFile = new File(interimDirectory, "upload");
+		FileOutputStream out = new FileOutputStream(signedFile);
+		out.write(new byte[(int)FILE_SIZE]);
+		out.close();
+		File signature = MartusUtilities.getSignatureFileFromFile(signedFile);
+		signature.createNewFile();
+
+		assertTrue("didn't adopt?", cache.adopt(key1, signedFile, builder));
+		assertFalse("didn't move file?", signedFile.exists());
+		assertFalse("didn't move signature?", signature.exists());
+		assertEquals(FILE_SIZE, cache.getTotalBytes());
+
+		File interimFile = cache.acquire(key1, builder);
+		cache.release(key1, interimFile);
+		assertEquals(builder.getInterimFile(key1.getUniversalId()), interimFile);
+		assertEquals("exported anyway?", 0, builder.buildCount);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getAdoptedCount());
+	}
+
+	public void testDoesNotAdoptUnverifiedFile() throws Exception
+	{
+		File signedFile = new File(interimDirectory, "upload");
+		signedFile.createNewFile();
+		MartusUtilities.getSignatureFileFromFile(signedFile).createNewFile();
+
+		builder.verifyResult = false;
+		assertFalse("adopted a bad file?", cache.adopt(key1, signedFile, builder));
+		assertEquals(1, builder.verifyCount);
+		assertEquals(0, cache.getAdoptedCount());
+		File interimFile = builder.getInterimFile(key1.getUniversalId());
+		assertFalse("kept a bad file?", interimFile.exists());
+
+		File built = cache.acquire(key1, builder);
+		cache.release(key1, built);
+		assertEquals("didn't export?", 1, builder.buildCount);
+	}
+
+	public void testDoesNotAdoptWhileDownloading() throws Exception
+	{
+		File interimFile = cache.acquire(key1, builder);
+		File signedFile = new File(interimDirectory, "upload");
+		signedFile.createNewFile();
+		assertFalse("replaced a file being downloaded?", cache.adopt(key1, signedFile, builder));
+		assertTrue(signedFile.exists());
+		cache.release(key1, interimFile);
+	}
+
+	public void testRebuildWhileDownloading() throws Exception
+	{
+		File oldFile = cache.acquire(key1, builder);
+		MockServerDatabase db = (MockServerDatabase)store.getDatabase();
+		db.setmTime(key1, db.getmTime(key1) + 1000);
+
+		File newFile = cache.acquire(key1, builder);
+		assertFalse("rebuilt over a file being downloaded?", oldFile.equals(newFile));
+		assertTrue("deleted a file being downloaded?", oldFile.exists());
+		assertTrue(newFile.exists());
+		assertEquals(2, builder.buildCount);
+		assertEquals(1, cache.getRetiredCount());
+		assertEquals(2 * FILE_SIZE, cache.getTotalBytes());
+
+		cache.setMaxBytes(0);
+		assertTrue("evicted a file being downloaded?", oldFile.exists());
+
+		cache.release(key1, oldFile);
+		assertFalse("kept old file after its last download?", oldFile.exists());
+		assertTrue(newFile.exists());
+		assertEquals(FILE_SIZE, cache.getTotalBytes());
+		cache.release(key1, newFile);
+	}
+
+	public void testReplacesChangedFileWhileDownloading() throws Exception
+	{
+		File oldFile = cache.acquire(key1, builder);
+		FileOutputStream out = new FileOutputStream(oldFile, true);
+		out.write(new byte[1]);
+		out.close();
+
+		File newFile = cache.acquire(key1, builder);
+		assertFalse("rewrote a file being downloaded?", oldFile.equals(newFile));
+		assertEquals("touched a file being downloaded?", FILE_SIZE + 1, oldFile.length());
+		assertEquals(FILE_SIZE, newFile.length());
+		assertEquals(2, builder.buildCount);
+		assertEquals(1, cache.getRetiredCount());
+
+		cache.release(key1, oldFile);
+		assertFalse("kept old file after its last download?", oldFile.exists());
+		cache.release(key1, newFile);
+	}
+
+	class CountingBuilder implements OutgoingInterimFileCache.Builder
+	{
+		public File getInterimFile(UniversalId uid) throws Exception
+		{
+			return new File(interimDirectory, uid.getLocalId());
+		}
+
+		public File createInterimFile(DatabaseKey headerKey, File interimFile) throws Exception
+		{
+			++buildCount;
+			FileOutputStream out = new FileOutputStream(interimFile);
+			out.write(new byte[(int)FILE_SIZE]);
+			out.close();
+			return interimFile;
+		}
+
+		public boolean verifyInterimFile(File interimFile)
+		{
+			++verifyCount;
+			return verifyResult;
+		}
+
+		int buildCount;
+		int verifyCount;
+		boolean verifyResult = true;
+	}
+
+	static final long FILE_SIZE = 100;
+
+	ServerBulletinStore store;
+	DatabaseKey key1;
+	DatabaseKey key2;
+	File interimDirectory;
+	CountingBuilder builder;
+	OutgoingInterimFileCache cache;
+}
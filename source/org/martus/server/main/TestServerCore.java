@@ -46,11 +46,31 @@ public class TestServerCore
 	{
 		TestSuite suite= new TestSuite("All Server Core Martus Tests");
 
+		suite.addTest(new TestSuite(TestAccessTokenIndex.class));
+		suite.addTest(new TestSuite(TestAccountSet.class));
+		suite.addTest(new TestSuite(TestAdminTriggerWatcher.class));
+		suite.addTest(new TestSuite(TestAsyncLogger.class));
+		suite.addTest(new TestSuite(TestBulletinSummaryIndex.class));
 		suite.addTest(new TestSuite(TestBulletinUploadRecord.class));
+		suite.addTest(new TestSuite(TestChangeJournal.class));
+		suite.addTest(new TestSuite(TestChunkSizePolicy.class));
+		suite.addTest(new TestSuite(TestContactInfoCache.class));
 		suite.addTest(new TestSuite(TestDeleteRequestRecord.class));
+		suite.addTest(new TestSuite(TestFormTemplateCatalog.class));
+		suite.addTest(new TestSuite(TestHeaderKeyIndex.class));
+		suite.addTest(new TestSuite(TestHeaderPacketCache.class));
+		suite.addTest(new TestSuite(TestHeaderSignatureCache.class));
+		suite.addTest(new TestSuite(TestHistoryAndHqCacheSnapshot.class));
+		suite.addTest(new TestSuite(TestHistoryAndHqCacheWarmer.class));
+		suite.addTest(new TestSuite(TestIncrementalSha1.class));
+		suite.addTest(new TestSuite(TestInterimFileChunkReader.class));
+		suite.addTest(new TestSuite(TestMirroringHashTree.class));
+		suite.addTest(new TestSuite(TestOutgoingInterimFileCache.class));
 		suite.addTest(new TestSuite(TestServerBulletinStore.class));
 		suite.addTest(new TestSuite(TestServerDeleteStartupFilesAndFolders.class));
 		suite.addTest(new TestSuite(TestServerFileDatabase.class));
+		suite.addTest(new TestSuite(TestUploadRequestLimiter.class));
+		suite.addTest(new TestSuite(TestUploadSession.class));
 
 	    return suite;
 	}
@@ -0,0 +1,118 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestUploadRequestLimiter extends TestCaseEnhanced
+{
+	public TestUploadRequestLimiter(String name)
+	{
+		super(name);
+	}
+
+	public void testCountsAndRejects() throws Exception
+	{
+		UploadRequestLimiter limiter = new UploadRequestLimiter(2, 10);
+		assertTrue(limiter.isAllowed(IP1));
+		limiter.recordFailedAttempt(IP1);
+		assertTrue(limiter.isAllowed(IP1));
+		limiter.recordFailedAttempt(IP1);
+		assertFalse("allowed too many?", limiter.isAllowed(IP1));
+		assertTrue("counted the wrong ip?", limiter.isAllowed(IP2));
+		assertEquals(1, limiter.getRejectedCount());
+	}
+
+	public void testForgiveOneInterval() throws Exception
+	{
+		UploadRequestLimiter limiter = new UploadRequestLimiter(2, 10);
+		for(int i = 0; i < 3; ++i)
+			limiter.recordFailedAttempt(IP1);
+		limiter.forgiveOneInterval(IP1);
+		assertEquals(1, limiter.getFailedAttempts(IP1));
+		assertEquals(1, limiter.getTrackedIpCount());
+		limiter.forgiveOneInterval(IP1);
+		assertEquals(0, limiter.getFailedAttempts(IP1));
+		assertEquals("still tracked?", 0, limiter.getTrackedIpCount());
+		limiter.recordFailedAttempt(IP1);
+		assertEquals("lost attempt after forgiving?", 1, limiter.getFailedAttempts(IP1));
+	}
+
+	public void testDecaysWithTime() throws Exception
+	{
+		UploadRequestLimiter limiter = new UploadRequestLimiter(2, 10);
+		limiter.setDecayIntervalMillis(50);
+		for(int i = 0; i < 5; ++i)
+			limiter.recordFailedAttempt(IP1);
+		Thread.sleep(200);
+		assertEquals("didn't decay?", 0, limiter.getFailedAttempts(IP1));
+		assertEquals(1, limiter.removeExpired());
+		assertEquals(0, limiter.getTrackedIpCount());
+	}
+
+	public void testCapsTrackedIps() throws Exception
+	{
+		UploadRequestLimiter limiter = new UploadRequestLimiter(2, 3);
+		for(int i = 0; i < 10; ++i)
+			limiter.recordFailedAttempt("10.0.0." + i);
+		assertEquals(3, limiter.getTrackedIpCount());
+		assertEquals(7, limiter.getEvictionCount());
+	}
+
+	public void testEvictionAtCapDoesNotSweep() throws Exception
+	{
+		UploadRequestLimiter limiter = new UploadRequestLimiter(2, 3);
+		limiter.setDecayIntervalMillis(50);
+		for(int i = 0; i < 3; ++i)
+			limiter.recordFailedAttempt("10.0.0." + i);
+		Thread.sleep(200);
+		limiter.recordFailedAttempt(IP1);
+		assertEquals("swept expired ips?", 3, limiter.getTrackedIpCount());
+		assertEquals(1, limiter.getEvictionCount());
+		assertEquals(1, limiter.getFailedAttempts(IP1));
+		assertEquals(2, limiter.removeExpired());
+	}
+
+	public void testEvictsFromRotatingPosition() throws Exception
+	{
+		UploadRequestLimiter limiter = new UploadRequestLimiter(10, 20);
+		for(int i = 0; i < 20; ++i)
+			limiter.recordFailedAttempt("10.0.0." + i);
+		limiter.recordFailedAttempt(IP1);
+		limiter.recordFailedAttempt(IP2);
+		assertEquals(2, limiter.getEvictionCount());
+		assertEquals(0, limiter.getFailedAttempts("10.0.0.0"));
+		assertEquals("evicted from the same place?", 1, limiter.getFailedAttempts("10.0.0.1"));
+		assertEquals(0, limiter.getFailedAttempts("10.0.0.16"));
+		assertEquals(1, limiter.getFailedAttempts(IP1));
+		assertEquals(1, limiter.getFailedAttempts(IP2));
+	}
+
+	static final String IP1 = "192.168.1.1";
+	static final String IP2 = "192.168.1.2";
+}
@@ -0,0 +1,142 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+
+import org.martus.common.packet.UniversalId;
+import org.martus.common.test.UniversalIdForTesting;
+import org.martus.util.StreamableBase64;
+import org.martus.util.TestCaseEnhanced;
+
+
+public class TestUploadSession extends TestCaseEnhanced
+{
+	public TestUploadSession(String name)
+	{
+		super(name);
+	}
+
+	public void setUp() throws Exception
+	{
+		super.setUp();
+		interimFile = createTempFile();
+		interimFile.delete();
+		uid = UniversalIdForTesting.createDummyUniversalId();
+		manager = new UploadSessionManager();
+	}
+
+	public void tearDown() throws Exception
+	{
+		manager.discard(uid, interimFile);
+		super.tearDown();
+	}
+
+	public void testAppendChunks() throws Exception
+	{
+		byte[] first = {1, 2, 3, 4, 5};
+		byte[] second = {6, 7};
+		UploadSession session = manager.getSession("uploader", uid, interimFile, true);
+		assertEquals(first.length, session.appendBase64(StreamableBase64.encode(first)));
+		assertEquals(first.length, session.getOffset());
+		assertTrue("not on disk?", session.matchesFileOnDisk());
+		assertEquals(second.length, session.appendBase64(StreamableBase64.encode(second)));
+		session.close();
+
+		byte[] expected = {1, 2, 3, 4, 5, 6, 7};
+		byte[] got = new byte[expected.length];
+		DataInputStream in = new DataInputStream(new FileInputStream(interimFile));
+		in.readFully(got);
+		in.close();
+		assertEquals(expected.length, interimFile.length());
+		assertTrue("wrong data?", Arrays.equals(expected, got));
+	}
+
+	public void testInvalidData() throws Exception
+	{
+		UploadSession session = manager.getSession("uploader", uid, interimFile, true);
+		try
+		{
+			session.appendBase64("not*base64");
+			fail("should have thrown");
+		}
+		catch(UploadSession.InvalidBase64DataException ignoreExpected)
+		{
+		}
+	}
+
+	public void testRestartAndResume() throws Exception
+	{
+		UploadSession session = manager.getSession("uploader", uid, interimFile, true);
+		session.appendBase64(StreamableBase64.encode(new byte[10]));
+		assertSame(session, manager.getSession("uploader", uid, interimFile, false));
+
+		UploadSession other = manager.getSession("other", uid, interimFile, false);
+		assertNotSame("kept session for different uploader?", session, other);
+		assertFalse("didn't close old session?", session.isOpen());
+		assertEquals("didn't resume?", 10, other.getOffset());
+
+		UploadSession restarted = manager.getSession("other", uid, interimFile, true);
+		assertEquals("didn't restart?", 0, restarted.getOffset());
+		assertEquals(1, manager.getSessionCount());
+	}
+
+	public void testDigestSurvivesRestart() throws Exception
+	{
+		byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+		UploadSession session = manager.getSession("uploader", uid, interimFile, true);
+		session.appendBase64(StreamableBase64.encode(data));
+		manager.close(uid);
+		assertTrue("no sidecar?", UploadSession.getDigestFile(interimFile).exists());
+
+		IncrementalSha1 saved = UploadSession.loadDigest(interimFile);
+		assertNotNull("sidecar not usable?", saved);
+		IncrementalSha1 rehashed = UploadSession.computeDigest(interimFile);
+		assertEquals(data.length, saved.getLength());
+		assertTrue("wrong digest?", Arrays.equals(rehashed.getDigest(), saved.getDigest()));
+
+		manager.discard(uid, interimFile);
+		assertFalse("left sidecar?", UploadSession.getDigestFile(interimFile).exists());
+	}
+
+	public void testCloseIdleSessions() throws Exception
+	{
+		UploadSession session = manager.getSession("uploader", uid, interimFile, true);
+		assertEquals(0, manager.closeIdleSessions(60 * 1000));
+		Thread.sleep(10);
+		assertEquals(1, manager.closeIdleSessions(0));
+		assertFalse("still open?", session.isOpen());
+		assertEquals(0, manager.getSessionCount());
+	}
+
+	File interimFile;
+	UniversalId uid;
+	UploadSessionManager manager;
+}
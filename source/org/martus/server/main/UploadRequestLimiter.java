@@ -0,0 +1,311 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Counts failed upload requests (bad magic words) per client IP. Once
+ * the decay interval is set, every elapsed interval forgives up to the
+ * maximum number of attempts. That happens lazily, when an IP's counter
+ * is next touched, so nothing has to sweep the whole table. The number
+ * of IPs tracked is capped, so spraying requests from many addresses
+ * can't grow it without limit.
+ * 
+ * Counters that have decayed away are only dropped by removeExpired, which
+ * UploadRequestsMonitor runs in the background. When the table is full, a
+ * new IP instead evicts the least-failed of a few recently added IPs,
+ * sampled from a ring at a rotating position, so a request from a fresh
+ * address costs the same however many IPs are tracked.
+ */
+public class UploadRequestLimiter
+{
+	public UploadRequestLimiter(int maxAttemptsToUse, int maxTrackedIpsToUse)
+	{
+		maxAttempts = maxAttemptsToUse;
+		maxTrackedIps = maxTrackedIpsToUse;
+		counters = new ConcurrentHashMap<String, Counter>();
+		recentIps = new AtomicReferenceArray<String>(Math.max(maxTrackedIps, 1));
+	}
+
+	public synchronized void setDecayIntervalMillis(long newDecayIntervalMillis)
+	{
+		decayStartedMillis = System.currentTimeMillis();
+		decayIntervalMillis = newDecayIntervalMillis;
+	}
+
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	public boolean isAllowed(String ip)
+	{
+		if(getFailedAttempts(ip) < maxAttempts)
+			return true;
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	public void recordFailedAttempt(String ip)
+	{
+		while(true)
+		{
+			Counter counter = getOrCreateCounter(ip);
+			if(counter.increment(getCurrentPeriod()))
+				return;
+			counters.remove(ip, counter);
+		}
+	}
+
+	public int getFailedAttempts(String ip)
+	{
+		Counter counter = counters.get(ip);
+		if(counter == null)
+			return 0;
+		return Math.max(0, counter.getCount(getCurrentPeriod()));
+	}
+
+	public void forgiveOneInterval(String ip)
+	{
+		Counter counter = counters.get(ip);
+		if(counter != null && counter.subtract(maxAttempts, getCurrentPeriod()))
+			counters.remove(ip, counter);
+	}
+
+	public int removeExpired()
+	{
+		int removed = 0;
+		long period = getCurrentPeriod();
+		Iterator<Map.Entry<String, Counter>> iter = counters.entrySet().iterator();
+		while(iter.hasNext())
+		{
+			Map.Entry<String, Counter> entry = iter.next();
+			if(entry.getValue().expireIfForgiven(period))
+			{
+				counters.remove(entry.getKey(), entry.getValue());
+				++removed;
+			}
+		}
+		return removed;
+	}
+
+	public int getTrackedIpCount()
+	{
+		return counters.size();
+	}
+
+	public int getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	public int getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	private Counter getOrCreateCounter(String ip)
+	{
+		Counter counter = counters.get(ip);
+		if(counter != null)
+			return counter;
+
+		if(counters.size() >= maxTrackedIps)
+			makeRoom();
+
+		Counter newCounter = new Counter(getCurrentPeriod());
+		Counter existing = counters.putIfAbsent(ip, newCounter);
+		if(existing != null)
+			return existing;
+		recentIps.set(nextSlot(nextInsertSlot, 1), ip);
+		return newCounter;
+	}
+
+	private void makeRoom()
+	{
+		int ringSize = recentIps.length();
+		int sampleSize = Math.min(EVICTION_SAMPLE_SIZE, ringSize);
+		int start = nextSlot(nextEvictionSlot, sampleSize);
+		long period = getCurrentPeriod();
+		String victim = null;
+		Counter victimCounter = null;
+		int victimCount = Integer.MAX_VALUE;
+		for(int i = 0; i < sampleSize; ++i)
+		{
+			String ip = recentIps.get((start + i) % ringSize);
+			if(ip == null)
+				continue;
+			Counter counter = counters.get(ip);
+			if(counter == null)
+				continue;
+			int count = counter.getCount(period);
+			if(count < victimCount)
+			{
+				victim = ip;
+				victimCounter = counter;
+				victimCount = count;
+			}
+		}
+
+		if(victim != null && counters.remove(victim, victimCounter))
+			evictions.incrementAndGet();
+	}
+
+	private int nextSlot(AtomicInteger cursor, int step)
+	{
+		int ringSize = recentIps.length();
+		while(true)
+		{
+			int slot = cursor.get();
+			if(cursor.compareAndSet(slot, (slot + step) % ringSize))
+				return slot;
+		}
+	}
+
+	private long getCurrentPeriod()
+	{
+		long interval = decayIntervalMillis;
+		if(interval <= 0)
+			return 0;
+		return (System.currentTimeMillis() - decayStartedMillis) / interval;
+	}
+
+	/*
+	 * The period the count was last decayed in and the count itself are
+	 * packed into one long, so both change together with a single CAS.
+	 */
+	class Counter
+	{
+		Counter(long period)
+		{
+			state = new AtomicLong(pack(period, 0));
+		}
+
+		boolean increment(long currentPeriod)
+		{
+			while(true)
+			{
+				long old = state.get();
+				int count = unpackCount(old);
+				if(count == EXPIRED)
+					return false;
+				int decayed = Math.max(0, decay(count, unpackPeriod(old), currentPeriod));
+				if(state.compareAndSet(old, pack(currentPeriod, decayed + 1)))
+					return true;
+			}
+		}
+
+		int getCount(long currentPeriod)
+		{
+			long current = state.get();
+			int count = unpackCount(current);
+			if(count == EXPIRED)
+				return 0;
+			return decay(count, unpackPeriod(current), currentPeriod);
+		}
+
+		boolean subtract(int amount, long currentPeriod)
+		{
+			while(true)
+			{
+				long old = state.get();
+				int count = unpackCount(old);
+				if(count == EXPIRED)
+					return true;
+				int newCount = decay(count, unpackPeriod(old), currentPeriod) - amount;
+				if(newCount < 0)
+					newCount = EXPIRED;
+				if(state.compareAndSet(old, pack(currentPeriod, newCount)))
+					return newCount == EXPIRED;
+			}
+		}
+
+		boolean expireIfForgiven(long currentPeriod)
+		{
+			while(true)
+			{
+				long old = state.get();
+				int count = unpackCount(old);
+				if(count == EXPIRED)
+					return true;
+				if(decay(count, unpackPeriod(old), currentPeriod) >= 0)
+					return false;
+				if(state.compareAndSet(old, pack(currentPeriod, EXPIRED)))
+					return true;
+			}
+		}
+
+		private int decay(int count, long lastPeriod, long currentPeriod)
+		{
+			long elapsed = currentPeriod - lastPeriod;
+			if(elapsed <= 0)
+				return count;
+			long decayed = count - elapsed * maxAttempts;
+			if(decayed < 0)
+				return -1;
+			return (int)decayed;
+		}
+
+		private long pack(long period, int count)
+		{
+			return (period << 32) | (count & 0xffffffffL);
+		}
+
+		private long unpackPeriod(long packed)
+		{
+			return packed >>> 32;
+		}
+
+		private int unpackCount(long packed)
+		{
+			return (int)packed;
+		}
+
+		private AtomicLong state;
+	}
+
+	private static final int EXPIRED = Integer.MIN_VALUE;
+	private static final int EVICTION_SAMPLE_SIZE = 16;
+	public static final int DEFAULT_MAX_TRACKED_IPS = 100000;
+
+	private int maxAttempts;
+	private int maxTrackedIps;
+	private volatile long decayStartedMillis;
+	private volatile long decayIntervalMillis;
+	private ConcurrentHashMap<String, Counter> counters;
+	private AtomicReferenceArray<String> recentIps;
+	private AtomicInteger nextInsertSlot = new AtomicInteger();
+	private AtomicInteger nextEvictionSlot = new AtomicInteger();
+	private AtomicInteger rejected = new AtomicInteger();
+	private AtomicInteger evictions = new AtomicInteger();
+}
@@ -0,0 +1,311 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.martus.common.packet.UniversalId;
+import org.martus.util.UnicodeReader;
+import org.martus.util.UnicodeWriter;
+
+/*
+ * An incoming interim zip that is being uploaded in chunks. The file stays
+ * open between chunks, and each chunk is base64-decoded straight into a
+ * reusable direct buffer and written to the end of the file.
+ * 
+ * The SHA-1 of what has arrived so far is kept up to date as chunks are
+ * written, and saved in a small sidecar file next to the interim file, so
+ * a client asking where to resume does not make us reread the upload.
+ */
+public class UploadSession
+{
+	UploadSession(String uploaderAccountIdToUse, UniversalId uidToUse, File interimFileToUse) throws IOException
+	{
+		uploaderAccountId = uploaderAccountIdToUse;
+		uid = uidToUse;
+		interimFile = interimFileToUse;
+		file = new RandomAccessFile(interimFile, "rw");
+		channel = file.getChannel();
+		offset = channel.size();
+		channel.position(offset);
+		digest = loadDigest(interimFile);
+		if(digest == null || digest.getLength() != offset)
+		{
+			digest = computeDigest(interimFile);
+			saveDigest();
+		}
+		touch();
+	}
+
+	public String getUploaderAccountId()
+	{
+		return uploaderAccountId;
+	}
+
+	public UniversalId getUid()
+	{
+		return uid;
+	}
+
+	public File getInterimFile()
+	{
+		return interimFile;
+	}
+
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	public boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+
+	public boolean matchesFileOnDisk()
+	{
+		return interimFile.length() == offset;
+	}
+
+	public long appendBase64(String data) throws IOException
+	{
+		touch();
+		ByteBuffer buffer = getDecodeBuffer();
+		long bytesWritten = 0;
+		int[] quantum = new int[4];
+		int count = 0;
+		int padding = 0;
+		for(int i = 0; i < data.length(); ++i)
+		{
+			char c = data.charAt(i);
+			if(Character.isWhitespace(c))
+				continue;
+			if(c == BASE64_PAD)
+			{
+				++padding;
+				continue;
+			}
+
+			int value = -1;
+			if(c < DECODE_TABLE.length)
+				value = DECODE_TABLE[c];
+			if(value < 0 || padding > 0)
+				throw new InvalidBase64DataException("Invalid base64 data at position " + i);
+
+			quantum[count++] = value;
+			if(count == 4)
+			{
+				buffer.put((byte)((quantum[0] << 2) | (quantum[1] >> 4)));
+				buffer.put((byte)((quantum[1] << 4) | (quantum[2] >> 2)));
+				buffer.put((byte)((quantum[2] << 6) | quantum[3]));
+				count = 0;
+				if(buffer.remaining() < 3)
+					bytesWritten += flush(buffer);
+			}
+		}
+
+		if(count == 1 || padding > 2)
+			throw new InvalidBase64DataException("Truncated base64 data");
+		if(count >= 2)
+			buffer.put((byte)((quantum[0] << 2) | (quantum[1] >> 4)));
+		if(count == 3)
+			buffer.put((byte)((quantum[1] << 4) | (quantum[2] >> 2)));
+
+		bytesWritten += flush(buffer);
+		saveDigest();
+		return bytesWritten;
+	}
+
+	public IncrementalSha1 getDigestSnapshot()
+	{
+		return digest.copy();
+	}
+
+	public void close()
+	{
+		try
+		{
+			channel.close();
+			file.close();
+		}
+		catch(IOException nothingWeCanDo)
+		{
+		}
+	}
+
+	public boolean isIdleSince(long cutoffMillis)
+	{
+		return lastUsedMillis < cutoffMillis;
+	}
+
+	private void touch()
+	{
+		lastUsedMillis = System.currentTimeMillis();
+	}
+
+	private int flush(ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		digest.update(buffer);
+		int written = 0;
+		while(buffer.hasRemaining())
+			written += channel.write(buffer);
+		buffer.clear();
+		offset += written;
+		return written;
+	}
+
+	private void saveDigest() throws IOException
+	{
+		UnicodeWriter writer = new UnicodeWriter(getDigestFile(interimFile));
+		try
+		{
+			writer.writeln(Long.toString(interimFile.lastModified()));
+			writer.writeln(digest.getState());
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	public static IncrementalSha1 loadDigest(File interimFile)
+	{
+		File digestFile = getDigestFile(interimFile);
+		if(!interimFile.exists() || !digestFile.exists())
+			return null;
+
+		try
+		{
+			UnicodeReader reader = new UnicodeReader(digestFile);
+			try
+			{
+				long savedLastModified = Long.parseLong(reader.readLine());
+				IncrementalSha1 saved = IncrementalSha1.createFromState(reader.readLine());
+				if(savedLastModified != interimFile.lastModified())
+					return null;
+				if(saved.getLength() != interimFile.length())
+					return null;
+				return saved;
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch(Exception staleOrDamaged)
+		{
+			return null;
+		}
+	}
+
+	public static IncrementalSha1 computeDigest(File interimFile) throws IOException
+	{
+		IncrementalSha1 sha1 = new IncrementalSha1();
+		if(!interimFile.exists())
+			return sha1;
+
+		InputStream in = new BufferedInputStream(new FileInputStream(interimFile));
+		try
+		{
+			byte[] buffer = new byte[REHASH_BUFFER_BYTES];
+			int got;
+			while((got = in.read(buffer)) >= 0)
+				sha1.update(buffer, 0, got);
+		}
+		finally
+		{
+			in.close();
+		}
+		return sha1;
+	}
+
+	public static File getDigestFile(File interimFile)
+	{
+		return new File(interimFile.getPath() + DIGEST_FILE_SUFFIX);
+	}
+
+	public static void deleteInterimFile(File interimFile)
+	{
+		interimFile.delete();
+		getDigestFile(interimFile).delete();
+	}
+
+	private static ByteBuffer getDecodeBuffer()
+	{
+		ByteBuffer buffer = decodeBuffer.get();
+		if(buffer == null)
+		{
+			buffer = ByteBuffer.allocateDirect(DECODE_BUFFER_BYTES);
+			decodeBuffer.set(buffer);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private static int[] createDecodeTable()
+	{
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		int[] table = new int[128];
+		for(int i = 0; i < table.length; ++i)
+			table[i] = -1;
+		for(int i = 0; i < alphabet.length(); ++i)
+			table[alphabet.charAt(i)] = i;
+		return table;
+	}
+
+	public static class InvalidBase64DataException extends IOException
+	{
+		public InvalidBase64DataException(String message)
+		{
+			super(message);
+		}
+	}
+
+	private static final int DECODE_BUFFER_BYTES = 64 * 1024;
+	private static final int REHASH_BUFFER_BYTES = 64 * 1024;
+	private static final String DIGEST_FILE_SUFFIX = ".sha1";
+	private static final char BASE64_PAD = '=';
+	private static final int[] DECODE_TABLE = createDecodeTable();
+	private static ThreadLocal<ByteBuffer> decodeBuffer = new ThreadLocal<ByteBuffer>();
+
+	private String uploaderAccountId;
+	private UniversalId uid;
+	private File interimFile;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long offset;
+	private IncrementalSha1 digest;
+	private volatile long lastUsedMillis;
+}
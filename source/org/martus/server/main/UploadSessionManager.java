@@ -0,0 +1,131 @@
+/*
+
+The Martus(tm) free, social justice documentation and
+monitoring software. Copyright (C) 2001-2007, Beneficent
+Technology, Inc. (The Benetech Initiative).
+
+Martus is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either
+version 2 of the License, or (at your option) any later
+version with the additions and exceptions described in the
+accompanying Martus license file entitled "license.txt".
+
+It is distributed WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, including warranties of fitness of purpose or
+merchantability.  See the accompanying Martus License and
+GPL license for more details on the required license terms
+for this software.
+
+You should have received a copy of the GNU General Public
+License along with this program; if not, write to the Free
+Software Foundation, Inc., 59 Temple Place - Suite 330,
+Boston, MA 02111-1307, USA.
+
+*/
+
+package org.martus.server.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.martus.common.packet.UniversalId;
+
+/*
+ * The incoming interim file is per bulletin, so there is at most one
+ * session per uid. A chunk from a different uploader closes the old session
+ * and picks up the file where it was left, just as a reconnecting client
+ * would.
+ */
+public class UploadSessionManager
+{
+	public UploadSessionManager()
+	{
+		sessions = new ConcurrentHashMap<String, UploadSession>();
+	}
+
+	public synchronized UploadSession getSession(String uploaderAccountId, UniversalId uid, File interimFile, boolean restart) throws IOException
+	{
+		String key = uid.toString();
+		UploadSession session = sessions.get(key);
+		if(session != null)
+		{
+			boolean sameUploader = session.getUploaderAccountId().equals(uploaderAccountId);
+			if(restart || !sameUploader || !session.isOpen())
+			{
+				session.close();
+				sessions.remove(key);
+				session = null;
+			}
+		}
+
+		if(session == null)
+		{
+			if(restart)
+				UploadSession.deleteInterimFile(interimFile);
+			session = new UploadSession(uploaderAccountId, uid, interimFile);
+			sessions.put(key, session);
+		}
+		return session;
+	}
+
+	public synchronized void close(UniversalId uid)
+	{
+		UploadSession session = sessions.remove(uid.toString());
+		if(session != null)
+			session.close();
+	}
+
+	public synchronized void discard(UniversalId uid, File interimFile)
+	{
+		close(uid);
+		UploadSession.deleteInterimFile(interimFile);
+	}
+
+	public IncrementalSha1 getPartialUploadDigest(UniversalId uid, File interimFile) throws IOException
+	{
+		UploadSession session = sessions.get(uid.toString());
+		if(session != null)
+		{
+			synchronized(session)
+			{
+				if(session.isOpen())
+					return session.getDigestSnapshot();
+			}
+		}
+
+		IncrementalSha1 saved = UploadSession.loadDigest(interimFile);
+		if(saved != null)
+			return saved;
+		return UploadSession.computeDigest(interimFile);
+	}
+
+	public synchronized int closeIdleSessions(long maxIdleMillis)
+	{
+		long cutoff = System.currentTimeMillis() - maxIdleMillis;
+		int closed = 0;
+		Iterator<UploadSession> iter = sessions.values().iterator();
+		while(iter.hasNext())
+		{
+			UploadSession session = iter.next();
+			if(session.isIdleSince(cutoff))
+			{
+				session.close();
+				iter.remove();
+				++closed;
+			}
+		}
+		return closed;
+	}
+
+	public int getSessionCount()
+	{
+		return sessions.size();
+	}
+
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+	private ConcurrentHashMap<String, UploadSession> sessions;
+}